@@ -17,4 +17,12 @@ void setup() {
 
 void loop() {
   recv_and_handle_packet();
+  check_baud_confirmation();
+  if (update_motors()) {
+    send_orientation();
+  }
+  send_subscriptions();
+  if (is_sequenced()) {
+    link_retransmit();
+  }
 }
@@ -2,6 +2,11 @@
 // MOTOR FUNCTIONS
 // =======================
 
+// Target of the move in progress, if moving
+double az_target;
+double el_target;
+boolean moving = false;
+
 void motors_init() {
   pinMode(MOTR_AZ_DIR_PIN, OUTPUT);
   pinMode(MOTR_AZ_PWM_PIN, OUTPUT);
@@ -16,3 +21,23 @@ void set_azimuth(double target) {
 void set_elevation(double target) {
   
 }
+
+// Start moving to a new orientation. The move carries on from loop() through
+// update_motors, so it doesn't hold up serial commands.
+void start_move(double az, double el) {
+  az_target = az;
+  el_target = el;
+  set_azimuth(az_target);
+  set_elevation(el_target);
+  moving = true;
+}
+
+// Drive a move in progress. Returns true once, when the move finishes.
+boolean update_motors() {
+  if (!moving) {
+    return false;
+  }
+  // set_azimuth and set_elevation finish the move themselves for now
+  moving = false;
+  return true;
+}
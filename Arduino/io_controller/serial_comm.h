@@ -10,6 +10,46 @@
 #define LOC_HEADER 0
 #define LOC_COMMAND 1
 #define LOC_ARGS 2
+#define LEN_HEADER 1
+#define LEN_COMMAND 1
+
+// Link options, a bitmask agreed in the COMMAND_EST_CONN handshake. The
+// handshake itself always uses fixed PACKET_LEN frames.
+#define OPTION_VARIABLE_LENGTH 0x01 // Frames are HEADER, body length, body
+#define OPTION_CHECKSUM 0x02 // Frames end in a CRC of all but the header
+#define OPTION_SEQUENCED 0x04 // Frames carry a sequence number and an ack
+#define OPTION_FEC 0x08 // Frames can be repaired if one byte is corrupted
+#define SUPPORTED_OPTIONS (OPTION_VARIABLE_LENGTH | OPTION_CHECKSUM \
+                           | OPTION_SEQUENCED | OPTION_FEC)
+#define LOC_LENGTH 1 // Variable-length frames only: command + args length
+#define LEN_LENGTH 1
+// FEC frames only: the length byte is sent LENGTH_COPIES times and taken by
+// majority vote, and everything after it ends in Reed-Solomon parity
+#define LENGTH_COPIES 3
+#define LEN_PARITY 2
+// Sequenced frames only: after the header (and length), the frame's sequence
+// number, then the next sequence number expected from the RPi
+#define LEN_SEQUENCE 1
+#define LEN_ACK 1
+// Longest frame on the wire: a full fixed frame's body with every option
+#define MAX_FRAME_LEN (PACKET_LEN + LEN_LENGTH * LENGTH_COPIES \
+                       + LEN_SEQUENCE + LEN_ACK + LEN_CRC + LEN_PARITY)
+// Sliding-window link: frames held in each direction, and the time to wait
+// for an ack before sending a frame again
+#define LINK_WINDOW 4 // Must divide 256
+#define LINK_RETRANSMIT_TIMEOUT 250 // ms
+#define LEN_CRC 2 // CRC-16/CCITT-FALSE, big-endian
+#define CRC16_INIT 0xFFFF
+
+// Protocol versions, agreed in the COMMAND_EST_CONN handshake. They differ
+// in how numeric arguments are encoded; numeric arguments are laid out back
+// to back, each value_length() bytes long.
+#define PROTOCOL_V1 1      // ASCII decimal strings, LEN_DOUBLE bytes each
+#define PROTOCOL_V2 2      // Big-endian int32 millionths, LEN_FIXED bytes each
+#define PROTOCOL_VERSION PROTOCOL_V2 // Newest version supported
+#define LEN_DOUBLE 8
+#define LEN_FIXED 4
+#define FIXED_SCALE 1000000.0
 
 // Commands and arguments
 #define COMMAND_ACK 0x01
@@ -19,12 +59,15 @@
 #define COMMAND_NACK 0x02
 #define LOC_NACKD_COMMAND 0
 #define LEN_NACKD_COMMAND 1
+#define LOC_NACK_REASON 1
+#define LEN_NACK_REASON 1
+#define NACK_REASON_REJECTED 0 // Unknown command or refused arguments
+#define NACK_REASON_CHECKSUM 1 // Frame failed its CRC; the RPi resends it
 
 #define COMMAND_ORNT_SET 0x03
-#define LOC_AZIMUTH 0
-#define LEN_AZIMUTH 8
-#define LOC_ELEVATION 8
-#define LEN_ELEVATION 8
+#define ARG_AZIMUTH 0
+#define ARG_ELEVATION 1
+#define NUM_ORNT_ARGS 2
 
 #define COMMAND_ORNT_READ 0x04
 // No args
@@ -36,19 +79,51 @@
 // No args
 
 #define COMMAND_ENV_RESPONSE 0x07
-#define LOC_TEMP 0
-#define LEN_TEMP 8
-#define LOC_HUMID 8
-#define LEN_HUMID 8
+#define ARG_TEMP 0
+#define ARG_HUMID 1
+#define NUM_ENV_ARGS 2
 
 #define COMMAND_GPS_READ 0x08
 // No args
 
 #define COMMAND_GPS_RESPONSE 0x09
-#define LOC_LAT 0
-#define LEN_LAT 8
-#define LOC_LONG 8
-#define LEN_LONG 8
+#define ARG_LAT 0
+#define ARG_LONG 1
+#define NUM_GPS_ARGS 2
 
 #define COMMAND_EST_CONN  0x0A
-// No args
+#define LOC_PROTOCOL_VERSION 0 // Newest version the RPi supports (0 = V1)
+#define LEN_PROTOCOL_VERSION 1
+#define LOC_LINK_OPTIONS 1     // Link options the RPi supports
+#define LEN_LINK_OPTIONS 1
+// The ack carries the agreed version and options after the ack'd command
+#define LOC_ACK_PROTOCOL_VERSION 1
+#define LOC_ACK_LINK_OPTIONS 2
+
+#define COMMAND_SET_BAUD 0x0B
+#define LOC_BAUD 0 // Big-endian 4-byte baud rate
+#define LEN_BAUD 4
+// The new rate is acked at the old rate. If no valid packet arrives at the
+// new rate within BAUD_CONFIRM_TIMEOUT, the old rate is restored.
+#define BAUD_CONFIRM_TIMEOUT 3000 // ms
+#define NUM_BAUD_RATES 5
+
+#define COMMAND_LINK_ACK 0x0C
+// Cumulative ack is in the frame; bit i set if frame ack + 1 + i is held
+#define LOC_SELECTIVE_ACKS 0
+#define LEN_SELECTIVE_ACKS 1
+#define SELECTIVE_ACK_BITS 8
+
+#define COMMAND_SUBSCRIBE 0x0D
+// The read command whose response is pushed, and how often
+#define LOC_SUBSCRIBED_COMMAND 0
+#define LEN_SUBSCRIBED_COMMAND 1
+#define LOC_SUBSCRIBE_PERIOD 1 // Big-endian 4-byte period in ms
+#define LEN_SUBSCRIBE_PERIOD 4
+// A compass reading takes 6 ms, and a response frame about 12 ms at 9600
+// baud, so faster pushes would crowd out commands
+#define MIN_SUBSCRIBE_PERIOD 50 // ms
+#define NUM_SUBSCRIPTIONS 3
+
+#define COMMAND_UNSUBSCRIBE 0x0E
+// Same LOC_SUBSCRIBED_COMMAND as COMMAND_SUBSCRIBE
@@ -1,3 +1,41 @@
+// Protocol version agreed with the RPi in the COMMAND_EST_CONN handshake
+byte protocol_version = PROTOCOL_V1;
+// Link options agreed with the RPi in the COMMAND_EST_CONN handshake
+byte link_options = 0;
+
+// Sliding-window link state, used when OPTION_SEQUENCED is agreed. Frames
+// are kept in slots indexed by sequence number % LINK_WINDOW.
+// Frames sent from link_send_base up to link_next_seq aren't acked yet.
+byte link_send_base = 0;
+byte link_next_seq = 0;
+byte link_sent_frames[LINK_WINDOW][MAX_FRAME_LEN];
+byte link_sent_lengths[LINK_WINDOW];
+unsigned long link_sent_at[LINK_WINDOW];
+boolean link_sackd[LINK_WINDOW];
+// Frames received from link_recv_next on, held until they can be handled
+// in order
+byte link_recv_next = 0;
+byte link_recv_frames[LINK_WINDOW][PACKET_LEN];
+boolean link_received[LINK_WINDOW];
+
+// Baud rates COMMAND_SET_BAUD accepts
+const long supported_baud_rates[NUM_BAUD_RATES] = {
+  9600, 19200, 38400, 57600, 115200
+};
+// Current baud rate, and the rate to restore if a change isn't confirmed
+long baud_rate = BAUD_RATE;
+long previous_baud_rate = BAUD_RATE;
+boolean baud_unconfirmed = false;
+unsigned long baud_confirm_deadline = 0;
+
+// Read commands whose responses can be pushed, and for each, how often it is
+// pushed in ms (0 if it isn't) and when the next push is due
+const byte subscribable_commands[NUM_SUBSCRIPTIONS] = {
+  COMMAND_ORNT_READ, COMMAND_ENV_READ, COMMAND_GPS_READ
+};
+unsigned long subscription_periods[NUM_SUBSCRIPTIONS];
+unsigned long subscription_due[NUM_SUBSCRIPTIONS];
+
 // ======================= 
 // COMMUNICATION FUNCTIONS
 // =======================
@@ -7,26 +45,172 @@ void serial_init() {
   Serial.begin(BAUD_RATE);
 }
 
-// Send a packet with the given command and arguments over serial
+// Send a packet with the given command and arguments over serial. On a
+// sequenced link, the frame takes the next sequence number and is kept until
+// the RPi acks it.
 void send_packet(byte command, byte *args, int args_length) {
+  boolean keep = is_sequenced() && command != COMMAND_LINK_ACK;
+  if (keep) {
+    link_wait_for_room();
+  }
+
   // Create byte array to send
-  byte packet_bytes[PACKET_LEN];
+  byte frame[MAX_FRAME_LEN];
+  int frame_len = build_frame(frame, command, args, args_length,
+                              link_next_seq);
+  if (keep) {
+    byte slot = link_next_seq % LINK_WINDOW;
+    memcpy(link_sent_frames[slot], frame, frame_len);
+    link_sent_lengths[slot] = frame_len;
+    link_sent_at[slot] = millis();
+    link_sackd[slot] = false;
+    link_next_seq++;
+  }
+
+  // Write the packet to the serial port and then flush the output
+  Serial.write(frame, frame_len);
+  Serial.flush();
+}
 
+// Lay out a frame with the given command and arguments in the agreed
+// framing. Returns the length of the frame.
+int build_frame(byte *frame, byte command, byte *args, int args_length,
+                byte seq) {
   // Set all elements of array to zero
-  memset(packet_bytes, 0, sizeof(packet_bytes));
+  memset(frame, 0, MAX_FRAME_LEN);
 
-  // Insert header and command
-  packet_bytes[LOC_HEADER] = HEADER;
-  packet_bytes[LOC_COMMAND] = command;
+  // Insert header, and the body length if frames are variable-length
+  frame[LOC_HEADER] = HEADER;
+  int body = loc_body();
+  int frame_len = PACKET_LEN;
+  if (is_variable_length()) {
+    for (int i = 0; i < length_copies(); i++) {
+      frame[LOC_LENGTH + i] = LEN_COMMAND + args_length;
+    }
+    frame_len = body + LEN_COMMAND + args_length + trailer_length();
+  }
+
+  // Insert sequence number and ack
+  if (is_sequenced()) {
+    frame[loc_sequence()] = seq;
+    frame[loc_sequence() + LEN_SEQUENCE] = link_recv_next;
+  }
 
-  // Insert arguments
+  // Insert command and arguments
+  frame[body] = command;
   for (int i = 0; i < args_length; i++) {
-    packet_bytes[LOC_ARGS + i] = args[i];
+    frame[body + LEN_COMMAND + i] = args[i];
   }
 
-  // Write the packet to the serial port and then flush the output
-  Serial.write(packet_bytes, PACKET_LEN);
-  Serial.flush();
+  seal_frame(frame, frame_len);
+  return frame_len;
+}
+
+// Insert the trailer of a frame: a CRC of everything after the header, then
+// parity of everything after the length copies
+void seal_frame(byte *frame, int frame_len) {
+  int loc_crc = frame_len - trailer_length();
+  if (has_checksum()) {
+    insert_crc(frame, loc_crc, crc16_update(CRC16_INIT, frame + LEN_HEADER,
+                                            loc_crc - LEN_HEADER));
+  }
+  if (has_fec()) {
+    insert_parity(frame + loc_sequence(),
+                  loc_crc + crc_length() - loc_sequence());
+  }
+}
+
+// Send a nack of the given command, with the reason it was rejected
+void send_nack(byte command, byte reason) {
+  byte resp_args[LEN_NACKD_COMMAND + LEN_NACK_REASON];
+  resp_args[LOC_NACKD_COMMAND] = command;
+  resp_args[LOC_NACK_REASON] = reason;
+  send_packet(COMMAND_NACK, resp_args, LEN_NACKD_COMMAND + LEN_NACK_REASON);
+}
+
+// Send an orientation response with a new reading, for a read or a
+// subscription, or to update RPi of the new location at the end of a move
+void send_orientation() {
+  read_compass();
+  read_inclinometer();
+
+  int args_length = NUM_ORNT_ARGS * value_length();
+  byte args[args_length];
+  insert_value(args, ARG_AZIMUTH, azimuth);
+  insert_value(args, ARG_ELEVATION, elevation);
+  send_packet(COMMAND_ORNT_RESPONSE, args, args_length);
+}
+
+// Send an environmental response with a new reading
+void send_env() {
+  read_env();
+
+  int args_length = NUM_ENV_ARGS * value_length();
+  byte args[args_length];
+  insert_value(args, ARG_TEMP, temperature);
+  insert_value(args, ARG_HUMID, humidity);
+  send_packet(COMMAND_ENV_RESPONSE, args, args_length);
+}
+
+// Send a GPS response with the latest position
+void send_gps() {
+  read_gps();
+
+  int args_length = NUM_GPS_ARGS * value_length();
+  byte args[args_length];
+  insert_value(args, ARG_LAT, latitude);
+  insert_value(args, ARG_LONG, longitude);
+  send_packet(COMMAND_GPS_RESPONSE, args, args_length);
+}
+
+// Send the response to the given read command
+void send_reading(byte read_command) {
+  switch (read_command) {
+    case (COMMAND_ORNT_READ):
+      send_orientation();
+      break;
+    case (COMMAND_ENV_READ):
+      send_env();
+      break;
+    case (COMMAND_GPS_READ):
+      send_gps();
+      break;
+  }
+}
+
+// Push a reading for each subscription that is due. Pushes are due a whole
+// number of periods after the subscription, so they don't drift; one held up
+// by a command moves the schedule on rather than sending a burst.
+void send_subscriptions() {
+  for (int i = 0; i < NUM_SUBSCRIPTIONS; i++) {
+    if (subscription_periods[i] == 0
+        || (long) (millis() - subscription_due[i]) < 0) {
+      continue;
+    }
+    send_reading(subscribable_commands[i]);
+    subscription_due[i] += subscription_periods[i];
+    if ((long) (millis() - subscription_due[i]) >= 0) {
+      subscription_due[i] = millis() + subscription_periods[i];
+    }
+  }
+}
+
+// Index of the subscription for the given read command, or -1 if its
+// response can't be pushed
+int subscription_index(byte read_command) {
+  for (int i = 0; i < NUM_SUBSCRIPTIONS; i++) {
+    if (subscribable_commands[i] == read_command) {
+      return i;
+    }
+  }
+  return -1;
+}
+
+// Stop pushing every reading
+void subscriptions_reset() {
+  for (int i = 0; i < NUM_SUBSCRIPTIONS; i++) {
+    subscription_periods[i] = 0;
+  }
 }
 
 // Send the given byte array over serial
@@ -35,28 +219,168 @@ void send_packet(byte *packet_bytes) {
   Serial.flush();
 }
 
-// Receive a packet of PACKET_LEN bytes over serial and respond to it
+// Receive a packet over serial and respond to it
 void recv_and_handle_packet() {
   // Initialize a byte array to read in a packet
   char packet_bytes[PACKET_LEN];
+  memset(packet_bytes, 0, sizeof(packet_bytes));
 
-  int num_bytes = Serial.readBytes(packet_bytes, PACKET_LEN);
+  byte seq = 0;
+  byte ack = 0;
+  int num_bytes = read_frame((byte *) packet_bytes, &seq, &ack);
+
+  // Reject a corrupted frame straight away, rather than acting on garbled
+  // arguments. A sequenced link recovers by retransmission; otherwise ask
+  // the RPi to resend it.
+  if (num_bytes < 0) {
+    if (!is_sequenced() && has_header((byte *) packet_bytes)) {
+      send_nack(packet_bytes[LOC_COMMAND], NACK_REASON_CHECKSUM);
+    }
+    return;
+  }
 
-  // If data was received, handle the packet
+  // If data was received, handle the packet (in sequence, once, on a
+  // sequenced link)
   if (num_bytes > 0) {
-    handle_packet((byte *) packet_bytes);
+    if (is_sequenced()) {
+      link_on_frame((byte *) packet_bytes, seq, ack);
+      while (link_next_packet((byte *) packet_bytes)) {
+        handle_packet((byte *) packet_bytes);
+      }
+    } else {
+      handle_packet((byte *) packet_bytes);
+    }
   }
 }
 
-// Extract a byte array of arguments from the given packet
-byte *get_args(byte *packet_bytes, int args_length) {
-  byte args[args_length];
-  
-  // Extract arguments
-  for (int i = 0; i < args_length; i++) {
-    args[i] = packet_bytes[LOC_ARGS + i];
+// Receive a frame in the agreed framing, repair it if it has FEC, and lay it
+// out as a fixed frame (header, command, args) in packet_bytes. Returns the
+// number of bytes received, 0 if no complete frame was, or -1 if it failed
+// its CRC or couldn't be repaired. seq and ack are set for sequenced frames.
+int read_frame(byte *packet_bytes, byte *seq, byte *ack) {
+  byte frame[MAX_FRAME_LEN];
+  memset(frame, 0, sizeof(frame));
+
+  int frame_len;
+  if (is_variable_length()) {
+    // Skip bytes until a header, one at a time so we can resync
+    if (Serial.read() != HEADER) {
+      return 0;
+    }
+    frame[LOC_HEADER] = HEADER;
+    int loc_seq = loc_sequence();
+    if (Serial.readBytes((char *) frame + LOC_LENGTH, loc_seq - LOC_LENGTH)
+        < loc_seq - LOC_LENGTH) {
+      return 0;
+    }
+    if (has_fec()) {
+      // Take the bitwise majority of the copies, and restore them all
+      byte length = (frame[LOC_LENGTH] & frame[LOC_LENGTH + 1])
+          | (frame[LOC_LENGTH] & frame[LOC_LENGTH + 2])
+          | (frame[LOC_LENGTH + 1] & frame[LOC_LENGTH + 2]);
+      for (int i = 0; i < LENGTH_COPIES; i++) {
+        frame[LOC_LENGTH + i] = length;
+      }
+    }
+    int body_len = frame[LOC_LENGTH];
+    if (body_len < LEN_COMMAND || body_len > PACKET_LEN - LOC_COMMAND) {
+      return 0;
+    }
+    frame_len = loc_body() + body_len + trailer_length();
+    if (Serial.readBytes((char *) frame + loc_seq, frame_len - loc_seq)
+        < frame_len - loc_seq) {
+      return 0;
+    }
+  } else {
+    if (Serial.readBytes((char *) frame, PACKET_LEN) == 0) {
+      return 0;
+    }
+    // A short read is left zero-padded
+    frame_len = PACKET_LEN;
+  }
+
+  if (has_fec()
+      && correct_parity(frame + loc_sequence(),
+                        frame_len - loc_sequence()) < 0) {
+    return -1;
+  }
+
+  // Lay the frame out as header, command, args
+  int body = loc_body();
+  packet_bytes[LOC_HEADER] = frame[LOC_HEADER];
+  memcpy(packet_bytes + LOC_COMMAND, frame + body,
+         frame_len - body - trailer_length());
+  if (is_sequenced()) {
+    *seq = frame[loc_sequence()];
+    *ack = frame[loc_sequence() + LEN_SEQUENCE];
+  }
+
+  if (has_checksum()) {
+    int loc_crc = frame_len - trailer_length();
+    if (crc16_update(CRC16_INIT, frame + LEN_HEADER, loc_crc - LEN_HEADER)
+        != extract_crc(frame, loc_crc)) {
+      return -1;
+    }
+  }
+  return frame_len;
+}
+
+// Restore the previous baud rate if a change hasn't been confirmed in time
+void check_baud_confirmation() {
+  if (baud_unconfirmed && (long) (millis() - baud_confirm_deadline) >= 0) {
+    baud_rate = previous_baud_rate;
+    baud_unconfirmed = false;
+    Serial.begin(baud_rate);
+  }
+}
+
+boolean is_variable_length() {
+  return (link_options & OPTION_VARIABLE_LENGTH) != 0;
+}
+
+boolean has_checksum() {
+  return (link_options & OPTION_CHECKSUM) != 0;
+}
+
+boolean is_sequenced() {
+  return (link_options & OPTION_SEQUENCED) != 0;
+}
+
+// Index of the sequence number in a frame
+int loc_sequence() {
+  return LEN_HEADER
+      + (is_variable_length() ? LEN_LENGTH * length_copies() : 0);
+}
+
+// Index of the command in a frame
+int loc_body() {
+  return loc_sequence() + (is_sequenced() ? LEN_SEQUENCE + LEN_ACK : 0);
+}
+
+int crc_length() {
+  return has_checksum() ? LEN_CRC : 0;
+}
+
+// Length of everything after a frame's body: its CRC and parity
+int trailer_length() {
+  return crc_length() + (has_fec() ? LEN_PARITY : 0);
+}
+
+boolean has_fec() {
+  return (link_options & OPTION_FEC) != 0;
+}
+
+int length_copies() {
+  return has_fec() ? LENGTH_COPIES : 1;
+}
+
+boolean is_supported_baud(long rate) {
+  for (int i = 0; i < NUM_BAUD_RATES; i++) {
+    if (supported_baud_rates[i] == rate) {
+      return true;
+    }
   }
-  return args;
+  return false;
 }
 
 // Handle a received packet
@@ -67,6 +391,9 @@ void handle_packet(byte *packet_bytes) {
     return;
   }
 
+  // Any valid packet at a new baud rate confirms it
+  baud_unconfirmed = false;
+
   byte command = packet_bytes[LOC_COMMAND];
 
   switch (command) {
@@ -91,91 +418,111 @@ void handle_packet(byte *packet_bytes) {
       send_packet(resp_command, resp_args, resp_args_length);
       
       // Extract arguments and get angles
-      int args_length = LEN_AZIMUTH + LEN_ELEVATION;
-      byte *args = get_args(packet_bytes, args_length);
-      double az_target = extract_double(args, LOC_AZIMUTH);
-      double el_target = extract_double(args, LOC_ELEVATION);
-      
-      // Move motors
-      set_azimuth(az_target);
-      set_elevation(el_target);
-      
-      // Read new orientation
-      read_compass();
-      read_inclinometer();
+      byte *args = packet_bytes + LOC_ARGS;
+      double az_target = extract_value(args, ARG_AZIMUTH);
+      double el_target = extract_value(args, ARG_ELEVATION);
       
-      // Send orientation response to update RPi of new location
-      int ornt_args_length = LEN_AZIMUTH + LEN_ELEVATION;
-      byte ornt_args[ornt_args_length];
-      insert_double(ornt_args, LOC_AZIMUTH, azimuth);
-      insert_double(ornt_args, LOC_ELEVATION, elevation);
-      send_packet(COMMAND_ORNT_RESPONSE, ornt_args, ornt_args_length);
+      // Start the motors; loop() finishes the move and sends the new
+      // orientation, so reads are answered while the motors turn
+      start_move(az_target, el_target);
       break;
     }
     case (COMMAND_ORNT_READ): 
+    case (COMMAND_ENV_READ): 
+    case (COMMAND_GPS_READ): 
     {
-      // Handle orientation read
-      // Get data
-      read_compass();
-      read_inclinometer();
-      
-      // Send response packet
-      byte resp_command = COMMAND_ORNT_RESPONSE;
-      int args_length = LEN_AZIMUTH + LEN_ELEVATION;
-      byte resp_args[args_length];
-      insert_double(resp_args, LOC_AZIMUTH, azimuth);
-      insert_double(resp_args, LOC_ELEVATION, elevation);
-      send_packet(resp_command, resp_args, args_length);
+      // Handle a read by sending a response packet with a new reading
+      send_reading(command);
       break;
     }
-    case (COMMAND_ENV_READ): 
+    case (COMMAND_EST_CONN):
     {
-      // Handle environmental read
-      // Get data
-      read_env();
+      // Agree on the newest protocol version both sides support. An RPi
+      // that predates versioning sends no version (0), meaning V1.
+      byte requested = packet_bytes[LOC_ARGS + LOC_PROTOCOL_VERSION];
+      protocol_version = min(max(requested, PROTOCOL_V1), PROTOCOL_VERSION);
+
+      // Agree on the link options both sides support (none for an RPi that
+      // predates them)
+      byte options = packet_bytes[LOC_ARGS + LOC_LINK_OPTIONS]
+          & SUPPORTED_OPTIONS;
 
-      // Send response packet
-      byte resp_command = COMMAND_ENV_RESPONSE;
-      int args_length = LEN_TEMP + LEN_HUMID;
+      // Respond with an Ack carrying the agreed version and options to
+      // establish the connection. The ack is still a fixed frame.
+      link_options = 0;
+      byte resp_command = COMMAND_ACK;
+      int args_length = LEN_ACKD_COMMAND + LEN_PROTOCOL_VERSION
+          + LEN_LINK_OPTIONS;
       byte resp_args[args_length];
-      insert_double(resp_args, LOC_TEMP, temperature);
-      insert_double(resp_args, LOC_HUMID, humidity);
+      resp_args[LOC_ACKD_COMMAND] = command;
+      resp_args[LOC_ACK_PROTOCOL_VERSION] = protocol_version;
+      resp_args[LOC_ACK_LINK_OPTIONS] = options;
       send_packet(resp_command, resp_args, args_length);
+      link_options = options;
+      link_reset();
+
+      // A new connection only gets the pushes it asks for
+      subscriptions_reset();
       break;
     }
-    case (COMMAND_GPS_READ): 
+    case (COMMAND_SET_BAUD):
     {
-      // Handle GPS read
-      // Get latitude
-      read_gps();
+      long requested = extract_long(packet_bytes + LOC_ARGS, LOC_BAUD);
+      if (!is_supported_baud(requested)) {
+        send_nack(command, NACK_REASON_REJECTED);
+        break;
+      }
 
-      // Send response packet
-      byte resp_command = COMMAND_GPS_RESPONSE;
-      int args_length = LEN_LAT + LEN_LONG;
-      byte resp_args[args_length];
-      insert_double(resp_args, LOC_LAT, latitude);
-      insert_double(resp_args, LOC_LONG, longitude);
-      send_packet(resp_command, resp_args, args_length);
+      // Ack at the current rate, then switch once the ack has been sent
+      byte resp_args[LEN_ACKD_COMMAND];
+      resp_args[LOC_ACKD_COMMAND] = command;
+      send_packet(COMMAND_ACK, resp_args, LEN_ACKD_COMMAND);
+      if (requested != baud_rate) {
+        previous_baud_rate = baud_rate;
+        baud_rate = requested;
+        Serial.begin(baud_rate);
+        baud_unconfirmed = true;
+        baud_confirm_deadline = millis() + BAUD_CONFIRM_TIMEOUT;
+      }
       break;
     }
-    case (COMMAND_EST_CONN):
+    case (COMMAND_SUBSCRIBE):
     {
-      // Respond with an Ack to establish the connection
-      byte resp_command = COMMAND_ACK;
-      int args_length = LEN_ACKD_COMMAND;
-      byte resp_args[args_length];
+      byte *args = packet_bytes + LOC_ARGS;
+      int index = subscription_index(args[LOC_SUBSCRIBED_COMMAND]);
+      long period = extract_long(args, LOC_SUBSCRIBE_PERIOD);
+      if (index < 0 || period < MIN_SUBSCRIBE_PERIOD) {
+        send_nack(command, NACK_REASON_REJECTED);
+        break;
+      }
+
+      // Ack, then push the first reading straight away
+      byte resp_args[LEN_ACKD_COMMAND];
       resp_args[LOC_ACKD_COMMAND] = command;
-      send_packet(resp_command, resp_args, args_length);
+      send_packet(COMMAND_ACK, resp_args, LEN_ACKD_COMMAND);
+      subscription_periods[index] = period;
+      subscription_due[index] = millis();
+      break;
+    }
+    case (COMMAND_UNSUBSCRIBE):
+    {
+      int index = subscription_index(packet_bytes[LOC_ARGS
+                                                  + LOC_SUBSCRIBED_COMMAND]);
+      if (index < 0) {
+        send_nack(command, NACK_REASON_REJECTED);
+        break;
+      }
+      subscription_periods[index] = 0;
+      byte resp_args[LEN_ACKD_COMMAND];
+      resp_args[LOC_ACKD_COMMAND] = command;
+      send_packet(COMMAND_ACK, resp_args, LEN_ACKD_COMMAND);
+      break;
     }
   default: 
     {
       // Invalid command received
       // Send nack
-      byte resp_command = COMMAND_NACK;
-      int args_length = LEN_NACKD_COMMAND;
-      byte resp_args[args_length];
-      resp_args[LOC_NACKD_COMMAND] = command;
-      send_packet(resp_command, resp_args, args_length);
+      send_nack(command, NACK_REASON_REJECTED);
       break;
     }
   }
@@ -183,7 +530,128 @@ void handle_packet(byte *packet_bytes) {
 }  
 
 boolean has_header(byte *packet_bytes) {
-  return packet_bytes[LOC_HEADER] = HEADER;
+  return packet_bytes[LOC_HEADER] == HEADER;
+}
+
+// ======================= 
+// LINK LAYER FUNCTIONS
+// =======================
+
+// Start a new sliding-window link, with both sequences at 0
+void link_reset() {
+  link_send_base = 0;
+  link_next_seq = 0;
+  link_recv_next = 0;
+  for (int i = 0; i < LINK_WINDOW; i++) {
+    link_sackd[i] = false;
+    link_received[i] = false;
+  }
+}
+
+// Take note of a received frame's ack, and hold it if it is a new data frame
+void link_on_frame(byte *packet_bytes, byte seq, byte ack) {
+  link_on_ack(ack);
+
+  // Mark frames the RPi holds beyond its ack so they aren't sent again
+  if (packet_bytes[LOC_COMMAND] == COMMAND_LINK_ACK) {
+    byte bits = packet_bytes[LOC_ARGS + LOC_SELECTIVE_ACKS];
+    byte outstanding = link_next_seq - link_send_base;
+    for (int i = 0; i < SELECTIVE_ACK_BITS; i++) {
+      byte sackd_seq = ack + 1 + i;
+      if ((bits & (1 << i))
+          && (byte) (sackd_seq - link_send_base) < outstanding) {
+        link_sackd[sackd_seq % LINK_WINDOW] = true;
+      }
+    }
+    return;
+  }
+
+  // A duplicate means our ack was lost; a frame too far ahead can't be held
+  // and will be sent again. Either way, tell the RPi where we are.
+  byte offset = seq - link_recv_next;
+  byte slot = seq % LINK_WINDOW;
+  if (offset >= LINK_WINDOW || link_received[slot]) {
+    send_link_ack();
+    return;
+  }
+
+  memcpy(link_recv_frames[slot], packet_bytes, PACKET_LEN);
+  link_received[slot] = true;
+
+  // Report a gap at once. In-order frames are acked by the response.
+  if (offset != 0) {
+    send_link_ack();
+  }
 }
 
+// Copy the next in-order received frame into packet_bytes, if there is one
+boolean link_next_packet(byte *packet_bytes) {
+  byte slot = link_recv_next % LINK_WINDOW;
+  if (!link_received[slot]) {
+    return false;
+  }
+  memcpy(packet_bytes, link_recv_frames[slot], PACKET_LEN);
+  link_received[slot] = false;
+  link_recv_next++;
+  return true;
+}
 
+// Slide the send window up to a cumulative ack from the RPi
+void link_on_ack(byte ack) {
+  byte acked = ack - link_send_base;
+  if (acked == 0 || acked > (byte) (link_next_seq - link_send_base)) {
+    return;
+  }
+  while (link_send_base != ack) {
+    link_sackd[link_send_base % LINK_WINDOW] = false;
+    link_send_base++;
+  }
+}
+
+// Send a link ack with the cumulative ack and the frames held beyond it
+void send_link_ack() {
+  byte bits = 0;
+  for (int i = 0; i < SELECTIVE_ACK_BITS; i++) {
+    byte held_seq = link_recv_next + 1 + i;
+    if ((byte) (held_seq - link_recv_next) < LINK_WINDOW
+        && link_received[held_seq % LINK_WINDOW]) {
+      bits |= 1 << i;
+    }
+  }
+  byte args[LEN_SELECTIVE_ACKS];
+  args[LOC_SELECTIVE_ACKS] = bits;
+  send_packet(COMMAND_LINK_ACK, args, LEN_SELECTIVE_ACKS);
+}
+
+// Send again every unacked frame whose timer has expired, with our latest
+// ack
+void link_retransmit() {
+  for (byte seq = link_send_base; seq != link_next_seq; seq++) {
+    byte slot = seq % LINK_WINDOW;
+    if (link_sackd[slot]
+        || millis() - link_sent_at[slot] < LINK_RETRANSMIT_TIMEOUT) {
+      continue;
+    }
+    byte *frame = link_sent_frames[slot];
+    frame[loc_sequence() + LEN_SEQUENCE] = link_recv_next;
+    seal_frame(frame, link_sent_lengths[slot]);
+    Serial.write(frame, link_sent_lengths[slot]);
+    Serial.flush();
+    link_sent_at[slot] = millis();
+  }
+}
+
+// Wait until the send window has room, reading acks and retransmitting in
+// the meantime. Data frames that arrive are held for recv_and_handle_packet.
+void link_wait_for_room() {
+  while ((byte) (link_next_seq - link_send_base) >= LINK_WINDOW) {
+    byte packet_bytes[PACKET_LEN];
+    memset(packet_bytes, 0, sizeof(packet_bytes));
+    byte seq = 0;
+    byte ack = 0;
+    if (read_frame(packet_bytes, &seq, &ack) > 0) {
+      link_on_frame(packet_bytes, seq, ack);
+    }
+    link_retransmit();
+  }
+}
@@ -5,22 +5,50 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.StringTokenizer;
-import java.util.concurrent.DelayQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
+import com.sattrak.rpi.motion.MotionModel;
+import com.sattrak.rpi.motion.OrientationSensor;
+import com.sattrak.rpi.motion.SettleDetector;
+import com.sattrak.rpi.planner.Observation;
+import com.sattrak.rpi.planner.PlanOptimizer;
+import com.sattrak.rpi.planner.Schedule;
+import com.sattrak.rpi.scheduler.ScheduledTask;
+import com.sattrak.rpi.scheduler.TaskHandler;
+import com.sattrak.rpi.scheduler.TaskRegistry;
+import com.sattrak.rpi.scheduler.TaskRegistry.ConflictException;
+import com.sattrak.rpi.serial.AsyncSerialEngine;
 import com.sattrak.rpi.serial.EnvironmentalReadPacket;
 import com.sattrak.rpi.serial.EnvironmentalResponsePacket;
 import com.sattrak.rpi.serial.GpsReadPacket;
 import com.sattrak.rpi.serial.GpsResponsePacket;
+import com.sattrak.rpi.serial.Lane;
+import com.sattrak.rpi.serial.LaneStatistics;
 import com.sattrak.rpi.serial.OrientationReadPacket;
 import com.sattrak.rpi.serial.OrientationResponsePacket;
 import com.sattrak.rpi.serial.OrientationSetPacket;
+import com.sattrak.rpi.serial.PacketListener;
 import com.sattrak.rpi.serial.SerialComm;
+import com.sattrak.rpi.serial.SerialCommand;
+import com.sattrak.rpi.serial.SerialPacket;
 import com.sattrak.rpi.serial.SerialComm.IncorrectResponseException;
+import com.sattrak.rpi.serial.SubscribePacket;
+import com.sattrak.rpi.serial.UnsubscribePacket;
+import com.sattrak.rpi.serial.transport.TtyChannelTransport;
+import com.sattrak.rpi.telemetry.SensorCache;
+import com.sattrak.rpi.telemetry.TelemetryPoller;
 import com.sattrak.rpi.util.FormatUtil;
 
 /**
- * A class that holds a delay queue of tasks to be completed. This queue is
+ * A class that holds a schedule of tasks to be completed. The schedule is
  * handled by a thread to automatically run each task at its specified time. It
  * communicates via serial over COM_PORT for tasks that require IO.
  * 
@@ -35,18 +63,48 @@ public class Controller {
 
 	private static final String SERIAL_PORT = "/dev/ttyS80";
 
-	// Length of time between setting the orientation and taking the picture.
-	// Should be at least as long as the max time it can take the motors to move
-	// to any orientation.
-	private static final long TASK_DELAY = 5000;
+	// System property choosing how SERIAL_PORT is opened: "rxtx" (the
+	// default) or "tty" for TtyChannelTransport, which needs no native
+	// library
+	private static final String TRANSPORT_PROPERTY = "sattrak.transport";
+
+	// How far ahead planned observations start, so the plan is still in the
+	// future once it has been optimized
+	private static final long PLANNING_LEAD =
+			2 * PlanOptimizer.DEFAULT_TIME_LIMIT;
+
+	// Longest wait for the mount to settle beyond the estimated slew
+	private static final long SETTLE_TIMEOUT = 5000; // ms
+
+	// How late a task's move command may be answered before it eats into the
+	// margin in the slew estimate
+	private static final long MOVE_DEADLINE = 100; // ms
+
+	// How long sensor readings are fresh, and how long past that they are
+	// still returned while a fresh one is read. The weather changes slowly,
+	// and the mount's orientation has to be current.
+	private static final long ENVIRONMENTAL_TTL = 10000; // ms
+	private static final long ENVIRONMENTAL_MAX_STALE = 60000; // ms
+	private static final long GPS_TTL = 1000; // ms
+	private static final long GPS_MAX_STALE = 5000; // ms
+	private static final long ORIENTATION_TTL = 100; // ms
 
 	// ===============================
 	// INSTANCE VARIABLES
 	// ===============================
 
 	private SerialComm arduino;
-	private DelayQueue<Task> tasks;
-	private Thread taskThread;
+	private AsyncSerialEngine engine;
+	private TaskRegistry tasks;
+	// Runs tasks one at a time, off the timing wheel's thread
+	private ExecutorService taskExecutor;
+	private MotionModel motion;
+	private PlanOptimizer optimizer;
+	private SettleDetector settleDetector;
+	private SensorCache<EnvironmentalResponsePacket> environmentalCache;
+	private SensorCache<GpsResponsePacket> gpsCache;
+	private SensorCache<OrientationResponsePacket> orientationCache;
+	private TelemetryPoller poller;
 
 	// ===============================
 	// CONSTRUCTORS
@@ -60,16 +118,135 @@ public class Controller {
 	 *             if a serial port error occurs
 	 */
 	public Controller() throws Exception {
-		// Initialize the task thread
+		this(openSerialPort());
+	}
+
+	/**
+	 * Create a new Controller that communicates over the given SerialComm,
+	 * such as one connected to an ArduinoEmulator, and executes tasks at
+	 * specified times
+	 * 
+	 * @param arduino
+	 *            the unconnected link to the Arduino
+	 * @throws Exception
+	 *             if a serial error occurs
+	 */
+	public Controller(SerialComm arduino) throws Exception {
+		// Initialize the task thread, which needs to know how fast the mount
+		// moves
+		motion = new MotionModel();
+		optimizer = new PlanOptimizer(motion);
+		settleDetector = new SettleDetector(new OrientationSensor() {
+
+			@Override
+			public OrientationResponsePacket readOrientation()
+					throws IncorrectResponseException, InterruptedException {
+				return getOrientation(Lane.MOTION);
+			}
+		}, motion);
 		startTaskThread();
 
-		// Initialize Arduino communication on SERIAL_PORT
-		arduino = new SerialComm(SERIAL_PORT);
+		this.arduino = arduino;
 
 		// Establish connection with Arduino
 		System.out.println("Trying to establish connection with Arduino...");
 		arduino.establishConnection();
+		arduino.negotiateBaudRate();
 		System.out.println("Connection established with Arduino!\n");
+
+		// Hand the connection over to the asynchronous engine
+		engine = new AsyncSerialEngine(arduino);
+		engine.addPacketListener(new PacketListener() {
+
+			@Override
+			public void packetReceived(SerialPacket packet) {
+				// The Arduino reports its orientation when a move finishes,
+				// and pushes it for a subscription; either shows whether the
+				// mount has arrived
+				if (packet instanceof OrientationResponsePacket) {
+					OrientationResponsePacket arrived =
+							(OrientationResponsePacket) packet;
+					motion.moveFinished(arrived.getAzimuth(),
+							arrived.getElevation(), System.nanoTime());
+				}
+				for (SensorCache<?> cache : new SensorCache<?>[] {
+						environmentalCache, gpsCache, orientationCache }) {
+					if (cache.offer(packet))
+						break;
+				}
+				poller.received(packet);
+			}
+		});
+
+		// Share sensor readings between callers
+		environmentalCache = new SensorCache<EnvironmentalResponsePacket>(
+				engine, new EnvironmentalReadPacket(),
+				EnvironmentalResponsePacket.class, Lane.INTERACTIVE,
+				ENVIRONMENTAL_TTL);
+		environmentalCache.setMaxStale(ENVIRONMENTAL_MAX_STALE);
+		gpsCache = new SensorCache<GpsResponsePacket>(engine,
+				new GpsReadPacket(), GpsResponsePacket.class,
+				Lane.INTERACTIVE, GPS_TTL);
+		gpsCache.setMaxStale(GPS_MAX_STALE);
+		orientationCache = new SensorCache<OrientationResponsePacket>(engine,
+				new OrientationReadPacket(), OrientationResponsePacket.class,
+				Lane.INTERACTIVE, ORIENTATION_TTL);
+		poller = new TelemetryPoller(environmentalCache, gpsCache,
+				orientationCache);
+		engine.start();
+
+		// Find out where the mount is pointing, so slews can be estimated
+		getOrientation();
+		poller.start();
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	/**
+	 * @return the model of how long the mount takes to move, which calibrates
+	 *         itself as tasks run
+	 */
+	public MotionModel getMotionModel() {
+		return motion;
+	}
+
+	/**
+	 * @return the detector that says when the mount has settled before an
+	 *         exposure, with the settle time of each move
+	 */
+	public SettleDetector getSettleDetector() {
+		return settleDetector;
+	}
+
+	/**
+	 * @return the cache behind getEnvironmentalData, whose TTL can be changed
+	 */
+	public SensorCache<EnvironmentalResponsePacket> getEnvironmentalCache() {
+		return environmentalCache;
+	}
+
+	/**
+	 * @return the cache behind getGpsData, whose TTL can be changed
+	 */
+	public SensorCache<GpsResponsePacket> getGpsCache() {
+		return gpsCache;
+	}
+
+	/**
+	 * @return the cache behind getOrientation, whose TTL can be changed
+	 */
+	public SensorCache<OrientationResponsePacket> getOrientationCache() {
+		return orientationCache;
+	}
+
+	/**
+	 * @return the poller that samples the sensors in the background, with
+	 *         the recent samples of each
+	 */
+	public TelemetryPoller getTelemetryPoller() {
+		return poller;
 	}
 
 	// ===============================
@@ -77,80 +254,347 @@ public class Controller {
 	// ===============================
 
 	/**
-	 * Add the given task to the delay queue
+	 * Add the given task to the schedule
 	 * 
 	 * @param t
 	 *            the task to add
+	 * @return the scheduled task; the task is given an ID that can be used to
+	 *         cancel or reschedule it
+	 * @throws Exception
+	 *             if the task is scheduled sooner than the mount can slew to
+	 *             it (or if the time has already passed), or a
+	 *             ConflictException if its exposure overlaps another task's
+	 *             or is too close to one to slew between them
+	 */
+	public ScheduledTask addTask(Task t) throws Exception {
+		checkSlewTime(t.getTitle(), t.getEpochMillis(), t.getAzimuth(),
+				t.getElevation());
+		return tasks.add(t);
+	}
+
+	/**
+	 * Add every task in the given plan to the schedule. The plan is run
+	 * straight from its columns, so it may hold millions of tasks.
+	 * 
+	 * @param plan
+	 *            the tasks to add, which must not be changed afterwards
+	 * @throws Exception
+	 *             if the first task in the plan is sooner than the mount can
+	 *             slew to it (or if its time has already passed), or a
+	 *             ConflictException if any task in it is in conflict with
+	 *             another
+	 */
+	public void addPlan(TaskStore plan) throws Exception {
+		if (plan.size() == 0)
+			return;
+		plan.sort();
+		checkSlewTime(plan.getTitle(0),
+				TimeUnit.NANOSECONDS.toMillis(plan.getEpochNanos(0)),
+				plan.getAzimuth(0), plan.getElevation(0));
+		tasks.add(plan);
+	}
+
+	/**
+	 * Choose times for as many of the given observations as possible, around
+	 * the tasks already waiting and with as little slewing as possible, and
+	 * add them to the schedule as a plan.
+	 * 
+	 * @param observations
+	 *            the observations to choose from
+	 * @param from
+	 *            the earliest date and time to start
+	 * @return the plan that was added, and the observations left out
+	 * @throws Exception
+	 *             if the plan could not be added, such as if a task was
+	 *             added while it was being optimized
+	 */
+	public Schedule planObservations(List<Observation> observations,
+			Calendar from) throws Exception {
+		long start = TimeUnit.MILLISECONDS.toNanos(Math.max(
+				from.getTimeInMillis(), System.currentTimeMillis()
+						+ PLANNING_LEAD));
+
+		// Fit around everything already admitted within reach of the
+		// observations' windows
+		long end = start;
+		for (Observation observation : observations)
+			end = Math.max(end, observation.getWindowEnd());
+		long reach = TimeUnit.MILLISECONDS.toNanos(motion.getMaxSlew());
+		List<Task> fixed = tasks.findTasks(start - reach, end + reach);
+		if (!knowPosition()) {
+			try {
+				getOrientation();
+			} catch (IncorrectResponseException e) {
+				// Plan from the last known orientation
+			}
+		}
+
+		Schedule schedule = optimizer.optimize(observations, fixed, start,
+				motion.getPositionAzimuth(), motion.getPositionElevation());
+		addPlan(schedule.getPlan());
+		return schedule;
+	}
+
+	/**
+	 * @return the tasks waiting to run, soonest first
+	 */
+	public List<ScheduledTask> getTasks() {
+		return tasks.getTasks();
+	}
+
+	/**
+	 * Cancel a waiting task, or a task in a plan.
+	 * 
+	 * @param id
+	 *            the ID of the task
+	 * @return true if the task was cancelled, or false if there is no
+	 *         waiting task with the ID
+	 */
+	public boolean cancelTask(long id) {
+		return tasks.cancel(id);
+	}
+
+	/**
+	 * Move a waiting task, or a task in a plan, to a new date and time.
+	 * 
+	 * @param id
+	 *            the ID of the task
+	 * @param dateTime
+	 *            the new date and time
+	 * @return the task at its new time, or null if there is no waiting task
+	 *         with the ID
 	 * @throws Exception
-	 *             if the time at which the task is scheduled for execution is
-	 *             sooner than the necessary delay (or if the time has already
-	 *             passed)
+	 *             if the new time is sooner than the mount can slew to the
+	 *             task (or if the time has already passed), or a
+	 *             ConflictException if it is in conflict with another task
+	 *             there
 	 */
-	public void addTask(Task t) throws Exception {
-		if (t.getDateTime().getTimeInMillis() - System.currentTimeMillis() < TASK_DELAY)
-			throw new Exception("Not enough time to execute task "
-					+ t.getTitle());
-		else
-			tasks.add(t);
+	public ScheduledTask rescheduleTask(long id, Calendar dateTime)
+			throws Exception {
+		Task t = tasks.getTask(id);
+		if (t == null)
+			return null;
+		checkSlewTime(String.valueOf(id), dateTime.getTimeInMillis(),
+				t.getAzimuth(), t.getElevation());
+		return tasks.reschedule(id,
+				TimeUnit.MILLISECONDS.toNanos(dateTime.getTimeInMillis()));
 	}
 
 	/**
-	 * Execute the given task by sending commands to the Arduino
+	 * Find the first time at or after the given one that a task of the given
+	 * duration and orientation could be added without a conflict.
+	 * 
+	 * @param from
+	 *            the earliest date and time
+	 * @param duration
+	 *            the exposure time in ms
+	 * @param azimuth
+	 *            the azimuth of the task in degrees
+	 * @param elevation
+	 *            the elevation of the task in degrees
+	 * @return the date and time
+	 */
+	public Calendar getNextFreeTime(Calendar from, long duration,
+			double azimuth, double elevation) {
+		long time = tasks.findFreeTime(
+				TimeUnit.MILLISECONDS.toNanos(from.getTimeInMillis()),
+				duration, azimuth, elevation);
+		Calendar free = new GregorianCalendar();
+		free.setTimeInMillis(TimeUnit.NANOSECONDS.toMillis(time));
+		return free;
+	}
+
+	/**
+	 * Execute the given task by sending commands to the Arduino. The mount is
+	 * told to move just as long before the task's time as the slew should
+	 * take, and watched until it has settled. The exposure starts at the
+	 * task's time, or as soon as the mount settles if that is later, and the
+	 * call returns when it is over, so the next task starts from this one's
+	 * orientation.
 	 * 
 	 * @param t
 	 *            the task to execute
 	 * @throws Exception
+	 *             such as a SettleTimeoutException if the mount didn't
+	 *             settle, in which case there is no exposure
 	 */
 	public void executeTask(Task t) throws Exception {
+		long slew = estimateSlew(t.getAzimuth(), t.getElevation(),
+				Lane.SCHEDULED);
+		sleepUntil(t.getEpochMillis() - slew);
+
+		// The move is due now, so the command goes ahead of telemetry and
+		// operator requests, and past a full send window if it can't
+		// otherwise be answered in time
 		OrientationSetPacket oSetPacket = new OrientationSetPacket(
 				t.getAzimuth(), t.getElevation());
-		// arduino.sendAndReceive(oSetPacket);
-		// TODO
+		long moveStart = System.nanoTime();
+		motion.moveStarted(t.getAzimuth(), t.getElevation(), moveStart);
+		poller.noteMotion();
+		await(engine.submitLatest(oSetPacket, t, Lane.MOTION, moveStart
+				+ TimeUnit.MILLISECONDS.toNanos(MOVE_DEADLINE)));
+
+		long settleTime = settleDetector.awaitSettle(t.getAzimuth(),
+				t.getElevation(), moveStart, slew + SETTLE_TIMEOUT);
+		System.out.println("Settled in " + settleTime + " ms (estimated "
+				+ slew + " ms)");
+
+		sleepUntil(t.getEpochMillis());
+		long exposureStart = System.currentTimeMillis();
+		// TODO take the picture
+		sleepUntil(exposureStart + t.getDuration());
+	}
+
+	/**
+	 * Point the mount at the next position of a moving target, without
+	 * waiting for the Arduino to acknowledge it. A position that hasn't been
+	 * sent yet is replaced by a newer one for the same track, so the mount is
+	 * never more than a round trip behind the target however fast positions
+	 * are given.
+	 * 
+	 * @param azimuth
+	 *            the azimuth of the target
+	 * @param elevation
+	 *            the elevation of the target
+	 * @param track
+	 *            what the positions belong to, such as the task being run;
+	 *            positions from different tracks are never merged
+	 * @return a future completed when the Arduino acknowledges this position
+	 *         or a newer one that replaced it
+	 */
+	public CompletableFuture<SerialPacket> track(double azimuth,
+			double elevation, Object track) {
+		poller.noteMotion();
+		return engine.submitLatest(new OrientationSetPacket(azimuth,
+				elevation), track, Lane.MOTION, System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(MOVE_DEADLINE));
+	}
+
+	/**
+	 * Have the Arduino push a sensor's readings every period instead of
+	 * waiting to be asked. Each reading then takes one frame rather than a
+	 * request and a response, and arrives on the Arduino's schedule rather
+	 * than after a round trip. Pushed readings go to the sensor's cache and
+	 * the telemetry poller's samples, and the poller stops polling the
+	 * sensor while they keep coming.
+	 * 
+	 * @param readCommand
+	 *            the read of the sensor: READ_ORIENTATION, READ_ENV or
+	 *            READ_GPS
+	 * @param period
+	 *            how often to push in ms, at least SubscribePacket.MIN_PERIOD
+	 * @return a future completed when the Arduino acknowledges, or
+	 *         exceptionally with a NackReceivedException if it refuses
+	 */
+	public CompletableFuture<SerialPacket> subscribe(
+			final SerialCommand readCommand, final int period) {
+		CompletableFuture<SerialPacket> ack = engine.submit(
+				new SubscribePacket(readCommand, period), Lane.SCHEDULED);
+		ack.whenComplete(new BiConsumer<SerialPacket, Throwable>() {
+
+			@Override
+			public void accept(SerialPacket response, Throwable failure) {
+				if (failure == null) {
+					setPushed(readCommand, true);
+					poller.setPushPeriod(readCommand, period);
+				}
+			}
+		});
+		return ack;
+	}
+
+	/**
+	 * Stop the Arduino pushing a sensor's readings, and go back to polling
+	 * it.
+	 * 
+	 * @param readCommand
+	 *            the read of the sensor
+	 * @return a future completed when the Arduino acknowledges
+	 */
+	public CompletableFuture<SerialPacket> unsubscribe(
+			SerialCommand readCommand) {
+		poller.setPushPeriod(readCommand, 0);
+		setPushed(readCommand, false);
+		return engine.submit(new UnsubscribePacket(readCommand),
+				Lane.SCHEDULED);
 	}
 
 	/**
-	 * Request environmental data from the Arduino.
+	 * Request environmental data from the Arduino, or share a recent reading.
 	 * 
 	 * @return the response packet containing the environmental data
 	 * @throws IncorrectResponseException
 	 *             if the correct response was not received
 	 * @throws InterruptedException
-	 *             if the thread was interrupted during the sendAndReceive
+	 *             if the thread was interrupted while waiting for the response
 	 */
 	public EnvironmentalResponsePacket getEnvironmentalData()
 			throws IncorrectResponseException, InterruptedException {
-		return (EnvironmentalResponsePacket) arduino
-				.sendAndReceive(new EnvironmentalReadPacket());
+		return environmentalCache.get();
 	}
 
 	/**
-	 * Request GPS data from the Arduino.
+	 * Request GPS data from the Arduino, or share a recent reading.
 	 * 
 	 * @return the response packet containing the GPS data
 	 * @throws IncorrectResponseException
 	 *             if the correct response was not received
 	 * @throws InterruptedException
-	 *             if the thread was interrupted during the sendAndReceive
+	 *             if the thread was interrupted while waiting for the response
 	 * 
 	 */
 	public GpsResponsePacket getGpsData() throws IncorrectResponseException,
 			InterruptedException {
-		return (GpsResponsePacket) arduino.sendAndReceive(new GpsReadPacket());
+		return gpsCache.get();
 	}
 
 	/**
-	 * Request orientation data from the Arduino
+	 * Request orientation data from the Arduino, or share a recent reading
 	 * 
 	 * @return the response packet containing the orientation data
 	 * @throws IncorrectResponseException
 	 *             if the correct response was not received
 	 * @throws InterruptedException
-	 *             if the thread was interrupted during the sendAndReceive
+	 *             if the thread was interrupted while waiting for the response
 	 */
 	public OrientationResponsePacket getOrientation()
 			throws IncorrectResponseException, InterruptedException {
-		return (OrientationResponsePacket) arduino
-				.sendAndReceive(new OrientationReadPacket());
+		OrientationResponsePacket orientation = orientationCache.get();
+		motion.setPosition(orientation.getAzimuth(),
+				orientation.getElevation());
+		return orientation;
+	}
+
+	/**
+	 * Describe the state of the serial link: its framing and baud rate, and
+	 * how many received frames were corrupted or repaired by FEC. When FEC is
+	 * on, a count of repaired frames well above the count of uncorrectable
+	 * ones shows it is saving retransmissions.
+	 * 
+	 * @return a printable summary of the link
+	 */
+	public String getLinkStatistics() {
+		String stats = "Framing: " + arduino.getFraming() + "\n"
+				+ "Baud Rate: " + arduino.getBaudRate() + "\n"
+				+ "Corrupt Frames: " + arduino.getCorruptFrames() + "\n";
+		if (arduino.getFraming().hasFec())
+			stats += "FEC Corrected Frames: " + arduino.getCorrectedFrames()
+					+ "\n" + "FEC Uncorrectable Frames: "
+					+ arduino.getUncorrectableFrames() + "\n";
+		if (arduino.getLink() != null)
+			stats += "Retransmissions: "
+					+ arduino.getLink().getRetransmissions() + "\n";
+		for (Lane lane : Lane.values()) {
+			LaneStatistics laneStats = engine.getLaneStatistics(lane);
+			if (laneStats.getCompleted() + laneStats.getFailed() > 0)
+				stats += laneStats + "\n";
+		}
+		for (SensorCache<?> cache : new SensorCache<?>[] {
+				environmentalCache, gpsCache, orientationCache }) {
+			if (cache.isEnabled())
+				stats += cache + "\n";
+		}
+		return stats + poller + "\n";
 	}
 
 	// ===============================
@@ -158,42 +602,162 @@ public class Controller {
 	// ===============================
 
 	/**
-	 * Start a thread to execute tasks in the delay queue.
+	 * Tell the cache of the sensor with the given read command whether its
+	 * readings are pushed.
+	 */
+	private void setPushed(SerialCommand readCommand, boolean pushed) {
+		for (SensorCache<?> cache : new SensorCache<?>[] {
+				environmentalCache, gpsCache, orientationCache }) {
+			if (cache.getReadCommand() == readCommand)
+				cache.setPushed(pushed);
+		}
+	}
+
+	/**
+	 * Wait for a response from the asynchronous engine.
+	 * 
+	 * @param response
+	 *            the future returned by the engine
+	 * @return the response packet
+	 * @throws IncorrectResponseException
+	 *             if the correct response was not received
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting
+	 */
+	private SerialPacket await(CompletableFuture<SerialPacket> response)
+			throws IncorrectResponseException, InterruptedException {
+		try {
+			return response.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IncorrectResponseException)
+				throw (IncorrectResponseException) e.getCause();
+			throw new IncorrectResponseException(e.getCause().toString());
+		}
+	}
+
+	/**
+	 * Read the orientation from the Arduino in the given lane, bypassing
+	 * the cache but keeping it up to date.
+	 */
+	private OrientationResponsePacket getOrientation(Lane lane)
+			throws IncorrectResponseException, InterruptedException {
+		OrientationResponsePacket orientation =
+				(OrientationResponsePacket) await(engine.submit(
+						new OrientationReadPacket(), lane));
+		motion.setPosition(orientation.getAzimuth(),
+				orientation.getElevation());
+		orientationCache.update(orientation);
+		return orientation;
+	}
+
+	/**
+	 * Estimate the time to slew to an orientation from where the mount is
+	 * pointing now, or from where it last reported if it doesn't answer.
+	 * 
+	 * @param lane
+	 *            the lane to ask for the orientation in
+	 * @return the time in ms
+	 */
+	private long estimateSlew(double azimuth, double elevation, Lane lane)
+			throws InterruptedException {
+		try {
+			getOrientation(lane);
+		} catch (IncorrectResponseException e) {
+			System.out.println("Orientation unknown, using the last known: "
+					+ e);
+		}
+		return motion.estimateSlew(azimuth, elevation);
+	}
+
+	/**
+	 * Throw an Exception if the mount can't slew to the given orientation
+	 * before the given time.
+	 */
+	private void checkSlewTime(String title, long epochMillis,
+			double azimuth, double elevation) throws Exception {
+		// Admission doesn't wait on the link unless nothing is known of
+		// where the mount points
+		long slew = knowPosition() ? motion.estimateSlew(azimuth, elevation)
+				: estimateSlew(azimuth, elevation, Lane.INTERACTIVE);
+		if (epochMillis - System.currentTimeMillis() < slew)
+			throw new Exception("Not enough time to execute task " + title);
+	}
+
+	/**
+	 * Give the motion model the latest cached orientation if it has no
+	 * position of its own.
+	 * 
+	 * @return true if the model knows where the mount is pointing
+	 */
+	private boolean knowPosition() {
+		if (motion.isPositionKnown())
+			return true;
+		OrientationResponsePacket latest = orientationCache.getLatest();
+		if (latest == null)
+			return false;
+		motion.setPosition(latest.getAzimuth(), latest.getElevation());
+		return true;
+	}
+
+	private static void sleepUntil(long epochMillis)
+			throws InterruptedException {
+		long delay = epochMillis - System.currentTimeMillis();
+		if (delay > 0)
+			Thread.sleep(delay);
+	}
+
+	/**
+	 * Open SERIAL_PORT with the transport chosen by TRANSPORT_PROPERTY.
+	 */
+	private static SerialComm openSerialPort() throws Exception {
+		if ("tty".equals(System.getProperty(TRANSPORT_PROPERTY)))
+			return new SerialComm(new TtyChannelTransport(SERIAL_PORT,
+					SerialComm.BAUD_RATE));
+		return new SerialComm(SERIAL_PORT);
+	}
+
+	/**
+	 * Start a thread to execute tasks from the schedule.
 	 */
 	private void startTaskThread() {
-		// Initialize DelayQueue of tasks
-		tasks = new DelayQueue<Task>();
+		taskExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
 
-		// Create an infinitely looping runnable that that waits until the task
-		// DelayQueue has a task whose time is expired and then executes that
-		// task and removes it from the queue.
-		Runnable executeTasks = new Runnable() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "task-executor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		// Execute each task as the timing wheel fires it, early enough to
+		// slew to it. A task takes until its exposure is over, so it is
+		// handed to the executor and the wheel carries on firing on time.
+		tasks = new TaskRegistry(new TaskHandler() {
 
 			@Override
-			public void run() {
-				System.out.println("Task thread started at "
-						+ FormatUtil.getTimeString(new GregorianCalendar()));
-				while (true) {
-					Task toExecute;
-					try {
-						toExecute = tasks.take();
+			public void taskDue(final Task task) {
+				taskExecutor.execute(new Runnable() {
+
+					@Override
+					public void run() {
 						System.out.println("\nExecuting task:");
-						System.out.println(toExecute.toString());
-						System.out
-								.println("Actual Time: "
-										+ FormatUtil
-												.getTimeString(new GregorianCalendar()));
-						executeTask(toExecute);
-					} catch (Exception e) {
-						e.printStackTrace();
-						break;
+						System.out.println(task.toString());
+						System.out.println("Actual Time: "
+								+ FormatUtil.getTimeString(
+										new GregorianCalendar()));
+						try {
+							executeTask(task);
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
 					}
-				}
+				});
 			}
-		};
-
-		taskThread = new Thread(executeTasks);
-		taskThread.start();
+		}, motion);
+		tasks.start();
+		System.out.println("Task thread started at "
+				+ FormatUtil.getTimeString(new GregorianCalendar()));
 	}
 
 	// ===============================
@@ -212,7 +776,11 @@ public class Controller {
 				"2. Get Environmental Data\n" +
 				"3. Get GPS Location\n" +
 				"4. Get Orientation\n" +
-				"5. Quit\n";
+				"5. Show Link Statistics\n" +
+				"6. List Tasks\n" +
+				"7. Cancel a Task\n" +
+				"8. Reschedule a Task\n" +
+				"9. Quit\n";
 		//@formatter:on
 		private static final String REQUEST_INPUT = "Enter option number: ";
 
@@ -264,6 +832,18 @@ public class Controller {
 							if (keyboard.readLine().equalsIgnoreCase(("y")))
 								try {
 									controller.addTask(newTask);
+									System.out.println("Task ID: "
+											+ newTask.getId());
+								} catch (ConflictException e) {
+									// Suggest the next time the mount is free
+									System.out.println(e.getMessage());
+									Calendar free = controller
+											.getNextFreeTime(date, duration,
+													azimuth, elevation);
+									System.out.println("Next free time: "
+											+ FormatUtil.getDateString(free)
+											+ " "
+											+ FormatUtil.getTimeString(free));
 								} catch (Exception e) {
 									// Catch exception if task time is too soon
 									e.printStackTrace();
@@ -306,6 +886,39 @@ public class Controller {
 								e.printStackTrace();
 							}
 						} else if (option.equals("5")) {
+							System.out.println(controller.getLinkStatistics());
+						} else if (option.equals("6")) {
+							List<ScheduledTask> waiting = controller.getTasks();
+							if (waiting.isEmpty())
+								System.out.println("No tasks waiting");
+							for (ScheduledTask scheduled : waiting)
+								System.out.println(scheduled.getTask() + "\n");
+						} else if (option.equals("7")) {
+							long id = promptForId(keyboard);
+							if (controller.cancelTask(id))
+								System.out.println("Task " + id + " cancelled");
+							else
+								System.out.println("No waiting task " + id);
+						} else if (option.equals("8")) {
+							long id = promptForId(keyboard);
+							Calendar date = promptForDate(keyboard);
+							Calendar time = promptForTime(keyboard);
+							date.set(Calendar.HOUR_OF_DAY,
+									time.get(Calendar.HOUR_OF_DAY));
+							date.set(Calendar.MINUTE, time.get(Calendar.MINUTE));
+							date.set(Calendar.SECOND, time.get(Calendar.SECOND));
+							date.set(Calendar.MILLISECOND, 0);
+							try {
+								if (controller.rescheduleTask(id, date) != null)
+									System.out.println("Task " + id
+											+ " rescheduled");
+								else
+									System.out.println("No waiting task " + id);
+							} catch (Exception e) {
+								// Catch exception if task time is too soon
+								e.printStackTrace();
+							}
+						} else if (option.equals("9")) {
 							System.out.println("Quitting...");
 							System.exit(0);
 						} else {
@@ -420,6 +1033,17 @@ public class Controller {
 			return time;
 		}
 
+		private long promptForId(BufferedReader keyboard) throws IOException {
+			while (true) {
+				System.out.print("Task ID: ");
+				try {
+					return Long.parseLong(keyboard.readLine().trim());
+				} catch (NumberFormatException e) {
+					System.out.println("Format must be an integer number");
+				}
+			}
+		}
+
 		private long promptForDuration(BufferedReader keyboard)
 				throws IOException {
 			long duration = 0;
@@ -1,11 +1,18 @@
 package com.sattrak.rpi;
 
 import java.util.Calendar;
+import java.util.GregorianCalendar;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 
 import com.sattrak.rpi.util.FormatUtil;
 
+/**
+ * An observation: point the mount at the given azimuth and elevation at a
+ * date and time and expose for the given duration. The time is held as
+ * nanoseconds since the epoch rather than as a Calendar, so a task is small
+ * enough to create on demand as a view of a row of a TaskStore.
+ */
 public class Task implements Delayed {
 
 	// ===============================
@@ -16,8 +23,10 @@ public class Task implements Delayed {
 	// INSTANCE VARIABLES
 	// ===============================
 
+	// Assigned by a TaskRegistry, or 0 if the task has not been registered
+	private long id;
 	private String title;
-	private Calendar dateTime;
+	private long epochNanos;
 	private long duration;
 	private double azimuth;
 	private double elevation;
@@ -28,8 +37,26 @@ public class Task implements Delayed {
 
 	public Task(String title, Calendar dateTime, long duration, double azimuth,
 			double elevation) {
+		this(title, TimeUnit.MILLISECONDS.toNanos(dateTime.getTimeInMillis()),
+				duration, azimuth, elevation);
+	}
+
+	/**
+	 * @param title
+	 *            the name of the task
+	 * @param epochNanos
+	 *            the time of the task in ns since the epoch
+	 * @param duration
+	 *            the exposure time in ms
+	 * @param azimuth
+	 *            the azimuth to point at in degrees
+	 * @param elevation
+	 *            the elevation to point at in degrees
+	 */
+	public Task(String title, long epochNanos, long duration, double azimuth,
+			double elevation) {
 		this.title = title;
-		this.dateTime = dateTime;
+		this.epochNanos = epochNanos;
 		this.duration = duration;
 		this.azimuth = azimuth;
 		this.elevation = elevation;
@@ -39,14 +66,37 @@ public class Task implements Delayed {
 	// GETTERS
 	// ===============================
 
+	public long getId() {
+		return id;
+	}
+
 	public String getTitle() {
 		return title;
 	}
 
+	/**
+	 * @return a new Calendar set to the time of the task
+	 */
 	public Calendar getDateTime() {
+		Calendar dateTime = new GregorianCalendar();
+		dateTime.setTimeInMillis(getEpochMillis());
 		return dateTime;
 	}
 
+	/**
+	 * @return the time of the task in ns since the epoch
+	 */
+	public long getEpochNanos() {
+		return epochNanos;
+	}
+
+	/**
+	 * @return the time of the task in ms since the epoch
+	 */
+	public long getEpochMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(epochNanos);
+	}
+
 	public long getDuration() {
 		return duration;
 	}
@@ -63,12 +113,20 @@ public class Task implements Delayed {
 	// SETTERS
 	// ===============================
 
+	public void setId(long id) {
+		this.id = id;
+	}
+
 	public void setTitle(String title) {
 		this.title = title;
 	}
 
 	public void setDateTime(Calendar dateTime) {
-		this.dateTime = dateTime;
+		epochNanos = TimeUnit.MILLISECONDS.toNanos(dateTime.getTimeInMillis());
+	}
+
+	public void setEpochNanos(long epochNanos) {
+		this.epochNanos = epochNanos;
 	}
 
 	public void setDuration(long duration) {
@@ -97,26 +155,21 @@ public class Task implements Delayed {
 
 	@Override
 	public int compareTo(Delayed other) {
-		if (dateTime.getTimeInMillis() < ((Task) other).getDateTime()
-				.getTimeInMillis())
-			return -1;
-		else if (dateTime.getTimeInMillis() > ((Task) other).getDateTime()
-				.getTimeInMillis())
-			return 1;
-		return 0;
+		return Long.compare(epochNanos, ((Task) other).getEpochNanos());
 	}
 
 	@Override
 	public long getDelay(TimeUnit unit) {
-		long delayInMillis = dateTime.getTimeInMillis()
-				- System.currentTimeMillis();
-		return unit.convert(delayInMillis, unit);
+		long delayInMillis = getEpochMillis() - System.currentTimeMillis();
+		return unit.convert(delayInMillis, TimeUnit.MILLISECONDS);
 	}
 
 	@Override
 	public String toString() {
+		Calendar dateTime = getDateTime();
 		// @formatter:off
-		return "Title: " + title + "\n" + 
+		return (id != 0 ? "ID: " + id + "\n" : "") + 
+				"Title: " + title + "\n" + 
 				"Date: " + FormatUtil.getDateString(dateTime) + "\n" + 
 				"Time: " + FormatUtil.getTimeString(dateTime) + "\n" + 
 				"Duration: " + duration + " ms\n" + 
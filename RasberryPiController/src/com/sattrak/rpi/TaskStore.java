@@ -0,0 +1,438 @@
+package com.sattrak.rpi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * An observation plan of many tasks held column by column in primitive
+ * arrays, about 36 bytes a task, instead of as Task objects. A night of
+ * tracking points at 10 Hz fits in a few tens of MB. Titles are interned
+ * once per plan, since a track repeats the same title for every point.
+ * 
+ * Rows are read back as Task views made on demand, and a TimingWheelScheduler
+ * can run the plan directly, taking rows from it only as they come due.
+ * 
+ * A plan is filled from one thread and must not be changed once it has been
+ * scheduled, except that any thread may cancel a row that hasn't fired. Once
+ * the plan is given a first ID, each row's task has that ID plus its row.
+ */
+public class TaskStore {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	// Ranges this short are sorted by insertion
+	private static final int INSERTION_SORT_LENGTH = 16;
+
+	private static final LongBinaryOperator BITWISE_OR =
+			new LongBinaryOperator() {
+
+		@Override
+		public long applyAsLong(long left, long right) {
+			return left | right;
+		}
+	};
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private long[] epochNanos;
+	private long[] durations;
+	private double[] azimuths;
+	private double[] elevations;
+	private int[] titleIndexes;
+	private int size;
+
+	private final ArrayList<String> titles;
+	private final HashMap<String, Integer> titleIndex;
+
+	// Whether the rows are in time order
+	private boolean sorted = true;
+
+	// ID of the task in row 0, or 0 if the rows have no IDs
+	private volatile long firstId;
+
+	// One bit a row, made once the plan runs: set in done once the row has
+	// fired or been cancelled, and in cancelled if it was cancelled
+	private volatile AtomicLongArray done;
+	private volatile AtomicLongArray cancelled;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public TaskStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of tasks to make room for at first
+	 */
+	public TaskStore(int capacity) {
+		capacity = Math.max(1, capacity);
+		epochNanos = new long[capacity];
+		durations = new long[capacity];
+		azimuths = new double[capacity];
+		elevations = new double[capacity];
+		titleIndexes = new int[capacity];
+		titles = new ArrayList<String>();
+		titleIndex = new HashMap<String, Integer>();
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	/**
+	 * @return the number of tasks in the plan
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the rows are in time order
+	 */
+	public boolean isSorted() {
+		return sorted;
+	}
+
+	/**
+	 * @return the ID of the task in row 0, or 0 if the rows have no IDs
+	 */
+	public long getFirstId() {
+		return firstId;
+	}
+
+	/**
+	 * @return the ID of the task in the given row, or 0 if the rows have no
+	 *         IDs
+	 */
+	public long getId(int row) {
+		checkRow(row);
+		return firstId == 0 ? 0 : firstId + row;
+	}
+
+	/**
+	 * @return true if the task in the given row was cancelled
+	 */
+	public boolean isCancelled(int row) {
+		checkRow(row);
+		return isSet(cancelled, row);
+	}
+
+	/**
+	 * @return true if the task in the given row has neither fired nor been
+	 *         cancelled
+	 */
+	public boolean isPending(int row) {
+		checkRow(row);
+		return !isSet(done, row);
+	}
+
+	/**
+	 * @return the time of the task in the given row in ns since the epoch
+	 */
+	public long getEpochNanos(int row) {
+		checkRow(row);
+		return epochNanos[row];
+	}
+
+	/**
+	 * @return the exposure time of the task in the given row in ms
+	 */
+	public long getDuration(int row) {
+		checkRow(row);
+		return durations[row];
+	}
+
+	public double getAzimuth(int row) {
+		checkRow(row);
+		return azimuths[row];
+	}
+
+	public double getElevation(int row) {
+		checkRow(row);
+		return elevations[row];
+	}
+
+	public String getTitle(int row) {
+		checkRow(row);
+		return titles.get(titleIndexes[row]);
+	}
+
+	/**
+	 * @param row
+	 *            the row of the task
+	 * @return a new Task with the row's values; changing it doesn't change the
+	 *         plan
+	 */
+	public Task get(int row) {
+		checkRow(row);
+		Task task = new Task(titles.get(titleIndexes[row]), epochNanos[row],
+				durations[row], azimuths[row], elevations[row]);
+		if (firstId != 0)
+			task.setId(firstId + row);
+		return task;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	/**
+	 * Number the rows' tasks from the given ID. The rows must be sorted, and
+	 * are numbered once only.
+	 * 
+	 * @param firstId
+	 *            the ID of the task in row 0, reserving that many IDs as
+	 *            there are rows
+	 */
+	public void setFirstId(long firstId) {
+		if (!sorted)
+			throw new IllegalStateException("Plan is not sorted");
+		if (this.firstId != 0)
+			throw new IllegalStateException("Plan already numbered from "
+					+ this.firstId);
+		this.firstId = firstId;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Add a task to the end of the plan.
+	 * 
+	 * @return the row the task was added at
+	 */
+	public int add(Task task) {
+		return add(task.getTitle(), task.getEpochNanos(), task.getDuration(),
+				task.getAzimuth(), task.getElevation());
+	}
+
+	/**
+	 * Add a task to the end of the plan.
+	 * 
+	 * @param title
+	 *            the name of the task
+	 * @param epochNanos
+	 *            the time of the task in ns since the epoch
+	 * @param duration
+	 *            the exposure time in ms
+	 * @param azimuth
+	 *            the azimuth to point at in degrees
+	 * @param elevation
+	 *            the elevation to point at in degrees
+	 * @return the row the task was added at
+	 */
+	public int add(String title, long epochNanos, long duration,
+			double azimuth, double elevation) {
+		if (size == this.epochNanos.length)
+			grow();
+		if (size > 0 && epochNanos < this.epochNanos[size - 1])
+			sorted = false;
+
+		Integer index = titleIndex.get(title);
+		if (index == null) {
+			index = titles.size();
+			titles.add(title);
+			titleIndex.put(title, index);
+		}
+
+		this.epochNanos[size] = epochNanos;
+		durations[size] = duration;
+		azimuths[size] = azimuth;
+		elevations[size] = elevation;
+		titleIndexes[size] = index;
+		return size++;
+	}
+
+	/**
+	 * Add a task to the end of the plan at a time given in ms.
+	 * 
+	 * @see #add(String, long, long, double, double)
+	 */
+	public int addAtMillis(String title, long epochMillis, long duration,
+			double azimuth, double elevation) {
+		return add(title, TimeUnit.MILLISECONDS.toNanos(epochMillis),
+				duration, azimuth, elevation);
+	}
+
+	/**
+	 * Cancel the task in the given row, so that it won't fire. Safe to call
+	 * from any thread while the plan is running.
+	 * 
+	 * @return true if the task was cancelled, or false if it had already
+	 *         fired or been cancelled
+	 */
+	public boolean cancel(int row) {
+		checkRow(row);
+		if (!claim(row))
+			return false;
+		cancelled.getAndAccumulate(row >>> 6, 1L << row, BITWISE_OR);
+		return true;
+	}
+
+	/**
+	 * Claim the task in the given row for firing, unless it has been
+	 * cancelled. Called by the scheduler as the row comes due.
+	 * 
+	 * @return true if the task should fire
+	 */
+	public boolean fire(int row) {
+		checkRow(row);
+		return claim(row);
+	}
+
+	/**
+	 * Put the rows in time order, if they aren't already. Rows are moved, so
+	 * row numbers from before the sort no longer apply.
+	 */
+	public void sort() {
+		if (sorted)
+			return;
+		sort(0, size - 1);
+		sorted = true;
+	}
+
+	/**
+	 * Find the first row at or after the given time. The rows must be sorted.
+	 * 
+	 * @param epochNanos
+	 *            the time in ns since the epoch
+	 * @return the row, or size() if every task is earlier
+	 */
+	public int firstRowAtOrAfter(long epochNanos) {
+		if (!sorted)
+			throw new IllegalStateException("Plan is not sorted");
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.epochNanos[middle] < epochNanos)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= size)
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+	}
+
+	/**
+	 * Set the row's bit in done, making the bit sets on first use.
+	 * 
+	 * @return false if it was already set
+	 */
+	private boolean claim(int row) {
+		if (done == null) {
+			synchronized (this) {
+				if (done == null) {
+					int words = (size + 63) >>> 6;
+					cancelled = new AtomicLongArray(words);
+					done = new AtomicLongArray(words);
+				}
+			}
+		}
+		long bit = 1L << row;
+		long word = done.getAndAccumulate(row >>> 6, bit, BITWISE_OR);
+		return (word & bit) == 0;
+	}
+
+	private static boolean isSet(AtomicLongArray bits, int row) {
+		return bits != null && (bits.get(row >>> 6) & (1L << row)) != 0;
+	}
+
+	private void grow() {
+		int capacity = epochNanos.length * 2;
+		epochNanos = Arrays.copyOf(epochNanos, capacity);
+		durations = Arrays.copyOf(durations, capacity);
+		azimuths = Arrays.copyOf(azimuths, capacity);
+		elevations = Arrays.copyOf(elevations, capacity);
+		titleIndexes = Arrays.copyOf(titleIndexes, capacity);
+	}
+
+	/**
+	 * Quicksort the rows from low to high inclusive by time, moving every
+	 * column together. Recurses into the smaller side only, so the stack
+	 * stays shallow on millions of rows.
+	 */
+	private void sort(int low, int high) {
+		while (high - low >= INSERTION_SORT_LENGTH) {
+			// Median of three pivot, left at high - 1
+			int middle = (low + high) >>> 1;
+			if (epochNanos[middle] < epochNanos[low])
+				swap(middle, low);
+			if (epochNanos[high] < epochNanos[low])
+				swap(high, low);
+			if (epochNanos[high] < epochNanos[middle])
+				swap(high, middle);
+			swap(middle, high - 1);
+			long pivot = epochNanos[high - 1];
+
+			int i = low;
+			int j = high - 1;
+			while (true) {
+				while (epochNanos[++i] < pivot) {
+					// Already on the correct side
+				}
+				while (epochNanos[--j] > pivot) {
+					// Already on the correct side
+				}
+				if (i >= j)
+					break;
+				swap(i, j);
+			}
+			swap(i, high - 1);
+
+			if (i - low < high - i) {
+				sort(low, i - 1);
+				low = i + 1;
+			} else {
+				sort(i + 1, high);
+				high = i - 1;
+			}
+		}
+
+		for (int i = low + 1; i <= high; i++) {
+			for (int j = i; j > low && epochNanos[j] < epochNanos[j - 1]; j--)
+				swap(j, j - 1);
+		}
+	}
+
+	private void swap(int a, int b) {
+		long time = epochNanos[a];
+		epochNanos[a] = epochNanos[b];
+		epochNanos[b] = time;
+		long duration = durations[a];
+		durations[a] = durations[b];
+		durations[b] = duration;
+		double azimuth = azimuths[a];
+		azimuths[a] = azimuths[b];
+		azimuths[b] = azimuth;
+		double elevation = elevations[a];
+		elevations[a] = elevations[b];
+		elevations[b] = elevation;
+		int title = titleIndexes[a];
+		titleIndexes[a] = titleIndexes[b];
+		titleIndexes[b] = title;
+	}
+
+}
@@ -0,0 +1,708 @@
+package com.sattrak.rpi.emulator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sattrak.rpi.serial.AckPacket;
+import com.sattrak.rpi.serial.EnvironmentalResponsePacket;
+import com.sattrak.rpi.serial.EstablishConnectionPacket;
+import com.sattrak.rpi.serial.FrameDecoder;
+import com.sattrak.rpi.serial.Framing;
+import com.sattrak.rpi.serial.GpsResponsePacket;
+import com.sattrak.rpi.serial.NackPacket;
+import com.sattrak.rpi.serial.OrientationResponsePacket;
+import com.sattrak.rpi.serial.OrientationSetPacket;
+import com.sattrak.rpi.serial.PacketCodec;
+import com.sattrak.rpi.serial.SerialComm;
+import com.sattrak.rpi.serial.SerialCommand;
+import com.sattrak.rpi.serial.SerialPacket;
+import com.sattrak.rpi.serial.SerialPacket.InvalidPacketException;
+import com.sattrak.rpi.serial.SetBaudPacket;
+import com.sattrak.rpi.serial.SlidingWindowLink;
+import com.sattrak.rpi.serial.SubscribePacket;
+import com.sattrak.rpi.serial.UnsubscribePacket;
+import com.sattrak.rpi.serial.WireFormat;
+import com.sattrak.rpi.serial.transport.SerialTransport;
+import com.sattrak.rpi.serial.transport.TtyChannelTransport;
+
+/**
+ * A software stand-in for the Arduino running io_controller, so the Pi side
+ * can be run and load tested without hardware. It answers the same commands
+ * the same way as the firmware in Arduino/io_controller/serial_comm.ino: the
+ * ESTABLISH_CONNECTION handshake with version and link option agreement, baud
+ * rate changes with confirmation, orientation set (ack, move, then report the
+ * new orientation), the orientation, environmental and GPS reads, and
+ * subscriptions that push those reads' responses on a schedule, with a NACK
+ * for anything else and for corrupted frames. Like the firmware, it
+ * handles one command at a time, but a move carries on between commands, so
+ * a read during it sees the mount part way there. After arriving, the mount
+ * can be made to ring about the target for a while, as a real one does.
+ *
+ * The emulator uses the Pi's own framing and packet classes, so it tests the
+ * stack above them rather than them against the firmware.
+ */
+public class ArduinoEmulator {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Longest wait for a byte before checking for a stop or an unconfirmed
+	// baud rate
+	private static final int READ_TIMEOUT = 100; // ms
+
+	// Must match BAUD_CONFIRM_TIMEOUT in firmware
+	private static final long BAUD_CONFIRM_TIMEOUT = 3000; // ms
+
+	// Range of the elevation motor
+	private static final double MIN_ELEVATION = 0;
+	private static final double MAX_ELEVATION = 90;
+
+	// Period of the mount's ringing after a move
+	private static final long RING_PERIOD = 200; // ms
+
+	// Read commands whose responses can be pushed
+	private static final SerialCommand[] SUBSCRIBABLE_COMMANDS = {
+			SerialCommand.READ_ORIENTATION, SerialCommand.READ_ENV,
+			SerialCommand.READ_GPS };
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final SerialTransport transport;
+	private final EmulatorSettings settings;
+	private final Random random;
+
+	private final FrameDecoder decoder = new FrameDecoder();
+	private final PacketCodec codec = new PacketCodec();
+	private Framing framing;
+	private SlidingWindowLink link;
+
+	private final byte[] rxBytes = new byte[Framing.MAX_FRAME_LENGTH];
+	private final ByteBuffer rxBuffer = ByteBuffer.wrap(rxBytes);
+	private final byte[] txBytes = new byte[Framing.MAX_FRAME_LENGTH];
+	private final ByteBuffer txBuffer = ByteBuffer.wrap(txBytes);
+
+	// Serializes writes, which the link also makes from its own thread
+	private final Object writeLock = new Object();
+
+	private volatile double azimuth;
+	private volatile double elevation;
+
+	// The move in progress, if moving; times are System.nanoTime()
+	private boolean moving;
+	private double azimuthFrom;
+	private double elevationFrom;
+	private long moveStart;
+	private long moveEnd;
+	private long azimuthEnd;
+	private long elevationEnd;
+
+	// When the last move arrived, or 0 before the first
+	private long arrivalTime;
+	private volatile int baudRate;
+	private int previousBaudRate;
+
+	// Time by which a packet must arrive at a new baud rate, or 0 if the
+	// rate is confirmed
+	private long baudConfirmDeadline;
+
+	// How often each subscribable read's response is pushed in ms (0 if it
+	// isn't), and the System.nanoTime() its next push is due
+	private final long[] subscriptionPeriods =
+			new long[SUBSCRIBABLE_COMMANDS.length];
+	private final long[] subscriptionDue =
+			new long[SUBSCRIBABLE_COMMANDS.length];
+
+	private volatile long handledCommands;
+	// By SerialCommand ordinal
+	private final AtomicLongArray handledByCommand = new AtomicLongArray(
+			SerialCommand.values().length);
+	private volatile boolean running;
+	private Thread thread;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * @param transport
+	 *            the Arduino's end of the link to the Pi
+	 * @param settings
+	 *            the simulated hardware
+	 * @param seed
+	 *            the seed of the sensor noise, so runs can be repeated
+	 */
+	public ArduinoEmulator(SerialTransport transport,
+			EmulatorSettings settings, long seed) {
+		this.transport = transport;
+		this.settings = settings;
+		this.random = new Random(seed);
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public EmulatorSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * @return the azimuth the motors are moving to or last moved to
+	 */
+	public double getAzimuth() {
+		return azimuth;
+	}
+
+	/**
+	 * @return the elevation the motors are moving to or last moved to
+	 */
+	public double getElevation() {
+		return elevation;
+	}
+
+	public int getBaudRate() {
+		return baudRate;
+	}
+
+	/**
+	 * @return the number of commands handled since the emulator started
+	 */
+	public long getHandledCommands() {
+		return handledCommands;
+	}
+
+	/**
+	 * @return the number of packets with the given command handled since the
+	 *         emulator started
+	 */
+	public long getHandledCommands(SerialCommand command) {
+		return handledByCommand.get(command.ordinal());
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Start handling commands on a new thread, as if the Arduino had just been
+	 * reset: V1, fixed framing and SerialComm.BAUD_RATE.
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "arduino-emulator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop handling commands and wait for the thread to finish. The transport
+	 * is left open.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void stop() throws InterruptedException {
+		Thread stopping;
+		synchronized (this) {
+			running = false;
+			stopping = thread;
+			thread = null;
+		}
+		if (stopping != null) {
+			stopping.interrupt();
+			stopping.join();
+		}
+		closeLink();
+	}
+
+	/**
+	 * Run an emulator on a tty, such as one end of a pseudo-terminal pair made
+	 * with "socat -d -d pty,raw,echo=0 pty,raw,echo=0". The controller can
+	 * then be pointed at the other end.
+	 *
+	 * @param args
+	 *            the path of the tty
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.out.println("Usage: ArduinoEmulator <tty>");
+			System.exit(-1);
+		}
+		ArduinoEmulator emulator = new ArduinoEmulator(
+				new TtyChannelTransport(args[0], SerialComm.BAUD_RATE),
+				new EmulatorSettings(), System.nanoTime());
+		emulator.start();
+		System.out.println("Emulating Arduino on " + args[0]);
+		emulator.thread.join();
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	private void loop() {
+		reset();
+		while (running) {
+			try {
+				SerialPacket packet = receivePacket(readTimeout());
+				checkBaudConfirmation();
+				if (packet != null)
+					handle(packet);
+				checkMove();
+				sendSubscriptions();
+			} catch (InterruptedIOException e) {
+				break;
+			} catch (EOFException e) {
+				break;
+			} catch (IOException e) {
+				if (running)
+					e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Go back to the state the firmware starts in.
+	 */
+	private void reset() {
+		closeLink();
+		setFraming(Framing.FIXED);
+		codec.setWireFormat(WireFormat.V1_ASCII);
+		baudRate = SerialComm.BAUD_RATE;
+		baudConfirmDeadline = 0;
+		decoder.clear();
+		moving = false;
+		Arrays.fill(subscriptionPeriods, 0);
+	}
+
+	/**
+	 * Receive the next packet from the Pi, answering corrupted frames as the
+	 * firmware does.
+	 *
+	 * @param timeout
+	 *            the longest to wait for a byte in ms
+	 * @return the reusable packet, or null if none arrived within the
+	 *         timeout or the frame wasn't a valid packet
+	 */
+	private SerialPacket receivePacket(int timeout) throws IOException {
+		int length;
+		while (true) {
+			if (link != null && (length = link.pollFrame(rxBytes)) > 0)
+				break;
+			length = decoder.nextFrame(rxBytes);
+			if (length == 0) {
+				int n = decoder.readFrom(transport, timeout);
+				if (n < 0)
+					throw new EOFException("Transport closed");
+				if (n == 0)
+					return null;
+			} else if (length < 0) {
+				// A sequenced link recovers by retransmission; otherwise ask
+				// for the frame again
+				if (link == null)
+					send(new NackPacket(SerialCommand.fromValue(rxBytes[framing
+							.getBodyIndex()]), NackPacket.REASON_CHECKSUM));
+			} else if (link != null) {
+				link.onFrame(rxBytes, length);
+			} else {
+				break;
+			}
+		}
+
+		try {
+			return codec.decode(framing, rxBuffer, length);
+		} catch (InvalidPacketException e) {
+			send(new NackPacket(SerialCommand.fromValue(rxBytes[framing
+					.getBodyIndex()]), NackPacket.REASON_REJECTED));
+			return null;
+		}
+	}
+
+	/**
+	 * Respond to a packet from the Pi.
+	 */
+	private void handle(SerialPacket packet) throws IOException {
+		// Any valid packet at a new baud rate confirms it
+		baudConfirmDeadline = 0;
+		handledCommands++;
+		SerialCommand command = packet.getCommand();
+		handledByCommand.incrementAndGet(command.ordinal());
+		sleep(settings.getResponseLatency());
+
+		switch (command) {
+		case ACK:
+		case NACK:
+			break;
+		case SET_ORIENTATION:
+			OrientationSetPacket set = (OrientationSetPacket) packet;
+			send(new AckPacket(command));
+			startMove(set.getAzimuth(), set.getElevation());
+			break;
+		case READ_ORIENTATION:
+		case READ_ENV:
+		case READ_GPS:
+			send(reading(command));
+			break;
+		case ESTABLISH_CONNECTION:
+			establishConnection((EstablishConnectionPacket) packet);
+			break;
+		case SET_BAUD:
+			setBaudRate(((SetBaudPacket) packet).getBaudRate());
+			break;
+		case SUBSCRIBE:
+			subscribe((SubscribePacket) packet);
+			break;
+		case UNSUBSCRIBE:
+			unsubscribe((UnsubscribePacket) packet);
+			break;
+		default:
+			send(new NackPacket(command, NackPacket.REASON_REJECTED));
+			break;
+		}
+	}
+
+	/**
+	 * Agree on the newest protocol version and the link options both sides
+	 * support, and ack with them in fixed framing before switching.
+	 */
+	private void establishConnection(EstablishConnectionPacket packet)
+			throws IOException {
+		int version = Math.min(Math.max(packet.getProtocolVersion(),
+				WireFormat.V1_ASCII.getVersion()), WireFormat.LATEST
+				.getVersion());
+		int options = packet.getLinkOptions() & settings.getLinkOptions();
+
+		closeLink();
+		setFraming(Framing.FIXED);
+		// A new connection only gets the pushes it asks for
+		Arrays.fill(subscriptionPeriods, 0);
+		send(new AckPacket(SerialCommand.ESTABLISH_CONNECTION, version,
+				options));
+		codec.setWireFormat(WireFormat.fromVersion(version));
+		setFraming(new Framing(options));
+		if (framing.isSequenced()) {
+			link = new SlidingWindowLink(framing,
+					new SlidingWindowLink.FrameWriter() {
+
+						@Override
+						public void writeFrame(byte[] frame, int length)
+								throws IOException {
+							write(frame, length);
+						}
+					});
+		}
+	}
+
+	/**
+	 * Ack at the current rate, then switch; revert unless a packet arrives
+	 * at the new rate within BAUD_CONFIRM_TIMEOUT.
+	 */
+	private void setBaudRate(int rate) throws IOException {
+		boolean supported = false;
+		for (int supportedRate : SerialComm.BAUD_RATES)
+			supported |= supportedRate == rate;
+		if (!supported) {
+			send(new NackPacket(SerialCommand.SET_BAUD,
+					NackPacket.REASON_REJECTED));
+			return;
+		}
+
+		send(new AckPacket(SerialCommand.SET_BAUD));
+		if (rate != baudRate) {
+			previousBaudRate = baudRate;
+			baudRate = rate;
+			transport.setBaudRate(rate);
+			baudConfirmDeadline = System.currentTimeMillis()
+					+ BAUD_CONFIRM_TIMEOUT;
+		}
+	}
+
+	/**
+	 * Restore the previous baud rate if a change wasn't confirmed in time.
+	 */
+	private void checkBaudConfirmation() throws IOException {
+		if (baudConfirmDeadline != 0
+				&& System.currentTimeMillis() >= baudConfirmDeadline) {
+			baudConfirmDeadline = 0;
+			baudRate = previousBaudRate;
+			transport.setBaudRate(baudRate);
+		}
+	}
+
+	/**
+	 * Ack, and push the first reading at once; NACK a read that can't be
+	 * pushed or a period shorter than the firmware allows.
+	 */
+	private void subscribe(SubscribePacket packet) throws IOException {
+		int index = subscriptionIndex(packet.getSubscribedCommand());
+		if (index < 0 || packet.getPeriod() < SubscribePacket.MIN_PERIOD) {
+			send(new NackPacket(SerialCommand.SUBSCRIBE,
+					NackPacket.REASON_REJECTED));
+			return;
+		}
+		send(new AckPacket(SerialCommand.SUBSCRIBE));
+		subscriptionPeriods[index] = packet.getPeriod();
+		subscriptionDue[index] = System.nanoTime();
+	}
+
+	private void unsubscribe(UnsubscribePacket packet) throws IOException {
+		int index = subscriptionIndex(packet.getSubscribedCommand());
+		if (index < 0) {
+			send(new NackPacket(SerialCommand.UNSUBSCRIBE,
+					NackPacket.REASON_REJECTED));
+			return;
+		}
+		subscriptionPeriods[index] = 0;
+		send(new AckPacket(SerialCommand.UNSUBSCRIBE));
+	}
+
+	/**
+	 * Push a reading for each subscription that is due. As in the firmware,
+	 * pushes are due a whole number of periods after the subscription, and
+	 * one held up by a command moves the schedule on rather than sending a
+	 * burst.
+	 */
+	private void sendSubscriptions() throws IOException {
+		for (int i = 0; i < SUBSCRIBABLE_COMMANDS.length; i++) {
+			if (subscriptionPeriods[i] == 0
+					|| System.nanoTime() - subscriptionDue[i] < 0)
+				continue;
+			send(reading(SUBSCRIBABLE_COMMANDS[i]));
+			long period = TimeUnit.MILLISECONDS
+					.toNanos(subscriptionPeriods[i]);
+			subscriptionDue[i] += period;
+			if (System.nanoTime() - subscriptionDue[i] >= 0)
+				subscriptionDue[i] = System.nanoTime() + period;
+		}
+	}
+
+	/**
+	 * @return the index of the subscription for a read command, or -1 if its
+	 *         response can't be pushed
+	 */
+	private static int subscriptionIndex(SerialCommand readCommand) {
+		for (int i = 0; i < SUBSCRIBABLE_COMMANDS.length; i++) {
+			if (SUBSCRIBABLE_COMMANDS[i] == readCommand)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return a new response to one of the read commands, as the sensors
+	 *         read now
+	 */
+	private SerialPacket reading(SerialCommand readCommand) {
+		switch (readCommand) {
+		case READ_ORIENTATION:
+			long now = System.nanoTime();
+			return new OrientationResponsePacket(read(azimuthAt(now)),
+					read(elevationAt(now)));
+		case READ_ENV:
+			return new EnvironmentalResponsePacket(
+					read(settings.getTemperature()),
+					read(settings.getHumidity()));
+		default:
+			return new GpsResponsePacket(read(settings.getLatitude()),
+					read(settings.getLongitude()));
+		}
+	}
+
+	/**
+	 * Start the motors towards the given orientation, from wherever they are
+	 * now. Each axis moves at its slew rate, and azimuth takes the shorter
+	 * way round.
+	 */
+	private void startMove(double azimuthTarget, double elevationTarget) {
+		long now = System.nanoTime();
+		azimuthFrom = azimuthAt(now);
+		elevationFrom = elevationAt(now);
+		azimuth = normalizeAzimuth(azimuthTarget);
+		elevation = Math.max(MIN_ELEVATION,
+				Math.min(MAX_ELEVATION, elevationTarget));
+
+		moveStart = now;
+		azimuthEnd = now
+				+ travelTime(Math.abs(azimuthChange()),
+						settings.getAzimuthSlewRate());
+		elevationEnd = now
+				+ travelTime(Math.abs(elevation - elevationFrom),
+						settings.getElevationSlewRate());
+		moveEnd = Math.max(azimuthEnd, elevationEnd);
+		moving = true;
+	}
+
+	/**
+	 * Report the new orientation once the move in progress arrives.
+	 */
+	private void checkMove() throws IOException {
+		long now = System.nanoTime();
+		if (!moving || now < moveEnd)
+			return;
+		moving = false;
+		arrivalTime = moveEnd;
+		send(new OrientationResponsePacket(read(azimuthAt(now)),
+				read(elevationAt(now))));
+	}
+
+	/**
+	 * @return how long to wait for a command, so a move's arrival and
+	 *         pushed readings are sent on time
+	 */
+	private int readTimeout() {
+		long now = System.nanoTime();
+		long next = now + TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT);
+		if (moving && moveEnd - next < 0)
+			next = moveEnd;
+		for (int i = 0; i < SUBSCRIBABLE_COMMANDS.length; i++) {
+			if (subscriptionPeriods[i] != 0
+					&& subscriptionDue[i] - next < 0)
+				next = subscriptionDue[i];
+		}
+		return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - now));
+	}
+
+	/**
+	 * @return the true azimuth of the mount at the given System.nanoTime()
+	 */
+	private double azimuthAt(long time) {
+		if (!moving)
+			return normalizeAzimuth(azimuth + ring(time));
+		return normalizeAzimuth(azimuthFrom + azimuthChange()
+				* progress(time, azimuthEnd));
+	}
+
+	/**
+	 * @return the true elevation of the mount at the given System.nanoTime()
+	 */
+	private double elevationAt(long time) {
+		if (!moving)
+			return elevation + ring(time);
+		return elevationFrom + (elevation - elevationFrom)
+				* progress(time, elevationEnd);
+	}
+
+	/**
+	 * @return the signed azimuth change of the move in progress, the shorter
+	 *         way round
+	 */
+	private double azimuthChange() {
+		double change = normalizeAzimuth(azimuth - azimuthFrom);
+		return change > 180 ? change - 360 : change;
+	}
+
+	/**
+	 * @return how far through its part of the move an axis is, from 0 to 1
+	 */
+	private double progress(long time, long axisEnd) {
+		if (time >= axisEnd)
+			return 1;
+		return (double) (time - moveStart) / (axisEnd - moveStart);
+	}
+
+	/**
+	 * @return the offset of the mount from its target at the given time as
+	 *         it rings after arriving, dying away over the settle time
+	 */
+	private double ring(long time) {
+		long settleTime = settings.getSettleTime();
+		if (arrivalTime == 0 || settleTime <= 0)
+			return 0;
+		double elapsed = (time - arrivalTime) / 1e6;
+		if (elapsed >= settleTime)
+			return 0;
+		return settings.getOvershoot() * (1 - elapsed / settleTime)
+				* Math.cos(2 * Math.PI * elapsed / RING_PERIOD);
+	}
+
+	/**
+	 * @return the time in ns to move the given number of degrees at the
+	 *         given rate, or 0 if the rate is 0
+	 */
+	private static long travelTime(double degrees, double rate) {
+		return rate > 0 ? (long) (degrees / rate * 1e9) : 0;
+	}
+
+	private static double normalizeAzimuth(double azimuth) {
+		return ((azimuth % 360) + 360) % 360;
+	}
+
+	/**
+	 * @return the given true value as a sensor would read it
+	 */
+	private double read(double value) {
+		return value + random.nextGaussian() * settings.getSensorNoise();
+	}
+
+	/**
+	 * Send a packet in the agreed framing, through the link if there is one.
+	 * Like the firmware, wait for room in the link's window by reading acks,
+	 * since nothing else reads while a command is being handled.
+	 */
+	private void send(SerialPacket packet) throws IOException {
+		if (link != null) {
+			while (link.getUnackedFrames() >= link.getWindow()) {
+				int length = decoder.nextFrame(rxBytes);
+				if (length > 0)
+					link.onFrame(rxBytes, length);
+				else if (length == 0
+						&& decoder.readFrom(transport, READ_TIMEOUT) < 0)
+					throw new EOFException("Transport closed");
+			}
+			link.send(packet, codec.getWireFormat());
+			return;
+		}
+		synchronized (writeLock) {
+			txBuffer.clear();
+			int length = framing.encode(packet, codec.getWireFormat(),
+					txBuffer);
+			transport.write(txBytes, 0, length);
+		}
+	}
+
+	private void write(byte[] frame, int length) throws IOException {
+		synchronized (writeLock) {
+			transport.write(frame, 0, length);
+		}
+	}
+
+	private void setFraming(Framing framing) {
+		this.framing = framing;
+		decoder.setFraming(framing);
+	}
+
+	private void closeLink() {
+		if (link != null) {
+			link.close();
+			link = null;
+		}
+	}
+
+	private static void sleep(long ms) throws InterruptedIOException {
+		if (ms <= 0)
+			return;
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+package com.sattrak.rpi.emulator;
+
+import com.sattrak.rpi.Controller;
+import com.sattrak.rpi.serial.FixedRetryPolicy;
+import com.sattrak.rpi.serial.Framing;
+import com.sattrak.rpi.serial.OrientationResponsePacket;
+import com.sattrak.rpi.serial.SerialComm;
+import com.sattrak.rpi.serial.SerialCommand;
+import com.sattrak.rpi.serial.transport.PipeTransport;
+import com.sattrak.rpi.telemetry.SampleRing;
+import com.sattrak.rpi.telemetry.SensorCache;
+
+/**
+ * Checks that a duplicate response, such as the late answer to a request that
+ * was retried and answered twice by firmware without the sequenced link
+ * layer, isn't taken as a pushed reading while the sensor has no
+ * subscription: the telemetry poller records no sample and the sensor's cache
+ * keeps the reading it was answered with. Then checks that readings pushed
+ * once the sensor is subscribed are taken. Exits with status 1 on the first
+ * failed check.
+ *
+ * Usage: DuplicateResponseTest
+ */
+public class DuplicateResponseTest {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	private static final int READS = 5;
+
+	// Timeout of each attempt, and the emulated firmware's time to answer,
+	// which is longer, so every read is retried and answered twice; in ms
+	private static final long TIMEOUT = 200;
+	private static final long LATENCY = 300;
+
+	// Time after each read for its duplicate to arrive, in ms
+	private static final long GAP = 1000;
+
+	private static final int PUSH_PERIOD = 100;
+	private static final long SEED = 1;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final Controller controller;
+	private final ArduinoEmulator emulator;
+	private int checks;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public DuplicateResponseTest(Controller controller,
+			ArduinoEmulator emulator) {
+		this.controller = controller;
+		this.emulator = emulator;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Read the orientation slowly enough that every read is answered twice,
+	 * then subscribe to it.
+	 *
+	 * @throws Exception
+	 *             if a read or the subscription fails
+	 */
+	public void run() throws Exception {
+		// Leave the link to the test, so every sample comes from a push
+		controller.getTelemetryPoller().stop();
+		SampleRing samples = controller.getTelemetryPoller()
+				.getOrientationSamples();
+		SensorCache<OrientationResponsePacket> cache = controller
+				.getOrientationCache();
+
+		emulator.getSettings().setResponseLatency(LATENCY);
+		long added = samples.getAdded();
+		long handled = emulator.getHandledCommands();
+		for (int i = 0; i < READS; i++) {
+			cache.refresh().get();
+			Thread.sleep(GAP);
+		}
+		check("reads answered twice",
+				emulator.getHandledCommands() - handled >= 2 * READS);
+		check("no samples from duplicates, got "
+				+ (samples.getAdded() - added), samples.getAdded() == added);
+		check("cache kept the answered reading, age " + cache.getAge()
+				+ " ms", cache.getAge() >= GAP - LATENCY / 2);
+
+		emulator.getSettings().setResponseLatency(0);
+		controller.subscribe(SerialCommand.READ_ORIENTATION, PUSH_PERIOD)
+				.get();
+		Thread.sleep(10 * PUSH_PERIOD);
+		check("samples from pushes, got " + (samples.getAdded() - added),
+				samples.getAdded() - added >= 5);
+		check("cache takes pushes, age " + cache.getAge() + " ms",
+				cache.getAge() < 2 * PUSH_PERIOD);
+		controller.unsubscribe(SerialCommand.READ_ORIENTATION).get();
+		System.out.println("All " + checks + " checks passed");
+	}
+
+	public static void main(String[] args) throws Exception {
+		PipeTransport[] pipe = PipeTransport.createPair();
+		// A sequenced link never sends a request twice
+		EmulatorSettings settings = new EmulatorSettings();
+		settings.setLinkOptions(Framing.SUPPORTED_OPTIONS
+				& ~Framing.OPTION_SEQUENCED);
+		ArduinoEmulator emulator = new ArduinoEmulator(pipe[1], settings,
+				SEED);
+		emulator.start();
+
+		SerialComm arduino = new SerialComm(pipe[0]);
+		arduino.setVerbose(false);
+		arduino.setRetryPolicy(new FixedRetryPolicy(
+				FixedRetryPolicy.DEFAULT_MAX_ATTEMPTS, TIMEOUT, 0));
+		new DuplicateResponseTest(new Controller(arduino), emulator).run();
+		System.exit(0);
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	private void check(String what, boolean passed) {
+		checks++;
+		if (passed)
+			return;
+		System.out.println("FAILED: " + what);
+		System.exit(1);
+	}
+
+}
@@ -0,0 +1,172 @@
+package com.sattrak.rpi.emulator;
+
+import com.sattrak.rpi.serial.Framing;
+
+/**
+ * The simulated hardware behind an ArduinoEmulator: how fast the motors slew
+ * and settle, what the sensors read, how long the firmware takes to answer
+ * and which link options it supports. Settings may be changed while the
+ * emulator is running.
+ */
+public class EmulatorSettings {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	public static final double DEFAULT_SLEW_RATE = 30; // degrees/s
+	public static final double DEFAULT_TEMPERATURE = 21.5; // degrees C
+	public static final double DEFAULT_HUMIDITY = 40; // %
+	public static final double DEFAULT_LATITUDE = 51.4778;
+	public static final double DEFAULT_LONGITUDE = -0.0014;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private volatile double azimuthSlewRate = DEFAULT_SLEW_RATE;
+	private volatile double elevationSlewRate = DEFAULT_SLEW_RATE;
+	private volatile double temperature = DEFAULT_TEMPERATURE;
+	private volatile double humidity = DEFAULT_HUMIDITY;
+	private volatile double latitude = DEFAULT_LATITUDE;
+	private volatile double longitude = DEFAULT_LONGITUDE;
+	private volatile double sensorNoise;
+	private volatile long responseLatency;
+	private volatile double overshoot;
+	private volatile long settleTime;
+	private volatile int linkOptions = Framing.SUPPORTED_OPTIONS;
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public double getAzimuthSlewRate() {
+		return azimuthSlewRate;
+	}
+
+	public double getElevationSlewRate() {
+		return elevationSlewRate;
+	}
+
+	public double getTemperature() {
+		return temperature;
+	}
+
+	public double getHumidity() {
+		return humidity;
+	}
+
+	public double getLatitude() {
+		return latitude;
+	}
+
+	public double getLongitude() {
+		return longitude;
+	}
+
+	public double getSensorNoise() {
+		return sensorNoise;
+	}
+
+	public long getResponseLatency() {
+		return responseLatency;
+	}
+
+	public double getOvershoot() {
+		return overshoot;
+	}
+
+	public long getSettleTime() {
+		return settleTime;
+	}
+
+	/**
+	 * @return the Framing options the firmware supports
+	 */
+	public int getLinkOptions() {
+		return linkOptions;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	/**
+	 * @param azimuthSlewRate
+	 *            the azimuth motor speed in degrees/s, or 0 to move instantly
+	 */
+	public void setAzimuthSlewRate(double azimuthSlewRate) {
+		this.azimuthSlewRate = azimuthSlewRate;
+	}
+
+	/**
+	 * @param elevationSlewRate
+	 *            the elevation motor speed in degrees/s, or 0 to move
+	 *            instantly
+	 */
+	public void setElevationSlewRate(double elevationSlewRate) {
+		this.elevationSlewRate = elevationSlewRate;
+	}
+
+	public void setTemperature(double temperature) {
+		this.temperature = temperature;
+	}
+
+	public void setHumidity(double humidity) {
+		this.humidity = humidity;
+	}
+
+	public void setLatitude(double latitude) {
+		this.latitude = latitude;
+	}
+
+	public void setLongitude(double longitude) {
+		this.longitude = longitude;
+	}
+
+	/**
+	 * @param sensorNoise
+	 *            the standard deviation of Gaussian noise added to every
+	 *            sensor reading
+	 */
+	public void setSensorNoise(double sensorNoise) {
+		this.sensorNoise = sensorNoise;
+	}
+
+	/**
+	 * @param responseLatency
+	 *            the time the firmware takes to handle a command before its
+	 *            response is sent, in ms
+	 */
+	public void setResponseLatency(long responseLatency) {
+		this.responseLatency = responseLatency;
+	}
+
+	/**
+	 * @param overshoot
+	 *            how far in degrees the mount swings past its target on
+	 *            arriving after a move
+	 */
+	public void setOvershoot(double overshoot) {
+		this.overshoot = overshoot;
+	}
+
+	/**
+	 * @param settleTime
+	 *            how long in ms the mount rings about its target after a
+	 *            move, or 0 to stop dead
+	 */
+	public void setSettleTime(long settleTime) {
+		this.settleTime = settleTime;
+	}
+
+	/**
+	 * @param linkOptions
+	 *            the Framing options the firmware supports, agreed on at the
+	 *            next handshake; fewer options emulate older firmware
+	 */
+	public void setLinkOptions(int linkOptions) {
+		this.linkOptions = linkOptions;
+	}
+
+}
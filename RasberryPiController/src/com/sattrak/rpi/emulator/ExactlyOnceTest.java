@@ -0,0 +1,176 @@
+package com.sattrak.rpi.emulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sattrak.rpi.Controller;
+import com.sattrak.rpi.serial.SerialComm;
+import com.sattrak.rpi.serial.SerialCommand;
+import com.sattrak.rpi.serial.transport.PipeTransport;
+
+/**
+ * Checks that every command sent over a lossy link with sequenced framing is
+ * run by the emulator exactly once: frames lost or corrupted in either
+ * direction are resent by the link layer, and the Pi never sends a command
+ * again itself, which would give it a new sequence number. Exits with status
+ * 1 on the first failed check.
+ *
+ * Usage: ExactlyOnceTest [requests [clients]]
+ */
+public class ExactlyOnceTest {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	private static final int DEFAULT_REQUESTS = 300;
+	private static final int DEFAULT_CLIENTS = 4;
+
+	// Chance of each frame being lost or corrupted, in each direction
+	private static final double DROP_RATE = 0.05;
+	private static final double CORRUPTION_RATE = 0.05;
+
+	private static final long SEED = 1;
+
+	private static final SerialCommand[] READS = {
+			SerialCommand.READ_ORIENTATION, SerialCommand.READ_ENV,
+			SerialCommand.READ_GPS };
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final Controller controller;
+	private final ArduinoEmulator emulator;
+	private final int requests;
+	private final int clients;
+	private final AtomicInteger nextRequest = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private int checks;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public ExactlyOnceTest(Controller controller, ArduinoEmulator emulator,
+			int requests, int clients) {
+		this.controller = controller;
+		this.emulator = emulator;
+		this.requests = requests;
+		this.clients = clients;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Send the reads from the client threads and count how often the
+	 * emulator ran each.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void run() throws InterruptedException {
+		long[] before = new long[READS.length];
+		for (int i = 0; i < READS.length; i++)
+			before[i] = emulator.getHandledCommands(READS[i]);
+
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					sendRequests();
+				}
+			}, "exactly-once-client-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		check("no request failed, " + failed.get() + " did",
+				failed.get() == 0);
+		for (int i = 0; i < READS.length; i++) {
+			long sent = (requests - i + READS.length - 1) / READS.length;
+			long ran = emulator.getHandledCommands(READS[i]) - before[i];
+			check(READS[i] + " sent " + sent + " times, ran " + ran,
+					ran == sent);
+		}
+		System.out.println("All " + checks + " checks passed");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_REQUESTS;
+		int clients = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_CLIENTS;
+
+		PipeTransport[] pipe = PipeTransport.createPair();
+		ImpairedTransport piEnd = new ImpairedTransport(pipe[0],
+				SerialComm.BAUD_RATE, SEED);
+		ImpairedTransport arduinoEnd = new ImpairedTransport(pipe[1],
+				SerialComm.BAUD_RATE, SEED + 1);
+		for (ImpairedTransport end : new ImpairedTransport[] { piEnd,
+				arduinoEnd }) {
+			end.setDropRate(DROP_RATE);
+			end.setCorruptionRate(CORRUPTION_RATE);
+		}
+		ArduinoEmulator emulator = new ArduinoEmulator(arduinoEnd,
+				new EmulatorSettings(), SEED);
+		emulator.start();
+
+		SerialComm arduino = new SerialComm(piEnd);
+		arduino.setVerbose(false);
+		Controller controller = new Controller(arduino);
+		// Send every read over the link, and leave the link to the clients
+		controller.getTelemetryPoller().stop();
+		controller.getEnvironmentalCache().setEnabled(false);
+		controller.getGpsCache().setEnabled(false);
+		controller.getOrientationCache().setEnabled(false);
+		ExactlyOnceTest test = new ExactlyOnceTest(controller, emulator,
+				requests, clients);
+		test.check("link is sequenced", arduino.getFraming().isSequenced());
+		test.run();
+		System.exit(0);
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * Take request numbers until there are none left, sending the read for
+	 * each.
+	 */
+	private void sendRequests() {
+		int request;
+		while ((request = nextRequest.getAndIncrement()) < requests) {
+			try {
+				switch (request % READS.length) {
+				case 0:
+					controller.getOrientation();
+					break;
+				case 1:
+					controller.getEnvironmentalData();
+					break;
+				default:
+					controller.getGpsData();
+					break;
+				}
+			} catch (Exception e) {
+				System.out.println("Request " + request + " failed: " + e);
+				failed.incrementAndGet();
+			}
+		}
+	}
+
+	private void check(String what, boolean passed) {
+		checks++;
+		if (passed)
+			return;
+		System.out.println("FAILED: " + what);
+		System.exit(1);
+	}
+
+}
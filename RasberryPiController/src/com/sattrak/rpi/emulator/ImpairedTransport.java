@@ -0,0 +1,164 @@
+package com.sattrak.rpi.emulator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+import com.sattrak.rpi.serial.transport.SerialTransport;
+
+/**
+ * A transport that damages what is written through it, to simulate a poor
+ * serial line. Each write (SerialComm and the emulator write one frame at a
+ * time) may be dropped, or have one byte corrupted, at random; and writes can
+ * be slowed to the time the bytes would take at the current baud rate. Reads
+ * pass straight through, so wrap both ends to impair both directions.
+ */
+public class ImpairedTransport implements SerialTransport {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Start, 8 data and stop bits per byte
+	private static final int BITS_PER_BYTE = 10;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final SerialTransport transport;
+	private final Random random;
+	private volatile double dropRate;
+	private volatile double corruptionRate;
+	private volatile boolean throttled;
+	private volatile int baudRate;
+
+	private byte[] scratch = new byte[0];
+	private long droppedWrites;
+	private long corruptedWrites;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * @param transport
+	 *            the transport to write through
+	 * @param baudRate
+	 *            the baud rate the line starts at
+	 * @param seed
+	 *            the seed of the random faults, so runs can be repeated
+	 */
+	public ImpairedTransport(SerialTransport transport, int baudRate,
+			long seed) {
+		this.transport = transport;
+		this.baudRate = baudRate;
+		this.random = new Random(seed);
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public synchronized long getDroppedWrites() {
+		return droppedWrites;
+	}
+
+	public synchronized long getCorruptedWrites() {
+		return corruptedWrites;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	/**
+	 * @param dropRate
+	 *            the probability that a write is lost entirely
+	 */
+	public void setDropRate(double dropRate) {
+		this.dropRate = dropRate;
+	}
+
+	/**
+	 * @param corruptionRate
+	 *            the probability that a write has one byte changed
+	 */
+	public void setCorruptionRate(double corruptionRate) {
+		this.corruptionRate = corruptionRate;
+	}
+
+	/**
+	 * @param throttled
+	 *            true to make each write take as long as its bytes would at
+	 *            the current baud rate
+	 */
+	public void setThrottled(boolean throttled) {
+		this.throttled = throttled;
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	public int read(byte[] dst, int offset, int length, int timeout)
+			throws IOException {
+		return transport.read(dst, offset, length, timeout);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return transport.available();
+	}
+
+	@Override
+	public void write(byte[] src, int offset, int length) throws IOException {
+		if (throttled)
+			sleep(length * BITS_PER_BYTE * 1000L / baudRate);
+
+		synchronized (this) {
+			if (random.nextDouble() < dropRate) {
+				droppedWrites++;
+				return;
+			}
+			if (length > 0 && random.nextDouble() < corruptionRate) {
+				// Change one byte, leaving the caller's array alone
+				if (scratch.length < length)
+					scratch = new byte[length];
+				System.arraycopy(src, offset, scratch, 0, length);
+				scratch[random.nextInt(length)] ^= (byte) (1 + random
+						.nextInt(255));
+				corruptedWrites++;
+				transport.write(scratch, 0, length);
+				return;
+			}
+		}
+		transport.write(src, offset, length);
+	}
+
+	@Override
+	public void setBaudRate(int baudRate) throws IOException {
+		transport.setBaudRate(baudRate);
+		this.baudRate = baudRate;
+	}
+
+	@Override
+	public void close() {
+		transport.close();
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	private void sleep(long ms) throws InterruptedIOException {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+}
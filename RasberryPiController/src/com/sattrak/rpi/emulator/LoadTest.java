@@ -0,0 +1,209 @@
+package com.sattrak.rpi.emulator;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sattrak.rpi.Controller;
+import com.sattrak.rpi.serial.SerialComm;
+import com.sattrak.rpi.serial.transport.PipeTransport;
+
+/**
+ * Measures the end-to-end command throughput and latency of the Pi stack
+ * (Controller, AsyncSerialEngine, SerialComm and the framing) against an
+ * ArduinoEmulator over an in-memory link, so it can run on a machine with no
+ * serial hardware. Client threads send orientation, environmental and GPS
+ * reads in turn as fast as they are answered.
+ *
+ * Usage: LoadTest [requests [clients [dropRate [corruptionRate [latency
+ * [throttled]]]]]]
+ *
+ * dropRate and corruptionRate are the chance of each frame being lost or
+ * having one byte changed, in each direction. latency is the emulated
+ * firmware's time to handle a command in ms. throttled is true to run the
+ * link at the real speed of its baud rate.
+ */
+public class LoadTest {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	private static final int DEFAULT_REQUESTS = 2000;
+	private static final int DEFAULT_CLIENTS = 4;
+	private static final long SEED = 1;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final Controller controller;
+	private final int requests;
+	private final int clients;
+
+	// Round trip of each request in ns, by request number; failed requests
+	// are left at -1
+	private final long[] latencies;
+	private final AtomicInteger nextRequest = new AtomicInteger();
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public LoadTest(Controller controller, int requests, int clients) {
+		this.controller = controller;
+		this.requests = requests;
+		this.clients = clients;
+		this.latencies = new long[requests];
+		Arrays.fill(latencies, -1);
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Send all the requests from the client threads and wait for them to
+	 * finish.
+	 *
+	 * @return the time taken in ns
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public long run() throws InterruptedException {
+		Thread[] threads = new Thread[clients];
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					sendRequests();
+				}
+			}, "load-client-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Print throughput, latency percentiles and the number of failures.
+	 *
+	 * @param elapsed
+	 *            the time run took in ns
+	 */
+	public void printResults(long elapsed) {
+		long[] sorted = new long[requests];
+		int succeeded = 0;
+		for (long latency : latencies) {
+			if (latency >= 0)
+				sorted[succeeded++] = latency;
+		}
+		Arrays.sort(sorted, 0, succeeded);
+
+		System.out.println("Requests: " + requests + " from " + clients
+				+ " clients");
+		System.out.println("Failed: " + (requests - succeeded));
+		System.out.printf("Throughput: %.1f requests/s%n", succeeded * 1e9
+				/ elapsed);
+		if (succeeded == 0)
+			return;
+		System.out.printf(
+				"Latency ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n",
+				percentile(sorted, succeeded, 50),
+				percentile(sorted, succeeded, 90),
+				percentile(sorted, succeeded, 99), sorted[succeeded - 1] / 1e6);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_REQUESTS;
+		int clients = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_CLIENTS;
+		double dropRate = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+		double corruptionRate = args.length > 3 ? Double
+				.parseDouble(args[3]) : 0;
+		long latency = args.length > 4 ? Long.parseLong(args[4]) : 0;
+		boolean throttled = args.length > 5 && Boolean.parseBoolean(args[5]);
+
+		// Link the Pi stack to the emulator, impairing both directions
+		PipeTransport[] pipe = PipeTransport.createPair();
+		ImpairedTransport piEnd = new ImpairedTransport(pipe[0],
+				SerialComm.BAUD_RATE, SEED);
+		ImpairedTransport arduinoEnd = new ImpairedTransport(pipe[1],
+				SerialComm.BAUD_RATE, SEED + 1);
+		for (ImpairedTransport end : new ImpairedTransport[] { piEnd,
+				arduinoEnd }) {
+			end.setDropRate(dropRate);
+			end.setCorruptionRate(corruptionRate);
+			end.setThrottled(throttled);
+		}
+
+		EmulatorSettings settings = new EmulatorSettings();
+		settings.setResponseLatency(latency);
+		ArduinoEmulator emulator = new ArduinoEmulator(arduinoEnd, settings,
+				SEED);
+		emulator.start();
+
+		SerialComm arduino = new SerialComm(piEnd);
+		arduino.setVerbose(false);
+		Controller controller = new Controller(arduino);
+		// Send every request over the link rather than sharing readings, and
+		// leave the link to the clients
+		controller.getTelemetryPoller().stop();
+		controller.getEnvironmentalCache().setEnabled(false);
+		controller.getGpsCache().setEnabled(false);
+		controller.getOrientationCache().setEnabled(false);
+		LoadTest test = new LoadTest(controller, requests, clients);
+		long elapsed = test.run();
+
+		System.out.println();
+		test.printResults(elapsed);
+		System.out.println("Frames dropped: " + piEnd.getDroppedWrites()
+				+ " to Arduino, " + arduinoEnd.getDroppedWrites() + " to Pi");
+		System.out.println("Frames corrupted: " + piEnd.getCorruptedWrites()
+				+ " to Arduino, " + arduinoEnd.getCorruptedWrites() + " to Pi");
+		System.out.println("Commands handled by emulator: "
+				+ emulator.getHandledCommands());
+		System.out.print(test.controller.getLinkStatistics());
+		System.exit(0);
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * Take request numbers until there are none left, sending each one and
+	 * recording its round trip.
+	 */
+	private void sendRequests() {
+		int request;
+		while ((request = nextRequest.getAndIncrement()) < requests) {
+			long start = System.nanoTime();
+			try {
+				switch (request % 3) {
+				case 0:
+					controller.getOrientation();
+					break;
+				case 1:
+					controller.getEnvironmentalData();
+					break;
+				default:
+					controller.getGpsData();
+					break;
+				}
+				latencies[request] = System.nanoTime() - start;
+			} catch (Exception e) {
+				System.out.println("Request " + request + " failed: " + e);
+			}
+		}
+	}
+
+	private static double percentile(long[] sorted, int count, int percent) {
+		int index = (int) Math.ceil(percent / 100.0 * count) - 1;
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+
+}
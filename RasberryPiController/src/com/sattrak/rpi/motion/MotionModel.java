@@ -0,0 +1,421 @@
+package com.sattrak.rpi.motion;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates how long the mount takes to slew between two orientations. Each
+ * axis accelerates at a fixed rate up to a maximum speed, cruises, and
+ * decelerates, and the slower axis decides the time, plus a fixed overhead
+ * for the command to reach the motors.
+ * 
+ * The model calibrates itself from the moves it sees. A move starts when an
+ * orientation is set and finishes when the Arduino reports it has arrived,
+ * and the time taken is fitted to the axis that dominated it: moves long
+ * enough to reach full speed take d / rate + rate / acceleration, which is
+ * linear in the distance d, so a weighted least squares fit over them gives
+ * the rate and acceleration; shorter moves take 2 * sqrt(d / acceleration)
+ * and adjust the acceleration alone.
+ * 
+ * The model also tracks the last known orientation of the mount. It is
+ * thread-safe.
+ */
+public class MotionModel {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	public static final double DEFAULT_MAX_RATE = 30; // degrees/s
+	public static final double DEFAULT_ACCELERATION = 60; // degrees/s^2
+	public static final long DEFAULT_OVERHEAD = 20; // ms
+
+	// The largest move each axis can make, in degrees
+	public static final double AZIMUTH_RANGE = 360;
+	public static final double ELEVATION_RANGE = 90;
+
+	// How close, in degrees, a reported orientation must be to the target
+	// for the move to count as finished
+	private static final double ARRIVAL_TOLERANCE = 0.5;
+
+	// Estimates are stretched by this fraction, since arriving late smears an
+	// exposure but arriving early only costs a little idle time
+	private static final double MARGIN = 0.1;
+
+	// Moves shorter than this, in degrees, say little about the motors
+	private static final double MIN_CALIBRATION_DISTANCE = 1;
+
+	// The dominant axis must be predicted to take this much longer than the
+	// other for a move to calibrate it
+	private static final double DOMINANCE = 1.5;
+
+	// Weight kept by older moves each time a new one is fitted
+	private static final double FORGETTING = 0.95;
+
+	// Weight of a short move's acceleration estimate
+	private static final double ACCELERATION_GAIN = 0.25;
+
+	private static final double MIN_RATE = 0.5;
+	private static final double MAX_RATE = 1000;
+	private static final double MIN_ACCELERATION = 1;
+	private static final double MAX_ACCELERATION = 100000;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final Axis azimuth;
+	private final Axis elevation;
+	private long overhead;
+	private boolean azimuthWraps = true;
+
+	// Last known orientation, NaN until one is known
+	private double positionAzimuth = Double.NaN;
+	private double positionElevation = Double.NaN;
+
+	// The move in progress, if moveStartTime isn't 0
+	private double moveAzimuth;
+	private double moveElevation;
+	private double targetAzimuth;
+	private double targetElevation;
+	private long moveStartTime;
+
+	private long calibratedMoves;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * Create a model with the default rates, which calibration will correct.
+	 */
+	public MotionModel() {
+		this(DEFAULT_MAX_RATE, DEFAULT_ACCELERATION, DEFAULT_MAX_RATE,
+				DEFAULT_ACCELERATION, DEFAULT_OVERHEAD);
+	}
+
+	/**
+	 * @param azimuthRate
+	 *            the top speed of the azimuth axis in degrees/s
+	 * @param azimuthAcceleration
+	 *            the acceleration of the azimuth axis in degrees/s^2
+	 * @param elevationRate
+	 *            the top speed of the elevation axis in degrees/s
+	 * @param elevationAcceleration
+	 *            the acceleration of the elevation axis in degrees/s^2
+	 * @param overhead
+	 *            the time from sending a command to the motors starting, in
+	 *            ms
+	 */
+	public MotionModel(double azimuthRate, double azimuthAcceleration,
+			double elevationRate, double elevationAcceleration, long overhead) {
+		azimuth = new Axis(azimuthRate, azimuthAcceleration);
+		elevation = new Axis(elevationRate, elevationAcceleration);
+		this.overhead = overhead;
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public synchronized double getAzimuthRate() {
+		return azimuth.rate;
+	}
+
+	public synchronized double getAzimuthAcceleration() {
+		return azimuth.acceleration;
+	}
+
+	public synchronized double getElevationRate() {
+		return elevation.rate;
+	}
+
+	public synchronized double getElevationAcceleration() {
+		return elevation.acceleration;
+	}
+
+	/**
+	 * @return the number of moves the model has learned from
+	 */
+	public synchronized long getCalibratedMoves() {
+		return calibratedMoves;
+	}
+
+	public synchronized boolean isAzimuthWrapping() {
+		return azimuthWraps;
+	}
+
+	/**
+	 * @return the last known azimuth of the mount, or NaN if unknown
+	 */
+	public synchronized double getPositionAzimuth() {
+		return positionAzimuth;
+	}
+
+	/**
+	 * @return the last known elevation of the mount, or NaN if unknown
+	 */
+	public synchronized double getPositionElevation() {
+		return positionElevation;
+	}
+
+	/**
+	 * @return true if the orientation of the mount is known
+	 */
+	public synchronized boolean isPositionKnown() {
+		return !Double.isNaN(positionAzimuth);
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	/**
+	 * @param overhead
+	 *            the time from sending a command to the motors starting, in
+	 *            ms
+	 */
+	public synchronized void setOverhead(long overhead) {
+		this.overhead = overhead;
+	}
+
+	/**
+	 * @param azimuthWraps
+	 *            true if the azimuth motor takes the shorter way round, as
+	 *            the emulator's does, or false if it can't turn past 0
+	 */
+	public synchronized void setAzimuthWrapping(boolean azimuthWraps) {
+		this.azimuthWraps = azimuthWraps;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Copy the model's current rates, such as for a thread that estimates a
+	 * great many slews and shouldn't contend for this one. The copy doesn't
+	 * learn from what this one has seen.
+	 * 
+	 * @return a new model
+	 */
+	public synchronized MotionModel copy() {
+		MotionModel copy = new MotionModel(azimuth.rate,
+				azimuth.acceleration, elevation.rate, elevation.acceleration,
+				overhead);
+		copy.azimuthWraps = azimuthWraps;
+		copy.positionAzimuth = positionAzimuth;
+		copy.positionElevation = positionElevation;
+		return copy;
+	}
+
+	/**
+	 * Estimate the time to slew between two orientations.
+	 * 
+	 * @return the time in ms
+	 */
+	public synchronized long estimateSlew(double fromAzimuth,
+			double fromElevation, double toAzimuth, double toElevation) {
+		double seconds = Math.max(
+				azimuth.time(azimuthDistance(fromAzimuth, toAzimuth)),
+				elevation.time(Math.abs(toElevation - fromElevation)));
+		return (long) Math.ceil(seconds * (1 + MARGIN) * 1000) + overhead;
+	}
+
+	/**
+	 * Estimate the time to slew from the last known orientation, or the
+	 * longest possible slew if it isn't known.
+	 * 
+	 * @return the time in ms
+	 */
+	public synchronized long estimateSlew(double toAzimuth,
+			double toElevation) {
+		if (!isPositionKnown())
+			return getMaxSlew();
+		return estimateSlew(positionAzimuth, positionElevation, toAzimuth,
+				toElevation);
+	}
+
+	/**
+	 * @return the time in ms of the longest possible slew
+	 */
+	public synchronized long getMaxSlew() {
+		double azimuthRange = azimuthWraps ? AZIMUTH_RANGE / 2
+				: AZIMUTH_RANGE;
+		return estimateSlew(0, 0, azimuthRange, ELEVATION_RANGE);
+	}
+
+	/**
+	 * Record where the mount was reported to be.
+	 */
+	public synchronized void setPosition(double azimuth, double elevation) {
+		positionAzimuth = azimuth;
+		positionElevation = elevation;
+	}
+
+	/**
+	 * Record that the mount has been told to move to a new orientation.
+	 * 
+	 * @param nanoTime
+	 *            the System.nanoTime() at which the command was sent
+	 */
+	public synchronized void moveStarted(double toAzimuth, double toElevation,
+			long nanoTime) {
+		moveAzimuth = positionAzimuth;
+		moveElevation = positionElevation;
+		targetAzimuth = toAzimuth;
+		targetElevation = toElevation;
+		moveStartTime = nanoTime;
+	}
+
+	/**
+	 * Record that the mount reported arriving after a move, and learn from
+	 * how long it took. A report away from the target, such as an answer to
+	 * a read sent during the move, only updates the position.
+	 * 
+	 * @param nanoTime
+	 *            the System.nanoTime() at which the report was received
+	 * @return the time the move took in ms, or -1 if no move was in progress
+	 *         or the report wasn't at its target
+	 */
+	public synchronized long moveFinished(double azimuth, double elevation,
+			long nanoTime) {
+		setPosition(azimuth, elevation);
+		if (moveStartTime == 0
+				|| azimuthDistance(azimuth, targetAzimuth) > ARRIVAL_TOLERANCE
+				|| Math.abs(elevation - targetElevation) > ARRIVAL_TOLERANCE)
+			return -1;
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(nanoTime - moveStartTime);
+		moveStartTime = 0;
+
+		// Can't tell how far it went without knowing where it started
+		if (Double.isNaN(moveAzimuth))
+			return elapsed;
+		calibrate(azimuthDistance(moveAzimuth, targetAzimuth),
+				Math.abs(targetElevation - moveElevation),
+				(elapsed - overhead) / 1000.0);
+		return elapsed;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Azimuth: %.1f degrees/s, %.1f degrees/s^2\n"
+				+ "Elevation: %.1f degrees/s, %.1f degrees/s^2\n"
+				+ "Overhead: %d ms\nCalibrated Moves: %d", azimuth.rate,
+				azimuth.acceleration, elevation.rate, elevation.acceleration,
+				overhead, calibratedMoves);
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * Fit a move's time to whichever axis dominated it.
+	 */
+	private void calibrate(double azimuthDistance, double elevationDistance,
+			double seconds) {
+		if (seconds <= 0)
+			return;
+		double azimuthTime = azimuth.time(azimuthDistance);
+		double elevationTime = elevation.time(elevationDistance);
+		if (azimuthTime >= DOMINANCE * elevationTime
+				&& azimuthDistance >= MIN_CALIBRATION_DISTANCE) {
+			azimuth.fit(azimuthDistance, seconds);
+			calibratedMoves++;
+		} else if (elevationTime >= DOMINANCE * azimuthTime
+				&& elevationDistance >= MIN_CALIBRATION_DISTANCE) {
+			elevation.fit(elevationDistance, seconds);
+			calibratedMoves++;
+		}
+	}
+
+	/**
+	 * @return the degrees the azimuth motor turns between two angles
+	 */
+	private double azimuthDistance(double from, double to) {
+		double distance = Math.abs(to - from);
+		if (azimuthWraps) {
+			distance %= AZIMUTH_RANGE;
+			distance = Math.min(distance, AZIMUTH_RANGE - distance);
+		}
+		return distance;
+	}
+
+	private static double clamp(double value, double min, double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	// ===============================
+	// AXIS
+	// ===============================
+
+	/**
+	 * The motion of one axis, and the running fit of its full speed moves.
+	 */
+	private static class Axis {
+
+		private double rate;
+		private double acceleration;
+
+		// Exponentially weighted sums for the least squares fit of time
+		// against distance
+		private double weight;
+		private double sumDistance;
+		private double sumTime;
+		private double sumDistanceSquared;
+		private double sumDistanceTime;
+
+		private Axis(double rate, double acceleration) {
+			this.rate = rate;
+			this.acceleration = acceleration;
+		}
+
+		/**
+		 * @return the time in s to move the given number of degrees
+		 */
+		private double time(double distance) {
+			// Distance covered speeding up to full rate and back down
+			double rampDistance = rate * rate / acceleration;
+			if (distance < rampDistance)
+				return 2 * Math.sqrt(distance / acceleration);
+			return distance / rate + rate / acceleration;
+		}
+
+		private void fit(double distance, double seconds) {
+			if (distance < rate * rate / acceleration) {
+				// Never reached full speed, so only acceleration shows
+				double estimate = 4 * distance / (seconds * seconds);
+				acceleration = clamp(acceleration + ACCELERATION_GAIN
+						* (estimate - acceleration), MIN_ACCELERATION,
+						MAX_ACCELERATION);
+				return;
+			}
+
+			weight = weight * FORGETTING + 1;
+			sumDistance = sumDistance * FORGETTING + distance;
+			sumTime = sumTime * FORGETTING + seconds;
+			sumDistanceSquared = sumDistanceSquared * FORGETTING + distance
+					* distance;
+			sumDistanceTime = sumDistanceTime * FORGETTING + distance
+					* seconds;
+
+			// Needs moves of different lengths to separate the slope (1 /
+			// rate) from the intercept (rate / acceleration)
+			double variance = sumDistanceSquared * weight - sumDistance
+					* sumDistance;
+			if (variance <= 1e-6 * weight * weight)
+				return;
+			double slope = (sumDistanceTime * weight - sumDistance * sumTime)
+					/ variance;
+			double intercept = (sumTime - slope * sumDistance) / weight;
+			if (slope <= 0)
+				return;
+			rate = clamp(1 / slope, MIN_RATE, MAX_RATE);
+			// An intercept of 0 or less means acceleration too fast to see
+			acceleration = intercept > 0 ? clamp(rate / intercept,
+					MIN_ACCELERATION, MAX_ACCELERATION) : MAX_ACCELERATION;
+		}
+
+	}
+
+}
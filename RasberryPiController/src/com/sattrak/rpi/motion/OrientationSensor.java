@@ -0,0 +1,21 @@
+package com.sattrak.rpi.motion;
+
+import com.sattrak.rpi.serial.OrientationResponsePacket;
+import com.sattrak.rpi.serial.SerialComm.IncorrectResponseException;
+
+/**
+ * Reads where the mount is pointing, for a SettleDetector.
+ */
+public interface OrientationSensor {
+
+	/**
+	 * @return the orientation the Arduino reports
+	 * @throws IncorrectResponseException
+	 *             if the correct response was not received
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for it
+	 */
+	OrientationResponsePacket readOrientation()
+			throws IncorrectResponseException, InterruptedException;
+
+}
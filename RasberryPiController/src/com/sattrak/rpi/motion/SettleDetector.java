@@ -0,0 +1,254 @@
+package com.sattrak.rpi.motion;
+
+import java.util.concurrent.TimeUnit;
+
+import com.sattrak.rpi.serial.OrientationResponsePacket;
+import com.sattrak.rpi.serial.SerialComm.IncorrectResponseException;
+
+/**
+ * Watches the mount after it has been told to move, and says when it has
+ * settled on its target: when a number of readings in a row are all within
+ * a tolerance of it. A mount rings about its target for a while after
+ * arriving, so a single reading that happens to be close isn't enough.
+ * 
+ * Readings are slow while the mount is far off, since it can't arrive before
+ * the MotionModel says, and come as fast as the link allows once it is near.
+ * The time each move took to settle is recorded, and taught to the model.
+ */
+public class SettleDetector {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	public static final double DEFAULT_TOLERANCE = 0.1; // degrees
+	public static final int DEFAULT_SAMPLES = 3;
+
+	// Bounds of the time between readings
+	private static final long MIN_POLL_INTERVAL = 20; // ms
+	private static final long MAX_POLL_INTERVAL = 500; // ms
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final OrientationSensor sensor;
+	private final MotionModel motion;
+	private volatile double tolerance = DEFAULT_TOLERANCE;
+	private volatile int samples = DEFAULT_SAMPLES;
+
+	// Settle times in ms, and the moves that never settled
+	private long settledMoves;
+	private long totalSettleTime;
+	private long maxSettleTime;
+	private long lastSettleTime = -1;
+	private long timeouts;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * @param sensor
+	 *            reads the orientation of the mount
+	 * @param motion
+	 *            estimates how long moves take, and learns from them
+	 */
+	public SettleDetector(OrientationSensor sensor, MotionModel motion) {
+		this.sensor = sensor;
+		this.motion = motion;
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the number of moves that settled
+	 */
+	public synchronized long getSettledMoves() {
+		return settledMoves;
+	}
+
+	/**
+	 * @return the time the last move took to settle in ms, or -1 if none
+	 *         has
+	 */
+	public synchronized long getLastSettleTime() {
+		return lastSettleTime;
+	}
+
+	/**
+	 * @return the mean time moves took to settle in ms, or 0 if none has
+	 */
+	public synchronized long getMeanSettleTime() {
+		return settledMoves == 0 ? 0 : totalSettleTime / settledMoves;
+	}
+
+	public synchronized long getMaxSettleTime() {
+		return maxSettleTime;
+	}
+
+	/**
+	 * @return the number of moves that didn't settle in time
+	 */
+	public synchronized long getTimeouts() {
+		return timeouts;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	/**
+	 * @param tolerance
+	 *            how far in degrees a reading may be from the target on each
+	 *            axis for the mount to count as there
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @param samples
+	 *            the number of readings in a row that must be within the
+	 *            tolerance
+	 */
+	public void setSamples(int samples) {
+		if (samples < 1)
+			throw new IllegalArgumentException("samples must be at least 1");
+		this.samples = samples;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Wait for the mount to settle on the given orientation.
+	 * 
+	 * @param azimuth
+	 *            the target azimuth in degrees
+	 * @param elevation
+	 *            the target elevation in degrees
+	 * @param moveStart
+	 *            the System.nanoTime() at which the move was commanded
+	 * @param timeout
+	 *            the longest to wait after moveStart, in ms
+	 * @return the time in ms from moveStart to the first of the readings
+	 *         that showed the mount settled
+	 * @throws SettleTimeoutException
+	 *             if the mount hadn't settled by the timeout
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting
+	 */
+	public long awaitSettle(double azimuth, double elevation, long moveStart,
+			long timeout) throws SettleTimeoutException, InterruptedException {
+		long deadline = moveStart + TimeUnit.MILLISECONDS.toNanos(timeout);
+		int inTolerance = 0;
+		long arrived = 0;
+		double error = Double.NaN;
+
+		while (System.nanoTime() < deadline) {
+			OrientationResponsePacket reading;
+			long readTime;
+			try {
+				reading = sensor.readOrientation();
+				readTime = System.nanoTime();
+			} catch (IncorrectResponseException e) {
+				// A lost reading proves nothing either way
+				inTolerance = 0;
+				continue;
+			}
+
+			error = Math.max(
+					azimuthError(reading.getAzimuth(), azimuth),
+					Math.abs(reading.getElevation() - elevation));
+			if (error <= tolerance) {
+				if (inTolerance++ == 0)
+					arrived = readTime;
+				if (inTolerance >= samples) {
+					motion.moveFinished(azimuth, elevation, arrived);
+					return settled(TimeUnit.NANOSECONDS.toMillis(arrived
+							- moveStart));
+				}
+				Thread.sleep(MIN_POLL_INTERVAL);
+			} else {
+				inTolerance = 0;
+				Thread.sleep(pollInterval(reading, azimuth, elevation));
+			}
+		}
+
+		synchronized (this) {
+			timeouts++;
+		}
+		throw new SettleTimeoutException(azimuth, elevation, error);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Settled Moves: " + settledMoves + "\nMean Settle Time: "
+				+ getMeanSettleTime() + " ms\nMax Settle Time: "
+				+ maxSettleTime + " ms\nSettle Timeouts: " + timeouts;
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * @return the time to wait before the next reading: half the time the
+	 *         rest of the move should take
+	 */
+	private long pollInterval(OrientationResponsePacket reading,
+			double azimuth, double elevation) {
+		long remaining = motion.estimateSlew(reading.getAzimuth(),
+				reading.getElevation(), azimuth, elevation);
+		return Math.max(MIN_POLL_INTERVAL,
+				Math.min(MAX_POLL_INTERVAL, remaining / 2));
+	}
+
+	private synchronized long settled(long settleTime) {
+		settledMoves++;
+		totalSettleTime += settleTime;
+		maxSettleTime = Math.max(maxSettleTime, settleTime);
+		lastSettleTime = settleTime;
+		return settleTime;
+	}
+
+	/**
+	 * @return the difference between two azimuths the shorter way round
+	 */
+	private static double azimuthError(double a, double b) {
+		double error = Math.abs(a - b) % 360;
+		return Math.min(error, 360 - error);
+	}
+
+	// ===============================
+	// CUSTOM EXCEPTIONS
+	// ===============================
+
+	/**
+	 * Thrown when the mount doesn't settle on its target in time.
+	 */
+	public static class SettleTimeoutException extends Exception {
+
+		private static final long serialVersionUID = 2874096133265402818L;
+
+		public SettleTimeoutException(double azimuth, double elevation,
+				double error) {
+			super(String.format("Mount didn't settle at %.2f, %.2f "
+					+ "(last error %.2f degrees)", azimuth, elevation, error));
+		}
+
+	}
+
+}
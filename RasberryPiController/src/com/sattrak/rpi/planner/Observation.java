@@ -0,0 +1,96 @@
+package com.sattrak.rpi.planner;
+
+/**
+ * A target that may be observed at any time within a window: point the mount
+ * at the given azimuth and elevation and expose for the given duration, with
+ * the whole exposure inside the window. A PlanOptimizer chooses the times.
+ */
+public class Observation {
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final String title;
+	private final double azimuth;
+	private final double elevation;
+	private final long duration;
+	private final long windowStart;
+	private final long windowEnd;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * @param title
+	 *            the name of the observation
+	 * @param azimuth
+	 *            the azimuth to point at in degrees
+	 * @param elevation
+	 *            the elevation to point at in degrees
+	 * @param duration
+	 *            the exposure time in ms
+	 * @param windowStart
+	 *            the earliest the exposure may start, in ns since the epoch
+	 * @param windowEnd
+	 *            the latest the exposure may end, in ns since the epoch
+	 */
+	public Observation(String title, double azimuth, double elevation,
+			long duration, long windowStart, long windowEnd) {
+		this.title = title;
+		this.azimuth = azimuth;
+		this.elevation = elevation;
+		this.duration = duration;
+		this.windowStart = windowStart;
+		this.windowEnd = windowEnd;
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public String getTitle() {
+		return title;
+	}
+
+	public double getAzimuth() {
+		return azimuth;
+	}
+
+	public double getElevation() {
+		return elevation;
+	}
+
+	/**
+	 * @return the exposure time in ms
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return the earliest the exposure may start, in ns since the epoch
+	 */
+	public long getWindowStart() {
+		return windowStart;
+	}
+
+	/**
+	 * @return the latest the exposure may end, in ns since the epoch
+	 */
+	public long getWindowEnd() {
+		return windowEnd;
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	public String toString() {
+		return String.format("%s at %.2f, %.2f for %d ms", title, azimuth,
+				elevation, duration);
+	}
+
+}
@@ -0,0 +1,713 @@
+package com.sattrak.rpi.planner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+import com.sattrak.rpi.Task;
+import com.sattrak.rpi.TaskStore;
+import com.sattrak.rpi.motion.MotionModel;
+
+/**
+ * Chooses the order and times of a set of observations with flexible windows,
+ * fitting in as many as it can and then spending as little time slewing as it
+ * can. Slews are estimated by a MotionModel, and tasks already scheduled are
+ * fitted around as fixed points.
+ *
+ * Each attempt builds a route by nearest neighbour in time: from where the
+ * mount is, go next to whichever observation could start soonest. It then
+ * improves the route until nothing changes or time runs out, by reversing
+ * short runs of it where that shortens the slews and keeps every window (a
+ * windowed 2-opt), and by inserting the observations left out wherever they
+ * still fit. Attempts after the first sometimes take the second nearest
+ * observation instead, and they run in parallel on a ForkJoinPool; the best
+ * route wins.
+ *
+ * Times are worked in ms, so a plan of thousands of observations is
+ * optimized in a second or two.
+ */
+public class PlanOptimizer {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	public static final long DEFAULT_TIME_LIMIT = 2000; // ms
+
+	// Longest run of a route that 2-opt reverses; longer reversals rarely
+	// keep every window
+	private static final int MAX_SEGMENT = 32;
+
+	// Chance that an attempt after the first takes the second nearest
+	// observation
+	private static final double NOISE = 0.3;
+
+	// Positions tried before the first task that starts after an
+	// observation's window opens, in case the tasks there can wait for it
+	private static final int INSERTION_BACKTRACK = 2;
+
+	private static final long NONE = Long.MAX_VALUE;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final MotionModel motion;
+	private final ForkJoinPool pool;
+	private int attempts;
+	private long timeLimit = DEFAULT_TIME_LIMIT;
+	private long seed;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * Create an optimizer that runs on the common ForkJoinPool.
+	 *
+	 * @param motion
+	 *            the model of how long the mount takes to move
+	 */
+	public PlanOptimizer(MotionModel motion) {
+		this(motion, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param motion
+	 *            the model of how long the mount takes to move
+	 * @param pool
+	 *            the pool to run attempts on
+	 */
+	public PlanOptimizer(MotionModel motion, ForkJoinPool pool) {
+		this.motion = motion;
+		this.pool = pool;
+		attempts = Math.max(2, pool.getParallelism());
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	/**
+	 * @param attempts
+	 *            the number of routes to build and improve
+	 */
+	public void setAttempts(int attempts) {
+		if (attempts < 1)
+			throw new IllegalArgumentException("attempts must be at least 1");
+		this.attempts = attempts;
+	}
+
+	/**
+	 * @param timeLimit
+	 *            how long to spend improving routes, in ms; building them is
+	 *            not limited
+	 */
+	public void setTimeLimit(long timeLimit) {
+		this.timeLimit = timeLimit;
+	}
+
+	/**
+	 * @param seed
+	 *            the seed of the attempts' random choices, so runs can be
+	 *            repeated
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Schedule as many of the observations as possible.
+	 *
+	 * @param observations
+	 *            the observations to choose from
+	 * @param start
+	 *            the earliest time to start slewing, in ns since the epoch
+	 * @param azimuth
+	 *            the azimuth of the mount at the start, or NaN if unknown
+	 * @param elevation
+	 *            the elevation of the mount at the start
+	 * @return the schedule
+	 */
+	public Schedule optimize(List<Observation> observations, long start,
+			double azimuth, double elevation) {
+		return optimize(observations, new ArrayList<Task>(), start, azimuth,
+				elevation);
+	}
+
+	/**
+	 * Schedule as many of the observations as possible around tasks that are
+	 * already fixed, leaving time to slew to and from each of them.
+	 *
+	 * @param observations
+	 *            the observations to choose from
+	 * @param fixed
+	 *            the tasks already scheduled
+	 * @param start
+	 *            the earliest time to start slewing, in ns since the epoch
+	 * @param azimuth
+	 *            the azimuth of the mount at the start, or NaN if unknown
+	 * @param elevation
+	 *            the elevation of the mount at the start
+	 * @return the schedule, which doesn't include the fixed tasks
+	 */
+	public Schedule optimize(List<Observation> observations, List<Task> fixed,
+			long start, double azimuth, double elevation) {
+		Problem problem = new Problem(observations, fixed, start, azimuth,
+				elevation, motion.copy());
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeLimit);
+		Solution best = pool.invoke(new Search(problem, 0, attempts, seed,
+				deadline));
+		return toSchedule(problem, best);
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	private static Schedule toSchedule(Problem problem, Solution solution) {
+		TaskStore plan = new TaskStore(Math.max(1, solution.order.length));
+		boolean[] placed = new boolean[problem.size];
+		for (int pos = 0; pos < solution.order.length; pos++) {
+			int node = solution.order[pos];
+			placed[node] = true;
+			if (node >= problem.observations.length)
+				continue;
+			Observation observation = problem.observations[node];
+			plan.add(observation.getTitle(), TimeUnit.MILLISECONDS
+					.toNanos(problem.origin + solution.start[pos]),
+					observation.getDuration(), observation.getAzimuth(),
+					observation.getElevation());
+		}
+
+		List<Observation> unscheduled = new ArrayList<Observation>();
+		for (int node = 0; node < problem.observations.length; node++) {
+			if (!placed[node])
+				unscheduled.add(problem.observations[node]);
+		}
+		return new Schedule(plan, unscheduled, solution.totalSlew);
+	}
+
+	/**
+	 * @return true if a fits in more observations than b, or as many with no
+	 *         more slewing
+	 */
+	private static boolean isBetter(Solution a, Solution b) {
+		if (a.scheduled != b.scheduled)
+			return a.scheduled > b.scheduled;
+		return a.totalSlew <= b.totalSlew;
+	}
+
+	// ===============================
+	// PROBLEM
+	// ===============================
+
+	/**
+	 * The observations and fixed tasks as nodes of a route, in columns. Nodes
+	 * below observations.length are observations and the rest are fixed
+	 * tasks in time order. Times are in ms after origin.
+	 */
+	private static class Problem {
+
+		private final Observation[] observations;
+		private final int size;
+		private final long origin;
+		private final double startAzimuth;
+		private final double startElevation;
+		private final MotionModel motion;
+
+		private final double[] azimuths;
+		private final double[] elevations;
+		private final long[] durations;
+		// The earliest and latest start of each node; equal for fixed tasks
+		private final long[] earliest;
+		private final long[] latest;
+
+		// Observations by earliest start
+		private final int[] byEarliest;
+
+		private Problem(List<Observation> observations, List<Task> fixed,
+				long start, double startAzimuth, double startElevation,
+				MotionModel motion) {
+			this.observations = observations
+					.toArray(new Observation[observations.size()]);
+			this.origin = ceilMillis(start);
+			this.startAzimuth = startAzimuth;
+			this.startElevation = startElevation;
+			this.motion = motion;
+
+			// Only fixed tasks still running at the start matter
+			List<Task> anchors = new ArrayList<Task>();
+			for (Task task : fixed) {
+				if (task.getEpochMillis() + task.getDuration() > origin)
+					anchors.add(task);
+			}
+			Task[] sorted = anchors.toArray(new Task[anchors.size()]);
+			Arrays.sort(sorted);
+
+			size = this.observations.length + sorted.length;
+			azimuths = new double[size];
+			elevations = new double[size];
+			durations = new long[size];
+			earliest = new long[size];
+			latest = new long[size];
+			for (int i = 0; i < this.observations.length; i++) {
+				Observation observation = this.observations[i];
+				azimuths[i] = observation.getAzimuth();
+				elevations[i] = observation.getElevation();
+				durations[i] = observation.getDuration();
+				earliest[i] = Math.max(0,
+						ceilMillis(observation.getWindowStart()) - origin);
+				latest[i] = TimeUnit.NANOSECONDS.toMillis(observation
+						.getWindowEnd()) - durations[i] - origin;
+			}
+			for (int i = 0; i < sorted.length; i++) {
+				int node = this.observations.length + i;
+				azimuths[node] = sorted[i].getAzimuth();
+				elevations[node] = sorted[i].getElevation();
+				// Round out to whole ms, so the node covers all of the task
+				long end = sorted[i].getEpochNanos()
+						+ TimeUnit.MILLISECONDS
+								.toNanos(sorted[i].getDuration());
+				earliest[node] = sorted[i].getEpochMillis() - origin;
+				durations[node] = ceilMillis(end) - origin - earliest[node];
+				latest[node] = earliest[node];
+			}
+
+			Integer[] order = new Integer[this.observations.length];
+			for (int i = 0; i < order.length; i++)
+				order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Long.compare(earliest[a], earliest[b]);
+				}
+			});
+			byEarliest = new int[order.length];
+			for (int i = 0; i < order.length; i++)
+				byEarliest[i] = order[i];
+		}
+
+		private boolean isFixed(int node) {
+			return node >= observations.length;
+		}
+
+		private static long ceilMillis(long nanos) {
+			return TimeUnit.NANOSECONDS.toMillis(nanos
+					+ TimeUnit.MILLISECONDS.toNanos(1) - 1);
+		}
+
+	}
+
+	// ===============================
+	// SOLUTION
+	// ===============================
+
+	/**
+	 * A finished route: the nodes in order and when each starts.
+	 */
+	private static class Solution {
+
+		private final int[] order;
+		private final long[] start;
+		// Observations in the route, not counting fixed tasks
+		private final int scheduled;
+		private final long totalSlew;
+
+		private Solution(int[] order, long[] start, int scheduled,
+				long totalSlew) {
+			this.order = order;
+			this.start = start;
+			this.scheduled = scheduled;
+			this.totalSlew = totalSlew;
+		}
+
+	}
+
+	// ===============================
+	// SEARCH
+	// ===============================
+
+	/**
+	 * Runs a range of attempts, splitting it in half until each task has one,
+	 * and returns the best route.
+	 */
+	private static class Search extends RecursiveTask<Solution> {
+
+		private static final long serialVersionUID = 6150432960385017729L;
+
+		private final Problem problem;
+		private final int first;
+		private final int last;
+		private final long seed;
+		private final long deadline;
+
+		private Search(Problem problem, int first, int last, long seed,
+				long deadline) {
+			this.problem = problem;
+			this.first = first;
+			this.last = last;
+			this.seed = seed;
+			this.deadline = deadline;
+		}
+
+		@Override
+		protected Solution compute() {
+			if (last - first == 1)
+				return new Route(problem, first, seed, deadline).solve();
+
+			int middle = (first + last) >>> 1;
+			Search left = new Search(problem, first, middle, seed, deadline);
+			left.fork();
+			Solution right = new Search(problem, middle, last, seed, deadline)
+					.compute();
+			Solution best = left.join();
+			return isBetter(best, right) ? best : right;
+		}
+
+	}
+
+	// ===============================
+	// ROUTE
+	// ===============================
+
+	/**
+	 * One attempt: a route being built and improved. Positions in the route
+	 * are kept in start order, and each node starts as early as its window
+	 * and the slew from the node before allow.
+	 */
+	private static class Route {
+
+		private final Problem p;
+		private final MotionModel motion;
+		private final Random random;
+		private final boolean noisy;
+		private final long deadline;
+
+		private final int[] order;
+		private final long[] start;
+		private final long[] scratch;
+		private final boolean[] placed;
+		private int size;
+
+		private Route(Problem problem, int attempt, long seed, long deadline) {
+			this.p = problem;
+			// A model of its own, so attempts don't contend for it
+			this.motion = problem.motion.copy();
+			this.random = new Random(seed + attempt);
+			this.noisy = attempt > 0;
+			this.deadline = deadline;
+			order = new int[problem.size];
+			start = new long[problem.size];
+			scratch = new long[problem.size];
+			placed = new boolean[problem.size];
+		}
+
+		private Solution solve() {
+			build();
+			boolean changed = true;
+			while (changed && System.nanoTime() < deadline)
+				changed = reverseRuns() | insertLeftOut();
+
+			int scheduled = 0;
+			long totalSlew = 0;
+			for (int pos = 0; pos < size; pos++) {
+				if (!p.isFixed(order[pos]))
+					scheduled++;
+				totalSlew += slew(pos == 0 ? -1 : order[pos - 1], order[pos]);
+			}
+			return new Solution(Arrays.copyOf(order, size), Arrays.copyOf(
+					start, size), scheduled, totalSlew);
+		}
+
+		/**
+		 * Build the route by nearest neighbour in time, keeping room to reach
+		 * the next fixed task.
+		 */
+		private void build() {
+			boolean[] expired = new boolean[p.size];
+			int[] byEarliest = p.byEarliest;
+			int nextFixed = p.observations.length;
+			int current = -1;
+			long time = 0;
+			int first = 0;
+			while (true) {
+				int anchor = nextFixed < p.size ? nextFixed : -1;
+				while (first < byEarliest.length
+						&& (placed[byEarliest[first]]
+								|| expired[byEarliest[first]]))
+					first++;
+
+				int best = -1;
+				int second = -1;
+				long bestStart = NONE;
+				long secondStart = NONE;
+				for (int k = first; k < byEarliest.length; k++) {
+					int node = byEarliest[k];
+					if (placed[node] || expired[node])
+						continue;
+					// Nothing later can start sooner than the ones found
+					if (p.earliest[node] >= (noisy ? secondStart : bestStart))
+						break;
+					if (p.latest[node] < time) {
+						expired[node] = true;
+						continue;
+					}
+					long s = Math.max(p.earliest[node], time
+							+ slew(current, node));
+					if (s > p.latest[node])
+						continue;
+					// Leave time to reach the next fixed task
+					if (anchor >= 0
+							&& s + p.durations[node] + slew(node, anchor)
+									> p.earliest[anchor])
+						continue;
+					if (s < bestStart) {
+						second = best;
+						secondStart = bestStart;
+						best = node;
+						bestStart = s;
+					} else if (s < secondStart) {
+						second = node;
+						secondStart = s;
+					}
+				}
+
+				int node;
+				long s;
+				if (best < 0) {
+					// Nothing fits before the next fixed task, so go to it
+					if (anchor < 0)
+						break;
+					node = anchor;
+					s = p.earliest[anchor];
+					nextFixed++;
+				} else if (second >= 0 && noisy
+						&& random.nextDouble() < NOISE) {
+					node = second;
+					s = secondStart;
+				} else {
+					node = best;
+					s = bestStart;
+				}
+				order[size] = node;
+				start[size] = s;
+				placed[node] = true;
+				size++;
+				current = node;
+				time = s + p.durations[node];
+			}
+		}
+
+		/**
+		 * Reverse each short run of the route that would shorten the slews
+		 * and keep every window.
+		 *
+		 * @return true if the route changed
+		 */
+		private boolean reverseRuns() {
+			boolean changed = false;
+			for (int i = 0; i < size - 1; i++) {
+				if (System.nanoTime() >= deadline)
+					break;
+				int before = i == 0 ? -1 : order[i - 1];
+				for (int j = i + 1; j < size && j <= i + MAX_SEGMENT; j++) {
+					// Slews are the same either way, so only the ends of the
+					// run change
+					long delta = slew(before, order[j])
+							- slew(before, order[i]);
+					if (j + 1 < size)
+						delta += slew(order[i], order[j + 1])
+								- slew(order[j], order[j + 1]);
+					if (delta < 0 && reverse(i, j))
+						changed = true;
+				}
+			}
+			return changed;
+		}
+
+		/**
+		 * Reverse positions i to j if every node still fits its window.
+		 *
+		 * @return true if the route changed
+		 */
+		private boolean reverse(int i, int j) {
+			int previous = i == 0 ? -1 : order[i - 1];
+			long previousEnd = endBefore(i);
+			for (int pos = i; pos <= j; pos++) {
+				int node = order[i + j - pos];
+				long s = Math.max(p.earliest[node], previousEnd
+						+ slew(previous, node));
+				if (s > p.latest[node])
+					return false;
+				scratch[pos] = s;
+				previous = node;
+				previousEnd = s + p.durations[node];
+			}
+
+			// Carry the change on until the times settle back
+			int stop = j + 1;
+			for (; stop < size; stop++) {
+				int node = order[stop];
+				long s = Math.max(p.earliest[node], previousEnd
+						+ slew(previous, node));
+				if (s > p.latest[node])
+					return false;
+				if (s == start[stop])
+					break;
+				scratch[stop] = s;
+				previous = node;
+				previousEnd = s + p.durations[node];
+			}
+
+			for (int a = i, b = j; a < b; a++, b--) {
+				int node = order[a];
+				order[a] = order[b];
+				order[b] = node;
+			}
+			System.arraycopy(scratch, i, start, i, stop - i);
+			return true;
+		}
+
+		/**
+		 * Insert each observation left out of the route where it adds the
+		 * least slewing, if it fits anywhere.
+		 *
+		 * @return true if the route changed
+		 */
+		private boolean insertLeftOut() {
+			boolean changed = false;
+			for (int node : p.byEarliest) {
+				if (placed[node] || p.latest[node] < 0)
+					continue;
+				if (System.nanoTime() >= deadline)
+					break;
+
+				int bestPos = -1;
+				long bestCost = NONE;
+				int first = Math.max(0, firstStartingAfter(p.earliest[node])
+						- INSERTION_BACKTRACK);
+				for (int pos = first; pos <= size; pos++) {
+					if (pos > 0 && start[pos - 1] > p.latest[node])
+						break;
+					long cost = insertionCost(node, pos);
+					if (cost < bestCost) {
+						bestCost = cost;
+						bestPos = pos;
+					}
+				}
+				if (bestPos >= 0) {
+					insert(node, bestPos);
+					changed = true;
+				}
+			}
+			return changed;
+		}
+
+		/**
+		 * @return the slewing added by inserting the node before position
+		 *         pos, or NONE if it or a node after it would miss its window
+		 */
+		private long insertionCost(int node, int pos) {
+			int previous = pos == 0 ? -1 : order[pos - 1];
+			long s = Math.max(p.earliest[node], endBefore(pos)
+					+ slew(previous, node));
+			if (s > p.latest[node])
+				return NONE;
+			long cost = slew(previous, node);
+			if (pos == size)
+				return cost;
+			cost += slew(node, order[pos]) - slew(previous, order[pos]);
+
+			previous = node;
+			long previousEnd = s + p.durations[node];
+			for (int q = pos; q < size; q++) {
+				int next = order[q];
+				long nextStart = Math.max(p.earliest[next], previousEnd
+						+ slew(previous, next));
+				if (nextStart > p.latest[next])
+					return NONE;
+				if (nextStart == start[q])
+					break;
+				previous = next;
+				previousEnd = nextStart + p.durations[next];
+			}
+			return cost;
+		}
+
+		private void insert(int node, int pos) {
+			System.arraycopy(order, pos, order, pos + 1, size - pos);
+			System.arraycopy(start, pos, start, pos + 1, size - pos);
+			order[pos] = node;
+			placed[node] = true;
+			size++;
+
+			// Time the new node and the ones it pushes back
+			int previous = pos == 0 ? -1 : order[pos - 1];
+			long previousEnd = endBefore(pos);
+			for (int q = pos; q < size; q++) {
+				int next = order[q];
+				long s = Math.max(p.earliest[next], previousEnd
+						+ slew(previous, next));
+				if (q > pos && s == start[q])
+					break;
+				start[q] = s;
+				previous = next;
+				previousEnd = s + p.durations[next];
+			}
+		}
+
+		/**
+		 * @return the first position that starts after the given time, or
+		 *         size if there is none
+		 */
+		private int firstStartingAfter(long time) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (start[middle] <= time)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+
+		/**
+		 * @return when the node before position pos ends, or 0 for the first
+		 */
+		private long endBefore(int pos) {
+			if (pos == 0)
+				return 0;
+			return start[pos - 1] + p.durations[order[pos - 1]];
+		}
+
+		/**
+		 * @return the time in ms to slew between two nodes, from the start
+		 *         orientation if from is -1
+		 */
+		private long slew(int from, int to) {
+			if (from >= 0)
+				return motion.estimateSlew(p.azimuths[from],
+						p.elevations[from], p.azimuths[to], p.elevations[to]);
+			if (Double.isNaN(p.startAzimuth))
+				return motion.getMaxSlew();
+			return motion.estimateSlew(p.startAzimuth, p.startElevation,
+					p.azimuths[to], p.elevations[to]);
+		}
+
+	}
+
+}
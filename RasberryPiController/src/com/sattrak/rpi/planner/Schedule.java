@@ -0,0 +1,76 @@
+package com.sattrak.rpi.planner;
+
+import java.util.List;
+
+import com.sattrak.rpi.TaskStore;
+
+/**
+ * The result of a PlanOptimizer: the observations it fitted in, as a plan of
+ * tasks in time order, and the ones it couldn't.
+ */
+public class Schedule {
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final TaskStore plan;
+	private final List<Observation> unscheduled;
+	private final long totalSlew;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * @param plan
+	 *            the scheduled tasks
+	 * @param unscheduled
+	 *            the observations left out
+	 * @param totalSlew
+	 *            the estimated time spent slewing, in ms
+	 */
+	public Schedule(TaskStore plan, List<Observation> unscheduled,
+			long totalSlew) {
+		this.plan = plan;
+		this.unscheduled = unscheduled;
+		this.totalSlew = totalSlew;
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	/**
+	 * @return the scheduled tasks in time order, ready for
+	 *         Controller.addPlan
+	 */
+	public TaskStore getPlan() {
+		return plan;
+	}
+
+	/**
+	 * @return the observations that didn't fit
+	 */
+	public List<Observation> getUnscheduled() {
+		return unscheduled;
+	}
+
+	/**
+	 * @return the estimated time spent slewing, in ms
+	 */
+	public long getTotalSlew() {
+		return totalSlew;
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	public String toString() {
+		return "Scheduled: " + plan.size() + "\nUnscheduled: "
+				+ unscheduled.size() + "\nTotal Slew: " + totalSlew + " ms";
+	}
+
+}
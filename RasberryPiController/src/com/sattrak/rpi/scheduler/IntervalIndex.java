@@ -0,0 +1,361 @@
+package com.sattrak.rpi.scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.sattrak.rpi.Task;
+import com.sattrak.rpi.TaskStore;
+
+/**
+ * An interval tree of the time the mount is busy, from the start of each
+ * task to the end of its exposure. It answers whether a new task overlaps
+ * any existing one in O(log n + k) for k overlaps, and finds the next free
+ * window of a given length.
+ * 
+ * The tree is a treap ordered by start time, where each node also holds the
+ * latest end in its subtree so whole subtrees that finish before a query can
+ * be skipped. A TaskStore plan is held as one node spanning all its rows and
+ * searched by binary search within, so a plan of millions of tasks costs one
+ * node. The rows of a plan must not overlap each other, and rows cancelled in
+ * the plan are passed over.
+ * 
+ * Times are in ns since the epoch and intervals are half open. The index is
+ * not thread-safe.
+ */
+public class IntervalIndex {
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final Random priorities;
+	private Node root;
+	private int size;
+
+	// Distinguishes plan nodes that start at the same time; counts down
+	// from -1 so it never collides with a task ID
+	private long nextPlanKey = -1;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public IntervalIndex() {
+		priorities = new Random();
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	/**
+	 * @return the number of tasks and plans in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Add the interval of a task. The task must have an ID, which is how it
+	 * is removed again.
+	 */
+	public void add(Task task) {
+		root = insert(root, new Node(task.getEpochNanos(), endOf(task),
+				task.getId(), task, null));
+		size++;
+	}
+
+	/**
+	 * Add the intervals of every task in a sorted plan.
+	 * 
+	 * @param plan
+	 *            a sorted, non-empty plan whose rows don't overlap
+	 */
+	public void add(TaskStore plan) {
+		int last = plan.size() - 1;
+		root = insert(root, new Node(plan.getEpochNanos(0), endOf(plan, last),
+				nextPlanKey--, null, plan));
+		size++;
+	}
+
+	/**
+	 * Remove the interval of a task added earlier.
+	 * 
+	 * @return true if the task was in the index
+	 */
+	public boolean remove(Task task) {
+		int before = size;
+		root = remove(root, task.getEpochNanos(), task.getId());
+		return size < before;
+	}
+
+	/**
+	 * Remove every task and plan that ends at or before the given time,
+	 * starting from the earliest. Stops at the first that is still live, so a
+	 * finished task that starts after it is left for a later call.
+	 * 
+	 * @param time
+	 *            the time in ns since the epoch, usually now
+	 */
+	public void prune(long time) {
+		while (root != null) {
+			Node first = root;
+			while (first.left != null)
+				first = first.left;
+			if (first.end > time)
+				return;
+			root = remove(root, first.start, first.key);
+		}
+	}
+
+	/**
+	 * @return true if anything in the index overlaps [start, end)
+	 */
+	public boolean overlaps(long start, long end) {
+		return !findOverlaps(start, end, 1).isEmpty();
+	}
+
+	/**
+	 * Find the tasks that overlap [start, end).
+	 * 
+	 * @param start
+	 *            the start of the interval in ns since the epoch
+	 * @param end
+	 *            the end of the interval in ns since the epoch
+	 * @param limit
+	 *            the most tasks to return
+	 * @return the overlapping tasks in start order; tasks of plans are views
+	 *         of their rows
+	 */
+	public List<Task> findOverlaps(long start, long end, int limit) {
+		List<Task> overlaps = new ArrayList<Task>();
+		collect(root, start, end, limit, overlaps);
+		return overlaps;
+	}
+
+	/**
+	 * Find the earliest time at or after from at which nothing in the index
+	 * overlaps a window of the given length.
+	 * 
+	 * @param from
+	 *            the earliest start in ns since the epoch
+	 * @param length
+	 *            the length of the window in ns
+	 * @return the start of the window in ns since the epoch
+	 */
+	public long findFreeWindow(long from, long length) {
+		long start = from;
+		long end;
+		while ((end = latestOverlapEnd(root, start, start + length)) > start)
+			start = end;
+		return start;
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * @return the end of a task's exposure in ns since the epoch
+	 */
+	private static long endOf(Task task) {
+		return task.getEpochNanos()
+				+ TimeUnit.MILLISECONDS.toNanos(task.getDuration());
+	}
+
+	private static long endOf(TaskStore plan, int row) {
+		return plan.getEpochNanos(row)
+				+ TimeUnit.MILLISECONDS.toNanos(plan.getDuration(row));
+	}
+
+	/**
+	 * Report the nodes under node that overlap [start, end), in start order.
+	 */
+	private void collect(Node node, long start, long end, int limit,
+			List<Task> overlaps) {
+		if (node == null || node.maxEnd <= start || overlaps.size() >= limit)
+			return;
+		collect(node.left, start, end, limit, overlaps);
+		// Everything to the right starts at or after this node
+		if (node.start >= end)
+			return;
+		if (node.end > start) {
+			if (node.plan == null) {
+				if (overlaps.size() < limit)
+					overlaps.add(node.task);
+			} else {
+				TaskStore plan = node.plan;
+				int row = firstOverlappingRow(plan, start);
+				for (; row < plan.size() && plan.getEpochNanos(row) < end
+						&& overlaps.size() < limit; row++) {
+					if (!plan.isCancelled(row))
+						overlaps.add(plan.get(row));
+				}
+			}
+		}
+		collect(node.right, start, end, limit, overlaps);
+	}
+
+	/**
+	 * @return the latest end of anything under node that overlaps [start,
+	 *         end), or Long.MIN_VALUE if nothing does
+	 */
+	private long latestOverlapEnd(Node node, long start, long end) {
+		if (node == null || node.maxEnd <= start)
+			return Long.MIN_VALUE;
+		long latest = latestOverlapEnd(node.left, start, end);
+		if (node.start >= end)
+			return latest;
+		if (node.end > start) {
+			if (node.plan == null) {
+				latest = Math.max(latest, node.end);
+			} else {
+				// Rows don't overlap, so the last one starting before end
+				// that wasn't cancelled ends latest, if it overlaps at all
+				TaskStore plan = node.plan;
+				int row = plan.firstRowAtOrAfter(end) - 1;
+				while (row >= 0 && plan.isCancelled(row)
+						&& endOf(plan, row) > start)
+					row--;
+				if (row >= 0 && !plan.isCancelled(row)
+						&& endOf(plan, row) > start)
+					latest = Math.max(latest, endOf(plan, row));
+			}
+		}
+		return Math.max(latest, latestOverlapEnd(node.right, start, end));
+	}
+
+	/**
+	 * @return the first row of a plan that ends after the given time; since
+	 *         rows don't overlap, only the row before the first to start at
+	 *         or after it can
+	 */
+	private static int firstOverlappingRow(TaskStore plan, long start) {
+		int row = plan.firstRowAtOrAfter(start);
+		if (row > 0 && endOf(plan, row - 1) > start)
+			row--;
+		return row;
+	}
+
+	private Node insert(Node node, Node added) {
+		if (node == null)
+			return added;
+		if (compare(added.start, added.key, node) < 0) {
+			node.left = insert(node.left, added);
+			if (node.left.priority > node.priority)
+				node = rotateRight(node);
+		} else {
+			node.right = insert(node.right, added);
+			if (node.right.priority > node.priority)
+				node = rotateLeft(node);
+		}
+		node.update();
+		return node;
+	}
+
+	private Node remove(Node node, long start, long key) {
+		if (node == null)
+			return null;
+		int order = compare(start, key, node);
+		if (order < 0) {
+			node.left = remove(node.left, start, key);
+		} else if (order > 0) {
+			node.right = remove(node.right, start, key);
+		} else {
+			size--;
+			return merge(node.left, node.right);
+		}
+		node.update();
+		return node;
+	}
+
+	/**
+	 * Join two treaps where everything in left comes before everything in
+	 * right.
+	 */
+	private Node merge(Node left, Node right) {
+		if (left == null)
+			return right;
+		if (right == null)
+			return left;
+		if (left.priority > right.priority) {
+			left.right = merge(left.right, right);
+			left.update();
+			return left;
+		}
+		right.left = merge(left, right.left);
+		right.update();
+		return right;
+	}
+
+	private static Node rotateRight(Node node) {
+		Node left = node.left;
+		node.left = left.right;
+		left.right = node;
+		node.update();
+		left.update();
+		return left;
+	}
+
+	private static Node rotateLeft(Node node) {
+		Node right = node.right;
+		node.right = right.left;
+		right.left = node;
+		node.update();
+		right.update();
+		return right;
+	}
+
+	private static int compare(long start, long key, Node node) {
+		int order = Long.compare(start, node.start);
+		return order != 0 ? order : Long.compare(key, node.key);
+	}
+
+	// ===============================
+	// NODE
+	// ===============================
+
+	/**
+	 * A task, or a whole plan, in the treap.
+	 */
+	private class Node {
+
+		final long start;
+		final long end;
+		final long key;
+		final Task task;
+		final TaskStore plan;
+		final int priority;
+
+		Node left;
+		Node right;
+		// The latest end of this node and everything under it
+		long maxEnd;
+
+		Node(long start, long end, long key, Task task, TaskStore plan) {
+			this.start = start;
+			this.end = end;
+			this.key = key;
+			this.task = task;
+			this.plan = plan;
+			priority = priorities.nextInt();
+			maxEnd = end;
+		}
+
+		void update() {
+			maxEnd = end;
+			if (left != null)
+				maxEnd = Math.max(maxEnd, left.maxEnd);
+			if (right != null)
+				maxEnd = Math.max(maxEnd, right.maxEnd);
+		}
+
+	}
+
+}
@@ -0,0 +1,144 @@
+package com.sattrak.rpi.scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.sattrak.rpi.Task;
+import com.sattrak.rpi.TaskStore;
+
+/**
+ * Checks that the rows of a plan admitted to a TaskRegistry can be looked up,
+ * cancelled and rescheduled by ID, both while they are still only in the
+ * plan's columns and once the scheduler has taken them into its wheel, and
+ * that a cancelled row frees its time. Exits with status 1 on the first
+ * failed check.
+ *
+ * Usage: PlanCancelTest
+ */
+public class PlanCancelTest {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Row offsets from the start in ms; the last is beyond the scheduler's
+	// lookahead, so it is still only in the plan when cancelled
+	private static final long[] OFFSETS = { 500, 1000, 1500, 2000, 6000 };
+	private static final long DURATION = 100;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final List<Long> fired = new CopyOnWriteArrayList<Long>();
+	private int checks;
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Admit a plan, change it and wait for it to run.
+	 *
+	 * @throws Exception
+	 *             if a task can't be admitted
+	 */
+	public void run() throws Exception {
+		TaskRegistry registry = new TaskRegistry(new TaskHandler() {
+
+			@Override
+			public void taskDue(Task task) {
+				fired.add(task.getId());
+			}
+		});
+		registry.start();
+
+		long start = TimeUnit.MILLISECONDS.toNanos(System
+				.currentTimeMillis());
+		TaskStore plan = new TaskStore();
+		for (int i = OFFSETS.length - 1; i >= 0; i--)
+			plan.add("row " + i, at(start, OFFSETS[i]), DURATION, 0, 0);
+		registry.add(plan);
+
+		long first = plan.getFirstId();
+		check("plan rows are numbered", first != 0);
+		check("row has its ID", registry.getTask(first + 1).getId() == first
+				+ 1);
+		check("plan can't be added twice", rejects(registry, plan));
+
+		// Wait for the near rows to be taken into the wheel
+		Thread.sleep(100);
+		check("cancel row in the wheel", registry.cancel(first + 1));
+		check("cancel it again", !registry.cancel(first + 1));
+		check("cancelled row gone", registry.getTask(first + 1) == null);
+		check("cancel row not yet fed", registry.cancel(first + 4));
+
+		long free = at(start, OFFSETS[1]);
+		check("cancelled row's time is free", registry.findTasks(free,
+				free + TimeUnit.MILLISECONDS.toNanos(DURATION)).isEmpty());
+		Task filler = new Task("filler", free, DURATION, 0, 0);
+		registry.add(filler);
+		check("task added twice refused", rejects(registry, filler));
+
+		ScheduledTask moved = registry.reschedule(first + 2, at(start, 2500));
+		check("reschedule row", moved != null
+				&& moved.getTask().getId() == first + 2);
+		check("moved row waiting", registry.get(first + 2) == moved);
+
+		Thread.sleep(OFFSETS[OFFSETS.length - 1] + 500);
+		registry.stop();
+
+		List<Long> expected = new ArrayList<Long>();
+		expected.add(first);
+		expected.add(filler.getId());
+		expected.add(first + 3);
+		expected.add(first + 2);
+		check("fired " + fired + ", expected " + expected,
+				fired.equals(expected));
+		System.out.println("All " + checks + " checks passed");
+	}
+
+	public static void main(String[] args) throws Exception {
+		new PlanCancelTest().run();
+		System.exit(0);
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	private void check(String what, boolean passed) {
+		checks++;
+		if (passed)
+			return;
+		System.out.println("FAILED: " + what);
+		System.exit(1);
+	}
+
+	private static boolean rejects(TaskRegistry registry, Task task)
+			throws Exception {
+		try {
+			registry.add(task);
+			return false;
+		} catch (IllegalArgumentException e) {
+			return true;
+		}
+	}
+
+	private static boolean rejects(TaskRegistry registry, TaskStore plan)
+			throws Exception {
+		try {
+			registry.add(plan);
+			return false;
+		} catch (IllegalArgumentException e) {
+			return true;
+		}
+	}
+
+	private static long at(long start, long offset) {
+		return start + TimeUnit.MILLISECONDS.toNanos(offset);
+	}
+
+}
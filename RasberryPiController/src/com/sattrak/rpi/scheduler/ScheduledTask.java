@@ -0,0 +1,126 @@
+package com.sattrak.rpi.scheduler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sattrak.rpi.Task;
+import com.sattrak.rpi.TaskStore;
+
+/**
+ * A task waiting in a TimingWheelScheduler, which can be used to cancel it.
+ */
+public class ScheduledTask {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	static final int WAITING = 0;
+	static final int FIRED = 1;
+	static final int CANCELLED = 2;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final TimingWheelScheduler scheduler;
+	private final Task task;
+	private final AtomicInteger state;
+
+	// The plan and row the task was taken from, or null and -1
+	private final TaskStore plan;
+	private final int row;
+
+	// System.nanoTime() at which the task fires, and the tick it falls in
+	final long deadline;
+	final long deadlineTick;
+
+	// Position in the wheel, only touched by the scheduler's thread. level is
+	// -1 while the task is not in a slot.
+	ScheduledTask previous;
+	ScheduledTask next;
+	int level = -1;
+	int slot;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	ScheduledTask(TimingWheelScheduler scheduler, Task task, long deadline,
+			long deadlineTick) {
+		this(scheduler, task, deadline, deadlineTick, null, -1);
+	}
+
+	/**
+	 * A task taken from a row of a plan, which fires only if the row hasn't
+	 * been cancelled in the plan.
+	 */
+	ScheduledTask(TimingWheelScheduler scheduler, Task task, long deadline,
+			long deadlineTick, TaskStore plan, int row) {
+		this.scheduler = scheduler;
+		this.task = task;
+		this.deadline = deadline;
+		this.deadlineTick = deadlineTick;
+		this.plan = plan;
+		this.row = row;
+		state = new AtomicInteger(WAITING);
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public Task getTask() {
+		return task;
+	}
+
+	/**
+	 * @return the System.nanoTime() at which the task is due
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public boolean isCancelled() {
+		return state.get() == CANCELLED;
+	}
+
+	public boolean isFired() {
+		return state.get() == FIRED;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Stop the task from firing. Takes constant time and doesn't wait for the
+	 * scheduler's thread.
+	 * 
+	 * @return true if the task was cancelled, or false if it had already
+	 *         fired or been cancelled
+	 */
+	public boolean cancel() {
+		if (!state.compareAndSet(WAITING, CANCELLED))
+			return false;
+		scheduler.cancelled(this);
+		return true;
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * Claim the task for firing, unless it, or its row of a plan, has been
+	 * cancelled.
+	 */
+	boolean fire() {
+		if (!state.compareAndSet(WAITING, FIRED))
+			return false;
+		if (plan == null || plan.fire(row))
+			return true;
+		state.set(CANCELLED);
+		return false;
+	}
+
+}
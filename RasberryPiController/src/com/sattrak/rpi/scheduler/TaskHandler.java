@@ -0,0 +1,22 @@
+package com.sattrak.rpi.scheduler;
+
+import com.sattrak.rpi.Task;
+
+/**
+ * Receives tasks from a TimingWheelScheduler as they fall due.
+ */
+public interface TaskHandler {
+
+	/**
+	 * Called on the scheduler's thread at the task's time. Every task due
+	 * after this one waits for it to return, so anything slow should be
+	 * handed off to another thread.
+	 * 
+	 * @param task
+	 *            the task that is due
+	 * @throws Exception
+	 *             if the task failed; the scheduler reports it and carries on
+	 */
+	void taskDue(Task task) throws Exception;
+
+}
@@ -0,0 +1,632 @@
+package com.sattrak.rpi.scheduler;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sattrak.rpi.Task;
+import com.sattrak.rpi.TaskStore;
+import com.sattrak.rpi.motion.MotionModel;
+import com.sattrak.rpi.util.FormatUtil;
+
+/**
+ * Gives scheduled tasks stable IDs so they can be looked up, cancelled and
+ * rescheduled. Tasks are indexed by ID in a hash map and by time in a skip
+ * list, so every operation is O(log n) or better and none of them takes a
+ * lock; the scheduler's thread is never held up by a change to the plan.
+ * Each row of an admitted TaskStore plan is given an ID too, from a block
+ * reserved for the plan, so it can be looked up, cancelled and rescheduled
+ * the same way without taking it out of the plan's columns.
+ * 
+ * The registry also admits tasks: one whose exposure would overlap another
+ * task's, or a plan's, is refused with a ConflictException naming what it
+ * clashes with. Admission goes through an IntervalIndex under its own lock,
+ * which the scheduler's thread never takes. Given a MotionModel, it also
+ * refuses a task that leaves too little time to slew to it from the task
+ * before, or from it to the task after.
+ * 
+ * The registry owns a TimingWheelScheduler and passes each task on to the
+ * given handler when it is due. With a MotionModel, tasks are handed on the
+ * longest possible slew early, so there is time to point the mount first.
+ */
+public class TaskRegistry {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	private static final Comparator<ScheduledTask> BY_TIME =
+			new Comparator<ScheduledTask>() {
+
+		@Override
+		public int compare(ScheduledTask a, ScheduledTask b) {
+			int order = Long.compare(a.getTask().getEpochNanos(), b.getTask()
+					.getEpochNanos());
+			if (order == 0)
+				order = Long.compare(a.getTask().getId(), b.getTask().getId());
+			return order;
+		}
+	};
+
+	// Most conflicts listed in a ConflictException
+	private static final int MAX_CONFLICTS = 10;
+
+	private static final String SLEW_CONFLICT =
+			"leaves too little time to slew to or from";
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final TimingWheelScheduler scheduler;
+	private final TaskHandler handler;
+	private final MotionModel motion;
+	private final AtomicLong nextId;
+	private final ConcurrentHashMap<Long, ScheduledTask> byId;
+	private final ConcurrentSkipListSet<ScheduledTask> byTime;
+
+	// Admitted plans by the ID of their first row
+	private final ConcurrentSkipListMap<Long, TaskStore> plans;
+
+	// Busy time of admitted tasks and plans, guarded by itself
+	private final IntervalIndex intervals;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * @param handler
+	 *            receives each task when it is due, on the scheduler's thread
+	 */
+	public TaskRegistry(TaskHandler handler) {
+		this(handler, null);
+	}
+
+	/**
+	 * @param handler
+	 *            receives each task the longest possible slew before it is
+	 *            due, on the scheduler's thread
+	 * @param motion
+	 *            the model of how long the mount takes to move, or null to
+	 *            ignore slewing
+	 */
+	public TaskRegistry(TaskHandler handler, MotionModel motion) {
+		this.handler = handler;
+		this.motion = motion;
+		nextId = new AtomicLong(1);
+		byId = new ConcurrentHashMap<Long, ScheduledTask>();
+		byTime = new ConcurrentSkipListSet<ScheduledTask>(BY_TIME);
+		plans = new ConcurrentSkipListMap<Long, TaskStore>();
+		intervals = new IntervalIndex();
+		scheduler = new TimingWheelScheduler(new TaskHandler() {
+
+			@Override
+			public void taskDue(Task task) throws Exception {
+				fired(task);
+			}
+		});
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	/**
+	 * @return the scheduler the registry schedules on, which can also run
+	 *         TaskStore plans
+	 */
+	public TimingWheelScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * @param id
+	 *            the ID of a task
+	 * @return the task, or null if there is no waiting task with the ID
+	 */
+	public ScheduledTask get(long id) {
+		return byId.get(id);
+	}
+
+	/**
+	 * @param id
+	 *            the ID of a task
+	 * @return the waiting task or row of a plan with the ID, or null if
+	 *         there is none or it has fired or been cancelled
+	 */
+	public Task getTask(long id) {
+		ScheduledTask scheduled = byId.get(id);
+		if (scheduled != null)
+			return scheduled.getTask();
+		TaskStore plan = planOf(id);
+		if (plan == null)
+			return null;
+		return plan.get((int) (id - plan.getFirstId()));
+	}
+
+	/**
+	 * @return the waiting tasks in time order, not counting the rows of plans
+	 */
+	public List<ScheduledTask> getTasks() {
+		return new ArrayList<ScheduledTask>(byTime);
+	}
+
+	/**
+	 * @return the next waiting task, or null if there are none
+	 */
+	public ScheduledTask getNext() {
+		try {
+			return byTime.first();
+		} catch (NoSuchElementException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the number of waiting tasks
+	 */
+	public int size() {
+		return byId.size();
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	public void start() {
+		scheduler.start();
+	}
+
+	public void stop() {
+		scheduler.stop();
+	}
+
+	/**
+	 * Give the task an ID and schedule it for its date and time.
+	 * 
+	 * @param task
+	 *            the task, which must not be changed afterwards
+	 * @return the scheduled task
+	 * @throws ConflictException
+	 *             if the task's exposure overlaps a waiting task's, or it is
+	 *             too close to one to slew between them
+	 * @throws IllegalArgumentException
+	 *             if the task already has an ID, such as from being added
+	 *             before
+	 */
+	public ScheduledTask add(Task task) throws ConflictException {
+		if (task.getId() != 0)
+			throw new IllegalArgumentException("Task already added as "
+					+ task.getId());
+		synchronized (intervals) {
+			checkConflicts(task, 0);
+			task.setId(nextId.getAndIncrement());
+			intervals.add(task);
+			return register(task);
+		}
+	}
+
+	/**
+	 * Schedule every task in a plan, sorting it first if need be, and give
+	 * the rows IDs from the plan's first ID on.
+	 * 
+	 * @param plan
+	 *            the plan, which must not be changed afterwards
+	 * @throws ConflictException
+	 *             if two tasks in the plan overlap or are too close to slew
+	 *             between, or one is in conflict with a waiting task or plan
+	 * @throws IllegalArgumentException
+	 *             if the plan has already been added
+	 * @see TimingWheelScheduler#schedule(TaskStore, long)
+	 * @see TaskStore#getFirstId()
+	 */
+	public void add(TaskStore plan) throws ConflictException {
+		if (plan.size() == 0)
+			return;
+		if (plan.getFirstId() != 0)
+			throw new IllegalArgumentException("Plan already added from "
+					+ plan.getFirstId());
+		plan.sort();
+		synchronized (intervals) {
+			prune();
+			Task previous = null;
+			for (int row = 0; row < plan.size(); row++) {
+				Task task = plan.get(row);
+				if (previous != null) {
+					List<Task> conflicts = new ArrayList<Task>();
+					conflicts.add(previous);
+					if (task.getEpochNanos() < endOf(previous))
+						throw new ConflictException(task, conflicts);
+					if (task.getEpochNanos() - endOf(previous) < slew(
+							previous, task))
+						throw new ConflictException(task, conflicts,
+								SLEW_CONFLICT);
+				}
+				checkConflicts(task, 0);
+				previous = task;
+			}
+			long firstId = nextId.getAndAdd(plan.size());
+			plan.setFirstId(firstId);
+			plans.put(firstId, plan);
+			intervals.add(plan);
+			scheduler.schedule(plan, getLead());
+		}
+	}
+
+	/**
+	 * Cancel a waiting task or row of a plan.
+	 * 
+	 * @param id
+	 *            the ID of the task
+	 * @return true if the task was cancelled, or false if there is no
+	 *         waiting task with the ID or it fired first
+	 */
+	public boolean cancel(long id) {
+		ScheduledTask scheduled = byId.get(id);
+		if (scheduled == null) {
+			// The wheel and the interval index pass over cancelled rows
+			TaskStore plan = planOf(id);
+			return plan != null
+					&& plan.cancel((int) (id - plan.getFirstId()));
+		}
+		if (!scheduled.cancel())
+			return false;
+		unregister(scheduled);
+		synchronized (intervals) {
+			intervals.remove(scheduled.getTask());
+		}
+		return true;
+	}
+
+	/**
+	 * Move a waiting task to a new time, keeping its ID. A row of a plan is
+	 * cancelled in the plan and moved as a task of its own.
+	 * 
+	 * @param id
+	 *            the ID of the task
+	 * @param epochNanos
+	 *            the new time of the task in ns since the epoch
+	 * @return the task at its new time, or null if there is no waiting task
+	 *         with the ID or it fired first
+	 * @throws ConflictException
+	 *             if the task would be in conflict with another waiting task
+	 *             at its new time; it is left where it was
+	 */
+	public ScheduledTask reschedule(long id, long epochNanos)
+			throws ConflictException {
+		synchronized (intervals) {
+			ScheduledTask scheduled = byId.get(id);
+			if (scheduled == null)
+				return reschedulePlanTask(id, epochNanos);
+			// The old task may still be in the hands of the scheduler, so
+			// move a copy
+			Task old = scheduled.getTask();
+			Task task = new Task(old.getTitle(), epochNanos, old.getDuration(),
+					old.getAzimuth(), old.getElevation());
+			task.setId(id);
+			checkConflicts(task, id);
+			if (!scheduled.cancel())
+				return null;
+			unregister(scheduled);
+			intervals.remove(old);
+			intervals.add(task);
+			return register(task);
+		}
+	}
+
+	/**
+	 * Find every admitted task, including the tasks of plans, whose exposure
+	 * overlaps the given interval.
+	 * 
+	 * @param start
+	 *            the start of the interval in ns since the epoch
+	 * @param end
+	 *            the end of the interval in ns since the epoch
+	 * @return the tasks in start order; tasks of plans are views of their
+	 *         rows
+	 */
+	public List<Task> findTasks(long start, long end) {
+		synchronized (intervals) {
+			return intervals.findOverlaps(start, end, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Find the earliest time at or after the given one that a task of the
+	 * given duration could be added without overlapping another.
+	 * 
+	 * @param epochNanos
+	 *            the earliest time in ns since the epoch
+	 * @param duration
+	 *            the exposure time in ms
+	 * @return the time in ns since the epoch
+	 */
+	public long findFreeTime(long epochNanos, long duration) {
+		synchronized (intervals) {
+			return intervals.findFreeWindow(epochNanos,
+					TimeUnit.MILLISECONDS.toNanos(duration));
+		}
+	}
+
+	/**
+	 * Find the earliest time at or after the given one that a task of the
+	 * given duration and orientation could be added without a conflict,
+	 * leaving time to slew to it and away again.
+	 * 
+	 * @param epochNanos
+	 *            the earliest time in ns since the epoch
+	 * @param duration
+	 *            the exposure time in ms
+	 * @param azimuth
+	 *            the azimuth of the task in degrees
+	 * @param elevation
+	 *            the elevation of the task in degrees
+	 * @return the time in ns since the epoch
+	 */
+	public long findFreeTime(long epochNanos, long duration, double azimuth,
+			double elevation) {
+		long length = TimeUnit.MILLISECONDS.toNanos(duration);
+		long start = epochNanos;
+		synchronized (intervals) {
+			while (true) {
+				start = intervals.findFreeWindow(start, length);
+				Task task = new Task("", start, duration, azimuth, elevation);
+				List<Task> close = findSlewConflicts(task, 0);
+				if (close.isEmpty())
+					return start;
+				// Go past the last neighbour that's too close
+				Task last = close.get(close.size() - 1);
+				if (last.getEpochNanos() < start)
+					start = endOf(last) + slew(last, task);
+				else
+					start = endOf(last);
+			}
+		}
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * Move a row of a plan to a new time as a task of its own. Called holding
+	 * the intervals lock.
+	 * 
+	 * @return the task at its new time, or null if there is no row with the
+	 *         ID waiting
+	 */
+	private ScheduledTask reschedulePlanTask(long id, long epochNanos)
+			throws ConflictException {
+		TaskStore plan = planOf(id);
+		if (plan == null)
+			return null;
+		int row = (int) (id - plan.getFirstId());
+		Task task = new Task(plan.getTitle(row), epochNanos,
+				plan.getDuration(row), plan.getAzimuth(row),
+				plan.getElevation(row));
+		task.setId(id);
+		checkConflicts(task, id);
+		if (!plan.cancel(row))
+			return null;
+		intervals.add(task);
+		return register(task);
+	}
+
+	/**
+	 * @return the admitted plan holding a row with the given ID that has
+	 *         neither fired nor been cancelled, and isn't yet past, or null
+	 */
+	private TaskStore planOf(long id) {
+		Map.Entry<Long, TaskStore> entry = plans.floorEntry(id);
+		if (entry == null)
+			return null;
+		TaskStore plan = entry.getValue();
+		long row = id - entry.getKey();
+		if (row >= plan.size() || !plan.isPending((int) row)
+				|| plan.getEpochNanos((int) row) <= now())
+			return null;
+		return plan;
+	}
+
+	/**
+	 * Drop the tasks and plans that are over. Called holding the intervals
+	 * lock.
+	 */
+	private void prune() {
+		long now = now();
+		intervals.prune(now);
+		Iterator<TaskStore> admitted = plans.values().iterator();
+		while (admitted.hasNext()) {
+			TaskStore plan = admitted.next();
+			int last = plan.size() - 1;
+			if (plan.getEpochNanos(last) + TimeUnit.MILLISECONDS.toNanos(
+					plan.getDuration(last)) <= now)
+				admitted.remove();
+		}
+	}
+
+	/**
+	 * Throw a ConflictException if the task's exposure overlaps anything but
+	 * the task with the given ID, or is too close to slew from the task
+	 * before or to the task after. Called holding the intervals lock.
+	 */
+	private void checkConflicts(Task task, long ownId)
+			throws ConflictException {
+		prune();
+		long start = task.getEpochNanos();
+		List<Task> conflicts = intervals.findOverlaps(start, endOf(task),
+				MAX_CONFLICTS + 1);
+		for (int i = conflicts.size() - 1; i >= 0; i--) {
+			if (ownId != 0 && conflicts.get(i).getId() == ownId)
+				conflicts.remove(i);
+		}
+		if (!conflicts.isEmpty())
+			throw new ConflictException(task, conflicts);
+
+		conflicts = findSlewConflicts(task, ownId);
+		if (!conflicts.isEmpty())
+			throw new ConflictException(task, conflicts, SLEW_CONFLICT);
+	}
+
+	/**
+	 * Find the nearest tasks before and after the given one that don't
+	 * overlap it, and return those too close to slew between. Nothing can be
+	 * too close if it is more than the longest possible slew away. Called
+	 * holding the intervals lock.
+	 * 
+	 * @return the neighbours too close, in time order
+	 */
+	private List<Task> findSlewConflicts(Task task, long ownId) {
+		List<Task> conflicts = new ArrayList<Task>();
+		if (motion == null)
+			return conflicts;
+		long start = task.getEpochNanos();
+		long end = endOf(task);
+		long lead = getLead();
+		Task before = null;
+		Task after = null;
+		for (Task other : intervals.findOverlaps(start - lead, end + lead,
+				Integer.MAX_VALUE)) {
+			if (ownId != 0 && other.getId() == ownId)
+				continue;
+			if (endOf(other) <= start
+					&& (before == null || endOf(other) > endOf(before)))
+				before = other;
+			else if (other.getEpochNanos() >= end && after == null)
+				after = other;
+		}
+		if (before != null && start - endOf(before) < slew(before, task))
+			conflicts.add(before);
+		if (after != null && after.getEpochNanos() - end < slew(task, after))
+			conflicts.add(after);
+		return conflicts;
+	}
+
+	/**
+	 * @return the time to slew between two tasks in ns
+	 */
+	private long slew(Task from, Task to) {
+		if (motion == null)
+			return 0;
+		return TimeUnit.MILLISECONDS.toNanos(motion.estimateSlew(
+				from.getAzimuth(), from.getElevation(), to.getAzimuth(),
+				to.getElevation()));
+	}
+
+	/**
+	 * @return how early to hand tasks on, in ns
+	 */
+	private long getLead() {
+		if (motion == null)
+			return 0;
+		return TimeUnit.MILLISECONDS.toNanos(motion.getMaxSlew());
+	}
+
+	private static long endOf(Task task) {
+		return task.getEpochNanos()
+				+ TimeUnit.MILLISECONDS.toNanos(task.getDuration());
+	}
+
+	private static long now() {
+		return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+	}
+
+	private ScheduledTask register(Task task) {
+		long delay = task.getEpochNanos() - now() - getLead();
+		ScheduledTask scheduled = scheduler.schedule(task, System.nanoTime()
+				+ delay);
+		byId.put(task.getId(), scheduled);
+		byTime.add(scheduled);
+		// It may already have fired if it was due at once
+		if (scheduled.isFired())
+			unregister(scheduled);
+		return scheduled;
+	}
+
+	private void unregister(ScheduledTask scheduled) {
+		byId.remove(scheduled.getTask().getId(), scheduled);
+		byTime.remove(scheduled);
+	}
+
+	/**
+	 * Drop a task from the indexes as it fires, then hand it on.
+	 */
+	private void fired(Task task) throws Exception {
+		ScheduledTask scheduled = byId.get(task.getId());
+		if (scheduled != null && scheduled.getTask() == task)
+			unregister(scheduled);
+		handler.taskDue(task);
+	}
+
+	// ===============================
+	// CUSTOM EXCEPTIONS
+	// ===============================
+
+	/**
+	 * Thrown when a task can't be admitted because its exposure overlaps
+	 * another task's, or is too close to another to slew between them.
+	 */
+	public static class ConflictException extends Exception {
+
+		private static final long serialVersionUID = -3482910557236120674L;
+
+		private final Task task;
+		private final List<Task> conflicts;
+
+		public ConflictException(Task task, List<Task> conflicts) {
+			this(task, conflicts, "overlaps");
+		}
+
+		/**
+		 * @param reason
+		 *            how the task clashes with the others, such as "overlaps"
+		 */
+		public ConflictException(Task task, List<Task> conflicts,
+				String reason) {
+			super(describe(task, conflicts, reason));
+			this.task = task;
+			this.conflicts = conflicts;
+		}
+
+		/**
+		 * @return the task that was refused
+		 */
+		public Task getTask() {
+			return task;
+		}
+
+		/**
+		 * @return the tasks it clashes with (up to a limit), in time order
+		 */
+		public List<Task> getConflicts() {
+			return conflicts;
+		}
+
+		private static String describe(Task task, List<Task> conflicts,
+				String reason) {
+			StringBuilder message = new StringBuilder();
+			message.append(task.getTitle()).append(" at ");
+			message.append(FormatUtil.getTimeString(task.getDateTime()));
+			message.append(" ").append(reason);
+			for (Task conflict : conflicts) {
+				message.append(conflict.getId() != 0 ? " task "
+						+ conflict.getId() : " plan task");
+				String time = FormatUtil.getTimeString(conflict.getDateTime());
+				message.append(" (").append(conflict.getTitle());
+				message.append(" at ").append(time).append(")");
+			}
+			return message.toString();
+		}
+
+	}
+
+}
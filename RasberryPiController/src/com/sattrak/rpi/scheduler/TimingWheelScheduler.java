@@ -0,0 +1,482 @@
+package com.sattrak.rpi.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sattrak.rpi.Task;
+import com.sattrak.rpi.TaskStore;
+
+/**
+ * Runs tasks at their times from a hierarchical timing wheel, so scheduling
+ * and cancelling take constant time however many tasks are waiting.
+ * 
+ * The wheel has LEVELS levels of SLOTS slots each. A slot on level 0 holds
+ * the tasks due in one TICK_NANOS tick, a slot on level 1 the tasks due in
+ * SLOTS ticks, and so on; tasks further away than the top level reaches wait
+ * in its farthest slot. As time reaches a higher level slot its tasks are
+ * cascaded down to the levels below, so a task moves at most LEVELS times.
+ * 
+ * One thread owns the wheel. Other threads hand it new and cancelled tasks
+ * through lock-free queues, which it drains before every tick it handles.
+ * The thread parks until the next tick with something to do, then spins for
+ * the last SPIN_NANOS before each task so it fires well inside a millisecond
+ * of its time.
+ * 
+ * A TaskStore plan is not loaded into the wheel all at once. Its rows are
+ * turned into tasks only as they come within LOOKAHEAD_TICKS, so a plan of
+ * millions of tasks costs the wheel no more than the few seconds due next.
+ */
+public class TimingWheelScheduler {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	public static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+
+	// 64^6 ms is about two years
+	private static final int LEVELS = 6;
+	private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+	// Waking from a park can take tens of microseconds, so stop parking this
+	// long before a task is due and spin the rest of the way
+	private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+	// Most new tasks to insert before handling the next tick, so a bulk load
+	// doesn't hold up tasks that are due
+	private static final int MAX_TRANSFER = 4096;
+
+	// How far ahead plan rows are put in the wheel
+	private static final long LOOKAHEAD_TICKS = SLOTS * SLOTS;
+
+	private static final long IDLE = Long.MAX_VALUE;
+
+	private static final Comparator<ScheduledTask> BY_DEADLINE =
+			new Comparator<ScheduledTask>() {
+
+		@Override
+		public int compare(ScheduledTask a, ScheduledTask b) {
+			return Long.compare(a.deadline, b.deadline);
+		}
+	};
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final TaskHandler handler;
+	private final long startTime;
+
+	// Handed over to the wheel thread
+	private final Queue<ScheduledTask> added;
+	private final Queue<ScheduledTask> cancelled;
+	private final Queue<PlanFeed> addedPlans;
+
+	// Owned by the wheel thread: the heads of each slot's list, the next tick
+	// to handle, the number of tasks in slots, and the tasks being fired
+	private final ScheduledTask[][] wheel;
+	private long currentTick;
+	private int size;
+	private final ArrayList<ScheduledTask> due;
+	private final ArrayList<PlanFeed> plans;
+
+	// The tick the wheel thread is parked until, or IDLE
+	private volatile long wakeTick = IDLE;
+	private volatile boolean running;
+	private volatile Thread wheelThread;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * @param handler
+	 *            receives each task when it is due, on the scheduler's thread
+	 */
+	public TimingWheelScheduler(TaskHandler handler) {
+		this.handler = handler;
+		startTime = System.nanoTime();
+		added = new ConcurrentLinkedQueue<ScheduledTask>();
+		cancelled = new ConcurrentLinkedQueue<ScheduledTask>();
+		addedPlans = new ConcurrentLinkedQueue<PlanFeed>();
+		wheel = new ScheduledTask[LEVELS][SLOTS];
+		due = new ArrayList<ScheduledTask>();
+		plans = new ArrayList<PlanFeed>();
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Start the thread that fires tasks.
+	 */
+	public void start() {
+		running = true;
+		wheelThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				runWheel();
+			}
+		}, "task-scheduler");
+		wheelThread.setDaemon(true);
+		wheelThread.start();
+	}
+
+	/**
+	 * Stop the thread. Tasks that haven't fired never will.
+	 */
+	public void stop() {
+		running = false;
+		if (wheelThread != null)
+			LockSupport.unpark(wheelThread);
+	}
+
+	/**
+	 * Schedule a task for its date and time. A task whose time has passed
+	 * fires at once.
+	 * 
+	 * @param task
+	 *            the task to schedule
+	 * @return the scheduled task, which can be cancelled
+	 */
+	public ScheduledTask schedule(Task task) {
+		long delay = task.getEpochNanos()
+				- TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+		return schedule(task, System.nanoTime() + delay);
+	}
+
+	/**
+	 * Schedule a task for the given time.
+	 * 
+	 * @param task
+	 *            the task to schedule
+	 * @param deadline
+	 *            the System.nanoTime() at which to fire it
+	 * @return the scheduled task, which can be cancelled
+	 */
+	public ScheduledTask schedule(Task task, long deadline) {
+		long deadlineTick = tickOf(deadline);
+		ScheduledTask scheduled = new ScheduledTask(this, task, deadline,
+				deadlineTick);
+		added.add(scheduled);
+		// Wake the wheel thread if it is parked past the new task
+		if (deadlineTick < wakeTick && wheelThread != null)
+			LockSupport.unpark(wheelThread);
+		return scheduled;
+	}
+
+	/**
+	 * Schedule every task in a plan, sorting it first if need be. Rows whose
+	 * time has already passed are skipped. The plan must not be changed
+	 * afterwards.
+	 * 
+	 * @param plan
+	 *            the plan to run
+	 */
+	public void schedule(TaskStore plan) {
+		schedule(plan, 0);
+	}
+
+	/**
+	 * Schedule every task in a plan to fire a fixed time before its date and
+	 * time, sorting it first if need be. Rows whose time has already passed
+	 * are skipped. The plan must not be changed afterwards, but its rows may
+	 * be cancelled with TaskStore.cancel(int) until they fire.
+	 * 
+	 * @param plan
+	 *            the plan to run
+	 * @param lead
+	 *            how long before each task's time to fire it, in ns
+	 */
+	public void schedule(TaskStore plan, long lead) {
+		plan.sort();
+		long epochNanos = TimeUnit.MILLISECONDS.toNanos(System
+				.currentTimeMillis());
+		long nanoTime = System.nanoTime();
+		addedPlans.add(new PlanFeed(plan, plan.firstRowAtOrAfter(epochNanos),
+				epochNanos - nanoTime + lead));
+		if (wheelThread != null)
+			LockSupport.unpark(wheelThread);
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * Queue a cancelled task to be taken out of its slot.
+	 */
+	void cancelled(ScheduledTask scheduled) {
+		cancelled.add(scheduled);
+	}
+
+	/**
+	 * Wheel thread loop: take in new and cancelled tasks, park until the next
+	 * tick with work in it, and handle that tick.
+	 */
+	private void runWheel() {
+		while (running) {
+			transfer();
+			long target = Math.min(size == 0 ? IDLE : nextWorkTick(),
+					nextFeedTick());
+			wakeTick = target;
+			if (target == IDLE || tickStart(target) - SPIN_NANOS
+					- System.nanoTime() > 0) {
+				// Anything added since the transfer may be due sooner
+				if (!added.isEmpty() || !addedPlans.isEmpty())
+					continue;
+				if (target == IDLE) {
+					LockSupport.park(this);
+					continue;
+				}
+				LockSupport.parkNanos(this, tickStart(target) - SPIN_NANOS
+						- System.nanoTime());
+				// Woken early by a sooner task or a stop; look again
+				if (tickStart(target) - SPIN_NANOS - System.nanoTime() > 0)
+					continue;
+			}
+
+			// The ticks before the target have nothing in them at level 0
+			// and cross no level boundary, so they can be skipped
+			transfer();
+			currentTick = Math.min(nextWorkTick(), target);
+			cascade(currentTick);
+			expire(currentTick);
+			currentTick++;
+		}
+	}
+
+	/**
+	 * Insert the plan rows now within reach and up to MAX_TRANSFER newly
+	 * scheduled tasks into the wheel, and remove cancelled tasks.
+	 */
+	private void transfer() {
+		if (size == 0) {
+			// The wheel is empty, so it can jump straight to the present
+			currentTick = Math.max(currentTick, (System.nanoTime() - startTime)
+					/ TICK_NANOS);
+		}
+		PlanFeed plan;
+		while ((plan = addedPlans.poll()) != null)
+			plans.add(plan);
+		feedPlans();
+
+		ScheduledTask scheduled;
+		for (int i = 0; i < MAX_TRANSFER
+				&& (scheduled = added.poll()) != null; i++) {
+			if (!scheduled.isCancelled())
+				insert(scheduled);
+		}
+		while ((scheduled = cancelled.poll()) != null) {
+			if (scheduled.level >= 0)
+				unlink(scheduled);
+		}
+	}
+
+	/**
+	 * Insert the rows of each plan that fall within LOOKAHEAD_TICKS, and drop
+	 * plans that have run out.
+	 */
+	private void feedPlans() {
+		long horizon = currentTick + LOOKAHEAD_TICKS;
+		for (int i = plans.size() - 1; i >= 0; i--) {
+			PlanFeed plan = plans.get(i);
+			while (plan.hasNext() && plan.nextTick() < horizon)
+				insert(plan.next());
+			if (!plan.hasNext())
+				plans.remove(i);
+		}
+	}
+
+	/**
+	 * @return the tick at which the next plan rows must be fed in, or IDLE if
+	 *         there are no plans
+	 */
+	private long nextFeedTick() {
+		long tick = IDLE;
+		for (PlanFeed plan : plans)
+			tick = Math.min(tick, plan.nextTick() - LOOKAHEAD_TICKS);
+		return tick == IDLE ? IDLE : Math.max(tick, currentTick);
+	}
+
+	/**
+	 * @return the first tick from the current one that has tasks at level 0
+	 *         or starts a new level 1 slot (and so may need a cascade)
+	 */
+	private long nextWorkTick() {
+		if ((currentTick & SLOT_MASK) == 0)
+			return currentTick;
+		long boundary = (currentTick | SLOT_MASK) + 1;
+		for (long tick = currentTick; tick < boundary; tick++) {
+			if (wheel[0][(int) tick & SLOT_MASK] != null)
+				return tick;
+		}
+		return boundary;
+	}
+
+	/**
+	 * Move the tasks in the higher level slots that start at the given tick
+	 * down to the levels below.
+	 */
+	private void cascade(long tick) {
+		for (int level = 1; level < LEVELS; level++) {
+			if ((tick & ((1L << (SLOT_BITS * level)) - 1)) != 0)
+				break;
+			int slot = (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+			ScheduledTask scheduled = wheel[level][slot];
+			wheel[level][slot] = null;
+			while (scheduled != null) {
+				ScheduledTask next = scheduled.next;
+				size--;
+				insert(scheduled);
+				scheduled = next;
+			}
+		}
+	}
+
+	/**
+	 * Fire the tasks due in the given tick, in order, each at its time.
+	 */
+	private void expire(long tick) {
+		int slot = (int) tick & SLOT_MASK;
+		ScheduledTask scheduled = wheel[0][slot];
+		while (scheduled != null) {
+			scheduled.level = -1;
+			due.add(scheduled);
+			size--;
+			scheduled = scheduled.next;
+		}
+		wheel[0][slot] = null;
+		if (due.size() > 1)
+			Collections.sort(due, BY_DEADLINE);
+
+		for (int i = 0; i < due.size(); i++) {
+			scheduled = due.get(i);
+			awaitDeadline(scheduled.deadline);
+			if (!scheduled.fire())
+				continue;
+			try {
+				handler.taskDue(scheduled.getTask());
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		due.clear();
+	}
+
+	/**
+	 * Put a task in the slot for its tick: the lowest level whose span from
+	 * the current tick reaches it.
+	 */
+	private void insert(ScheduledTask scheduled) {
+		// Overdue tasks go in the current slot to fire now
+		long tick = Math.max(scheduled.deadlineTick, currentTick);
+		long delta = Math.min(tick - currentTick, MAX_DELTA);
+		tick = currentTick + delta;
+
+		int level = 0;
+		while (delta >= 1L << (SLOT_BITS * (level + 1)))
+			level++;
+		int slot = (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+
+		scheduled.level = level;
+		scheduled.slot = slot;
+		scheduled.previous = null;
+		scheduled.next = wheel[level][slot];
+		if (scheduled.next != null)
+			scheduled.next.previous = scheduled;
+		wheel[level][slot] = scheduled;
+		size++;
+	}
+
+	private void unlink(ScheduledTask scheduled) {
+		if (scheduled.previous != null)
+			scheduled.previous.next = scheduled.next;
+		else
+			wheel[scheduled.level][scheduled.slot] = scheduled.next;
+		if (scheduled.next != null)
+			scheduled.next.previous = scheduled.previous;
+		scheduled.previous = null;
+		scheduled.next = null;
+		scheduled.level = -1;
+		size--;
+	}
+
+	/**
+	 * Park until just before the deadline, then spin until it passes.
+	 */
+	private void awaitDeadline(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > SPIN_NANOS)
+			LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+		while (deadline - System.nanoTime() > 0) {
+			// Spin
+		}
+	}
+
+	private long tickOf(long nanoTime) {
+		return Math.max(0, (nanoTime - startTime) / TICK_NANOS);
+	}
+
+	private long tickStart(long tick) {
+		return startTime + tick * TICK_NANOS;
+	}
+
+	// ===============================
+	// PLAN FEED
+	// ===============================
+
+	/**
+	 * The rows of a scheduled plan not yet in the wheel. Rows cancelled
+	 * before they are fed in are skipped.
+	 */
+	private class PlanFeed {
+
+		private final TaskStore plan;
+		private int nextRow;
+
+		// Epoch ns minus System.nanoTime() when the plan was scheduled, plus
+		// the lead
+		private final long epochOffset;
+
+		PlanFeed(TaskStore plan, int firstRow, long epochOffset) {
+			this.plan = plan;
+			this.nextRow = firstRow;
+			this.epochOffset = epochOffset;
+		}
+
+		boolean hasNext() {
+			while (nextRow < plan.size() && !plan.isPending(nextRow))
+				nextRow++;
+			return nextRow < plan.size();
+		}
+
+		long nextDeadline() {
+			return plan.getEpochNanos(nextRow) - epochOffset;
+		}
+
+		long nextTick() {
+			return tickOf(nextDeadline());
+		}
+
+		ScheduledTask next() {
+			long deadline = nextDeadline();
+			int row = nextRow++;
+			return new ScheduledTask(TimingWheelScheduler.this, plan.get(row),
+					deadline, tickOf(deadline), plan, row);
+		}
+
+	}
+
+}
@@ -1,5 +1,7 @@
 package com.sattrak.rpi.serial;
 
+import java.nio.ByteBuffer;
+
 public class AckPacket extends SerialPacket {
 
 	// ===============================
@@ -8,12 +10,25 @@ public class AckPacket extends SerialPacket {
 
 	// Argument 1: Ack'd command
 	public static final int LOCATION_ACKD_COMMAND = 0;
+	public static final int LENGTH_ACKD_COMMAND = 1;
+
+	// Argument 2: protocol version agreed to, when acking
+	// ESTABLISH_CONNECTION (0 from firmware that predates versioning)
+	public static final int LOCATION_PROTOCOL_VERSION = 1;
+	public static final int LENGTH_PROTOCOL_VERSION = 1;
+
+	// Argument 3: link options agreed to, when acking ESTABLISH_CONNECTION
+	// (a bitmask of Framing options)
+	public static final int LOCATION_LINK_OPTIONS = 2;
+	public static final int LENGTH_LINK_OPTIONS = 1;
 
 	// ===============================
 	// INSTANCE VARIABLES
 	// ===============================
 
 	private SerialCommand ackdCommand;
+	private int protocolVersion;
+	private int linkOptions;
 
 	// ===============================
 	// CONSTRUCTORS
@@ -24,6 +39,13 @@ public class AckPacket extends SerialPacket {
 		this.ackdCommand = ackdCommand;
 	}
 
+	public AckPacket(SerialCommand ackdCommand, int protocolVersion,
+			int linkOptions) {
+		this(ackdCommand);
+		this.protocolVersion = protocolVersion;
+		this.linkOptions = linkOptions;
+	}
+
 	public AckPacket(byte[] packetBytes) throws InvalidPacketException {
 		fromBytes(packetBytes);
 	}
@@ -36,20 +58,52 @@ public class AckPacket extends SerialPacket {
 		return ackdCommand;
 	}
 
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	public int getLinkOptions() {
+		return linkOptions;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	public void setAckdCommand(SerialCommand ackdCommand) {
+		this.ackdCommand = ackdCommand;
+	}
+
+	public void setProtocolVersion(int protocolVersion) {
+		this.protocolVersion = protocolVersion;
+	}
+
+	public void setLinkOptions(int linkOptions) {
+		this.linkOptions = linkOptions;
+	}
+
 	// ===============================
 	// OVERRIDDEN METHODS
 	// ===============================
 
 	@Override
-	protected byte[] argsToBytes() {
-		byte[] argBytes = new byte[1];
-		argBytes[LOCATION_ACKD_COMMAND] = ackdCommand.getValue();
-		return argBytes;
+	protected int getArgsLength(WireFormat format) {
+		return LOCATION_LINK_OPTIONS + LENGTH_LINK_OPTIONS;
+	}
+
+	@Override
+	protected void writeArgs(ByteBuffer dst, int index, WireFormat format) {
+		dst.put(index + LOCATION_ACKD_COMMAND, ackdCommand.getValue());
+		dst.put(index + LOCATION_PROTOCOL_VERSION, (byte) protocolVersion);
+		dst.put(index + LOCATION_LINK_OPTIONS, (byte) linkOptions);
 	}
 
 	@Override
-	protected void bytesToArgs(byte[] argBytes) {
-		ackdCommand = SerialCommand.fromValue(argBytes[LOCATION_ACKD_COMMAND]);
+	protected void readArgs(ByteBuffer src, int index, WireFormat format) {
+		ackdCommand = SerialCommand.fromValue(src.get(index
+				+ LOCATION_ACKD_COMMAND));
+		protocolVersion = src.get(index + LOCATION_PROTOCOL_VERSION) & 0xFF;
+		linkOptions = src.get(index + LOCATION_LINK_OPTIONS) & 0xFF;
 	}
 
 	@Override
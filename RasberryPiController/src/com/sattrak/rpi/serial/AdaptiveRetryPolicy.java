@@ -0,0 +1,143 @@
+package com.sattrak.rpi.serial;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A retry policy that derives response timeouts from the measured round trip
+ * time of each SerialCommand, in the manner of TCP's retransmission timer
+ * (RFC 6298): timeout = SRTT + 4 * RTTVAR, doubled after each timeout until a
+ * new sample arrives. Failed attempts are followed by an exponential backoff
+ * with jitter so that retries don't land in lockstep with a busy Arduino.
+ */
+public class AdaptiveRetryPolicy implements RetryPolicy {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	// Timeout used before any round trip has been measured
+	private static final long INITIAL_TIMEOUT = 1000; // ms
+	private static final long MIN_TIMEOUT = 100; // ms
+	private static final long MAX_TIMEOUT = 10000; // ms
+
+	// Smoothing gains and variance multiplier from RFC 6298
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+	private static final int K = 4;
+
+	// Backoff after the first failure, and the cap on the backoff
+	private static final long BACKOFF_BASE = 50; // ms
+	private static final long BACKOFF_CAP = 2000; // ms
+
+	// Cap on the number of times the timeout is doubled
+	private static final int MAX_TIMEOUT_SHIFT = 4;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final int maxAttempts;
+
+	// Per-command estimates, indexed by SerialCommand ordinal, in ms. A
+	// negative srtt means no sample has been taken yet. Guarded by this.
+	private final double[] srtt;
+	private final double[] rttvar;
+	private final int[] timeoutShift;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public AdaptiveRetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS);
+	}
+
+	public AdaptiveRetryPolicy(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+		int commands = SerialCommand.values().length;
+		srtt = new double[commands];
+		rttvar = new double[commands];
+		timeoutShift = new int[commands];
+		for (int i = 0; i < commands; i++)
+			srtt[i] = -1;
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	/**
+	 * @param command
+	 *            the command
+	 * @return the smoothed round trip time of the command in ms, or -1 if it
+	 *         has not been measured
+	 */
+	public synchronized double getSmoothedRtt(SerialCommand command) {
+		return srtt[command.ordinal()];
+	}
+
+	/**
+	 * @param command
+	 *            the command
+	 * @return the round trip time variation of the command in ms
+	 */
+	public synchronized double getRttVariation(SerialCommand command) {
+		return rttvar[command.ordinal()];
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	@Override
+	public synchronized long getTimeout(SerialCommand command) {
+		int i = command.ordinal();
+		long base;
+		if (srtt[i] < 0)
+			base = INITIAL_TIMEOUT;
+		else
+			base = Math.max(MIN_TIMEOUT, (long) Math.ceil(srtt[i] + K
+					* rttvar[i]));
+		return Math.min(MAX_TIMEOUT, base << timeoutShift[i]);
+	}
+
+	@Override
+	public long getBackoff(SerialCommand command, int failedAttempts) {
+		int shift = Math.min(failedAttempts - 1, 16);
+		long ceiling = Math.min(BACKOFF_CAP, BACKOFF_BASE << shift);
+		// Equal jitter: half the ceiling plus a random part of the other half
+		return ceiling / 2
+				+ ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+	}
+
+	@Override
+	public synchronized void onResponse(SerialCommand command, long rttNanos) {
+		int i = command.ordinal();
+		double sample = rttNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		if (srtt[i] < 0) {
+			srtt[i] = sample;
+			rttvar[i] = sample / 2;
+		} else {
+			rttvar[i] = (1 - BETA) * rttvar[i] + BETA
+					* Math.abs(srtt[i] - sample);
+			srtt[i] = (1 - ALPHA) * srtt[i] + ALPHA * sample;
+		}
+		timeoutShift[i] = 0;
+	}
+
+	@Override
+	public synchronized void onTimeout(SerialCommand command) {
+		int i = command.ordinal();
+		if (timeoutShift[i] < MAX_TIMEOUT_SHIFT)
+			timeoutShift[i]++;
+	}
+
+}
@@ -0,0 +1,943 @@
+package com.sattrak.rpi.serial;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import com.sattrak.rpi.serial.SerialComm.IncorrectResponseException;
+import com.sattrak.rpi.serial.SerialComm.NackReceivedException;
+import com.sattrak.rpi.serial.SerialPacket.ChecksumException;
+import com.sattrak.rpi.serial.SerialPacket.InvalidPacketException;
+
+/**
+ * An asynchronous request engine that sits beside SerialComm. Commands are
+ * written as soon as there is room in the send window, and a reader thread
+ * matches each incoming packet to the oldest outstanding request that expects
+ * it (by response command, and by ack'd command for ACKs) instead of handling
+ * one command at a time in lockstep. Timeouts, backoff and the number of
+ * attempts come from the SerialComm's retry policy, and a NACK of a command
+ * fails its request immediately. A corrupted frame in either direction gets
+ * the affected request resent at once, without waiting for its timeout.
+ * With sequenced framing resending is left to the SlidingWindowLink, so the
+ * Arduino runs each command once. Packets that answer no request, such as
+ * the orientation the Arduino reports when a move finishes, go to the
+ * engine's PacketListeners.
+ *
+ * Each request is submitted in a Lane, optionally with a deadline. Waiting
+ * requests are sent most urgent lane first, and a request whose deadline would
+ * pass unless it were sent now may go into a place held back beyond the send
+ * window, so a slow or retrying interactive read can't hold up a motion
+ * command. Each lane keeps LaneStatistics. Link control, such as a change
+ * of baud rate, is sent by the writer outside the lanes and isn't counted in
+ * their statistics.
+ *
+ * Setpoints, such as the orientations of a mount tracking a target, can be
+ * submitted with submitLatest under a key. A setpoint replaces any earlier
+ * one with the same key that hasn't been sent yet, and only one setpoint per
+ * key is on the wire at a time, so the Arduino is never behind the newest by
+ * more than one round trip however fast they come.
+ *
+ * Every command is written by one writer thread, which owns the send window.
+ * Callers, the reader and the retry timer never touch the port; they put
+ * requests and resends on lock-free queues and wake the writer, so a caller
+ * never blocks behind another's write. Because nothing else writes, the writer
+ * can also pause the window to step the baud rate down when the SerialComm's
+ * LinkQualityMonitor reports a degraded link.
+ *
+ * The engine must be the only user of the SerialComm once it is started.
+ */
+public class AsyncSerialEngine {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// The Arduino's hardware receive buffer is 64 bytes, so no more than two
+	// DATA_SIZE packets can be waiting on it at once
+	public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+	// Places beyond the send window for requests whose deadlines are at risk.
+	// The Arduino's buffer has room for one more of the short frames of
+	// variable-length framing.
+	private static final int RESERVED_IN_FLIGHT = 1;
+
+	// Steps of a baud rate change, run by the writer thread
+	private static final int LINK_OK = 0;
+	private static final int DRAINING = 1;
+	private static final int REQUESTING = 2;
+	private static final int CONFIRMING = 3;
+	private static final int HOLDING = 4;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final SerialComm comm;
+	private final RetryPolicy retryPolicy;
+	private final LinkQualityMonitor linkMonitor;
+	private final int maxInFlight;
+
+	// Requests submitted by callers, and sent requests to be written again,
+	// for the writer thread to pick up
+	private final ConcurrentLinkedQueue<PendingRequest> submitted;
+	private final ConcurrentLinkedQueue<PendingRequest> resends;
+
+	// Requests waiting for room in the send window, by lane, oldest first.
+	// Only the writer thread touches them.
+	private final EnumMap<Lane, ArrayDeque<PendingRequest>> waiting;
+	private final EnumMap<Lane, LaneStatistics> laneStatistics;
+
+	// The waiting setpoint for each key; only the writer thread touches it
+	private final HashMap<Object, PendingRequest> mailbox;
+
+	// Requests that have been sent and are waiting for a response, oldest
+	// first. The writer adds to it, and whichever thread finishes a request
+	// removes it and takes it off the count.
+	private final ConcurrentLinkedQueue<PendingRequest> inFlight;
+	private final AtomicInteger inFlightCount;
+
+	private final CopyOnWriteArrayList<PacketListener> listeners;
+
+	private final ScheduledExecutorService timer;
+	private Thread readerThread;
+	private volatile Thread writerThread;
+	private volatile boolean running;
+
+	// Progress of a baud rate change; only the writer thread touches these
+	private int linkState = LINK_OK;
+	private int oldRate;
+	private int newRate;
+	private PendingRequest baudRequest;
+	private long holdUntil;
+
+	// Whether a waiting request's deadline comes into risk while the send
+	// window is full, and when; only the writer thread touches these
+	private boolean riskPending;
+	private long riskAt;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * Create an engine on top of an already connected SerialComm, with the
+	 * default send window.
+	 *
+	 * @param comm
+	 *            the serial connection to use
+	 */
+	public AsyncSerialEngine(SerialComm comm) {
+		this(comm, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * Create an engine on top of an already connected SerialComm.
+	 *
+	 * @param comm
+	 *            the serial connection to use
+	 * @param maxInFlight
+	 *            the maximum number of commands awaiting a response at once
+	 */
+	public AsyncSerialEngine(SerialComm comm, int maxInFlight) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException(
+					"maxInFlight must be at least 1");
+		this.comm = comm;
+		this.retryPolicy = comm.getRetryPolicy();
+		this.linkMonitor = comm.getLinkMonitor();
+		this.maxInFlight = maxInFlight;
+		submitted = new ConcurrentLinkedQueue<PendingRequest>();
+		resends = new ConcurrentLinkedQueue<PendingRequest>();
+		waiting = new EnumMap<Lane, ArrayDeque<PendingRequest>>(Lane.class);
+		laneStatistics = new EnumMap<Lane, LaneStatistics>(Lane.class);
+		for (Lane lane : Lane.values()) {
+			waiting.put(lane, new ArrayDeque<PendingRequest>());
+			laneStatistics.put(lane, new LaneStatistics(lane));
+		}
+		mailbox = new HashMap<Object, PendingRequest>();
+		inFlight = new ConcurrentLinkedQueue<PendingRequest>();
+		inFlightCount = new AtomicInteger();
+		listeners = new CopyOnWriteArrayList<PacketListener>();
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "serial-timeouts");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Start the threads that write commands and that read and dispatch
+	 * incoming packets.
+	 */
+	public void start() {
+		running = true;
+		writerThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				writePackets();
+			}
+		}, "serial-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+		readerThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				readPackets();
+			}
+		}, "serial-reader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+	/**
+	 * Stop the reader and writer threads and fail every outstanding request.
+	 */
+	public void stop() {
+		running = false;
+		if (readerThread != null)
+			readerThread.interrupt();
+		Thread writer = writerThread;
+		if (writer != null) {
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		timer.shutdownNow();
+
+		// The writer has finished, so nothing else adds to these now
+		PendingRequest request;
+		while ((request = submitted.poll()) != null)
+			abandon(request);
+		while ((request = inFlight.poll()) != null)
+			abandon(request);
+		for (ArrayDeque<PendingRequest> queue : waiting.values()) {
+			while ((request = queue.poll()) != null)
+				abandon(request);
+		}
+		inFlightCount.set(0);
+		resends.clear();
+		mailbox.clear();
+	}
+
+	/**
+	 * Queue a packet to be sent in the INTERACTIVE lane, with no deadline.
+	 * 
+	 * @see #submit(SerialPacket, Lane, long)
+	 */
+	public CompletableFuture<SerialPacket> submit(SerialPacket outPacket) {
+		return submit(outPacket, Lane.INTERACTIVE);
+	}
+
+	/**
+	 * Queue a packet to be sent in the given lane, with no deadline. It is
+	 * sent before anything in a less urgent lane, but never takes another
+	 * request's place in the send window.
+	 * 
+	 * @see #submit(SerialPacket, Lane, long)
+	 */
+	public CompletableFuture<SerialPacket> submit(SerialPacket outPacket,
+			Lane lane) {
+		PendingRequest request = new PendingRequest(outPacket, retryPolicy,
+				lane);
+		return submit(request);
+	}
+
+	/**
+	 * Queue a packet to be sent and return a future for its response. The
+	 * writer thread sends it as soon as the send window has room and nothing
+	 * in a more urgent lane is waiting, or at once if its deadline is close
+	 * enough that waiting would miss it and a less urgent request can give up
+	 * its place.
+	 *
+	 * @param outPacket
+	 *            the packet to send
+	 * @param lane
+	 *            the priority class of the packet
+	 * @param deadline
+	 *            the System.nanoTime by which the response is needed
+	 * @return a future completed with the response packet, or exceptionally
+	 *         with an IncorrectResponseException if no correct response
+	 *         arrived within the retry policy's attempts, or a
+	 *         NackReceivedException if the Arduino rejected the command.
+	 *         Cancelling it gives up the request's place in the send window.
+	 */
+	public CompletableFuture<SerialPacket> submit(SerialPacket outPacket,
+			Lane lane, long deadline) {
+		PendingRequest request = new PendingRequest(outPacket, retryPolicy,
+				lane);
+		request.timed = true;
+		request.deadline = deadline;
+		return submit(request);
+	}
+
+	/**
+	 * Queue a setpoint to be sent as submit does, replacing any setpoint
+	 * with the same key and command that is still waiting to be sent. The
+	 * replaced setpoint keeps its place in the queue and its deadline, and its
+	 * future is completed with the response to this one. A setpoint isn't
+	 * sent while another with its key is awaiting a response.
+	 * 
+	 * @param outPacket
+	 *            the setpoint to send
+	 * @param key
+	 *            what the setpoint belongs to, such as the task being
+	 *            tracked; setpoints with different keys are never merged
+	 * @param lane
+	 *            the priority class of the setpoint
+	 * @param deadline
+	 *            the System.nanoTime by which the response is needed
+	 * @return a future completed with the response to this setpoint or to a
+	 *         newer one that replaced it
+	 * @see #submit(SerialPacket, Lane, long)
+	 */
+	public CompletableFuture<SerialPacket> submitLatest(
+			SerialPacket outPacket, Object key, Lane lane, long deadline) {
+		PendingRequest request = new PendingRequest(outPacket, retryPolicy,
+				lane);
+		request.key = key;
+		request.timed = true;
+		request.deadline = deadline;
+		return submit(request);
+	}
+
+	/**
+	 * @return how the requests submitted in a lane have fared
+	 */
+	public LaneStatistics getLaneStatistics(Lane lane) {
+		return laneStatistics.get(lane);
+	}
+
+	/**
+	 * Receive every packet that doesn't answer a request.
+	 *
+	 * @param listener
+	 *            the listener, called on the reader thread
+	 */
+	public void addPacketListener(PacketListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removePacketListener(PacketListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return the number of requests sent and still awaiting a response
+	 */
+	public int getInFlightCount() {
+		return inFlightCount.get();
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	private CompletableFuture<SerialPacket> submit(
+			final PendingRequest request) {
+		request.submittedAt = System.nanoTime();
+		request.future.whenComplete(new BiConsumer<SerialPacket, Throwable>() {
+
+			@Override
+			public void accept(SerialPacket response, Throwable failure) {
+				// Cancelled by the caller; give up its place in the window
+				if (request.future.isCancelled()) {
+					request.cancelTimeout();
+					finish(request);
+				}
+			}
+		});
+		submitted.add(request);
+		if (!running)
+			abandon(request);
+		wakeWriter();
+		return request.future;
+	}
+
+	/**
+	 * Writer thread loop: take submitted requests and resends off their
+	 * queues, write them, and sleep until there is more to do.
+	 */
+	private void writePackets() {
+		while (running) {
+			PendingRequest request;
+			while ((request = submitted.poll()) != null)
+				enqueue(request);
+			while ((request = resends.poll()) != null)
+				transmit(request);
+
+			checkLinkQuality();
+			riskPending = false;
+			if (linkState == LINK_OK)
+				sendWaiting();
+
+			// A wake between the polls and here leaves a permit, so the
+			// park returns at once and nothing is missed
+			if (linkState == HOLDING)
+				LockSupport.parkNanos(this, holdUntil - System.nanoTime());
+			else if (riskPending)
+				LockSupport.parkNanos(this, riskAt - System.nanoTime());
+			else
+				LockSupport.park(this);
+		}
+	}
+
+	/**
+	 * Add a submitted request to its lane's queue, or merge it into the
+	 * waiting setpoint with its key. Writer thread only.
+	 */
+	private void enqueue(PendingRequest request) {
+		if (request.key != null) {
+			PendingRequest queued = mailbox.get(request.key);
+			if (queued != null && !queued.future.isDone()
+					&& queued.packet.getCommand() == request.packet
+							.getCommand()) {
+				supersede(queued, request);
+				return;
+			}
+			mailbox.put(request.key, request);
+		}
+		waiting.get(request.lane).add(request);
+	}
+
+	/**
+	 * Send a newer setpoint in place of a waiting one. Writer thread only.
+	 */
+	private void supersede(PendingRequest queued,
+			final PendingRequest newer) {
+		queued.packet = newer.packet;
+		if (!queued.timed) {
+			queued.timed = true;
+			queued.deadline = newer.deadline;
+		}
+		queued.future.whenComplete(new BiConsumer<SerialPacket, Throwable>() {
+
+			@Override
+			public void accept(SerialPacket response, Throwable failure) {
+				if (failure != null)
+					newer.future.completeExceptionally(failure);
+				else
+					newer.future.complete(response);
+			}
+		});
+		laneStatistics.get(queued.lane).recordCoalesced();
+	}
+
+	/**
+	 * @return true if a request with the given key is awaiting a response
+	 */
+	private boolean isKeyInFlight(Object key) {
+		for (PendingRequest request : inFlight) {
+			if (key.equals(request.key))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Wake the writer thread to look at its queues.
+	 */
+	private void wakeWriter() {
+		Thread writer = writerThread;
+		if (writer != null)
+			LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Move waiting requests into the send window, most urgent lane first,
+	 * while there is room, or a reserved place for one whose deadline is at
+	 * risk. Nothing is sent from a lane while a more urgent one is waiting,
+	 * except past setpoints held back by their keys. Writer thread only.
+	 */
+	private void sendWaiting() {
+		for (Lane lane : Lane.values()) {
+			Iterator<PendingRequest> queue = waiting.get(lane).iterator();
+			while (queue.hasNext()) {
+				PendingRequest next = queue.next();
+				// Cancelled by the caller before it was sent
+				if (next.future.isDone()) {
+					queue.remove();
+					if (next.key != null)
+						mailbox.remove(next.key, next);
+					continue;
+				}
+				// Wait for the last setpoint with this key to be answered,
+				// so newer ones can replace this one meanwhile
+				if (next.key != null && isKeyInFlight(next.key))
+					continue;
+				int count = inFlightCount.get();
+				boolean atRisk = isAtRisk(next);
+				if (count >= maxInFlight + (atRisk ? RESERVED_IN_FLIGHT : 0)) {
+					// Look again when its deadline comes into risk
+					if (next.timed && !atRisk) {
+						riskPending = true;
+						riskAt = riskTime(next);
+					}
+					return;
+				}
+				if (count >= maxInFlight)
+					laneStatistics.get(lane).recordExpedited();
+				queue.remove();
+				send(next);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the request has a deadline that would pass before an
+	 *         answer to it could time out
+	 */
+	private boolean isAtRisk(PendingRequest request) {
+		return request.timed && riskTime(request) - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * @return the System.nanoTime from which a request's deadline is at risk
+	 */
+	private static long riskTime(PendingRequest request) {
+		return request.deadline
+				- request.policy.getTimeout(request.packet.getCommand())
+				* 1000000L;
+	}
+
+	/**
+	 * Put a request in the send window and write it. Writer thread only.
+	 * 
+	 * @param request
+	 *            the request to send
+	 */
+	private void send(PendingRequest request) {
+		if (request.key != null)
+			mailbox.remove(request.key, request);
+		// Stamped before the reader can see it, which it only matches once it
+		// has been written
+		request.firstSentAt = System.nanoTime();
+		inFlightCount.incrementAndGet();
+		inFlight.add(request);
+		transmit(request);
+	}
+
+	/**
+	 * Take a request out of the send window. Only the thread that takes it
+	 * out may finish it, so a response racing a final timeout finishes it
+	 * once.
+	 * 
+	 * @return true if the request was in flight
+	 */
+	private boolean finish(PendingRequest request) {
+		if (!inFlight.remove(request))
+			return false;
+		inFlightCount.decrementAndGet();
+		wakeWriter();
+		return true;
+	}
+
+	/**
+	 * Step the baud rate down while the link is degraded, as
+	 * SerialComm.changeBaudRate does for synchronous use: stop filling the
+	 * window and let it drain, ask the Arduino for the next slower rate,
+	 * switch the port on its ACK, and confirm at the new rate, going back to
+	 * the old rate and waiting out the Arduino's confirm timeout if that
+	 * fails. Writer thread only; each step returns at once and the writer is
+	 * woken when the next can go ahead.
+	 */
+	private void checkLinkQuality() {
+		if (linkState == LINK_OK) {
+			if (!linkMonitor.isDegraded())
+				return;
+			newRate = comm.getSlowerBaudRate();
+			if (newRate == 0) {
+				linkMonitor.reset();
+				return;
+			}
+			System.out.println("Link degraded at " + comm.getBaudRate()
+					+ " baud, stepping down");
+			linkState = DRAINING;
+		}
+
+		switch (linkState) {
+		case DRAINING:
+			if (inFlightCount.get() > 0)
+				return;
+			baudRequest = sendBaudRequest(retryPolicy);
+			linkState = REQUESTING;
+			return;
+		case REQUESTING:
+			if (!baudRequest.future.isDone())
+				return;
+			if (baudRequest.future.isCompletedExceptionally()) {
+				// Rejected, or the link is too poor to ask
+				System.out.println("Baud rate " + newRate + " refused");
+				finishBaudChange();
+				return;
+			}
+			oldRate = comm.getBaudRate();
+			if (!comm.setTransportBaudRate(newRate)) {
+				hold();
+				return;
+			}
+			baudRequest = sendBaudRequest(SerialComm.BAUD_CONFIRM_POLICY);
+			linkState = CONFIRMING;
+			return;
+		case CONFIRMING:
+			if (!baudRequest.future.isDone())
+				return;
+			if (!baudRequest.future.isCompletedExceptionally()) {
+				finishBaudChange();
+				return;
+			}
+			System.out.println("Baud rate " + newRate + " not confirmed");
+			comm.setTransportBaudRate(oldRate);
+			hold();
+			return;
+		case HOLDING:
+			if (System.nanoTime() - holdUntil >= 0)
+				finishBaudChange();
+			return;
+		}
+	}
+
+	/**
+	 * Send a SET_BAUD for the rate being changed to, waking the writer when
+	 * it finishes. Writer thread only.
+	 */
+	private PendingRequest sendBaudRequest(RetryPolicy policy) {
+		PendingRequest request = new PendingRequest(
+				new SetBaudPacket(newRate), policy, null);
+		request.submittedAt = System.nanoTime();
+		request.future.whenComplete(new BiConsumer<SerialPacket, Throwable>() {
+
+			@Override
+			public void accept(SerialPacket response, Throwable failure) {
+				wakeWriter();
+			}
+		});
+		send(request);
+		return request;
+	}
+
+	/**
+	 * Wait out the Arduino's confirm timeout, after which it is back at the
+	 * old rate.
+	 */
+	private void hold() {
+		holdUntil = System.nanoTime() + SerialComm.BAUD_CONFIRM_TIMEOUT
+				* 1000000L;
+		linkState = HOLDING;
+	}
+
+	private void finishBaudChange() {
+		linkState = LINK_OK;
+		baudRequest = null;
+		linkMonitor.reset();
+	}
+
+	/**
+	 * Reader thread loop: receive packets and hand them to dispatch until the
+	 * engine is stopped. Packets are decoded into the SerialComm's reusable
+	 * ones, and only responses, which their callers keep, are copied.
+	 */
+	private void readPackets() {
+		while (running) {
+			try {
+				SerialPacket inPacket = comm.receivePacket(0);
+				if (inPacket != null)
+					dispatch(inPacket);
+			} catch (ChecksumException e) {
+				// A response was garbled; ask again rather than time out
+				linkMonitor.recordError();
+				resendNow(null);
+			} catch (InvalidPacketException e) {
+				// Garbled frame; the affected request will time out and retry
+				linkMonitor.recordError();
+				e.printStackTrace();
+			} catch (IOException e) {
+				if (running)
+					e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Match an incoming packet to the oldest in-flight request expecting it.
+	 *
+	 * @param inPacket
+	 *            the received packet
+	 */
+	private void dispatch(SerialPacket inPacket) {
+		if (SerialComm.isChecksumNack(inPacket)) {
+			linkMonitor.recordError();
+			resendNow(((NackPacket) inPacket).getNackdCommand());
+			return;
+		}
+
+		PendingRequest request = match(inPacket);
+		if (request == null) {
+			if (listeners.isEmpty())
+				System.out.println("Unsolicited packet: "
+						+ inPacket.getCommand().toString());
+			for (PacketListener listener : listeners)
+				listener.packetReceived(inPacket);
+			return;
+		}
+
+		linkMonitor.recordSuccess();
+		if (!finish(request))
+			return;
+		if (SerialComm.isNackOf(inPacket, request.packet)) {
+			// The Arduino rejected the command, so retrying won't help
+			fail(request,
+					new NackReceivedException(request.packet.getCommand()));
+			return;
+		}
+		// Only sample round trips that can't belong to an earlier attempt
+		if (request.attempts == 1)
+			request.policy.onResponse(request.packet.getCommand(),
+					System.nanoTime() - request.sentAt);
+		complete(request, inPacket.copy());
+	}
+
+	/**
+	 * @return the oldest in-flight request that the packet answers or NACKs,
+	 *         or null. Requests not written yet are skipped, so a stale
+	 *         response can't answer one before it is sent.
+	 */
+	private PendingRequest match(SerialPacket inPacket) {
+		for (PendingRequest request : inFlight) {
+			if (request.attempts == 0)
+				continue;
+			if (SerialComm.isResponseTo(inPacket, request.packet)
+					|| SerialComm.isNackOf(inPacket, request.packet))
+				return request;
+		}
+		return null;
+	}
+
+	/**
+	 * Have an in-flight request resent straight away after one of its frames
+	 * was corrupted, without counting a timeout against it.
+	 * 
+	 * @param hint
+	 *            the command the corrupted frame appeared to carry, or null
+	 *            if unknown; the oldest request is resent if none matches
+	 */
+	private void resendNow(SerialCommand hint) {
+		// A sequenced link resends corrupted frames itself
+		if (comm.getLink() != null)
+			return;
+		PendingRequest target = null;
+		for (PendingRequest request : inFlight) {
+			if (request.packet.getCommand() == hint) {
+				target = request;
+				break;
+			}
+		}
+		if (target == null)
+			target = inFlight.peek();
+
+		// A request not written yet needs no resend, and one out of attempts
+		// is left to fail on its timeout
+		if (target == null || target.attempts == 0
+				|| target.attempts >= target.policy.getMaxAttempts())
+			return;
+		target.cancelTimeout();
+		resend(target);
+	}
+
+	/**
+	 * Hand a sent request back to the writer thread to be written again.
+	 */
+	private void resend(PendingRequest request) {
+		resends.add(request);
+		wakeWriter();
+	}
+
+	/**
+	 * Write a request to the serial port and arm its response timeout. With
+	 * sequenced framing only the first attempt is written, as
+	 * SerialComm.sendAndReceive does. Writer thread only.
+	 *
+	 * @param request
+	 *            the request to send
+	 */
+	private void transmit(final PendingRequest request) {
+		if (request.future.isDone()) {
+			finish(request);
+			return;
+		}
+		request.sentAt = System.nanoTime();
+		// From here a response may be taken as the answer to this request
+		final int attempt = ++request.attempts;
+		// A sequenced link resends the packet until it arrives, so a later
+		// attempt only waits longer
+		SlidingWindowLink link = comm.getLink();
+		if (attempt == 1 || link == null) {
+			try {
+				comm.send(request.packet);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		if (!running)
+			return;
+		request.cancelTimeout();
+		final RetryPolicy policy = request.policy;
+		long timeout = policy.getTimeout(request.packet.getCommand());
+		if (link != null)
+			timeout = Math.max(timeout, link.getRetransmitTimeout(attempt));
+		request.timeout = timer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				if (request.future.isDone()) {
+					finish(request);
+					return;
+				}
+				if (request.attempts != attempt)
+					return;
+				policy.onTimeout(request.packet.getCommand());
+				linkMonitor.recordError();
+				retry(request, attempt);
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Resend a request whose attempt failed after the retry policy's backoff,
+	 * or fail it if it has used all of its attempts.
+	 *
+	 * @param request
+	 *            the request to retry
+	 * @param attempt
+	 *            the attempt that failed; stale failures are ignored
+	 */
+	private void retry(final PendingRequest request, int attempt) {
+		if (request.future.isDone() || request.attempts != attempt)
+			return;
+
+		if (attempt < request.policy.getMaxAttempts()) {
+			long backoff = request.policy.getBackoff(
+					request.packet.getCommand(), attempt);
+			request.timeout = timer.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					resend(request);
+				}
+			}, backoff, TimeUnit.MILLISECONDS);
+			return;
+		}
+
+		if (finish(request))
+			fail(request, new IncorrectResponseException("Failed to receive "
+					+ request.expectedResponse + " in response to "
+					+ request.packet.getCommand()));
+	}
+
+	private void abandon(PendingRequest request) {
+		fail(request, new IncorrectResponseException("Engine stopped before "
+				+ request.expectedResponse + " was received in response to "
+				+ request.packet.getCommand()));
+	}
+
+	/**
+	 * Complete a request with its response and add it to its lane's
+	 * statistics, if it has a lane.
+	 */
+	private void complete(PendingRequest request, SerialPacket inPacket) {
+		long now = System.nanoTime();
+		if (request.lane != null)
+			laneStatistics.get(request.lane).recordCompleted(
+					Math.max(0, request.firstSentAt - request.submittedAt),
+					now - request.submittedAt,
+					request.timed && now - request.deadline > 0);
+		request.complete(inPacket);
+	}
+
+	private void fail(PendingRequest request, Exception e) {
+		if (request.lane != null && !request.future.isDone())
+			laneStatistics.get(request.lane).recordFailed(request.timed);
+		request.fail(e);
+	}
+
+	// ===============================
+	// PENDING REQUEST
+	// ===============================
+
+	/**
+	 * A packet that has been submitted, along with the future for its response.
+	 */
+	private static class PendingRequest {
+
+		private final RetryPolicy policy;
+		// null for link control, which is sent outside the lanes
+		private final Lane lane;
+		private final SerialCommand expectedResponse;
+		private final CompletableFuture<SerialPacket> future;
+
+		// Replaced by a newer setpoint until the request is sent, by the
+		// writer thread
+		private SerialPacket packet;
+		private Object key;
+		private boolean timed;
+		private long deadline;
+		private volatile long submittedAt;
+		private volatile long firstSentAt;
+		// Attempts written so far, counted as each write starts
+		private volatile int attempts;
+		private volatile long sentAt;
+		private volatile ScheduledFuture<?> timeout;
+
+		private PendingRequest(SerialPacket packet, RetryPolicy policy,
+				Lane lane) {
+			this.packet = packet;
+			this.policy = policy;
+			this.lane = lane;
+			this.expectedResponse = packet.getResponse();
+			this.future = new CompletableFuture<SerialPacket>();
+		}
+
+		private void complete(SerialPacket inPacket) {
+			cancelTimeout();
+			future.complete(inPacket);
+		}
+
+		private void fail(Exception e) {
+			cancelTimeout();
+			future.completeExceptionally(e);
+		}
+
+		private void cancelTimeout() {
+			ScheduledFuture<?> t = timeout;
+			if (t != null)
+				t.cancel(false);
+		}
+	}
+}
@@ -1,6 +1,6 @@
 package com.sattrak.rpi.serial;
 
-import com.sattrak.rpi.util.ByteConverter;
+import java.nio.ByteBuffer;
 
 public class EnvironmentalResponsePacket extends SerialPacket {
 
@@ -8,11 +8,13 @@ public class EnvironmentalResponsePacket extends SerialPacket {
 	// CONSTANTS
 	// ===============================
 
-	// Argument 1: azimuth angle
-	private static final int LOCATION_TEMP = 0;
+	// Argument 1: temperature
+	private static final int ARG_TEMP = 0;
 
-	// Argument 2: elevation angle
-	private static final int LOCATION_HUMIDITY = 8;
+	// Argument 2: humidity
+	private static final int ARG_HUMIDITY = 1;
+
+	private static final int NUM_ARGS = 2;
 
 	// ===============================
 	// INSTANCE VARIABLES
@@ -47,33 +49,39 @@ public class EnvironmentalResponsePacket extends SerialPacket {
 		return humidity;
 	}
 
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	public void setTemperature(double temperature) {
+		this.temperature = temperature;
+	}
+
+	public void setHumidity(double humidity) {
+		this.humidity = humidity;
+	}
+
 	// ===============================
 	// OVERRIDDEN METHODS
 	// ===============================
 
 	@Override
-	protected byte[] argsToBytes() {
-		// Convert arguments to byte arrays
-		byte[] tempBytes = ByteConverter.doubleToStringBytes(temperature);
-		byte[] humBytes = ByteConverter.doubleToStringBytes(humidity);
-
-		// Create byte array for all arguments
-		byte[] argBytes = new byte[tempBytes.length + humBytes.length];
-
-		// Insert arguments into array
-		System.arraycopy(tempBytes, 0, argBytes, LOCATION_TEMP,
-				tempBytes.length);
-		System.arraycopy(humBytes, 0, argBytes, LOCATION_HUMIDITY,
-				humBytes.length);
-		return argBytes;
+	protected int getArgsLength(WireFormat format) {
+		return NUM_ARGS * format.getValueLength();
+	}
+
+	@Override
+	protected void writeArgs(ByteBuffer dst, int index, WireFormat format) {
+		int length = format.getValueLength();
+		format.putValue(dst, index + ARG_TEMP * length, temperature);
+		format.putValue(dst, index + ARG_HUMIDITY * length, humidity);
 	}
 
 	@Override
-	protected void bytesToArgs(byte[] argBytes) {
-		temperature = ByteConverter
-				.stringBytesToDouble(argBytes, LOCATION_TEMP);
-		humidity = ByteConverter.stringBytesToDouble(argBytes,
-				LOCATION_HUMIDITY);
+	protected void readArgs(ByteBuffer src, int index, WireFormat format) {
+		int length = format.getValueLength();
+		temperature = format.getValue(src, index + ARG_TEMP * length);
+		humidity = format.getValue(src, index + ARG_HUMIDITY * length);
 	}
 
 	@Override
@@ -1,13 +1,41 @@
 package com.sattrak.rpi.serial;
 
+import java.nio.ByteBuffer;
+
 public class EstablishConnectionPacket extends SerialPacket {
 
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Argument 1: highest protocol version the sender supports
+	public static final int LOCATION_PROTOCOL_VERSION = 0;
+	public static final int LENGTH_PROTOCOL_VERSION = 1;
+
+	// Argument 2: link options the sender supports (a bitmask of Framing
+	// options)
+	public static final int LOCATION_LINK_OPTIONS = 1;
+	public static final int LENGTH_LINK_OPTIONS = 1;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private int protocolVersion;
+	private int linkOptions;
+
 	// ===============================
 	// CONSTRUCTORS
 	// ===============================
 
 	public EstablishConnectionPacket() {
+		this(WireFormat.LATEST.getVersion(), Framing.SUPPORTED_OPTIONS);
+	}
+
+	public EstablishConnectionPacket(int protocolVersion, int linkOptions) {
 		setCommand(SerialCommand.ESTABLISH_CONNECTION);
+		this.protocolVersion = protocolVersion;
+		this.linkOptions = linkOptions;
 	}
 
 	public EstablishConnectionPacket(byte[] packetBytes)
@@ -15,24 +43,57 @@ public class EstablishConnectionPacket extends SerialPacket {
 		fromBytes(packetBytes);
 	}
 
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	public int getLinkOptions() {
+		return linkOptions;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	public void setProtocolVersion(int protocolVersion) {
+		this.protocolVersion = protocolVersion;
+	}
+
+	public void setLinkOptions(int linkOptions) {
+		this.linkOptions = linkOptions;
+	}
+
 	// ===============================
 	// OVERRIDDEN METHODS
 	// ===============================
 
 	@Override
-	protected byte[] argsToBytes() {
-		// Return an empty byte array because there are no arguments
-		return new byte[0];
+	protected int getArgsLength(WireFormat format) {
+		return LOCATION_LINK_OPTIONS + LENGTH_LINK_OPTIONS;
+	}
+
+	@Override
+	protected void writeArgs(ByteBuffer dst, int index, WireFormat format) {
+		dst.put(index + LOCATION_PROTOCOL_VERSION, (byte) protocolVersion);
+		dst.put(index + LOCATION_LINK_OPTIONS, (byte) linkOptions);
 	}
 
 	@Override
-	protected void bytesToArgs(byte[] argBytes) {
-		// Do nothing because there are no arguments
+	protected void readArgs(ByteBuffer src, int index, WireFormat format) {
+		protocolVersion = src.get(index + LOCATION_PROTOCOL_VERSION) & 0xFF;
+		linkOptions = src.get(index + LOCATION_LINK_OPTIONS) & 0xFF;
 	}
 
 	@Override
 	protected String argsToString() {
-		return "";
+		//@formatter:off
+		return "Protocol Version: " + protocolVersion + "\n" +
+				"Link Options: " + linkOptions;
+		//@formatter:on
 	}
 
 }
@@ -0,0 +1,68 @@
+package com.sattrak.rpi.serial;
+
+/**
+ * A retry policy with a constant timeout and delay between attempts. This is
+ * the original SerialComm behaviour.
+ */
+public class FixedRetryPolicy implements RetryPolicy {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	public static final long DEFAULT_TIMEOUT = 2000; // ms
+	public static final long DEFAULT_DELAY = 2000; // ms
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final int maxAttempts;
+	private final long timeout;
+	private final long delay;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public FixedRetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_TIMEOUT, DEFAULT_DELAY);
+	}
+
+	public FixedRetryPolicy(int maxAttempts, long timeout, long delay) {
+		this.maxAttempts = maxAttempts;
+		this.timeout = timeout;
+		this.delay = delay;
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	@Override
+	public long getTimeout(SerialCommand command) {
+		return timeout;
+	}
+
+	@Override
+	public long getBackoff(SerialCommand command, int failedAttempts) {
+		return delay;
+	}
+
+	@Override
+	public void onResponse(SerialCommand command, long rttNanos) {
+		// Fixed timeouts don't learn from samples
+	}
+
+	@Override
+	public void onTimeout(SerialCommand command) {
+		// Fixed timeouts don't back off
+	}
+
+}
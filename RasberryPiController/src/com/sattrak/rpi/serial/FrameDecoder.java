@@ -0,0 +1,262 @@
+package com.sattrak.rpi.serial;
+
+import java.io.IOException;
+
+import com.sattrak.rpi.serial.transport.SerialTransport;
+import com.sattrak.rpi.util.ReedSolomon;
+
+/**
+ * Splits a stream of serial bytes into packet frames. Bytes are read in bulk
+ * into a reusable ring buffer, and frames are found by scanning for
+ * SerialPacket.HEADER followed by a known command (and, for variable-length
+ * framing, a plausible length byte), so a lost or extra byte only costs the
+ * frame it landed in instead of misaligning every frame after it. When frames
+ * carry a CRC, a frame that fails it is rejected as soon as its last byte
+ * arrives, and the scan resumes just after its header. With FEC, a damaged
+ * frame is repaired before its CRC is checked, and the command byte isn't
+ * used to find frame starts since it may be one of the damaged bytes.
+ */
+public class FrameDecoder {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Must be a power of two
+	public static final int DEFAULT_CAPACITY = 256; // bytes
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final byte[] ring;
+	private final int mask;
+	private Framing framing = Framing.FIXED;
+
+	// Absolute read and write positions; index into ring with & mask
+	private int head;
+	private int tail;
+
+	// Number of bytes skipped while looking for a frame start
+	private long discardedBytes;
+
+	// Number of frames rejected because their CRC didn't match or FEC
+	// couldn't repair them
+	private long corruptFrames;
+
+	// Number of frames repaired by FEC, and number FEC found damaged beyond
+	// repair
+	private long correctedFrames;
+	private long uncorrectableFrames;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public FrameDecoder() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            the size of the ring buffer; a power of two of at least twice
+	 *            Framing.MAX_FRAME_LENGTH
+	 */
+	public FrameDecoder(int capacity) {
+		if (Integer.bitCount(capacity) != 1
+				|| capacity < 2 * Framing.MAX_FRAME_LENGTH)
+			throw new IllegalArgumentException(
+					"Invalid capacity " + capacity);
+		this.ring = new byte[capacity];
+		this.mask = capacity - 1;
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	/**
+	 * @return the number of buffered bytes not yet returned in a frame
+	 */
+	public int getBufferedBytes() {
+		return tail - head;
+	}
+
+	/**
+	 * @return the total number of bytes skipped to find frame starts
+	 */
+	public long getDiscardedBytes() {
+		return discardedBytes;
+	}
+
+	/**
+	 * @return the total number of frames rejected for a bad CRC or damage FEC
+	 *         couldn't repair
+	 */
+	public long getCorruptFrames() {
+		return corruptFrames;
+	}
+
+	/**
+	 * @return the total number of frames repaired by FEC that then passed
+	 *         their CRC
+	 */
+	public long getCorrectedFrames() {
+		return correctedFrames;
+	}
+
+	/**
+	 * @return the total number of frames FEC found too damaged to repair
+	 */
+	public long getUncorrectableFrames() {
+		return uncorrectableFrames;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	/**
+	 * Set the framing of the frames that follow. Bytes already buffered are
+	 * kept.
+	 *
+	 * @param framing
+	 *            the framing agreed on in the handshake
+	 */
+	public void setFraming(Framing framing) {
+		this.framing = framing;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Read as many bytes as have arrived on the transport into the ring
+	 * buffer, waiting for at least one byte if none have.
+	 *
+	 * @param transport
+	 *            the transport to read from
+	 * @param timeout
+	 *            the longest time to wait in ms, or 0 to wait indefinitely
+	 * @return the number of bytes read, or a value less than 1 if the read
+	 *         timed out or the transport was closed
+	 * @throws IOException
+	 *             if the read failed
+	 */
+	public int readFrom(SerialTransport transport, int timeout)
+			throws IOException {
+		int free = ring.length - getBufferedBytes();
+		if (free == 0) {
+			// A full buffer with no frame in it is garbage, so start over
+			discardedBytes += getBufferedBytes();
+			head = tail;
+			free = ring.length;
+		}
+
+		// Read only what won't wrap or overrun
+		int offset = tail & mask;
+		int length = Math.min(free, ring.length - offset);
+
+		int n = transport.read(ring, offset, length, timeout);
+		if (n > 0)
+			tail += n;
+		return n;
+	}
+
+	/**
+	 * Copy the next complete frame into the given array, skipping any bytes
+	 * that can't be the start of a frame.
+	 *
+	 * @param frame
+	 *            an array of at least Framing.MAX_FRAME_LENGTH bytes to
+	 *            receive the frame
+	 * @return the length of the frame copied, 0 if more bytes are needed, or
+	 *         -1 if a frame was rejected for a bad CRC or damage FEC couldn't
+	 *         repair
+	 */
+	public int nextFrame(byte[] frame) {
+		int bodyIndex = framing.getBodyIndex();
+		while (getBufferedBytes() > bodyIndex) {
+			int frameLength = getFrameLength(head);
+			if (frameLength < 0) {
+				// Not a frame start, so try the next byte
+				head++;
+				discardedBytes++;
+			} else if (getBufferedBytes() >= frameLength) {
+				copyOut(head, frame, frameLength);
+				int repair = framing.correct(frame, frameLength);
+				if (repair == ReedSolomon.UNCORRECTABLE)
+					uncorrectableFrames++;
+				if (repair == ReedSolomon.UNCORRECTABLE
+						|| !framing.isChecksumValid(frame, frameLength)) {
+					// Corrupted, or a false header; resync after the header
+					head++;
+					discardedBytes++;
+					corruptFrames++;
+					return -1;
+				}
+				if (repair == ReedSolomon.CORRECTED)
+					correctedFrames++;
+				head += frameLength;
+				return frameLength;
+			} else {
+				// Looks like a frame that hasn't fully arrived yet
+				return 0;
+			}
+		}
+
+		// Not enough bytes for a frame; drop leading bytes that can't start
+		// one so the next scan begins at a candidate header
+		while (getBufferedBytes() > 0
+				&& ring[head & mask] != SerialPacket.HEADER) {
+			head++;
+			discardedBytes++;
+		}
+		return 0;
+	}
+
+	/**
+	 * Drop all buffered bytes.
+	 *
+	 * @return the number of bytes dropped
+	 */
+	public int clear() {
+		int dropped = getBufferedBytes();
+		head = tail;
+		return dropped;
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * Get the length of the frame starting at the given position, which must
+	 * have at least the frame's header and command bytes buffered.
+	 *
+	 * @return the frame length, or -1 if no frame can start there
+	 */
+	private int getFrameLength(int position) {
+		if (ring[position & mask] != SerialPacket.HEADER)
+			return -1;
+		if (framing.hasFec()) {
+			int length = position + Framing.LOCATION_LENGTH;
+			return framing.getFrameLength(Framing.vote(ring[length & mask],
+					ring[(length + 1) & mask], ring[(length + 2) & mask]));
+		}
+		byte command = ring[(position + framing.getBodyIndex()) & mask];
+		if (SerialCommand.fromValue(command) == SerialCommand.NULL)
+			return -1;
+		return framing.getFrameLength(ring[(position + Framing.LOCATION_LENGTH)
+				& mask]);
+	}
+
+	private void copyOut(int position, byte[] dst, int length) {
+		int offset = position & mask;
+		int first = Math.min(length, ring.length - offset);
+		System.arraycopy(ring, offset, dst, 0, first);
+		System.arraycopy(ring, 0, dst, first, length - first);
+	}
+
+}
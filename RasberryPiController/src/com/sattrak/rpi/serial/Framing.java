@@ -0,0 +1,368 @@
+package com.sattrak.rpi.serial;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import com.sattrak.rpi.serial.SerialPacket.InvalidPacketException;
+import com.sattrak.rpi.util.Crc16;
+import com.sattrak.rpi.util.ReedSolomon;
+
+/**
+ * How packets are wrapped into frames on the wire. The options are agreed on
+ * in the ESTABLISH_CONNECTION handshake, which itself always uses FIXED
+ * framing (the Arduino resets to it whenever the port is opened).
+ *
+ * Fixed frames are HEADER, command, arguments, zero-padded to
+ * SerialComm.DATA_SIZE bytes. With OPTION_VARIABLE_LENGTH, frames are HEADER,
+ * body length, command, arguments, with no padding, so a frame costs only its
+ * real size. With OPTION_CHECKSUM, the last two bytes of a frame are a
+ * CRC-16/CCITT of everything between the header and them, so corrupted frames
+ * are rejected as soon as they arrive. With OPTION_SEQUENCED, a sequence
+ * number and a cumulative ack follow the header (and length), for
+ * SlidingWindowLink. With OPTION_FEC, the length byte is sent three times and
+ * taken by a bitwise majority vote, and everything after it ends in two
+ * Reed-Solomon parity bytes, so a frame with one corrupted byte is repaired
+ * instead of resent.
+ */
+public class Framing {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Link options, as a bitmask
+	public static final int OPTION_VARIABLE_LENGTH = 0x01;
+	public static final int OPTION_CHECKSUM = 0x02;
+	public static final int OPTION_SEQUENCED = 0x04;
+	public static final int OPTION_FEC = 0x08;
+	public static final int SUPPORTED_OPTIONS = OPTION_VARIABLE_LENGTH
+			| OPTION_CHECKSUM | OPTION_SEQUENCED | OPTION_FEC;
+
+	public static final int LOCATION_HEADER = 0;
+
+	// Variable-length frames only: number of body bytes after the length byte
+	public static final int LOCATION_LENGTH = 1;
+	public static final int LENGTH_LENGTH = 1;
+
+	// FEC frames only: copies of the length byte
+	public static final int LENGTH_COPIES = 3;
+
+	// Sequenced frames only: the frame's sequence number, then the sequence
+	// number the sender expects next from us
+	public static final int LENGTH_SEQUENCE = 1;
+	public static final int LENGTH_ACK = 1;
+
+	// Longest frame of any framing. Variable-length frames are kept within
+	// the Arduino's 64-byte receive buffer.
+	public static final int MAX_FRAME_LENGTH = 64;
+
+	public static final Framing FIXED = new Framing(0);
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final int options;
+	private final int sequenceIndex;
+	private final int bodyIndex;
+	private final int checksumLength;
+	private final int trailerLength;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * @param options
+	 *            a bitmask of the link options in use
+	 */
+	public Framing(int options) {
+		this.options = options;
+		this.sequenceIndex = SerialPacket.LENGTH_HEADER
+				+ (isVariableLength() ? LENGTH_LENGTH * getLengthCopies() : 0);
+		this.bodyIndex = sequenceIndex
+				+ (isSequenced() ? LENGTH_SEQUENCE + LENGTH_ACK : 0);
+		this.checksumLength = hasChecksum() ? Crc16.LENGTH : 0;
+		this.trailerLength = checksumLength
+				+ (hasFec() ? ReedSolomon.PARITY_LENGTH : 0);
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public int getOptions() {
+		return options;
+	}
+
+	public boolean isVariableLength() {
+		return (options & OPTION_VARIABLE_LENGTH) != 0;
+	}
+
+	public boolean hasChecksum() {
+		return (options & OPTION_CHECKSUM) != 0;
+	}
+
+	public boolean isSequenced() {
+		return (options & OPTION_SEQUENCED) != 0;
+	}
+
+	public boolean hasFec() {
+		return (options & OPTION_FEC) != 0;
+	}
+
+	/**
+	 * @return the index of the packet body (its command byte) in a frame
+	 */
+	public int getBodyIndex() {
+		return bodyIndex;
+	}
+
+	/**
+	 * @param frameLength
+	 *            the length of a whole frame
+	 * @return the number of bytes of the frame from its body index up to the
+	 *         checksum and parity (including any padding)
+	 */
+	public int getBodyLength(int frameLength) {
+		return frameLength - bodyIndex - trailerLength;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Get the total length of a frame from the value of its length byte.
+	 *
+	 * @param lengthByte
+	 *            the frame's length byte, voted from its copies with FEC
+	 *            (ignored for fixed frames)
+	 * @return the frame length in bytes, or -1 if the length byte can't be
+	 *         valid
+	 */
+	public int getFrameLength(byte lengthByte) {
+		if (!isVariableLength())
+			return SerialComm.DATA_SIZE;
+		int bodyLength = lengthByte & 0xFF;
+		int frameLength = bodyIndex + bodyLength + trailerLength;
+		if (bodyLength == 0 || frameLength > MAX_FRAME_LENGTH)
+			return -1;
+		return frameLength;
+	}
+
+	/**
+	 * @param frame
+	 *            the bytes of a sequenced frame
+	 * @return the frame's sequence number, from 0 to 255
+	 */
+	public int getSequence(byte[] frame) {
+		return frame[sequenceIndex] & 0xFF;
+	}
+
+	/**
+	 * @param frame
+	 *            the bytes of a sequenced frame
+	 * @return the next sequence number the frame's sender expects, from 0 to
+	 *         255
+	 */
+	public int getAck(byte[] frame) {
+		return frame[sequenceIndex + LENGTH_SEQUENCE] & 0xFF;
+	}
+
+	/**
+	 * @return the number of copies of the length byte in a variable-length
+	 *         frame
+	 */
+	public int getLengthCopies() {
+		return hasFec() ? LENGTH_COPIES : 1;
+	}
+
+	/**
+	 * Take the bitwise majority of three copies of a byte, which is right as
+	 * long as no more than one copy is corrupted.
+	 */
+	public static byte vote(byte a, byte b, byte c) {
+		return (byte) ((a & b) | (a & c) | (b & c));
+	}
+
+	/**
+	 * Repair a whole frame in place if it has FEC and is damaged in only one
+	 * byte of its length copies and one byte after them. The length copies
+	 * are all set to their vote.
+	 *
+	 * @param frame
+	 *            the bytes of the frame, starting at its header
+	 * @param frameLength
+	 *            the length of the frame
+	 * @return ReedSolomon.CLEAN if the frame is intact or has no FEC,
+	 *         ReedSolomon.CORRECTED if it was repaired, or
+	 *         ReedSolomon.UNCORRECTABLE if it can't be
+	 */
+	public int correct(byte[] frame, int frameLength) {
+		if (!hasFec())
+			return ReedSolomon.CLEAN;
+		int result = ReedSolomon.correct(frame, sequenceIndex, frameLength
+				- sequenceIndex);
+		if (isVariableLength()) {
+			byte length = vote(frame[LOCATION_LENGTH],
+					frame[LOCATION_LENGTH + 1], frame[LOCATION_LENGTH + 2]);
+			for (int i = 0; i < LENGTH_COPIES; i++) {
+				if (frame[LOCATION_LENGTH + i] != length) {
+					frame[LOCATION_LENGTH + i] = length;
+					if (result == ReedSolomon.CLEAN)
+						result = ReedSolomon.CORRECTED;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Replace the ack of an already encoded sequenced frame, for example
+	 * before retransmitting it, and update its CRC and parity.
+	 *
+	 * @param frame
+	 *            the bytes of the frame
+	 * @param frameLength
+	 *            the length of the frame
+	 * @param ack
+	 *            the new ack
+	 */
+	public void setAck(byte[] frame, int frameLength, int ack) {
+		frame[sequenceIndex + LENGTH_SEQUENCE] = (byte) ack;
+		seal(ByteBuffer.wrap(frame), 0, frameLength);
+	}
+
+	/**
+	 * Check the CRC of a whole frame, if frames carry one.
+	 *
+	 * @param frame
+	 *            the bytes of the frame, starting at its header
+	 * @param frameLength
+	 *            the length of the frame
+	 * @return true if the frame is intact or frames carry no CRC
+	 */
+	public boolean isChecksumValid(byte[] frame, int frameLength) {
+		if (!hasChecksum())
+			return true;
+		int crcIndex = frameLength - trailerLength;
+		return Crc16.get(frame, crcIndex) == Crc16.compute(frame,
+				LOCATION_HEADER + SerialPacket.LENGTH_HEADER, crcIndex
+						- SerialPacket.LENGTH_HEADER);
+	}
+
+	/**
+	 * Write the packet into the buffer as one frame, with sequence number and
+	 * ack 0 if frames are sequenced.
+	 *
+	 * @see #encode(SerialPacket, WireFormat, ByteBuffer, int, int)
+	 */
+	public int encode(SerialPacket packet, WireFormat format, ByteBuffer dst) {
+		return encode(packet, format, dst, 0, 0);
+	}
+
+	/**
+	 * Write the packet into the buffer as one frame at the buffer's position,
+	 * and advance the position past it. Nothing is allocated.
+	 *
+	 * @param packet
+	 *            the packet to frame
+	 * @param format
+	 *            the encoding of numeric arguments
+	 * @param dst
+	 *            the buffer to write into
+	 * @param sequence
+	 *            the sequence number of the frame (ignored unless sequenced)
+	 * @param ack
+	 *            the next sequence number expected from the other end
+	 *            (ignored unless sequenced)
+	 * @return the length of the frame in bytes
+	 * @throws BufferOverflowException
+	 *             if the buffer doesn't have room for the frame
+	 */
+	public int encode(SerialPacket packet, WireFormat format, ByteBuffer dst,
+			int sequence, int ack) {
+		int start = dst.position();
+		int bodyLength = packet.getBodyLength(format);
+		int frameLength = isVariableLength() ? bodyIndex + bodyLength
+				+ trailerLength : SerialComm.DATA_SIZE;
+		if (bodyIndex + bodyLength + trailerLength > frameLength
+				|| dst.remaining() < frameLength)
+			throw new BufferOverflowException();
+
+		dst.put(start + LOCATION_HEADER, SerialPacket.HEADER);
+		if (isVariableLength()) {
+			for (int i = 0; i < getLengthCopies(); i++)
+				dst.put(start + LOCATION_LENGTH + i, (byte) bodyLength);
+		}
+		if (isSequenced()) {
+			dst.put(start + sequenceIndex, (byte) sequence);
+			dst.put(start + sequenceIndex + LENGTH_SEQUENCE, (byte) ack);
+		}
+		packet.encodeBody(dst, start + bodyIndex, format);
+
+		// Pad fixed frames out to their full length
+		int end = start + frameLength - trailerLength;
+		for (int i = start + bodyIndex + bodyLength; i < end; i++)
+			dst.put(i, (byte) 0);
+
+		seal(dst, start, frameLength);
+		dst.position(start + frameLength);
+		return frameLength;
+	}
+
+	/**
+	 * Set the packet's command and arguments from the body of a frame whose
+	 * trailer has already been checked, as FrameDecoder does. The buffer's
+	 * position is not changed.
+	 *
+	 * @param packet
+	 *            the packet to decode into
+	 * @param format
+	 *            the encoding of numeric arguments
+	 * @param frame
+	 *            the buffer holding the frame, starting at index 0
+	 * @param frameLength
+	 *            the length of the frame
+	 * @throws InvalidPacketException
+	 *             if the body is too short for its command
+	 */
+	public void decode(SerialPacket packet, WireFormat format,
+			ByteBuffer frame, int frameLength) throws InvalidPacketException {
+		packet.decodeBody(frame, bodyIndex, getBodyLength(frameLength),
+				format);
+	}
+
+	@Override
+	public String toString() {
+		return (isVariableLength() ? "variable-length" : "fixed-length")
+				+ (hasChecksum() ? " checksummed" : "")
+				+ (isSequenced() ? " sequenced" : "")
+				+ (hasFec() ? " FEC" : "");
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * Write the trailer of a frame whose other bytes are in place: the CRC of
+	 * everything after the header, then the parity of everything after the
+	 * length copies.
+	 */
+	private void seal(ByteBuffer frame, int start, int frameLength) {
+		int end = start + frameLength - trailerLength;
+		if (hasChecksum()) {
+			int checked = start + SerialPacket.LENGTH_HEADER;
+			Crc16.put(frame, end, Crc16.compute(frame, checked, end
+					- checked));
+		}
+		if (hasFec()) {
+			int protectedIndex = start + sequenceIndex;
+			ReedSolomon.encode(frame, protectedIndex, end + checksumLength
+					- protectedIndex);
+		}
+	}
+
+}
@@ -1,6 +1,6 @@
 package com.sattrak.rpi.serial;
 
-import com.sattrak.rpi.util.ByteConverter;
+import java.nio.ByteBuffer;
 
 public class GpsResponsePacket extends SerialPacket {
 
@@ -8,11 +8,13 @@ public class GpsResponsePacket extends SerialPacket {
 	// CONSTANTS
 	// ===============================
 
-	// Argument 1: azimuth angle
-	private static final int LOCATION_LATITUDE = 0;
+	// Argument 1: latitude
+	private static final int ARG_LATITUDE = 0;
 
-	// Argument 2: elevation angle
-	private static final int LOCATION_LONGITUDE = 7;
+	// Argument 2: longitude
+	private static final int ARG_LONGITUDE = 1;
+
+	private static final int NUM_ARGS = 2;
 
 	// ===============================
 	// INSTANCE VARIABLES
@@ -46,33 +48,39 @@ public class GpsResponsePacket extends SerialPacket {
 		return longitude;
 	}
 
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	public void setLatitude(double latitude) {
+		this.latitude = latitude;
+	}
+
+	public void setLongitude(double longitude) {
+		this.longitude = longitude;
+	}
+
 	// ===============================
 	// OVERRIDDEN METHODS
 	// ===============================
 
 	@Override
-	protected byte[] argsToBytes() {
-		// Convert arguments to byte arrays
-		byte[] latBytes = ByteConverter.doubleToStringBytes(latitude);
-		byte[] lonBytes = ByteConverter.doubleToStringBytes(longitude);
-
-		// Create byte array for all arguments
-		byte[] argBytes = new byte[latBytes.length + lonBytes.length];
-
-		// Insert arguments into array
-		System.arraycopy(latBytes, 0, argBytes, LOCATION_LATITUDE,
-				latBytes.length);
-		System.arraycopy(lonBytes, 0, argBytes, LOCATION_LONGITUDE,
-				lonBytes.length);
-		return argBytes;
+	protected int getArgsLength(WireFormat format) {
+		return NUM_ARGS * format.getValueLength();
+	}
+
+	@Override
+	protected void writeArgs(ByteBuffer dst, int index, WireFormat format) {
+		int length = format.getValueLength();
+		format.putValue(dst, index + ARG_LATITUDE * length, latitude);
+		format.putValue(dst, index + ARG_LONGITUDE * length, longitude);
 	}
 
 	@Override
-	protected void bytesToArgs(byte[] argBytes) {
-		latitude = ByteConverter.stringBytesToDouble(argBytes,
-				LOCATION_LATITUDE);
-		longitude = ByteConverter.stringBytesToDouble(argBytes,
-				LOCATION_LONGITUDE);
+	protected void readArgs(ByteBuffer src, int index, WireFormat format) {
+		int length = format.getValueLength();
+		latitude = format.getValue(src, index + ARG_LATITUDE * length);
+		longitude = format.getValue(src, index + ARG_LONGITUDE * length);
 	}
 
 	@Override
@@ -0,0 +1,27 @@
+package com.sattrak.rpi.serial;
+
+/**
+ * The priority classes of commands sent through AsyncSerialEngine, most
+ * urgent first. A waiting command is always sent before any from a later
+ * lane, and one whose deadline is at risk may be sent even when the send
+ * window is full of earlier commands.
+ */
+public enum Lane {
+
+	/**
+	 * Commands that move the mount for a task, and readings taken while it
+	 * settles.
+	 */
+	MOTION,
+
+	/**
+	 * Readings taken on a schedule, such as background telemetry.
+	 */
+	SCHEDULED,
+
+	/**
+	 * Requests from the operator, and anything else that can wait.
+	 */
+	INTERACTIVE;
+
+}
@@ -0,0 +1,167 @@
+package com.sattrak.rpi.serial;
+
+/**
+ * How the commands of one Lane have fared in AsyncSerialEngine: how long they
+ * waited for a place in the send window, how long they took to be answered,
+ * and how many failed, missed their deadlines, had to be sent beyond the
+ * send window to meet them or were replaced by newer setpoints before being
+ * sent.
+ */
+public class LaneStatistics {
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final Lane lane;
+
+	private long completed;
+	private long failed;
+	private long deadlineMisses;
+	private long expedited;
+	private long coalesced;
+
+	// Times in ns
+	private long totalWait;
+	private long maxWait;
+	private long totalLatency;
+	private long maxLatency;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public LaneStatistics(Lane lane) {
+		this.lane = lane;
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public Lane getLane() {
+		return lane;
+	}
+
+	/**
+	 * @return the number of commands answered
+	 */
+	public synchronized long getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * @return the number of commands that were NACK'd, went unanswered or
+	 *         were abandoned
+	 */
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return the number of commands with deadlines that failed or were
+	 *         answered after them
+	 */
+	public synchronized long getDeadlineMisses() {
+		return deadlineMisses;
+	}
+
+	/**
+	 * @return the number of commands sent in a place held back beyond the
+	 *         send window because their deadlines were at risk
+	 */
+	public synchronized long getExpedited() {
+		return expedited;
+	}
+
+	/**
+	 * @return the number of setpoints dropped for a newer one with the same
+	 *         key before they were sent
+	 */
+	public synchronized long getCoalesced() {
+		return coalesced;
+	}
+
+	/**
+	 * @return the mean time from submission to first being sent in ms, over
+	 *         the commands answered
+	 */
+	public synchronized double getMeanWait() {
+		return completed == 0 ? 0 : totalWait / 1e6 / completed;
+	}
+
+	public synchronized double getMaxWait() {
+		return maxWait / 1e6;
+	}
+
+	/**
+	 * @return the mean time from submission to response in ms, over the
+	 *         commands answered
+	 */
+	public synchronized double getMeanLatency() {
+		return completed == 0 ? 0 : totalLatency / 1e6 / completed;
+	}
+
+	public synchronized double getMaxLatency() {
+		return maxLatency / 1e6;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Count a command that was answered.
+	 * 
+	 * @param wait
+	 *            the time from submission to first being sent in ns
+	 * @param latency
+	 *            the time from submission to response in ns
+	 * @param late
+	 *            true if it had a deadline and was answered after it
+	 */
+	public synchronized void recordCompleted(long wait, long latency,
+			boolean late) {
+		completed++;
+		totalWait += wait;
+		maxWait = Math.max(maxWait, wait);
+		totalLatency += latency;
+		maxLatency = Math.max(maxLatency, latency);
+		if (late)
+			deadlineMisses++;
+	}
+
+	/**
+	 * Count a command that failed.
+	 * 
+	 * @param timed
+	 *            true if it had a deadline
+	 */
+	public synchronized void recordFailed(boolean timed) {
+		failed++;
+		if (timed)
+			deadlineMisses++;
+	}
+
+	public synchronized void recordExpedited() {
+		expedited++;
+	}
+
+	public synchronized void recordCoalesced() {
+		coalesced++;
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s: %d answered, %d failed, %d deadlines "
+				+ "missed, %d expedited, %d coalesced; wait ms mean %.2f "
+				+ "max %.2f; latency ms mean %.2f max %.2f", lane, completed,
+				failed, deadlineMisses, expedited, coalesced, getMeanWait(),
+				getMaxWait(), getMeanLatency(), getMaxLatency());
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.sattrak.rpi.serial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A link-layer acknowledgement for sequenced framing. The cumulative ack is in
+ * the frame's ack field like every sequenced frame; this packet adds a
+ * selective ack of frames received beyond it. Link acks don't take a sequence
+ * number and are never passed up to the application.
+ */
+public class LinkAckPacket extends SerialPacket {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Argument 1: bit i set if frame (ack + 1 + i) has been received
+	public static final int LOCATION_SELECTIVE_ACKS = 0;
+	public static final int LENGTH_SELECTIVE_ACKS = 1;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private int selectiveAcks;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public LinkAckPacket(int selectiveAcks) {
+		setCommand(SerialCommand.LINK_ACK);
+		this.selectiveAcks = selectiveAcks;
+	}
+
+	public LinkAckPacket(byte[] packetBytes) throws InvalidPacketException {
+		fromBytes(packetBytes);
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public int getSelectiveAcks() {
+		return selectiveAcks;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	public void setSelectiveAcks(int selectiveAcks) {
+		this.selectiveAcks = selectiveAcks;
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	protected int getArgsLength(WireFormat format) {
+		return LOCATION_SELECTIVE_ACKS + LENGTH_SELECTIVE_ACKS;
+	}
+
+	@Override
+	protected void writeArgs(ByteBuffer dst, int index, WireFormat format) {
+		dst.put(index + LOCATION_SELECTIVE_ACKS, (byte) selectiveAcks);
+	}
+
+	@Override
+	protected void readArgs(ByteBuffer src, int index, WireFormat format) {
+		selectiveAcks = src.get(index + LOCATION_SELECTIVE_ACKS) & 0xFF;
+	}
+
+	@Override
+	protected String argsToString() {
+		return "Selective Acks: " + Integer.toBinaryString(selectiveAcks);
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.sattrak.rpi.serial;
+
+/**
+ * Tracks the outcome of the most recent exchanges over a link and reports it
+ * as degraded when too many of them failed (timed out or arrived garbled), so
+ * SerialComm can fall back to a slower, more reliable baud rate.
+ */
+public class LinkQualityMonitor {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	public static final int DEFAULT_WINDOW = 20;
+	public static final int DEFAULT_MIN_SAMPLES = 8;
+	public static final double DEFAULT_MAX_ERROR_RATE = 0.25;
+
+	// Outcomes are kept as bits of a long
+	private static final int MAX_WINDOW = 64;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final int window;
+	private final int minSamples;
+	private final double maxErrorRate;
+
+	// The last window outcomes, newest in bit 0, 1 meaning an error. Guarded
+	// by this.
+	private long errors;
+	private int samples;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public LinkQualityMonitor() {
+		this(DEFAULT_WINDOW, DEFAULT_MIN_SAMPLES, DEFAULT_MAX_ERROR_RATE);
+	}
+
+	/**
+	 * @param window
+	 *            the number of recent outcomes to consider, at most 64
+	 * @param minSamples
+	 *            the number of outcomes needed before the link can be
+	 *            reported as degraded
+	 * @param maxErrorRate
+	 *            the fraction of errors above which the link is degraded
+	 */
+	public LinkQualityMonitor(int window, int minSamples, double maxErrorRate) {
+		if (window < 1 || window > MAX_WINDOW)
+			throw new IllegalArgumentException("Invalid window " + window);
+		this.window = window;
+		this.minSamples = Math.min(minSamples, window);
+		this.maxErrorRate = maxErrorRate;
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	/**
+	 * @return the fraction of recent outcomes that were errors, or 0 if none
+	 *         have been recorded
+	 */
+	public synchronized double getErrorRate() {
+		if (samples == 0)
+			return 0;
+		return Long.bitCount(errors) / (double) samples;
+	}
+
+	/**
+	 * @return true if enough outcomes have been recorded and too many of them
+	 *         were errors
+	 */
+	public synchronized boolean isDegraded() {
+		return samples >= minSamples && getErrorRate() > maxErrorRate;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	public void recordSuccess() {
+		record(false);
+	}
+
+	public void recordError() {
+		record(true);
+	}
+
+	/**
+	 * Forget all outcomes, for example after the baud rate changes.
+	 */
+	public synchronized void reset() {
+		errors = 0;
+		samples = 0;
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	private synchronized void record(boolean error) {
+		long mask = window == MAX_WINDOW ? -1L : (1L << window) - 1;
+		errors = ((errors << 1) | (error ? 1 : 0)) & mask;
+		if (samples < window)
+			samples++;
+	}
+
+}
@@ -1,27 +1,46 @@
 package com.sattrak.rpi.serial;
 
+import java.nio.ByteBuffer;
+
 public class NackPacket extends SerialPacket {
 
 	// ===============================
 	// CONSTANTS
 	// ===============================
 
-	// Argument 1: Ack'd command
+	// Argument 1: Nack'd command
 	public static final int LOCATION_NACKD_COMMAND = 0;
+	public static final int LENGTH_NACKD_COMMAND = 1;
+
+	// Argument 2: Why the command was rejected (0 from firmware that predates
+	// reasons)
+	public static final int LOCATION_REASON = 1;
+	public static final int LENGTH_REASON = 1;
+
+	// The command is not supported or its arguments were refused
+	public static final int REASON_REJECTED = 0;
+	// The frame failed its CRC, so the nack'd command may itself be garbled
+	public static final int REASON_CHECKSUM = 1;
 
 	// ===============================
 	// INSTANCE VARIABLES
 	// ===============================
 
 	private SerialCommand nackdCommand;
+	private int reason;
 
 	// ===============================
 	// CONSTRUCTORS
 	// ===============================
 
 	public NackPacket(SerialCommand nackdCommand) {
+		this(nackdCommand, REASON_REJECTED);
+	}
+
+	public NackPacket(SerialCommand nackdCommand, int reason) {
 		setCommand(SerialCommand.NACK);
 		this.nackdCommand = nackdCommand;
+		this.reason = reason;
 	}
 
 	public NackPacket(byte[] packetBytes) throws InvalidPacketException {
@@ -36,26 +55,56 @@ public class NackPacket extends SerialPacket {
 		return nackdCommand;
 	}
 
+	public int getReason() {
+		return reason;
+	}
+
+	/**
+	 * @return true if the Arduino received a corrupted frame, rather than
+	 *         rejecting a command
+	 */
+	public boolean isChecksumFailure() {
+		return reason == REASON_CHECKSUM;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	public void setNackdCommand(SerialCommand nackdCommand) {
+		this.nackdCommand = nackdCommand;
+	}
+
+	public void setReason(int reason) {
+		this.reason = reason;
+	}
+
 	// ===============================
 	// OVERRIDDEN METHODS
 	// ===============================
 
 	@Override
-	protected byte[] argsToBytes() {
-		byte[] argBytes = new byte[1];
-		argBytes[LOCATION_NACKD_COMMAND] = nackdCommand.getValue();
-		return argBytes;
+	protected int getArgsLength(WireFormat format) {
+		return LOCATION_REASON + LENGTH_REASON;
+	}
+
+	@Override
+	protected void writeArgs(ByteBuffer dst, int index, WireFormat format) {
+		dst.put(index + LOCATION_NACKD_COMMAND, nackdCommand.getValue());
+		dst.put(index + LOCATION_REASON, (byte) reason);
 	}
 
 	@Override
-	protected void bytesToArgs(byte[] argBytes) {
-		nackdCommand = SerialCommand
-				.fromValue(argBytes[LOCATION_NACKD_COMMAND]);
+	protected void readArgs(ByteBuffer src, int index, WireFormat format) {
+		nackdCommand = SerialCommand.fromValue(src.get(index
+				+ LOCATION_NACKD_COMMAND));
+		reason = src.get(index + LOCATION_REASON) & 0xFF;
 	}
 
 	@Override
 	protected String argsToString() {
-		return "Nack'd Command: " + nackdCommand.toString();
+		return "Nack'd Command: " + nackdCommand.toString() + "\n"
+				+ "Reason: " + reason;
 	}
 
 }
@@ -1,5 +1,7 @@
 package com.sattrak.rpi.serial;
 
+import java.nio.ByteBuffer;
+
 public class OrientationReadPacket extends SerialPacket {
 
 	// ===============================
@@ -20,13 +22,18 @@ public class OrientationReadPacket extends SerialPacket {
 	// ===============================
 
 	@Override
-	protected byte[] argsToBytes() {
-		// Return an empty byte array because there are no arguments
-		return new byte[0];
+	protected int getArgsLength(WireFormat format) {
+		// There are no arguments
+		return 0;
+	}
+
+	@Override
+	protected void writeArgs(ByteBuffer dst, int index, WireFormat format) {
+		// Do nothing because there are no arguments
 	}
 
 	@Override
-	protected void bytesToArgs(byte[] argBytes) {
+	protected void readArgs(ByteBuffer src, int index, WireFormat format) {
 		// Do nothing because there are no arguments
 	}
 
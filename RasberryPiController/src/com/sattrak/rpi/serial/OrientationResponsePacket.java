@@ -1,6 +1,6 @@
 package com.sattrak.rpi.serial;
 
-import com.sattrak.rpi.util.ByteConverter;
+import java.nio.ByteBuffer;
 
 public class OrientationResponsePacket extends SerialPacket {
 
@@ -9,10 +9,12 @@ public class OrientationResponsePacket extends SerialPacket {
 	// ===============================
 
 	// Argument 1: azimuth angle
-	private static final int LOCATION_AZIMUTH = 0;
+	private static final int ARG_AZIMUTH = 0;
 
 	// Argument 2: elevation angle
-	private static final int LOCATION_ELEVATION = 7;
+	private static final int ARG_ELEVATION = 1;
+
+	private static final int NUM_ARGS = 2;
 
 	// ===============================
 	// INSTANCE VARIABLES
@@ -47,31 +49,39 @@ public class OrientationResponsePacket extends SerialPacket {
 		return elevation;
 	}
 
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	public void setAzimuth(double azimuth) {
+		this.azimuth = azimuth;
+	}
+
+	public void setElevation(double elevation) {
+		this.elevation = elevation;
+	}
+
 	// ===============================
 	// OVERRIDDEN METHODS
 	// ===============================
 
 	@Override
-	protected byte[] argsToBytes() {
-		// Convert arguments to byte arrays
-		byte[] azBytes = ByteConverter.doubleToStringBytes(azimuth);
-		byte[] elBytes = ByteConverter.doubleToStringBytes(elevation);
-
-		// Create byte array for all arguments
-		byte[] argBytes = new byte[azBytes.length + elBytes.length];
-
-		// Insert arguments into array
-		System.arraycopy(azBytes, 0, argBytes, LOCATION_AZIMUTH, azBytes.length);
-		System.arraycopy(elBytes, 0, argBytes, LOCATION_ELEVATION,
-				elBytes.length);
-		return argBytes;
+	protected int getArgsLength(WireFormat format) {
+		return NUM_ARGS * format.getValueLength();
+	}
+
+	@Override
+	protected void writeArgs(ByteBuffer dst, int index, WireFormat format) {
+		int length = format.getValueLength();
+		format.putValue(dst, index + ARG_AZIMUTH * length, azimuth);
+		format.putValue(dst, index + ARG_ELEVATION * length, elevation);
 	}
 
 	@Override
-	protected void bytesToArgs(byte[] argBytes) {
-		azimuth = ByteConverter.stringBytesToDouble(argBytes, LOCATION_AZIMUTH);
-		elevation = ByteConverter.stringBytesToDouble(argBytes,
-				LOCATION_ELEVATION);
+	protected void readArgs(ByteBuffer src, int index, WireFormat format) {
+		int length = format.getValueLength();
+		azimuth = format.getValue(src, index + ARG_AZIMUTH * length);
+		elevation = format.getValue(src, index + ARG_ELEVATION * length);
 	}
 
 	@Override
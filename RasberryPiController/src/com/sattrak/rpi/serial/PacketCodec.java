@@ -0,0 +1,97 @@
+package com.sattrak.rpi.serial;
+
+import java.nio.ByteBuffer;
+
+import com.sattrak.rpi.serial.SerialPacket.InvalidPacketException;
+
+/**
+ * Holds one reusable (flyweight) packet for each SerialCommand so packets can
+ * be built and decoded without allocating. A decoded packet is overwritten the
+ * next time a packet with the same command is decoded, so callers must copy
+ * out any values they want to keep. A codec is not thread-safe and should be
+ * owned by a single thread.
+ */
+public class PacketCodec {
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	// Indexed by SerialCommand ordinal
+	private final SerialPacket[] flyweights;
+	private WireFormat wireFormat = WireFormat.V1_ASCII;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public PacketCodec() {
+		flyweights = new SerialPacket[SerialCommand.values().length];
+		for (SerialCommand command : SerialCommand.values())
+			flyweights[command.ordinal()] = SerialPacket.create(command);
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public WireFormat getWireFormat() {
+		return wireFormat;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	/**
+	 * Set the encoding of numeric arguments used when decoding.
+	 * 
+	 * @param wireFormat
+	 *            the format agreed on in the handshake
+	 */
+	public void setWireFormat(WireFormat wireFormat) {
+		this.wireFormat = wireFormat;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Get the reusable packet for the given command, for example to fill in
+	 * and send.
+	 * 
+	 * @param command
+	 *            the command
+	 * @return the packet, or null if the command has no packet class
+	 */
+	public SerialPacket get(SerialCommand command) {
+		return flyweights[command.ordinal()];
+	}
+
+	/**
+	 * Decode a frame whose trailer has already been checked, as FrameDecoder
+	 * does, into the reusable packet for its command.
+	 * 
+	 * @param framing
+	 *            the framing of the link
+	 * @param frame
+	 *            the buffer holding the frame, starting at index 0
+	 * @param frameLength
+	 *            the length of the frame
+	 * @return the reusable packet, valid until the next packet with the same
+	 *         command is decoded
+	 * @throws InvalidPacketException
+	 *             if the command is unknown or the body is too short
+	 */
+	public SerialPacket decode(Framing framing, ByteBuffer frame,
+			int frameLength) throws InvalidPacketException {
+		SerialPacket packet = get(SerialCommand.fromValue(frame.get(framing
+				.getBodyIndex())));
+		if (packet == null)
+			throw new InvalidPacketException("Unknown command");
+		framing.decode(packet, wireFormat, frame, frameLength);
+		return packet;
+	}
+
+}
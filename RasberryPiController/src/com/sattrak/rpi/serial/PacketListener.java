@@ -0,0 +1,20 @@
+package com.sattrak.rpi.serial;
+
+/**
+ * Receives packets from a SerialComm or an AsyncSerialEngine that don't answer
+ * any request, such as readings the Arduino pushes for a subscription.
+ */
+public interface PacketListener {
+
+	/**
+	 * Called on the thread receiving, which reads nothing more until this
+	 * returns.
+	 * 
+	 * @param packet
+	 *            the packet received, decoded into the receiver's reusable
+	 *            packet for its command; a listener that keeps it must keep
+	 *            a copy
+	 */
+	void packetReceived(SerialPacket packet);
+
+}
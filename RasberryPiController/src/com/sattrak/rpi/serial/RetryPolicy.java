@@ -0,0 +1,57 @@
+package com.sattrak.rpi.serial;
+
+/**
+ * Decides how long to wait for a response to a command, how long to back off
+ * after a failed attempt, and how many attempts to make. Implementations are
+ * shared between threads and must be thread-safe.
+ */
+public interface RetryPolicy {
+
+	/**
+	 * @return the maximum number of times a command is sent before giving up
+	 */
+	int getMaxAttempts();
+
+	/**
+	 * Get the time to wait for a response to the given command before the
+	 * attempt is considered lost.
+	 * 
+	 * @param command
+	 *            the command being sent
+	 * @return the response timeout in ms
+	 */
+	long getTimeout(SerialCommand command);
+
+	/**
+	 * Get the time to wait before resending a command after a failed attempt.
+	 * 
+	 * @param command
+	 *            the command being sent
+	 * @param failedAttempts
+	 *            the number of attempts that have failed so far (at least 1)
+	 * @return the backoff delay in ms
+	 */
+	long getBackoff(SerialCommand command, int failedAttempts);
+
+	/**
+	 * Record the round trip time of a command that was answered on its first
+	 * attempt. Retransmitted commands are not sampled, since their response
+	 * cannot be attributed to a particular attempt.
+	 * 
+	 * @param command
+	 *            the command that was answered
+	 * @param rttNanos
+	 *            the time between sending the command and receiving its
+	 *            response, in ns
+	 */
+	void onResponse(SerialCommand command, long rttNanos);
+
+	/**
+	 * Record that an attempt to send the given command timed out.
+	 * 
+	 * @param command
+	 *            the command that timed out
+	 */
+	void onTimeout(SerialCommand command);
+
+}
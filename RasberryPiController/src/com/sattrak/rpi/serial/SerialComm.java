@@ -1,18 +1,20 @@
 package com.sattrak.rpi.serial;
 
-import gnu.io.CommPort;
-import gnu.io.CommPortIdentifier;
 import gnu.io.NoSuchPortException;
 import gnu.io.PortInUseException;
-import gnu.io.SerialPort;
 import gnu.io.UnsupportedCommOperationException;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.TooManyListenersException;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import com.sattrak.rpi.serial.SerialPacket.ChecksumException;
 import com.sattrak.rpi.serial.SerialPacket.InvalidPacketException;
+import com.sattrak.rpi.serial.transport.RxtxTransport;
+import com.sattrak.rpi.serial.transport.SerialTransport;
 import com.sattrak.rpi.util.ByteConverter;
 
 public class SerialComm {
@@ -21,20 +23,57 @@ public class SerialComm {
 	// CONSTANTS
 	// ===============================
 
-	private static final int COMM_TIMEOUT = 2000; // ms
 	public static final int BAUD_RATE = 9600;
 	public static final int DATA_SIZE = 24; // bytes
-	private static final int MAX_RETRIES = 5;
-	private static final int RETRY_DELAY = 2000; // ms
 	private static final int ARDUINO_INIT_DELAY = 2000; // ms
 
+	// Rates tried by negotiateBaudRate, fastest first. The Arduino always
+	// starts at BAUD_RATE.
+	public static final int[] BAUD_RATES = { 115200, 57600, 38400, 19200,
+			BAUD_RATE };
+
+	// Time the Arduino waits at a new baud rate for a valid packet before
+	// reverting to the old one. Must match BAUD_CONFIRM_TIMEOUT in firmware.
+	static final int BAUD_CONFIRM_TIMEOUT = 3000; // ms
+
+	// Confirming a new baud rate must finish well within BAUD_CONFIRM_TIMEOUT
+	static final RetryPolicy BAUD_CONFIRM_POLICY = new FixedRetryPolicy(3,
+			300, 50);
+
 	// ===============================
 	// INSTANCE VARIABLES
 	// ===============================
 
-	private SerialPort serialPort;
-	private InputStream in;
-	private OutputStream out;
+	private SerialTransport transport;
+	private FrameDecoder decoder = new FrameDecoder();
+	private PacketCodec codec = new PacketCodec();
+	private Framing framing = Framing.FIXED;
+	private volatile int baudRate = BAUD_RATE;
+
+	// Link layer for sequenced framing, or null
+	private SlidingWindowLink link;
+	private int linkWindow = SlidingWindowLink.DEFAULT_WINDOW;
+
+	// Serializes writes to the serial port, which the link also makes from
+	// its own thread
+	private final Object writeLock = new Object();
+	private boolean verbose = true;
+
+	// Reusable frame buffers, so sending and receiving don't allocate
+	private final byte[] txBytes = new byte[Framing.MAX_FRAME_LENGTH];
+	private final ByteBuffer txBuffer = ByteBuffer.wrap(txBytes);
+	private final byte[] rxBytes = new byte[Framing.MAX_FRAME_LENGTH];
+	private final ByteBuffer rxBuffer = ByteBuffer.wrap(rxBytes);
+	private int rxLength;
+	private RetryPolicy retryPolicy = new AdaptiveRetryPolicy();
+
+	// Errors seen by sendAndReceive, used to fall back to a slower baud rate
+	private final LinkQualityMonitor linkMonitor = new LinkQualityMonitor();
+	private boolean changingBaudRate;
+
+	// Receive packets that answer nothing sent, such as pushed readings
+	private final CopyOnWriteArrayList<PacketListener> listeners =
+			new CopyOnWriteArrayList<PacketListener>();
 
 	// ===============================
 	// CONSTRUCTORS
@@ -44,12 +83,123 @@ public class SerialComm {
 		connect(portName);
 	}
 
+	/**
+	 * Create a SerialComm over an already open transport, such as a
+	 * TtyChannelTransport or one end of a PipeTransport.
+	 * 
+	 * @param transport
+	 *            the transport to the Arduino, at BAUD_RATE
+	 */
+	public SerialComm(SerialTransport transport) {
+		this.transport = transport;
+	}
+
 	// ===============================
 	// GETTERS
 	// ===============================
 
-	public SerialPort getSerialPort() {
-		return serialPort;
+	public SerialTransport getTransport() {
+		return transport;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * @return the codec holding reusable packets for the thread that sends
+	 *         and receives through this SerialComm
+	 */
+	public PacketCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return the encoding of numeric arguments agreed on by
+	 *         establishConnection
+	 */
+	public WireFormat getWireFormat() {
+		return codec.getWireFormat();
+	}
+
+	/**
+	 * @return the framing agreed on by establishConnection
+	 */
+	public Framing getFraming() {
+		return framing;
+	}
+
+	/**
+	 * @return the baud rate currently in use
+	 */
+	public int getBaudRate() {
+		return baudRate;
+	}
+
+	public LinkQualityMonitor getLinkMonitor() {
+		return linkMonitor;
+	}
+
+	/**
+	 * @return the number of received frames rejected for a bad CRC or damage
+	 *         FEC couldn't repair
+	 */
+	public long getCorruptFrames() {
+		return decoder.getCorruptFrames();
+	}
+
+	/**
+	 * @return the number of received frames repaired by FEC instead of being
+	 *         resent
+	 */
+	public long getCorrectedFrames() {
+		return decoder.getCorrectedFrames();
+	}
+
+	/**
+	 * @return the number of received frames FEC found too damaged to repair
+	 */
+	public long getUncorrectableFrames() {
+		return decoder.getUncorrectableFrames();
+	}
+
+	/**
+	 * @return the sliding window link layer, or null if the Arduino doesn't
+	 *         support sequenced framing
+	 */
+	public SlidingWindowLink getLink() {
+		return link;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Set the send window of the link layer, used if sequenced framing is
+	 * agreed on by the next establishConnection.
+	 * 
+	 * @param linkWindow
+	 *            the most frames unacknowledged at once, up to
+	 *            SlidingWindowLink.MAX_WINDOW
+	 */
+	public void setLinkWindow(int linkWindow) {
+		this.linkWindow = linkWindow;
+	}
+
+	/**
+	 * Turn printing of every sent and received frame on or off. Printing
+	 * allocates, so it should be off in high-rate loops.
+	 * 
+	 * @param verbose
+	 *            true to print frames
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
 	}
 
 	// ===============================
@@ -57,7 +207,7 @@ public class SerialComm {
 	// ===============================
 
 	/**
-	 * Connect to the specified serial port
+	 * Connect to the specified serial port through RXTX
 	 * 
 	 * @throws NoSuchPortException
 	 * @throws PortInUseException
@@ -69,32 +219,59 @@ public class SerialComm {
 	public void connect(String portName) throws NoSuchPortException,
 			PortInUseException, UnsupportedCommOperationException,
 			TooManyListenersException, IOException {
-		// Get the identifier for the intended port
-		CommPortIdentifier portIdentifier = CommPortIdentifier
-				.getPortIdentifier(portName);
-
-		// Open the port
-		CommPort commPort = portIdentifier.open(this.getClass().getName(),
-				COMM_TIMEOUT);
-
-		// Set the parameters
-		serialPort = (SerialPort) commPort;
-		serialPort.setSerialPortParams(BAUD_RATE, SerialPort.DATABITS_8,
-				SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+		transport = new RxtxTransport(portName, BAUD_RATE);
+	}
 
-		in = serialPort.getInputStream();
-		out = serialPort.getOutputStream();
+	/**
+	 * Stop the link layer, if any, and close the transport.
+	 */
+	public void close() {
+		if (link != null) {
+			link.close();
+			link = null;
+		}
+		transport.close();
 	}
 
 	/**
-	 * Send packets to Arduino until we get a valid expected response. Flush
-	 * buffer each time.
+	 * Send packets to Arduino until we get a valid expected response, and
+	 * agree on a protocol version and link options. The handshake itself is
+	 * in V1 with fixed framing; we offer the newest version and all the link
+	 * options we support, and the Arduino acks with the version and options
+	 * it will use (0 for both if its firmware predates them). If sequenced
+	 * framing is agreed on, frames go through a SlidingWindowLink from then
+	 * on.
 	 * 
 	 * @throws Exception
 	 */
 	public void establishConnection() throws Exception {
 		Thread.sleep(ARDUINO_INIT_DELAY);
-		sendAndReceive(new EstablishConnectionPacket());
+		codec.setWireFormat(WireFormat.V1_ASCII);
+		if (link != null) {
+			link.close();
+			link = null;
+		}
+		setFraming(Framing.FIXED);
+		AckPacket ack = (AckPacket) sendAndReceive(
+				new EstablishConnectionPacket());
+		WireFormat agreed = WireFormat.fromVersion(ack.getProtocolVersion());
+		codec.setWireFormat(agreed);
+		setFraming(new Framing(ack.getLinkOptions()
+				& Framing.SUPPORTED_OPTIONS));
+		if (framing.isSequenced()) {
+			link = new SlidingWindowLink(framing,
+					new SlidingWindowLink.FrameWriter() {
+
+						@Override
+						public void writeFrame(byte[] frame, int length)
+								throws IOException {
+							send(frame, length);
+						}
+					}, linkWindow,
+					SlidingWindowLink.DEFAULT_RETRANSMIT_TIMEOUT);
+		}
+		System.out.println("Using protocol version " + agreed.getVersion()
+				+ " with " + framing + " framing");
 		// boolean isAck = false;
 		// SerialCommand ackd = SerialCommand.NULL;
 		// int tries = 0;
@@ -157,19 +334,243 @@ public class SerialComm {
 	}
 
 	/**
-	 * Receive DATA_SIZE bytes from the serial port.
+	 * Move to the fastest rate in BAUD_RATES that both ends accept, trying
+	 * each rate faster than the current one in turn. Must be called after
+	 * establishConnection and before the connection is handed to an
+	 * AsyncSerialEngine.
+	 * 
+	 * @return the baud rate in use afterwards
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public int negotiateBaudRate() throws InterruptedException {
+		for (int rate : BAUD_RATES) {
+			if (rate <= baudRate || changeBaudRate(rate))
+				break;
+		}
+		System.out.println("Using baud rate " + baudRate);
+		return baudRate;
+	}
+
+	/**
+	 * Switch both ends of the link to the given baud rate. The Arduino acks
+	 * SET_BAUD at the old rate and then switches; we switch too and confirm
+	 * by repeating SET_BAUD at the new rate. If the confirmation is lost, we
+	 * switch back and wait for the Arduino to revert on its own.
+	 * 
+	 * @param rate
+	 *            the baud rate to switch to
+	 * @return true if the link is now at the given rate, false if it is still
+	 *         at the old one
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public boolean changeBaudRate(int rate) throws InterruptedException {
+		int oldRate = baudRate;
+		changingBaudRate = true;
+		try {
+			try {
+				sendAndReceive(new SetBaudPacket(rate));
+			} catch (IncorrectResponseException e) {
+				// Rejected, or the link is too poor to ask
+				System.out.println("Baud rate " + rate + " refused");
+				return false;
+			}
+
+			if (setPortBaudRate(rate)) {
+				try {
+					sendAndReceive(new SetBaudPacket(rate),
+							BAUD_CONFIRM_POLICY);
+					return true;
+				} catch (IncorrectResponseException e) {
+					System.out.println("Baud rate " + rate + " not confirmed");
+				}
+				setPortBaudRate(oldRate);
+			}
+			Thread.sleep(BAUD_CONFIRM_TIMEOUT);
+			flushReadBufferQuietly();
+			return false;
+		} finally {
+			changingBaudRate = false;
+			linkMonitor.reset();
+		}
+	}
+
+	/**
+	 * Have the Arduino push the response to a read command every period, as
+	 * if the read had been sent, until unsubscribe is called or the
+	 * connection is established again. Pushed packets go to the
+	 * PacketListeners: from sendAndReceive while it waits for a response,
+	 * and from dispatchPackets in between. A pushed packet may also answer a
+	 * read of the same sensor sent meanwhile, which gets an equally fresh
+	 * reading.
+	 * 
+	 * @param readCommand
+	 *            the read whose response is pushed: READ_ORIENTATION,
+	 *            READ_ENV or READ_GPS
+	 * @param period
+	 *            how often the response is pushed in ms, at least
+	 *            SubscribePacket.MIN_PERIOD
+	 * @throws NackReceivedException
+	 *             if the Arduino refused the read command or the period
+	 * @throws IncorrectResponseException
+	 *             if the subscription wasn't acknowledged
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void subscribe(SerialCommand readCommand, int period)
+			throws IncorrectResponseException, InterruptedException {
+		sendAndReceive(new SubscribePacket(readCommand, period));
+	}
+
+	/**
+	 * Stop the Arduino pushing the response to a read command. A pushed
+	 * packet already on its way may still arrive.
+	 * 
+	 * @param readCommand
+	 *            the read whose response is no longer pushed
+	 * @throws IncorrectResponseException
+	 *             if the Arduino didn't acknowledge
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void unsubscribe(SerialCommand readCommand)
+			throws IncorrectResponseException, InterruptedException {
+		sendAndReceive(new UnsubscribePacket(readCommand));
+	}
+
+	/**
+	 * Receive every packet that answers nothing sent through this
+	 * SerialComm. While an AsyncSerialEngine runs the link, add listeners to
+	 * the engine instead.
+	 * 
+	 * @param listener
+	 *            the listener, called on the thread receiving
+	 */
+	public void addPacketListener(PacketListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removePacketListener(PacketListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Receive packets for the given time and hand them all to the
+	 * PacketListeners. Pushed readings wait on the port while nothing is
+	 * being sent, so synchronous users call this between commands.
+	 * 
+	 * @param timeout
+	 *            how long to receive for in ms
+	 * @return the number of packets handed on
+	 * @throws IOException
+	 *             if the receive failed
+	 */
+	public int dispatchPackets(int timeout) throws IOException {
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		int dispatched = 0;
+		long remaining = timeout;
+		while (remaining > 0) {
+			SerialPacket inPacket;
+			try {
+				inPacket = receivePacket((int) remaining);
+			} catch (InvalidPacketException e) {
+				linkMonitor.recordError();
+				inPacket = null;
+			}
+			if (inPacket != null) {
+				notifyListeners(inPacket);
+				dispatched++;
+			}
+			remaining = (deadline - System.nanoTime()) / 1000000L;
+		}
+		return dispatched;
+	}
+
+	/**
+	 * Receive the next frame from the serial port, blocking until it
+	 * arrives.
 	 * 
 	 * @return the byte array of incoming data
 	 * @throws IOException
 	 *             if the receive failed
 	 */
 	public byte[] receive() throws IOException {
-		byte[] data = new byte[DATA_SIZE];
-		for (int i = 0; i < DATA_SIZE; i++) {
-			data[i] = (byte) in.read();
+		return receive(0);
+	}
+
+	/**
+	 * Receive the next frame from the serial port, waiting at most timeout ms
+	 * for each read. Bytes are read in bulk through the frame decoder, so
+	 * bytes that arrive after the frame stay buffered for the next call and
+	 * bytes before a frame start are skipped.
+	 * 
+	 * @param timeout
+	 *            the receive timeout in ms, or 0 to block indefinitely
+	 * @return the bytes of the frame in the current framing, or null if the
+	 *         timeout expired before a full frame arrived. Frames that fail
+	 *         their CRC are skipped.
+	 * @throws IOException
+	 *             if the receive failed
+	 */
+	public byte[] receive(int timeout) throws IOException {
+		while (true) {
+			try {
+				if (!receiveFrame(timeout))
+					return null;
+				return Arrays.copyOf(rxBytes, rxLength);
+			} catch (ChecksumException e) {
+				// Skip the corrupted frame
+			}
 		}
-		System.out.println("Received: " + ByteConverter.bytesToHex(data));
-		return data;
+	}
+
+	/**
+	 * Receive the next packet without allocating. The packet is decoded in
+	 * place into the codec's reusable packet for its command.
+	 * 
+	 * @param timeout
+	 *            the receive timeout in ms, or 0 to block indefinitely
+	 * @return the reusable packet, valid until the next packet with the same
+	 *         command is received, or null if the timeout expired
+	 * @throws IOException
+	 *             if the receive failed
+	 * @throws ChecksumException
+	 *             if a frame arrived but failed its CRC
+	 * @throws InvalidPacketException
+	 *             if the received frame is not a valid packet
+	 */
+	public SerialPacket receivePacket(int timeout) throws IOException,
+			InvalidPacketException {
+		if (!receiveFrame(timeout))
+			return null;
+		return codec.decode(framing, rxBuffer, rxLength);
+	}
+
+	/**
+	 * Receive the next packet as a new object of the appropriate subclass,
+	 * which the caller may keep.
+	 * 
+	 * @param timeout
+	 *            the receive timeout in ms, or 0 to block indefinitely
+	 * @return the packet, or null if the timeout expired
+	 * @throws IOException
+	 *             if the receive failed
+	 * @throws ChecksumException
+	 *             if a frame arrived but failed its CRC
+	 * @throws InvalidPacketException
+	 *             if the received frame is not a valid packet
+	 */
+	public SerialPacket receiveNewPacket(int timeout) throws IOException,
+			InvalidPacketException {
+		if (!receiveFrame(timeout))
+			return null;
+		SerialPacket packet = SerialPacket.create(SerialCommand
+				.fromValue(rxBytes[framing.getBodyIndex()]));
+		if (packet == null)
+			throw new InvalidPacketException("Unknown command");
+		framing.decode(packet, getWireFormat(), rxBuffer, rxLength);
+		return packet;
 	}
 
 	/**
@@ -181,12 +582,13 @@ public class SerialComm {
 	 *             if the send failed
 	 */
 	public void send(byte[] data) throws IOException {
-		System.out.println("Sending: " + ByteConverter.bytesToHex(data));
-		out.write(data);
+		send(data, data.length);
 	}
 
 	/**
-	 * Send the given packet over the serial port.
+	 * Send the given packet over the serial port. The packet is framed into a
+	 * reusable buffer in the framing agreed on by establishConnection: either
+	 * zero-padded to DATA_SIZE bytes, or length-prefixed and unpadded.
 	 * 
 	 * @param packet
 	 *            the packet to send
@@ -194,93 +596,192 @@ public class SerialComm {
 	 *             if the send failed
 	 */
 	public void send(SerialPacket packet) throws IOException {
-		send(packet.toBytes());
+		if (link != null) {
+			link.send(packet, getWireFormat());
+			return;
+		}
+		synchronized (writeLock) {
+			txBuffer.clear();
+			int length = framing.encode(packet, getWireFormat(), txBuffer);
+			send(txBytes, length);
+		}
+	}
+
+	/**
+	 * Send a SerialPacket and wait for the expected response, using this
+	 * SerialComm's retry policy.
+	 * 
+	 * @see #sendAndReceive(SerialPacket, RetryPolicy)
+	 */
+	public SerialPacket sendAndReceive(SerialPacket outPacket)
+			throws IncorrectResponseException, InterruptedException {
+		return sendAndReceive(outPacket, retryPolicy);
 	}
 
 	/**
-	 * Send a SerialPacket and wait for the expected response. This will retry
-	 * up to MAX_SERIAL_RETRIES times.
+	 * Send a SerialPacket and wait for the expected response. The timeout of
+	 * each attempt, the backoff between attempts and the number of attempts
+	 * come from the retry policy. A NACK of the packet's command fails
+	 * immediately without retrying. A corrupted frame in either direction (a
+	 * response that fails its CRC, or a checksum NACK from the Arduino) is
+	 * resent at once instead of waiting out the timeout and backoff.
+	 * Unrelated packets received while waiting (such as a late response to
+	 * an earlier attempt) are skipped. If failed attempts show the link is
+	 * degraded, the baud rate is stepped down before retrying. With
+	 * sequenced framing the packet is sent only once, since the link layer
+	 * resends it until it arrives; each later attempt only waits, for at
+	 * least as long as the link waits before its next resend.
 	 * 
 	 * @param outPacket
 	 *            the SerialPacket to send
-	 * @return the SerialPacket received in response
+	 * @param retryPolicy
+	 *            the retry policy to use for this packet
+	 * @return the SerialPacket received in response, copied out of the
+	 *         codec's reusable packet it was decoded into
 	 * @throws InterruptedException
 	 *             if the thread is interrupted while waiting in between tries
+	 * @throws NackReceivedException
+	 *             if the Arduino rejected the command
 	 * @throws IncorrectResponseException
 	 *             if the expected response was not received
 	 */
-	public SerialPacket sendAndReceive(SerialPacket outPacket)
-			throws IncorrectResponseException, InterruptedException {
+	public SerialPacket sendAndReceive(SerialPacket outPacket,
+			RetryPolicy retryPolicy) throws IncorrectResponseException,
+			InterruptedException {
+		SerialCommand command = outPacket.getCommand();
 		SerialCommand expectedResponse = outPacket.getResponse();
-		System.out
-				.println("Expecting response: " + expectedResponse.toString());
-		SerialCommand actualResponse = SerialCommand.NACK;
-		SerialPacket inPacket = new NackPacket(outPacket.getCommand());
-		byte[] packetBytes = new byte[0];
-		boolean correctResponseReceived = false;
+		if (verbose)
+			System.out.println("Expecting response: "
+					+ expectedResponse.toString());
 
 		// Send the packet and wait for a response until the response has the
-		// expected command or until max retries has been reached
-		int retries = 0;
-		while (!correctResponseReceived && retries < MAX_RETRIES) {
+		// expected command or until the retry policy gives up
+		int attempts = 0;
+		while (true) {
+			attempts++;
+			long timeout = retryPolicy.getTimeout(command);
+			if (link != null)
+				timeout = Math.max(timeout,
+						link.getRetransmitTimeout(attempts));
+			boolean corrupted = false;
 			try {
-				System.out.println("Flushed " + flushReadBuffer()
-						+ " bytes from the read buffer");
-				send(outPacket);
-				packetBytes = receive();
-				actualResponse = SerialPacket.getCommand(packetBytes);
-				System.out
-						.println("Got response: " + actualResponse.toString());
-				if (actualResponse == expectedResponse) {
-					if (actualResponse == SerialCommand.ACK) {
-						correctResponseReceived = new AckPacket(packetBytes)
-								.getAckdCommand() == outPacket.getCommand();
+				long sentAt = System.nanoTime();
+				long deadline = sentAt + timeout * 1000000L;
+				if (attempts == 1 || link == null)
+					send(outPacket);
+
+				// Read packets until the response arrives or time runs out
+				long remaining = timeout;
+				while (remaining > 0) {
+					SerialPacket inPacket;
+					try {
+						inPacket = receivePacket((int) remaining);
+					} catch (ChecksumException e) {
+						corrupted = true;
+						break;
+					} catch (InvalidPacketException e) {
+						e.printStackTrace();
+						linkMonitor.recordError();
+						remaining = (deadline - System.nanoTime()) / 1000000L;
+						continue;
+					}
+					if (inPacket == null)
+						break;
+					if (verbose)
+						System.out.println("Got response: "
+								+ inPacket.getCommand().toString());
+					if (isResponseTo(inPacket, outPacket)) {
+						// Only sample round trips that can't belong to an
+						// earlier attempt
+						if (attempts == 1)
+							retryPolicy.onResponse(command,
+									System.nanoTime() - sentAt);
+						linkMonitor.recordSuccess();
+						return inPacket.copy();
+					} else if (isNackOf(inPacket, outPacket)) {
+						linkMonitor.recordSuccess();
+						throw new NackReceivedException(command);
+					} else if (isChecksumNack(inPacket)) {
+						corrupted = true;
+						break;
 					} else {
-						correctResponseReceived = true;
+						notifyListeners(inPacket);
 					}
+					remaining = (deadline - System.nanoTime()) / 1000000L;
+				}
+				if (corrupted) {
+					if (verbose)
+						System.out.println("Corrupted frame, resending");
+				} else {
+					if (verbose)
+						System.out.println("Timed out after " + timeout
+								+ " ms");
+					retryPolicy.onTimeout(command);
 				}
-			} catch (Exception e) {
+				linkMonitor.recordError();
+			} catch (IOException e) {
 				e.printStackTrace();
 			}
-			retries++;
-			Thread.sleep(RETRY_DELAY);
+
+			if (attempts >= retryPolicy.getMaxAttempts())
+				throw new IncorrectResponseException("Failed to receive "
+						+ expectedResponse + " in response to " + command);
+			if (!corrupted && link == null)
+				Thread.sleep(retryPolicy.getBackoff(command, attempts));
+			checkLinkQuality();
 		}
+	}
 
-		// Check if the loop exited because the response command matched
-		// expected
-		if (correctResponseReceived) {
-			try {
-				// Create a SerialPacket from the incoming bytes
-				switch (actualResponse) {
-				case ACK:
-					inPacket = new AckPacket(packetBytes);
-					break;
-				case NACK:
-					inPacket = new NackPacket(packetBytes);
-					break;
-				case RESPONSE_ORIENTATION:
-					inPacket = new OrientationResponsePacket(packetBytes);
-					break;
-				case RESPONSE_ENV:
-					inPacket = new EnvironmentalResponsePacket(packetBytes);
-					break;
-				case RESPONSE_GPS:
-					inPacket = new GpsResponsePacket(packetBytes);
-					break;
-				default:
-					break;
-				}
-			} catch (InvalidPacketException e) {
-				e.printStackTrace();
-			}
+	/**
+	 * Check whether a received packet is the expected response to a sent
+	 * packet. ACKs must also name the sent command.
+	 * 
+	 * @param inPacket
+	 *            the received packet
+	 * @param outPacket
+	 *            the sent packet
+	 * @return true if inPacket answers outPacket
+	 */
+	public static boolean isResponseTo(SerialPacket inPacket,
+			SerialPacket outPacket) {
+		if (inPacket.getCommand() != outPacket.getResponse())
+			return false;
+		if (inPacket instanceof AckPacket)
+			return ((AckPacket) inPacket).getAckdCommand() == outPacket
+					.getCommand();
+		return true;
+	}
 
-			return inPacket;
+	/**
+	 * Check whether a received packet is a NACK rejecting a sent packet's
+	 * command. Checksum NACKs don't count, since they only mean the frame was
+	 * garbled on the way.
+	 * 
+	 * @param inPacket
+	 *            the received packet
+	 * @param outPacket
+	 *            the sent packet
+	 * @return true if inPacket rejects outPacket
+	 */
+	public static boolean isNackOf(SerialPacket inPacket,
+			SerialPacket outPacket) {
+		return inPacket instanceof NackPacket
+				&& !((NackPacket) inPacket).isChecksumFailure()
+				&& ((NackPacket) inPacket).getNackdCommand() == outPacket
+						.getCommand();
+	}
 
-		} else {
-			throw new IncorrectResponseException("Failed to receive "
-					+ expectedResponse + " in response to "
-					+ outPacket.getCommand());
-		}
+	/**
+	 * Check whether a received packet is a NACK of a frame that failed its
+	 * CRC on the Arduino, meaning the last frame sent should be sent again.
+	 * 
+	 * @param inPacket
+	 *            the received packet
+	 * @return true if inPacket reports a corrupted frame
+	 */
+	public static boolean isChecksumNack(SerialPacket inPacket) {
+		return inPacket instanceof NackPacket
+				&& ((NackPacket) inPacket).isChecksumFailure();
 	}
 
 	/**
@@ -291,26 +792,158 @@ public class SerialComm {
 	 *             if the input stream could not be obtained or checked
 	 */
 	public boolean packetAvailable() throws IOException {
-		return in.available() > 0;
+		return transport.available() > 0;
 	}
 
 	/**
-	 * Read data from serial port input stream until the stream is empty
+	 * Discard all buffered data and everything waiting on the transport
 	 * 
 	 * @throws IOException
-	 *             if an error occurs getting the input stream or reading from
-	 *             it
+	 *             if an error occurs checking or reading the transport
 	 * @return the number of bytes flushed from the buffer
 	 */
 	public int flushReadBuffer() throws IOException {
-		int bytesFlushed = 0;
+		int bytesFlushed = decoder.clear();
 		while (packetAvailable()) {
-			in.read();
-			bytesFlushed++;
+			bytesFlushed += Math.max(0, decoder.readFrom(transport, 0));
+			decoder.clear();
 		}
 		return bytesFlushed;
 	}
 
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * Step down to the next slower baud rate if recent exchanges show the
+	 * link is degraded.
+	 */
+	private void checkLinkQuality() throws InterruptedException {
+		if (changingBaudRate || !linkMonitor.isDegraded())
+			return;
+		int rate = getSlowerBaudRate();
+		if (rate == 0) {
+			linkMonitor.reset();
+			return;
+		}
+		System.out.println("Link degraded at " + baudRate
+				+ " baud, stepping down");
+		changeBaudRate(rate);
+	}
+
+	/**
+	 * @return the fastest rate in BAUD_RATES slower than the current one, or
+	 *         0 if there is none
+	 */
+	int getSlowerBaudRate() {
+		for (int rate : BAUD_RATES) {
+			if (rate < baudRate)
+				return rate;
+		}
+		return 0;
+	}
+
+	/**
+	 * Set the baud rate of the transport and drop any bytes received at the
+	 * old rate.
+	 * 
+	 * @return true if the transport accepted the rate
+	 */
+	private boolean setPortBaudRate(int rate) {
+		if (!setTransportBaudRate(rate))
+			return false;
+		flushReadBufferQuietly();
+		return true;
+	}
+
+	/**
+	 * Set the baud rate of the transport, leaving the read buffer alone for
+	 * a reader on another thread; bytes received at the old rate fail to
+	 * frame and are skipped.
+	 * 
+	 * @return true if the transport accepted the rate
+	 */
+	boolean setTransportBaudRate(int rate) {
+		try {
+			transport.setBaudRate(rate);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		baudRate = rate;
+		return true;
+	}
+
+	private void notifyListeners(SerialPacket packet) {
+		for (PacketListener listener : listeners)
+			listener.packetReceived(packet);
+	}
+
+	private void flushReadBufferQuietly() {
+		try {
+			flushReadBuffer();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void setFraming(Framing framing) {
+		this.framing = framing;
+		decoder.setFraming(framing);
+	}
+
+	/**
+	 * Write the first length bytes of the given array to the transport.
+	 */
+	private void send(byte[] data, int length) throws IOException {
+		synchronized (writeLock) {
+			if (verbose)
+				System.out.println("Sending: "
+						+ ByteConverter.bytesToHex(Arrays.copyOf(data,
+								length)));
+			transport.write(data, 0, length);
+		}
+	}
+
+	/**
+	 * Receive the next frame into the reusable receive buffer. With the link
+	 * layer, frames are passed through it and only new data frames are
+	 * returned, in order; corrupted frames are left for it to retransmit.
+	 * 
+	 * @return true if a frame was received, false if the timeout expired
+	 * @throws ChecksumException
+	 *             if a frame arrived but failed its CRC
+	 */
+	private boolean receiveFrame(int timeout) throws IOException,
+			ChecksumException {
+		while (true) {
+			if (link != null && (rxLength = link.pollFrame(rxBytes)) > 0)
+				break;
+			int length = decoder.nextFrame(rxBytes);
+			if (length == 0) {
+				int n = decoder.readFrom(transport, timeout);
+				if (n < 0)
+					throw new EOFException("Transport closed");
+				if (n == 0 && timeout > 0)
+					return false;
+			} else if (link != null) {
+				if (length > 0)
+					link.onFrame(rxBytes, length);
+			} else if (length < 0) {
+				throw new ChecksumException();
+			} else {
+				rxLength = length;
+				break;
+			}
+		}
+		if (verbose)
+			System.out.println("Received: "
+					+ ByteConverter.bytesToHex(Arrays.copyOf(rxBytes,
+							rxLength)));
+		return true;
+	}
+
 	// ===============================
 	// CUSTOM EXCEPTIONS
 	// ===============================
@@ -319,7 +952,7 @@ public class SerialComm {
 	 * Thrown when the received packet is not the expected response to the last
 	 * sent packet
 	 */
-	public class IncorrectResponseException extends Exception {
+	public static class IncorrectResponseException extends Exception {
 
 		private static final long serialVersionUID = -597466108956740724L;
 
@@ -327,4 +960,24 @@ public class SerialComm {
 			super(message);
 		}
 	}
+
+	/**
+	 * Thrown when the Arduino answers a command with a NACK naming it
+	 */
+	public static class NackReceivedException extends
+			IncorrectResponseException {
+
+		private static final long serialVersionUID = 3148762015329734370L;
+
+		private final SerialCommand nackdCommand;
+
+		public NackReceivedException(SerialCommand nackdCommand) {
+			super("Arduino nack'd " + nackdCommand);
+			this.nackdCommand = nackdCommand;
+		}
+
+		public SerialCommand getNackdCommand() {
+			return nackdCommand;
+		}
+	}
 }
@@ -12,7 +12,11 @@ public enum SerialCommand {
 	RESPONSE_ENV(0x07, 0x01, "Environmental Response"),
 	READ_GPS(0x08, 0x09, "GPS Read"),
 	RESPONSE_GPS(0x09, 0x01, "GPS Response"),
-	ESTABLISH_CONNECTION(0x0A, 0x01, "Establish Connection");
+	ESTABLISH_CONNECTION(0x0A, 0x01, "Establish Connection"),
+	SET_BAUD(0x0B, 0x01, "Set Baud Rate"),
+	LINK_ACK(0x0C, "Link Ack"),
+	SUBSCRIBE(0x0D, 0x01, "Subscribe"),
+	UNSUBSCRIBE(0x0E, 0x01, "Unsubscribe");
 	//@formatter:on
 
 	private byte value;
@@ -51,6 +55,14 @@ public enum SerialCommand {
 			return RESPONSE_GPS;
 		case 0x0A:
 			return ESTABLISH_CONNECTION;
+		case 0x0B:
+			return SET_BAUD;
+		case 0x0C:
+			return LINK_ACK;
+		case 0x0D:
+			return SUBSCRIBE;
+		case 0x0E:
+			return UNSUBSCRIBE;
 		default:
 			return NULL;
 		}
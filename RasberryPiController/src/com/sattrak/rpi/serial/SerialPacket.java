@@ -1,5 +1,10 @@
 package com.sattrak.rpi.serial;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.sattrak.rpi.util.ReedSolomon;
+
 public abstract class SerialPacket {
 
 	// ===============================
@@ -13,7 +18,16 @@ public abstract class SerialPacket {
 
 	public static final int LENGTH_HEADER = 1;
 	public static final int LENGTH_COMMAND = 1;
-	public static final int LENGTH_CHECKSUM = 0;
+
+	// Arguments are copied through this, so copying allocates only the copy
+	private static final ThreadLocal<ByteBuffer> COPY_BUFFER =
+			new ThreadLocal<ByteBuffer>() {
+
+				@Override
+				protected ByteBuffer initialValue() {
+					return ByteBuffer.allocate(Framing.MAX_FRAME_LENGTH);
+				}
+			};
 
 	// ===============================
 	// INSTANCE VARIABLES
@@ -25,20 +39,40 @@ public abstract class SerialPacket {
 	// ===============================
 
 	/**
-	 * Convert the argument fields into a byte array.
+	 * @param format
+	 *            the encoding of numeric arguments
+	 * @return the number of bytes taken up by the arguments
+	 */
+	protected abstract int getArgsLength(WireFormat format);
+
+	/**
+	 * Write the argument fields into the buffer, starting at the given index.
+	 * Implementations must use absolute puts and not allocate.
 	 * 
-	 * @return the byte array of all arguments
+	 * @param dst
+	 *            the buffer to write into
+	 * @param index
+	 *            the index of the first argument byte
+	 * @param format
+	 *            the encoding of numeric arguments
 	 */
-	protected abstract byte[] argsToBytes();
+	protected abstract void writeArgs(ByteBuffer dst, int index,
+			WireFormat format);
 
 	/**
-	 * Set the appropriate argument fields using the values from the given byte
-	 * array.
+	 * Set the appropriate argument fields using the values in the buffer,
+	 * starting at the given index. Implementations must use absolute gets and
+	 * not allocate.
 	 * 
-	 * @param argBytes
-	 *            the byte array of all arguments
+	 * @param src
+	 *            the buffer to read from
+	 * @param index
+	 *            the index of the first argument byte
+	 * @param format
+	 *            the encoding of numeric arguments
 	 */
-	protected abstract void bytesToArgs(byte[] argBytes);
+	protected abstract void readArgs(ByteBuffer src, int index,
+			WireFormat format);
 
 	/**
 	 * Return a string representation of the packet arguments, ideally with each
@@ -72,75 +106,189 @@ public abstract class SerialPacket {
 	// PUBLIC METHODS
 	// ===============================
 
+	/**
+	 * @return the packet as one frame in FIXED framing and the original (V1)
+	 *         format, as it is sent before a handshake agrees on others
+	 * @see #toBytes(Framing, WireFormat)
+	 */
 	public byte[] toBytes() {
-		// Convert arguments to bytes
-		byte[] argBytes = argsToBytes();
-
-		// Create byte array of correct size including arguments
-		byte[] packetBytes = new byte[LENGTH_HEADER + LENGTH_COMMAND
-				+ argBytes.length + LENGTH_CHECKSUM];
-
-		// Insert header, command and arguments
-		packetBytes[LOCATION_HEADER] = HEADER;
-		packetBytes[LOCATION_COMMAND] = command.getValue();
-		System.arraycopy(argBytes, 0, packetBytes, LOCATION_ARGS,
-				argBytes.length);
-
-		// Insert checksum
-		// TODO
+		return toBytes(Framing.FIXED, WireFormat.V1_ASCII);
+	}
 
-		return packetBytes;
+	/**
+	 * Frame the packet into a new array, exactly as it is sent on the wire.
+	 * 
+	 * @param framing
+	 *            the framing of the link
+	 * @param format
+	 *            the encoding of numeric arguments
+	 * @return the bytes of the frame
+	 */
+	public byte[] toBytes(Framing framing, WireFormat format) {
+		ByteBuffer frame = ByteBuffer.allocate(Framing.MAX_FRAME_LENGTH);
+		int length = framing.encode(this, format, frame);
+		return Arrays.copyOf(frame.array(), length);
 	}
 
+	/**
+	 * Set the command and arguments from a frame in FIXED framing and the
+	 * original (V1) format.
+	 * 
+	 * @see #fromBytes(byte[], int, Framing, WireFormat)
+	 */
 	public void fromBytes(byte[] packetBytes) throws InvalidPacketException {
-		// Validate the packet and extract the argument bytes
-		byte[] argBytes = validateAndGetArgBytes(packetBytes);
-
-		// Set the command and arguments
-		command = SerialCommand.fromValue(packetBytes[LOCATION_COMMAND]);
-		bytesToArgs(argBytes);
+		fromBytes(packetBytes, packetBytes.length, Framing.FIXED,
+				WireFormat.V1_ASCII);
 	}
 
-	public static SerialCommand getCommand(byte[] packetBytes) {
-		return SerialCommand.fromValue(packetBytes[LOCATION_COMMAND]);
+	/**
+	 * Set the command and arguments from a whole frame, checking its header
+	 * and, if the framing has one, its CRC. A frame with FEC is repaired in
+	 * place first if it can be.
+	 * 
+	 * @param frame
+	 *            the bytes of the frame, starting at its header
+	 * @param frameLength
+	 *            the length of the frame
+	 * @param framing
+	 *            the framing of the link
+	 * @param format
+	 *            the encoding of numeric arguments
+	 * @throws InvalidPacketException
+	 *             if the frame is too short or has an incorrect header, or a
+	 *             ChecksumException if it fails its CRC
+	 */
+	public void fromBytes(byte[] frame, int frameLength, Framing framing,
+			WireFormat format) throws InvalidPacketException {
+		if (frameLength <= framing.getBodyIndex())
+			throw new InvalidPacketException("Packet too short");
+		if (frame[LOCATION_HEADER] != HEADER)
+			throw new InvalidPacketException("Incorrect header");
+		if (framing.correct(frame, frameLength) == ReedSolomon.UNCORRECTABLE
+				|| !framing.isChecksumValid(frame, frameLength))
+			throw new ChecksumException();
+		framing.decode(this, format, ByteBuffer.wrap(frame), frameLength);
 	}
 
-	@Override
-	public String toString() {
-		return command.toString() + "\n" + argsToString();
+	/**
+	 * @param format
+	 *            the encoding of numeric arguments
+	 * @return the length of the packet body (command and arguments) in bytes
+	 */
+	public int getBodyLength(WireFormat format) {
+		return LENGTH_COMMAND + getArgsLength(format);
 	}
 
-	// ===============================
-	// PRIVATE METHODS
-	// ===============================
+	/**
+	 * Write the packet body (the command followed by the arguments) into the
+	 * buffer at the given index, where Framing puts it in a frame. The
+	 * buffer's position is not changed.
+	 * 
+	 * @param dst
+	 *            the buffer to write into
+	 * @param index
+	 *            the index to write the command byte at
+	 * @param format
+	 *            the encoding of numeric arguments
+	 * @return the number of bytes written
+	 */
+	public int encodeBody(ByteBuffer dst, int index, WireFormat format) {
+		dst.put(index, command.getValue());
+		writeArgs(dst, index + LENGTH_COMMAND, format);
+		return getBodyLength(format);
+	}
 
-	private byte[] validateAndGetArgBytes(byte[] packetBytes)
-			throws InvalidPacketException {
-		// Validate header
-		if (!hasHeader(packetBytes))
-			throw new InvalidPacketException("Incorrect header");
+	/**
+	 * Set the command and arguments from a packet body (the command followed
+	 * by the arguments) in the buffer at the given index. The buffer's
+	 * position is not changed.
+	 * 
+	 * @param src
+	 *            the buffer holding the body
+	 * @param index
+	 *            the index of the command byte
+	 * @param length
+	 *            the number of body bytes in the buffer
+	 * @param format
+	 *            the encoding of numeric arguments
+	 * @throws InvalidPacketException
+	 *             if the body is too short
+	 */
+	public void decodeBody(ByteBuffer src, int index, int length,
+			WireFormat format) throws InvalidPacketException {
+		if (length < getBodyLength(format))
+			throw new InvalidPacketException("Packet too short");
+		command = SerialCommand.fromValue(src.get(index));
+		readArgs(src, index + LENGTH_COMMAND, format);
+	}
 
-		// Validate checksum
-		if (!isChecksumValid(packetBytes))
-			throw new InvalidPacketException("checksum failed");
+	/**
+	 * Copy the packet into a new one that can be kept, such as a reusable
+	 * packet that a PacketCodec decoded into. Numeric arguments are carried
+	 * over in WireFormat.LATEST, which holds every value that can arrive on
+	 * the wire exactly.
+	 * 
+	 * @return a new packet of the same class, with the same command and
+	 *         arguments
+	 */
+	public SerialPacket copy() {
+		SerialPacket copy = create(command);
+		ByteBuffer args = COPY_BUFFER.get();
+		writeArgs(args, 0, WireFormat.LATEST);
+		copy.readArgs(args, 0, WireFormat.LATEST);
+		return copy;
+	}
 
-		// Return byte array containing argument values
-		// Also subtract checksum length when that is implemented
-		int argLength = packetBytes.length - LENGTH_HEADER - LENGTH_COMMAND
-				- LENGTH_CHECKSUM;
-		byte[] argBytes = new byte[argLength];
-		System.arraycopy(packetBytes, LOCATION_ARGS, argBytes, 0, argLength);
-		return argBytes;
+	public static SerialCommand getCommand(byte[] packetBytes) {
+		return SerialCommand.fromValue(packetBytes[LOCATION_COMMAND]);
 	}
 
-	private boolean hasHeader(byte[] packetBytes) {
-		return packetBytes[LOCATION_HEADER] == HEADER;
+	/**
+	 * Create a packet of the appropriate subclass for the given command, with
+	 * all arguments zero.
+	 * 
+	 * @param command
+	 *            the command
+	 * @return the packet, or null if the command has no packet class
+	 */
+	public static SerialPacket create(SerialCommand command) {
+		switch (command) {
+		case ACK:
+			return new AckPacket(SerialCommand.NULL);
+		case NACK:
+			return new NackPacket(SerialCommand.NULL);
+		case SET_ORIENTATION:
+			return new OrientationSetPacket(0, 0);
+		case READ_ORIENTATION:
+			return new OrientationReadPacket();
+		case RESPONSE_ORIENTATION:
+			return new OrientationResponsePacket(0, 0);
+		case READ_ENV:
+			return new EnvironmentalReadPacket();
+		case RESPONSE_ENV:
+			return new EnvironmentalResponsePacket(0, 0);
+		case READ_GPS:
+			return new GpsReadPacket();
+		case RESPONSE_GPS:
+			return new GpsResponsePacket(0, 0);
+		case ESTABLISH_CONNECTION:
+			return new EstablishConnectionPacket();
+		case SET_BAUD:
+			return new SetBaudPacket(0);
+		case LINK_ACK:
+			return new LinkAckPacket(0);
+		case SUBSCRIBE:
+			return new SubscribePacket(SerialCommand.NULL, 0);
+		case UNSUBSCRIBE:
+			return new UnsubscribePacket(SerialCommand.NULL);
+		default:
+			return null;
+		}
 	}
 
-	private boolean isChecksumValid(byte[] packetBytes) {
-		// Validate the checksum
-		// TODO
-		return true;
+	@Override
+	public String toString() {
+		return command.toString() + "\n" + argsToString();
 	}
 
 	// ===============================
@@ -151,7 +299,7 @@ public abstract class SerialPacket {
 	 * Thrown when a received packet does not have the correct header or
 	 * checksum
 	 */
-	public class InvalidPacketException extends Exception {
+	public static class InvalidPacketException extends Exception {
 
 		private static final long serialVersionUID = -5207396497602655163L;
 
@@ -160,4 +308,17 @@ public abstract class SerialPacket {
 		}
 	}
 
+	/**
+	 * Thrown when a received packet or frame fails its CRC check, meaning it
+	 * was corrupted on the wire and should be sent again
+	 */
+	public static class ChecksumException extends InvalidPacketException {
+
+		private static final long serialVersionUID = 2716120985469931406L;
+
+		public ChecksumException() {
+			super("checksum failed");
+		}
+	}
+
 }
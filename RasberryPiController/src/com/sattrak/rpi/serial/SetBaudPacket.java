@@ -0,0 +1,74 @@
+package com.sattrak.rpi.serial;
+
+import java.nio.ByteBuffer;
+
+public class SetBaudPacket extends SerialPacket {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Argument 1: baud rate to switch to, as a big-endian int32
+	public static final int LOCATION_BAUD_RATE = 0;
+	public static final int LENGTH_BAUD_RATE = 4;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private int baudRate;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public SetBaudPacket(int baudRate) {
+		setCommand(SerialCommand.SET_BAUD);
+		this.baudRate = baudRate;
+	}
+
+	public SetBaudPacket(byte[] packetBytes) throws InvalidPacketException {
+		fromBytes(packetBytes);
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public int getBaudRate() {
+		return baudRate;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	public void setBaudRate(int baudRate) {
+		this.baudRate = baudRate;
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	protected int getArgsLength(WireFormat format) {
+		return LOCATION_BAUD_RATE + LENGTH_BAUD_RATE;
+	}
+
+	@Override
+	protected void writeArgs(ByteBuffer dst, int index, WireFormat format) {
+		dst.putInt(index + LOCATION_BAUD_RATE, baudRate);
+	}
+
+	@Override
+	protected void readArgs(ByteBuffer src, int index, WireFormat format) {
+		baudRate = src.getInt(index + LOCATION_BAUD_RATE);
+	}
+
+	@Override
+	protected String argsToString() {
+		return "Baud Rate: " + baudRate;
+	}
+
+}
@@ -0,0 +1,477 @@
+package com.sattrak.rpi.serial;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A selective-repeat ARQ link layer for sequenced framing, sitting under
+ * SerialComm's send and receive. Every frame carries a sequence number and a
+ * cumulative ack of the frames received from the other end. Up to a window of
+ * frames may be unacknowledged at once; each has its own retransmit timer, so
+ * only frames that were actually lost are sent again. Frames that arrive out
+ * of order are held until the gap is filled and are then passed up in order,
+ * exactly once, so a late duplicate can never be taken for a new response.
+ * For the same reason a packet must only be sent once: sending it again
+ * would give it a new sequence number and have the other end act on it
+ * twice.
+ *
+ * Acks ride on outgoing frames. If nothing is sent soon after a frame
+ * arrives, a LinkAckPacket is sent on its own; one is sent at once when a
+ * frame arrives out of order or twice, with a selective ack of the frames
+ * held beyond the gap.
+ */
+public class SlidingWindowLink {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Frames held per direction. Windows can't be larger, which also keeps
+	// them well within half of the 256 one-byte sequence numbers.
+	public static final int MAX_WINDOW = 16;
+
+	// The Arduino holds four frames in each direction
+	public static final int DEFAULT_WINDOW = 4;
+	public static final long DEFAULT_RETRANSMIT_TIMEOUT = 250; // ms
+
+	// Number of times a frame's retransmit timeout is doubled at most
+	private static final int MAX_BACKOFF_SHIFT = 3;
+
+	// Time to wait for an outgoing frame to carry an ack before sending a
+	// link ack on its own
+	private static final long ACK_DELAY = 10; // ms
+
+	// Frames beyond the cumulative ack covered by a LinkAckPacket
+	private static final int SELECTIVE_ACK_BITS = 8;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final Framing framing;
+	private final FrameWriter writer;
+	private final int window;
+	private final long retransmitTimeout;
+
+	// Guards all of the state below
+	private final Object lock = new Object();
+
+	// Sequence numbers are ints that count up without wrapping; only the low
+	// byte goes on the wire. Slots are indexed by sequence & (MAX_WINDOW - 1).
+
+	// Send side: frames from sendBase up to nextSequence are unacknowledged
+	private final byte[][] sendFrames;
+	private final ByteBuffer[] sendBuffers;
+	private final int[] sendLengths;
+	private final int[] sendAttempts;
+	private final long[] sentAt; // ns
+	private final boolean[] selectivelyAcked;
+	private int sendBase;
+	private int nextSequence;
+
+	// Receive side: frames from deliverNext up to receiveNext have arrived in
+	// order and wait to be passed up; frames beyond receiveNext arrived early
+	private final byte[][] receiveFrames;
+	private final int[] receiveLengths;
+	private final boolean[] received;
+	private int deliverNext;
+	private int receiveNext;
+
+	// Standalone link acks
+	private final byte[] ackFrame = new byte[Framing.MAX_FRAME_LENGTH];
+	private final ByteBuffer ackBuffer = ByteBuffer.wrap(ackFrame);
+	private final LinkAckPacket ackPacket = new LinkAckPacket(0);
+	private boolean ackPending;
+	private boolean ackScheduled;
+
+	private final ScheduledExecutorService timer;
+	private boolean closed;
+
+	private long retransmissions;
+	private long duplicates;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * Create a link with the default window and retransmit timeout.
+	 *
+	 * @param framing
+	 *            the agreed framing, which must be sequenced
+	 * @param writer
+	 *            where frames are written
+	 */
+	public SlidingWindowLink(Framing framing, FrameWriter writer) {
+		this(framing, writer, DEFAULT_WINDOW, DEFAULT_RETRANSMIT_TIMEOUT);
+	}
+
+	/**
+	 * @param framing
+	 *            the agreed framing, which must be sequenced
+	 * @param writer
+	 *            where frames are written
+	 * @param window
+	 *            the most frames that may be unacknowledged at once, and the
+	 *            most that are held out of order, up to MAX_WINDOW
+	 * @param retransmitTimeout
+	 *            the time to wait for an ack before resending a frame, in ms
+	 */
+	public SlidingWindowLink(Framing framing, FrameWriter writer, int window,
+			long retransmitTimeout) {
+		if (!framing.isSequenced())
+			throw new IllegalArgumentException("Framing is not sequenced");
+		if (window < 1 || window > MAX_WINDOW)
+			throw new IllegalArgumentException("Invalid window " + window);
+		this.framing = framing;
+		this.writer = writer;
+		this.window = window;
+		this.retransmitTimeout = retransmitTimeout;
+
+		sendFrames = new byte[MAX_WINDOW][Framing.MAX_FRAME_LENGTH];
+		sendBuffers = new ByteBuffer[MAX_WINDOW];
+		for (int i = 0; i < MAX_WINDOW; i++)
+			sendBuffers[i] = ByteBuffer.wrap(sendFrames[i]);
+		sendLengths = new int[MAX_WINDOW];
+		sendAttempts = new int[MAX_WINDOW];
+		sentAt = new long[MAX_WINDOW];
+		selectivelyAcked = new boolean[MAX_WINDOW];
+
+		receiveFrames = new byte[MAX_WINDOW][Framing.MAX_FRAME_LENGTH];
+		receiveLengths = new int[MAX_WINDOW];
+		received = new boolean[MAX_WINDOW];
+
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "serial-link");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * @return the number of frames sent and not yet acknowledged
+	 */
+	public int getUnackedFrames() {
+		synchronized (lock) {
+			return nextSequence - sendBase;
+		}
+	}
+
+	/**
+	 * @return the total number of frames sent again after their timer expired
+	 */
+	public long getRetransmissions() {
+		synchronized (lock) {
+			return retransmissions;
+		}
+	}
+
+	/**
+	 * @return the total number of frames received more than once
+	 */
+	public long getDuplicates() {
+		synchronized (lock) {
+			return duplicates;
+		}
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Send a packet as the next frame in sequence, waiting for room in the
+	 * window if it is full. The frame is kept until it is acknowledged.
+	 *
+	 * @param packet
+	 *            the packet to send
+	 * @param format
+	 *            the encoding of numeric arguments
+	 * @throws InterruptedIOException
+	 *             if the thread is interrupted while waiting for room
+	 * @throws IOException
+	 *             if the link is closed or the write failed
+	 */
+	public void send(SerialPacket packet, WireFormat format)
+			throws IOException {
+		synchronized (lock) {
+			while (!closed && nextSequence - sendBase >= window) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException(
+							"Interrupted waiting for the send window");
+				}
+			}
+			if (closed)
+				throw new IOException("Link closed");
+
+			int sequence = nextSequence++;
+			int slot = slot(sequence);
+			sendBuffers[slot].clear();
+			sendLengths[slot] = framing.encode(packet, format,
+					sendBuffers[slot], sequence, receiveNext);
+			sendAttempts[slot] = 1;
+			sentAt[slot] = System.nanoTime();
+			selectivelyAcked[slot] = false;
+
+			// This frame carries our ack
+			ackPending = false;
+			writer.writeFrame(sendFrames[slot], sendLengths[slot]);
+			scheduleRetransmitCheck(retransmitTimeout);
+		}
+	}
+
+	/**
+	 * Process a frame received from the decoder: take note of its ack, and
+	 * hold it for pollFrame if it is a new data frame.
+	 *
+	 * @param frame
+	 *            the bytes of the frame
+	 * @param length
+	 *            the length of the frame
+	 */
+	public void onFrame(byte[] frame, int length) {
+		synchronized (lock) {
+			if (closed)
+				return;
+			int ack = onAck(framing.getAck(frame));
+
+			int bodyIndex = framing.getBodyIndex();
+			SerialCommand command = SerialCommand.fromValue(frame[bodyIndex]);
+			if (command == SerialCommand.LINK_ACK) {
+				if (framing.getBodyLength(length) > SerialPacket.LENGTH_COMMAND)
+					onSelectiveAcks(ack, frame[bodyIndex
+							+ SerialPacket.LENGTH_COMMAND
+							+ LinkAckPacket.LOCATION_SELECTIVE_ACKS] & 0xFF);
+				return;
+			}
+
+			int sequence = receiveNext
+					+ (byte) (framing.getSequence(frame) - receiveNext);
+			if (sequence >= deliverNext + window) {
+				// No room to hold it; it will be sent again
+				sendAck();
+				return;
+			}
+			if (sequence < receiveNext || received[slot(sequence)]) {
+				// Our ack must have been lost, so repeat it
+				duplicates++;
+				sendAck();
+				return;
+			}
+
+			int slot = slot(sequence);
+			System.arraycopy(frame, 0, receiveFrames[slot], 0, length);
+			receiveLengths[slot] = length;
+			received[slot] = true;
+
+			boolean inOrder = sequence == receiveNext;
+			while (receiveNext < deliverNext + window
+					&& received[slot(receiveNext)])
+				receiveNext++;
+			if (inOrder)
+				scheduleAck();
+			else
+				sendAck();
+		}
+	}
+
+	/**
+	 * Copy the next in-order data frame into the given array.
+	 *
+	 * @param frame
+	 *            an array of at least Framing.MAX_FRAME_LENGTH bytes
+	 * @return the length of the frame, or 0 if none is ready
+	 */
+	public int pollFrame(byte[] frame) {
+		synchronized (lock) {
+			if (deliverNext == receiveNext)
+				return 0;
+			int slot = slot(deliverNext++);
+			System.arraycopy(receiveFrames[slot], 0, frame, 0,
+					receiveLengths[slot]);
+			received[slot] = false;
+			return receiveLengths[slot];
+		}
+	}
+
+	/**
+	 * Get the time the link waits for an ack before sending a frame again,
+	 * which doubles with each attempt up to a cap. A sender waiting for the
+	 * answer to a frame should wait at least this long before giving up on
+	 * each attempt, rather than sending the packet again itself.
+	 *
+	 * @param attempts
+	 *            the number of times the frame has been sent
+	 * @return the retransmit timeout in ms
+	 */
+	public long getRetransmitTimeout(int attempts) {
+		return retransmitTimeout << Math.min(attempts - 1, MAX_BACKOFF_SHIFT);
+	}
+
+	/**
+	 * Stop the retransmit timer and wake any sender waiting for the window.
+	 */
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		timer.shutdownNow();
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	private static int slot(int sequence) {
+		return sequence & (MAX_WINDOW - 1);
+	}
+
+	/**
+	 * Slide the send window up to a cumulative ack. Must hold lock.
+	 *
+	 * @return the ack as a full sequence number
+	 */
+	private int onAck(int wireAck) {
+		int ack = sendBase + (byte) (wireAck - sendBase);
+		if (ack > sendBase && ack <= nextSequence) {
+			sendBase = ack;
+			lock.notifyAll();
+		}
+		return ack;
+	}
+
+	/**
+	 * Mark the frames a link ack reports beyond its cumulative ack, so they
+	 * aren't retransmitted. Must hold lock.
+	 */
+	private void onSelectiveAcks(int ack, int bits) {
+		for (int i = 0; i < SELECTIVE_ACK_BITS; i++) {
+			int sequence = ack + 1 + i;
+			if ((bits & (1 << i)) != 0 && sequence >= sendBase
+					&& sequence < nextSequence)
+				selectivelyAcked[slot(sequence)] = true;
+		}
+	}
+
+	/**
+	 * Resend every unacknowledged frame whose timer has expired, with the
+	 * latest ack.
+	 */
+	private void checkRetransmits() {
+		synchronized (lock) {
+			if (closed)
+				return;
+			long now = System.nanoTime();
+			for (int sequence = sendBase; sequence < nextSequence; sequence++) {
+				int slot = slot(sequence);
+				long timeout = getRetransmitTimeout(sendAttempts[slot]);
+				if (selectivelyAcked[slot]
+						|| now - sentAt[slot] < TimeUnit.MILLISECONDS
+								.toNanos(timeout))
+					continue;
+
+				framing.setAck(sendFrames[slot], sendLengths[slot],
+						receiveNext);
+				ackPending = false;
+				try {
+					writer.writeFrame(sendFrames[slot], sendLengths[slot]);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				sentAt[slot] = now;
+				retransmissions++;
+				timeout = getRetransmitTimeout(++sendAttempts[slot]);
+				scheduleRetransmitCheck(timeout);
+			}
+		}
+	}
+
+	private void scheduleRetransmitCheck(long delay) {
+		timer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				checkRetransmits();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Send a link ack soon, unless an outgoing frame carries the ack first.
+	 * Must hold lock.
+	 */
+	private void scheduleAck() {
+		ackPending = true;
+		if (ackScheduled)
+			return;
+		ackScheduled = true;
+		timer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (lock) {
+					ackScheduled = false;
+					if (ackPending && !closed)
+						sendAck();
+				}
+			}
+		}, ACK_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Send a link ack now, with the cumulative ack and a selective ack of the
+	 * frames held beyond it. Must hold lock.
+	 */
+	private void sendAck() {
+		ackPending = false;
+		int bits = 0;
+		for (int i = 0; i < SELECTIVE_ACK_BITS; i++) {
+			int sequence = receiveNext + 1 + i;
+			if (sequence < deliverNext + window && received[slot(sequence)])
+				bits |= 1 << i;
+		}
+		ackPacket.setSelectiveAcks(bits);
+		ackBuffer.clear();
+		// Link acks don't take a sequence number of their own
+		int length = framing.encode(ackPacket, WireFormat.V1_ASCII, ackBuffer,
+				nextSequence, receiveNext);
+		try {
+			writer.writeFrame(ackFrame, length);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// ===============================
+	// FRAME WRITER
+	// ===============================
+
+	/**
+	 * Writes encoded frames to the port. Implementations must serialize their
+	 * writes, since the link writes from its own timer thread.
+	 */
+	public interface FrameWriter {
+
+		void writeFrame(byte[] frame, int length) throws IOException;
+	}
+}
@@ -0,0 +1,100 @@
+package com.sattrak.rpi.serial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asks the Arduino to push the response to a read command every period, as
+ * if the read had been sent, until an UnsubscribePacket stops it.
+ */
+public class SubscribePacket extends SerialPacket {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Argument 1: the read command whose response is pushed
+	public static final int LOCATION_SUBSCRIBED_COMMAND = 0;
+	public static final int LENGTH_SUBSCRIBED_COMMAND = 1;
+
+	// Argument 2: how often it is pushed in ms, as a big-endian int32
+	public static final int LOCATION_PERIOD = 1;
+	public static final int LENGTH_PERIOD = 4;
+
+	// Must match MIN_SUBSCRIBE_PERIOD in firmware
+	public static final int MIN_PERIOD = 50; // ms
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private SerialCommand subscribedCommand;
+	private int period;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public SubscribePacket(SerialCommand subscribedCommand, int period) {
+		setCommand(SerialCommand.SUBSCRIBE);
+		this.subscribedCommand = subscribedCommand;
+		this.period = period;
+	}
+
+	public SubscribePacket(byte[] packetBytes) throws InvalidPacketException {
+		fromBytes(packetBytes);
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public SerialCommand getSubscribedCommand() {
+		return subscribedCommand;
+	}
+
+	public int getPeriod() {
+		return period;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	public void setSubscribedCommand(SerialCommand subscribedCommand) {
+		this.subscribedCommand = subscribedCommand;
+	}
+
+	public void setPeriod(int period) {
+		this.period = period;
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	protected int getArgsLength(WireFormat format) {
+		return LOCATION_PERIOD + LENGTH_PERIOD;
+	}
+
+	@Override
+	protected void writeArgs(ByteBuffer dst, int index, WireFormat format) {
+		dst.put(index + LOCATION_SUBSCRIBED_COMMAND,
+				subscribedCommand.getValue());
+		dst.putInt(index + LOCATION_PERIOD, period);
+	}
+
+	@Override
+	protected void readArgs(ByteBuffer src, int index, WireFormat format) {
+		subscribedCommand = SerialCommand.fromValue(src.get(index
+				+ LOCATION_SUBSCRIBED_COMMAND));
+		period = src.getInt(index + LOCATION_PERIOD);
+	}
+
+	@Override
+	protected String argsToString() {
+		return "Subscribed Command: " + subscribedCommand.toString() + "\n"
+				+ "Period: " + period;
+	}
+
+}
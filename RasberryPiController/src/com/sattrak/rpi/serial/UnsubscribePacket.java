@@ -0,0 +1,80 @@
+package com.sattrak.rpi.serial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stops the Arduino pushing the response to a read command.
+ */
+public class UnsubscribePacket extends SerialPacket {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Argument 1: the read command whose response is no longer pushed
+	public static final int LOCATION_SUBSCRIBED_COMMAND = 0;
+	public static final int LENGTH_SUBSCRIBED_COMMAND = 1;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private SerialCommand subscribedCommand;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	public UnsubscribePacket(SerialCommand subscribedCommand) {
+		setCommand(SerialCommand.UNSUBSCRIBE);
+		this.subscribedCommand = subscribedCommand;
+	}
+
+	public UnsubscribePacket(byte[] packetBytes)
+			throws InvalidPacketException {
+		fromBytes(packetBytes);
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public SerialCommand getSubscribedCommand() {
+		return subscribedCommand;
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	public void setSubscribedCommand(SerialCommand subscribedCommand) {
+		this.subscribedCommand = subscribedCommand;
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	protected int getArgsLength(WireFormat format) {
+		return LOCATION_SUBSCRIBED_COMMAND + LENGTH_SUBSCRIBED_COMMAND;
+	}
+
+	@Override
+	protected void writeArgs(ByteBuffer dst, int index, WireFormat format) {
+		dst.put(index + LOCATION_SUBSCRIBED_COMMAND,
+				subscribedCommand.getValue());
+	}
+
+	@Override
+	protected void readArgs(ByteBuffer src, int index, WireFormat format) {
+		subscribedCommand = SerialCommand.fromValue(src.get(index
+				+ LOCATION_SUBSCRIBED_COMMAND));
+	}
+
+	@Override
+	protected String argsToString() {
+		return "Subscribed Command: " + subscribedCommand.toString();
+	}
+
+}
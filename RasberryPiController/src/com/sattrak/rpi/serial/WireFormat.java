@@ -0,0 +1,107 @@
+package com.sattrak.rpi.serial;
+
+import java.nio.ByteBuffer;
+
+import com.sattrak.rpi.util.ByteConverter;
+
+/**
+ * The encoding of numeric packet arguments (angles, coordinates, temperature
+ * and humidity), chosen by the protocol version agreed on in the
+ * ESTABLISH_CONNECTION handshake.
+ */
+public enum WireFormat {
+	//@formatter:off
+	/**
+	 * Zero-padded ASCII decimals with 2 decimal places, LENGTH_DOUBLE bytes
+	 * each. Used by firmware that predates protocol versioning.
+	 */
+	V1_ASCII(1, ByteConverter.LENGTH_DOUBLE) {
+		@Override
+		public void putValue(ByteBuffer dst, int index, double value) {
+			ByteConverter.putStringDouble(dst, index, value);
+		}
+
+		@Override
+		public double getValue(ByteBuffer src, int index) {
+			return ByteConverter.getStringDouble(src, index);
+		}
+	},
+
+	/**
+	 * Big-endian int32 fixed point in millionths (micro-degrees for angles).
+	 */
+	V2_FIXED_POINT(2, ByteConverter.LENGTH_FIXED) {
+		@Override
+		public void putValue(ByteBuffer dst, int index, double value) {
+			ByteConverter.putFixed(dst, index, value);
+		}
+
+		@Override
+		public double getValue(ByteBuffer src, int index) {
+			return ByteConverter.getFixed(src, index);
+		}
+	};
+	//@formatter:on
+
+	public static final WireFormat LATEST = V2_FIXED_POINT;
+
+	private int version;
+	private int valueLength;
+
+	private WireFormat(int version, int valueLength) {
+		this.version = version;
+		this.valueLength = valueLength;
+	}
+
+	/**
+	 * Get the format for a protocol version. Version 0 (firmware that doesn't
+	 * report a version) means V1, and versions newer than we know about fall
+	 * back to LATEST.
+	 * 
+	 * @param version
+	 *            the protocol version
+	 * @return the corresponding format
+	 */
+	public static WireFormat fromVersion(int version) {
+		for (WireFormat format : values()) {
+			if (format.version == version)
+				return format;
+		}
+		return version < V1_ASCII.version ? V1_ASCII : LATEST;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the number of bytes taken up by one numeric argument
+	 */
+	public int getValueLength() {
+		return valueLength;
+	}
+
+	/**
+	 * Write a numeric argument at the given index without allocating.
+	 * 
+	 * @param dst
+	 *            the buffer to write into
+	 * @param index
+	 *            the index of the argument's first byte
+	 * @param value
+	 *            the value to write
+	 */
+	public abstract void putValue(ByteBuffer dst, int index, double value);
+
+	/**
+	 * Read a numeric argument at the given index without allocating.
+	 * 
+	 * @param src
+	 *            the buffer to read from
+	 * @param index
+	 *            the index of the argument's first byte
+	 * @return the value
+	 */
+	public abstract double getValue(ByteBuffer src, int index);
+
+}
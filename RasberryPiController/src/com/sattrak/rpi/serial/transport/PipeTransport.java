@@ -0,0 +1,181 @@
+package com.sattrak.rpi.serial.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * One end of an in-memory link between two transports in the same process,
+ * for running the serial stack without hardware. Bytes written to one end are
+ * read from the other in order, through a bounded buffer in each direction;
+ * writers wait while it is full. The baud rate is recorded but doesn't slow
+ * anything down.
+ */
+public class PipeTransport implements SerialTransport {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	public static final int DEFAULT_CAPACITY = 4096; // bytes
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final Buffer inbound;
+	private final Buffer outbound;
+	private volatile int baudRate;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	private PipeTransport(Buffer inbound, Buffer outbound) {
+		this.inbound = inbound;
+		this.outbound = outbound;
+	}
+
+	/**
+	 * Create two connected ends, each buffering DEFAULT_CAPACITY bytes.
+	 *
+	 * @return the two ends; what one writes the other reads
+	 */
+	public static PipeTransport[] createPair() {
+		return createPair(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create two connected ends.
+	 *
+	 * @param capacity
+	 *            the bytes buffered in each direction
+	 * @return the two ends; what one writes the other reads
+	 */
+	public static PipeTransport[] createPair(int capacity) {
+		Buffer aToB = new Buffer(capacity);
+		Buffer bToA = new Buffer(capacity);
+		return new PipeTransport[] { new PipeTransport(bToA, aToB),
+				new PipeTransport(aToB, bToA) };
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public int getBaudRate() {
+		return baudRate;
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	public int read(byte[] dst, int offset, int length, int timeout)
+			throws IOException {
+		return inbound.read(dst, offset, length, timeout);
+	}
+
+	@Override
+	public int available() {
+		return inbound.available();
+	}
+
+	@Override
+	public void write(byte[] src, int offset, int length) throws IOException {
+		outbound.write(src, offset, length);
+	}
+
+	@Override
+	public void setBaudRate(int baudRate) {
+		this.baudRate = baudRate;
+	}
+
+	/**
+	 * Close both directions. Reads at either end return -1 once the bytes
+	 * already written have been read, and writes fail.
+	 */
+	@Override
+	public void close() {
+		inbound.close();
+		outbound.close();
+	}
+
+	// ===============================
+	// BUFFER
+	// ===============================
+
+	/**
+	 * A bounded ring of bytes for one direction, guarded by its own monitor.
+	 */
+	private static class Buffer {
+
+		private final byte[] ring;
+		private int head;
+		private int count;
+		private boolean closed;
+
+		Buffer(int capacity) {
+			ring = new byte[capacity];
+		}
+
+		synchronized int available() {
+			return count;
+		}
+
+		synchronized int read(byte[] dst, int offset, int length, int timeout)
+				throws InterruptedIOException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (count == 0) {
+				if (closed)
+					return -1;
+				long remaining = deadline - System.currentTimeMillis();
+				if (timeout > 0 && remaining <= 0)
+					return 0;
+				await(timeout > 0 ? remaining : 0);
+			}
+
+			int n = Math.min(length, count);
+			for (int i = 0; i < n; i++)
+				dst[offset + i] = ring[(head + i) % ring.length];
+			head = (head + n) % ring.length;
+			count -= n;
+			notifyAll();
+			return n;
+		}
+
+		synchronized void write(byte[] src, int offset, int length)
+				throws IOException {
+			while (length > 0) {
+				if (closed)
+					throw new IOException("Pipe closed");
+				if (count == ring.length) {
+					await(0);
+					continue;
+				}
+				int n = Math.min(length, ring.length - count);
+				for (int i = 0; i < n; i++)
+					ring[(head + count + i) % ring.length] = src[offset + i];
+				count += n;
+				offset += n;
+				length -= n;
+				notifyAll();
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		private void await(long timeout) throws InterruptedIOException {
+			try {
+				wait(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+package com.sattrak.rpi.serial.transport;
+
+import gnu.io.CommPort;
+import gnu.io.CommPortIdentifier;
+import gnu.io.NoSuchPortException;
+import gnu.io.PortInUseException;
+import gnu.io.SerialPort;
+import gnu.io.UnsupportedCommOperationException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A transport over a serial port opened with RXTX. Every RXTX call crosses
+ * JNI, so reads ask only for the bytes already waiting (or one byte, so the
+ * read blocks), and the port keeps the short receive timeout it is given when
+ * it is opened. A read with a longer timeout polls until its deadline instead
+ * of changing the port's timeout, since callers pass the time left of a wait
+ * that shrinks with every read.
+ */
+public class RxtxTransport implements SerialTransport {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Time to wait for the port to be released by another application
+	private static final int OPEN_TIMEOUT = 2000; // ms
+
+	// Receive timeout of the port: the most a read can overrun its own
+	// timeout, and how often a read with no timeout wakes
+	private static final int POLL_TIMEOUT = 20; // ms
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final SerialPort serialPort;
+	private final InputStream in;
+	private final OutputStream out;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * Open the given serial port at the given baud rate, 8 data bits, 1 stop
+	 * bit and no parity.
+	 *
+	 * @param portName
+	 *            the name of the port, such as /dev/ttyS80
+	 * @param baudRate
+	 *            the baud rate to start at
+	 * @throws NoSuchPortException
+	 * @throws PortInUseException
+	 * @throws UnsupportedCommOperationException
+	 * @throws IOException
+	 */
+	public RxtxTransport(String portName, int baudRate)
+			throws NoSuchPortException, PortInUseException,
+			UnsupportedCommOperationException, IOException {
+		// Get the identifier for the intended port
+		CommPortIdentifier portIdentifier = CommPortIdentifier
+				.getPortIdentifier(portName);
+
+		// Open the port
+		CommPort commPort = portIdentifier.open(this.getClass().getName(),
+				OPEN_TIMEOUT);
+
+		// Set the parameters
+		serialPort = (SerialPort) commPort;
+		serialPort.setSerialPortParams(baudRate, SerialPort.DATABITS_8,
+				SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+		serialPort.enableReceiveTimeout(POLL_TIMEOUT);
+
+		in = serialPort.getInputStream();
+		out = serialPort.getOutputStream();
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public SerialPort getSerialPort() {
+		return serialPort;
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	public int read(byte[] dst, int offset, int length, int timeout)
+			throws IOException {
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		while (true) {
+			// Only what is waiting, or a single byte if nothing is, so the
+			// read doesn't block for a full buffer
+			int n = in.read(dst, offset,
+					Math.min(length, Math.max(1, in.available())));
+			if (n > 0)
+				return n;
+			if (timeout > 0 && System.nanoTime() - deadline >= 0)
+				return 0;
+		}
+	}
+
+	@Override
+	public int available() throws IOException {
+		return in.available();
+	}
+
+	@Override
+	public void write(byte[] src, int offset, int length) throws IOException {
+		out.write(src, offset, length);
+	}
+
+	@Override
+	public void setBaudRate(int baudRate) throws IOException {
+		try {
+			serialPort.setSerialPortParams(baudRate, SerialPort.DATABITS_8,
+					SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+		} catch (UnsupportedCommOperationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		serialPort.close();
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.sattrak.rpi.serial.transport;
+
+import java.io.IOException;
+
+/**
+ * A byte link to the Arduino, underneath SerialComm. Reads are bulk and take
+ * a timeout, so a caller gets everything that has arrived in one call instead
+ * of a byte at a time. Reads and writes may happen on different threads, but
+ * each is only called from one thread at a time.
+ */
+public interface SerialTransport {
+
+	/**
+	 * Read whatever bytes have arrived, waiting for at least one.
+	 *
+	 * @param dst
+	 *            the array to read into
+	 * @param offset
+	 *            the index in dst of the first byte to read
+	 * @param length
+	 *            the most bytes to read
+	 * @param timeout
+	 *            the longest time to wait for a byte in ms, or 0 to wait
+	 *            indefinitely
+	 * @return the number of bytes read, 0 if the timeout expired first, or -1
+	 *         if the transport has been closed
+	 * @throws IOException
+	 *             if the read failed
+	 */
+	int read(byte[] dst, int offset, int length, int timeout)
+			throws IOException;
+
+	/**
+	 * @return the number of bytes that can be read without waiting
+	 * @throws IOException
+	 *             if the transport can't be checked
+	 */
+	int available() throws IOException;
+
+	/**
+	 * Write all of the given bytes.
+	 *
+	 * @param src
+	 *            the array holding the bytes
+	 * @param offset
+	 *            the index in src of the first byte to write
+	 * @param length
+	 *            the number of bytes to write
+	 * @throws IOException
+	 *             if the write failed
+	 */
+	void write(byte[] src, int offset, int length) throws IOException;
+
+	/**
+	 * Change the baud rate of the link. Bytes in flight at the old rate may
+	 * be lost or garbled.
+	 *
+	 * @param baudRate
+	 *            the new baud rate
+	 * @throws IOException
+	 *             if the rate isn't supported
+	 */
+	void setBaudRate(int baudRate) throws IOException;
+
+	/**
+	 * Release the link. Blocked reads return -1.
+	 */
+	void close();
+
+}
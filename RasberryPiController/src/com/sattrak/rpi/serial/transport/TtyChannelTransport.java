@@ -0,0 +1,172 @@
+package com.sattrak.rpi.serial.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A transport that reads and writes a tty device directly through NIO file
+ * channels, with no native library. The line is put into raw mode once with
+ * stty, with VMIN 0 and VTIME 1, so a read returns whatever has arrived or
+ * nothing after at most a tenth of a second; timeouts are built on that. Bytes
+ * pass through direct buffers so the channel doesn't copy them again. Only
+ * runs where stty is available (Linux, including the Raspberry Pi).
+ */
+public class TtyChannelTransport implements SerialTransport {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	public static final int BUFFER_SIZE = 256; // bytes
+
+	// Everything stty sets apart from the baud rate: raw 8N1 with no flow
+	// control, and reads returning after 0.1 s with or without data
+	private static final String[] LINE_SETTINGS = { "cs8", "-cstopb",
+			"-parenb", "raw", "-echo", "-crtscts", "-ixon", "-ixoff",
+			"clocal", "min", "0", "time", "1" };
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final String device;
+	private final FileInputStream inStream;
+	private final FileOutputStream outStream;
+	private final FileChannel inChannel;
+	private final FileChannel outChannel;
+	private final ByteBuffer readBuffer = ByteBuffer
+			.allocateDirect(BUFFER_SIZE);
+	private final ByteBuffer writeBuffer = ByteBuffer
+			.allocateDirect(BUFFER_SIZE);
+	private volatile boolean closed;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * Configure the given tty and open it for reading and writing.
+	 *
+	 * @param device
+	 *            the path of the tty, such as /dev/ttyS80
+	 * @param baudRate
+	 *            the baud rate to start at
+	 * @throws IOException
+	 *             if the tty can't be configured or opened
+	 */
+	public TtyChannelTransport(String device, int baudRate)
+			throws IOException {
+		this.device = device;
+		configure(baudRate);
+		inStream = new FileInputStream(device);
+		outStream = new FileOutputStream(device);
+		inChannel = inStream.getChannel();
+		outChannel = outStream.getChannel();
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	public int read(byte[] dst, int offset, int length, int timeout)
+			throws IOException {
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		while (!closed) {
+			readBuffer.clear();
+			readBuffer.limit(Math.min(length, BUFFER_SIZE));
+
+			// With VMIN 0 the tty reports no data as end of file, which
+			// only means VTIME expired
+			int n;
+			try {
+				n = inChannel.read(readBuffer);
+			} catch (ClosedChannelException e) {
+				return -1;
+			}
+			if (n > 0) {
+				readBuffer.flip();
+				readBuffer.get(dst, offset, n);
+				return n;
+			}
+			if (timeout > 0 && System.nanoTime() - deadline >= 0)
+				return 0;
+		}
+		return -1;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return inStream.available();
+	}
+
+	@Override
+	public void write(byte[] src, int offset, int length) throws IOException {
+		while (length > 0) {
+			int chunk = Math.min(length, BUFFER_SIZE);
+			writeBuffer.clear();
+			writeBuffer.put(src, offset, chunk);
+			writeBuffer.flip();
+			while (writeBuffer.hasRemaining())
+				outChannel.write(writeBuffer);
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	@Override
+	public void setBaudRate(int baudRate) throws IOException {
+		configure(baudRate);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			inStream.close();
+			outStream.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * Set the tty's baud rate and line settings with stty.
+	 */
+	private void configure(int baudRate) throws IOException {
+		String[] command = new String[LINE_SETTINGS.length + 4];
+		command[0] = "stty";
+		command[1] = "-F";
+		command[2] = device;
+		command[3] = Integer.toString(baudRate);
+		System.arraycopy(LINE_SETTINGS, 0, command, 4, LINE_SETTINGS.length);
+
+		Process stty = new ProcessBuilder(command).redirectErrorStream(true)
+				.start();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream sttyOut = stty.getInputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int n;
+		while ((n = sttyOut.read(buffer)) > 0)
+			output.write(buffer, 0, n);
+		try {
+			if (stty.waitFor() != 0)
+				throw new IOException("stty failed on " + device + ": "
+						+ output.toString().trim());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted configuring " + device);
+		}
+	}
+
+}
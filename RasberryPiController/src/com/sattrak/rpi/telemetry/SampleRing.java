@@ -0,0 +1,139 @@
+package com.sattrak.rpi.telemetry;
+
+/**
+ * A fixed-size ring of recent sensor samples, each a time and a fixed number
+ * of values, kept in primitive arrays so adding a sample allocates nothing.
+ * Once full, each new sample overwrites the oldest.
+ */
+public class SampleRing {
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final int capacity;
+	private final int width;
+
+	// Sample i is at times[i] and values[i * width] onwards
+	private final long[] times;
+	private final double[] values;
+
+	// Index of the next sample to write, and the number of samples held
+	private int next;
+	private int size;
+	private long added;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * @param capacity
+	 *            the number of samples to keep
+	 * @param width
+	 *            the number of values in each sample
+	 */
+	public SampleRing(int capacity, int width) {
+		if (capacity < 1 || width < 1)
+			throw new IllegalArgumentException(
+					"capacity and width must be at least 1");
+		this.capacity = capacity;
+		this.width = width;
+		times = new long[capacity];
+		values = new double[capacity * width];
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return the number of samples held, at most the capacity
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of samples ever added
+	 */
+	public synchronized long getAdded() {
+		return added;
+	}
+
+	/**
+	 * @return the time of the newest sample, or -1 if there is none
+	 */
+	public synchronized long getLatestTime() {
+		return size == 0 ? -1 : times[(next + capacity - 1) % capacity];
+	}
+
+	/**
+	 * @param field
+	 *            the index of the value within a sample
+	 * @return the value of the newest sample, or NaN if there is none
+	 */
+	public synchronized double getLatest(int field) {
+		if (size == 0)
+			return Double.NaN;
+		return values[(next + capacity - 1) % capacity * width + field];
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Add a sample, overwriting the oldest if the ring is full.
+	 * 
+	 * @param time
+	 *            the time of the sample
+	 * @param sample
+	 *            its values; the first width of them are copied
+	 */
+	public synchronized void add(long time, double[] sample) {
+		times[next] = time;
+		System.arraycopy(sample, 0, values, next * width, width);
+		next = (next + 1) % capacity;
+		if (size < capacity)
+			size++;
+		added++;
+	}
+
+	/**
+	 * Copy the samples held, oldest first, into arrays given by the caller.
+	 * 
+	 * @param timesDst
+	 *            receives the times, from index 0
+	 * @param valuesDst
+	 *            receives the values, width per sample, from index 0
+	 * @return the number of samples copied, which is limited by the room in
+	 *         the arrays; the newest are copied if there isn't room for all
+	 */
+	public synchronized int copy(long[] timesDst, double[] valuesDst) {
+		int count = Math.min(size, Math.min(timesDst.length,
+				valuesDst.length / width));
+		int first = (next + capacity - count) % capacity;
+		for (int i = 0; i < count; i++) {
+			int index = (first + i) % capacity;
+			timesDst[i] = times[index];
+			System.arraycopy(values, index * width, valuesDst, i * width,
+					width);
+		}
+		return count;
+	}
+
+	public synchronized void clear() {
+		next = 0;
+		size = 0;
+	}
+
+}
@@ -0,0 +1,393 @@
+package com.sattrak.rpi.telemetry;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import com.sattrak.rpi.serial.AsyncSerialEngine;
+import com.sattrak.rpi.serial.Lane;
+import com.sattrak.rpi.serial.SerialComm.IncorrectResponseException;
+import com.sattrak.rpi.serial.SerialCommand;
+import com.sattrak.rpi.serial.SerialPacket;
+
+/**
+ * A cache of one sensor's latest reading, in front of the serial round trip
+ * that takes it. A reading younger than the cache's TTL is returned without
+ * touching the link. Otherwise every caller that wants a reading at the same
+ * time shares one request (single flight), and if stale-while-revalidate is
+ * on, a reading no older than the TTL plus the stale window is returned at
+ * once while a fresh one is fetched in the background. While the Arduino
+ * pushes the sensor's readings for a subscription, they can be offered to
+ * the cache, so while they keep coming callers never wait on the link. Any
+ * other reading that arrives unasked is a late duplicate of one already
+ * answered, perhaps older than the latest, and is turned away.
+ * 
+ * @param <T>
+ *            the type of the sensor's response packet
+ */
+public class SensorCache<T extends SerialPacket> {
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final AsyncSerialEngine engine;
+	private final SerialPacket request;
+	private final Class<T> type;
+	private final Lane lane;
+
+	// In ns
+	private volatile long ttl;
+	private volatile long maxStale;
+	private volatile boolean enabled = true;
+	private volatile boolean pushed;
+
+	private volatile Reading<T> latest;
+	private final AtomicReference<CompletableFuture<T>> pending =
+			new AtomicReference<CompletableFuture<T>>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder staleHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder joins = new LongAdder();
+	private final LongAdder reads = new LongAdder();
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * @param engine
+	 *            the engine to send reads through
+	 * @param request
+	 *            the read packet, sent for every refresh
+	 * @param type
+	 *            the class of the response packet
+	 * @param lane
+	 *            the lane to send reads in
+	 * @param ttl
+	 *            how long a reading is fresh, in ms
+	 */
+	public SensorCache(AsyncSerialEngine engine, SerialPacket request,
+			Class<T> type, Lane lane, long ttl) {
+		this.engine = engine;
+		this.request = request;
+		this.type = type;
+		this.lane = lane;
+		setTtl(ttl);
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	/**
+	 * @return how long a reading is fresh, in ms
+	 */
+	public long getTtl() {
+		return TimeUnit.NANOSECONDS.toMillis(ttl);
+	}
+
+	/**
+	 * @return how long past its TTL a reading is still returned while a
+	 *         fresh one is fetched, in ms, or 0 if stale readings are never
+	 *         returned
+	 */
+	public long getMaxStale() {
+		return TimeUnit.NANOSECONDS.toMillis(maxStale);
+	}
+
+	/**
+	 * @return true if the Arduino pushes the sensor's readings, so offered
+	 *         readings are taken
+	 */
+	public boolean isPushed() {
+		return pushed;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the command of the read the cache sends
+	 */
+	public SerialCommand getReadCommand() {
+		return request.getCommand();
+	}
+
+	/**
+	 * @return the latest reading, however old, or null if there is none
+	 */
+	public T getLatest() {
+		Reading<T> reading = latest;
+		return reading == null ? null : reading.value;
+	}
+
+	/**
+	 * @return the age of the latest reading in ms, or -1 if there is none
+	 */
+	public long getAge() {
+		Reading<T> reading = latest;
+		return reading == null ? -1 : TimeUnit.NANOSECONDS.toMillis(System
+				.nanoTime() - reading.time);
+	}
+
+	/**
+	 * @return the number of calls answered with a fresh reading
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of calls answered with a stale reading while a
+	 *         fresh one was fetched
+	 */
+	public long getStaleHits() {
+		return staleHits.sum();
+	}
+
+	/**
+	 * @return the number of calls that waited for a read
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of reads wanted while one was already on its way,
+	 *         which shared it instead of sending another
+	 */
+	public long getJoins() {
+		return joins.sum();
+	}
+
+	/**
+	 * @return the number of reads sent
+	 */
+	public long getReads() {
+		return reads.sum();
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	/**
+	 * @param ttl
+	 *            how long a reading is fresh, in ms
+	 */
+	public void setTtl(long ttl) {
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+	}
+
+	/**
+	 * @param maxStale
+	 *            how long past its TTL a reading may still be returned while a
+	 *            fresh one is fetched, in ms, or 0 to always wait for a fresh
+	 *            one
+	 */
+	public void setMaxStale(long maxStale) {
+		this.maxStale = TimeUnit.MILLISECONDS.toNanos(maxStale);
+	}
+
+	/**
+	 * @param enabled
+	 *            false to send a read for every call, with no caching or
+	 *            sharing
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @param pushed
+	 *            true while the Arduino pushes the sensor's readings, so
+	 *            offered readings are taken
+	 */
+	public void setPushed(boolean pushed) {
+		this.pushed = pushed;
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Get a reading that is fresh, or stale within the stale window, reading
+	 * the sensor if there is none.
+	 * 
+	 * @return the reading
+	 * @throws IncorrectResponseException
+	 *             if a read was needed and the correct response was not
+	 *             received
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for a read
+	 */
+	public T get() throws IncorrectResponseException, InterruptedException {
+		if (enabled) {
+			Reading<T> reading = latest;
+			if (reading != null) {
+				long age = System.nanoTime() - reading.time;
+				if (age < ttl) {
+					hits.increment();
+					return reading.value;
+				}
+				if (age < ttl + maxStale) {
+					staleHits.increment();
+					refresh();
+					return reading.value;
+				}
+			}
+		}
+		misses.increment();
+		try {
+			return enabled ? refresh().get() : read(lane).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IncorrectResponseException)
+				throw (IncorrectResponseException) e.getCause();
+			throw new IncorrectResponseException(e.getCause().toString());
+		}
+	}
+
+	/**
+	 * Read the sensor, or share the read already on its way, however fresh
+	 * the latest reading is.
+	 * 
+	 * @return a future completed with the new reading
+	 */
+	public CompletableFuture<T> refresh() {
+		return refresh(lane);
+	}
+
+	/**
+	 * Read the sensor in the given lane, or share the read already on its
+	 * way in whatever lane it was sent.
+	 * 
+	 * @return a future completed with the new reading
+	 */
+	public CompletableFuture<T> refresh(Lane lane) {
+		while (true) {
+			CompletableFuture<T> shared = pending.get();
+			if (shared != null) {
+				joins.increment();
+				return shared;
+			}
+			CompletableFuture<T> mine = new CompletableFuture<T>();
+			if (pending.compareAndSet(null, mine)) {
+				fetch(mine, lane);
+				return mine;
+			}
+		}
+	}
+
+	/**
+	 * Record a reading that arrived without being asked for.
+	 */
+	public void update(T reading) {
+		latest = new Reading<T>(reading, System.nanoTime());
+	}
+
+	/**
+	 * Record a packet that arrived without being asked for, if it is a
+	 * reading of this cache's sensor and the sensor's readings are pushed.
+	 * The packet may be a reusable one, so a copy of it is kept.
+	 * 
+	 * @return true if the packet was taken as a reading of the sensor
+	 */
+	public boolean offer(SerialPacket packet) {
+		if (!pushed || !type.isInstance(packet))
+			return false;
+		update(type.cast(packet.copy()));
+		return true;
+	}
+
+	/**
+	 * Forget the latest reading, so the next call reads the sensor.
+	 */
+	public void invalidate() {
+		latest = null;
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * Send a read, store its reading, and then let other callers send
+	 * another and complete the shared future.
+	 */
+	private void fetch(final CompletableFuture<T> shared, Lane lane) {
+		read(lane).whenComplete(new BiConsumer<T, Throwable>() {
+
+			@Override
+			public void accept(T reading, Throwable failure) {
+				if (failure == null)
+					update(reading);
+				pending.compareAndSet(shared, null);
+				if (failure == null)
+					shared.complete(reading);
+				else
+					shared.completeExceptionally(failure);
+			}
+		});
+	}
+
+	private CompletableFuture<T> read(Lane lane) {
+		reads.increment();
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		engine.submit(request, lane).whenComplete(
+				new BiConsumer<SerialPacket, Throwable>() {
+
+					@Override
+					public void accept(SerialPacket response,
+							Throwable failure) {
+						if (failure != null)
+							result.completeExceptionally(failure);
+						else if (type.isInstance(response))
+							result.complete(type.cast(response));
+						else
+							result.completeExceptionally(
+									new IncorrectResponseException(
+											"Unexpected response: "
+													+ response.getCommand()));
+					}
+				});
+		return result;
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	public String toString() {
+		return type.getSimpleName() + ": " + getHits() + " hits, "
+				+ getStaleHits() + " stale hits, " + getMisses()
+				+ " misses, " + getJoins() + " joins, " + getReads()
+				+ " reads";
+	}
+
+	// ===============================
+	// READING
+	// ===============================
+
+	/**
+	 * A reading and the System.nanoTime it was taken.
+	 */
+	private static class Reading<T> {
+
+		private final T value;
+		private final long time;
+
+		private Reading(T value, long time) {
+			this.value = value;
+			this.time = time;
+		}
+	}
+
+}
@@ -0,0 +1,479 @@
+package com.sattrak.rpi.telemetry;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.sattrak.rpi.serial.EnvironmentalResponsePacket;
+import com.sattrak.rpi.serial.GpsResponsePacket;
+import com.sattrak.rpi.serial.Lane;
+import com.sattrak.rpi.serial.OrientationResponsePacket;
+import com.sattrak.rpi.serial.SerialCommand;
+import com.sattrak.rpi.serial.SerialPacket;
+
+/**
+ * Samples the environmental, GPS and orientation sensors in the background,
+ * each on its own schedule, into a SampleRing per sensor. Reads go through
+ * the sensors' SensorCaches in the SCHEDULED lane, so they keep the caches
+ * warm for other callers, share any read already on its way, and never go
+ * ahead of motion commands; a reading the cache already has that is recent
+ * enough is taken without a read at all.
+ *
+ * Each sensor's interval adapts between a minimum and a maximum: it halves
+ * when a sample differs from the last by more than the sensor's threshold,
+ * and grows by half when it doesn't, so stable values are polled rarely. The
+ * orientation is polled at its minimum interval for a while after
+ * noteMotion. All polling shares a budget of link time: each read is charged
+ * its round trip, and polling waits while the budget is spent, so it slows
+ * down by itself when the link is busy.
+ *
+ * A sensor the Arduino has been subscribed to, so it pushes readings on its
+ * own, isn't polled: readings handed to received go into its ring instead. If
+ * its pushes stop for a few periods, polling takes over again until they
+ * resume. Readings received for a sensor that isn't pushed are ignored.
+ */
+public class TelemetryPoller {
+
+	// ===============================
+	// CONSTANTS
+	// ===============================
+
+	// Fraction of the link's time polling may use
+	public static final double DEFAULT_BUDGET = 0.1;
+
+	// Most link time the budget can save up while polling is idle
+	private static final long MAX_CREDIT = 1000; // ms
+
+	// How long the orientation is polled quickly after motion
+	private static final long MOTION_HOLD = 2000; // ms
+
+	// Samples kept for each sensor
+	private static final int RING_CAPACITY = 1024;
+
+	private static final double GROWTH = 1.5;
+
+	// Periods a pushed sensor may go without a reading before it is polled
+	private static final int MISSED_PUSHES = 3;
+
+	// ===============================
+	// INSTANCE VARIABLES
+	// ===============================
+
+	private final Channel<EnvironmentalResponsePacket> environmental;
+	private final Channel<GpsResponsePacket> gps;
+	private final Channel<OrientationResponsePacket> orientation;
+	private final Channel<?>[] channels;
+
+	private final Object lock = new Object();
+
+	// Guarded by lock
+	private double budget = DEFAULT_BUDGET;
+	private double credit; // ms of link time
+	private long creditTime;
+	private long motionUntil;
+	private long deferrals;
+
+	private Thread pollerThread;
+	private volatile boolean running;
+
+	// ===============================
+	// CONSTRUCTORS
+	// ===============================
+
+	/**
+	 * @param environmentalCache
+	 *            the cache to sample the temperature and humidity from
+	 * @param gpsCache
+	 *            the cache to sample the latitude and longitude from
+	 * @param orientationCache
+	 *            the cache to sample the mount's azimuth and elevation from
+	 */
+	public TelemetryPoller(
+			SensorCache<EnvironmentalResponsePacket> environmentalCache,
+			SensorCache<GpsResponsePacket> gpsCache,
+			SensorCache<OrientationResponsePacket> orientationCache) {
+		environmental = new Channel<EnvironmentalResponsePacket>(
+				"Environmental", environmentalCache, 5000, 120000,
+				new double[] { 0.2, 0.5 }) {
+
+			@Override
+			void fields(EnvironmentalResponsePacket reading, double[] dst) {
+				dst[0] = reading.getTemperature();
+				dst[1] = reading.getHumidity();
+			}
+		};
+		// About a metre
+		gps = new Channel<GpsResponsePacket>("GPS", gpsCache, 1000, 60000,
+				new double[] { 1e-5, 1e-5 }) {
+
+			@Override
+			void fields(GpsResponsePacket reading, double[] dst) {
+				dst[0] = reading.getLatitude();
+				dst[1] = reading.getLongitude();
+			}
+		};
+		orientation = new Channel<OrientationResponsePacket>("Orientation",
+				orientationCache, 100, 10000, new double[] { 0.05, 0.05 }) {
+
+			@Override
+			void fields(OrientationResponsePacket reading, double[] dst) {
+				dst[0] = reading.getAzimuth();
+				dst[1] = reading.getElevation();
+			}
+		};
+		channels = new Channel<?>[] { environmental, gps, orientation };
+		motionUntil = System.nanoTime();
+	}
+
+	// ===============================
+	// GETTERS
+	// ===============================
+
+	/**
+	 * @return recent temperatures (field 0) and humidities (field 1), timed
+	 *         in epoch ms
+	 */
+	public SampleRing getEnvironmentalSamples() {
+		return environmental.ring;
+	}
+
+	/**
+	 * @return recent latitudes (field 0) and longitudes (field 1), timed in
+	 *         epoch ms
+	 */
+	public SampleRing getGpsSamples() {
+		return gps.ring;
+	}
+
+	/**
+	 * @return recent azimuths (field 0) and elevations (field 1), timed in
+	 *         epoch ms
+	 */
+	public SampleRing getOrientationSamples() {
+		return orientation.ring;
+	}
+
+	/**
+	 * @return the fraction of the link's time polling may use
+	 */
+	public double getBudget() {
+		synchronized (lock) {
+			return budget;
+		}
+	}
+
+	/**
+	 * @return the number of times a poll waited for the link budget
+	 */
+	public long getDeferrals() {
+		synchronized (lock) {
+			return deferrals;
+		}
+	}
+
+	// ===============================
+	// SETTERS
+	// ===============================
+
+	/**
+	 * @param budget
+	 *            the fraction of the link's time polling may use, above 0
+	 */
+	public void setBudget(double budget) {
+		if (budget <= 0)
+			throw new IllegalArgumentException("budget must be above 0");
+		synchronized (lock) {
+			this.budget = budget;
+		}
+	}
+
+	/**
+	 * Say whether the Arduino pushes a sensor's readings, so it isn't polled
+	 * while they arrive.
+	 * 
+	 * @param readCommand
+	 *            the read command of the sensor
+	 * @param period
+	 *            how often readings are pushed in ms, or 0 if they aren't
+	 */
+	public void setPushPeriod(SerialCommand readCommand, long period) {
+		for (Channel<?> channel : channels) {
+			if (channel.cache.getReadCommand() != readCommand)
+				continue;
+			synchronized (lock) {
+				channel.lastPush = System.nanoTime();
+				channel.pushPeriod = period;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	// ===============================
+	// PUBLIC METHODS
+	// ===============================
+
+	/**
+	 * Record a reading pushed for a subscription as a sample of its sensor.
+	 * Call from one thread at a time, such as the engine's reader.
+	 * 
+	 * @return true if the packet was a reading of one of the pushed sensors
+	 */
+	public boolean received(SerialPacket packet) {
+		for (Channel<?> channel : channels) {
+			if (channel.received(packet))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Start the thread that polls the sensors.
+	 */
+	public void start() {
+		synchronized (lock) {
+			creditTime = System.nanoTime();
+		}
+		running = true;
+		pollerThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				poll();
+			}
+		}, "telemetry-poller");
+		pollerThread.setDaemon(true);
+		pollerThread.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (pollerThread != null)
+			pollerThread.interrupt();
+	}
+
+	/**
+	 * Say the mount is moving or tracking, so the orientation is polled at
+	 * its fastest for a while.
+	 */
+	public void noteMotion() {
+		synchronized (lock) {
+			motionUntil = System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(MOTION_HOLD);
+			lock.notifyAll();
+		}
+	}
+
+	// ===============================
+	// PRIVATE METHODS
+	// ===============================
+
+	/**
+	 * Poller thread loop: wait for the next sensor to fall due and for the
+	 * budget to allow a read, then sample it.
+	 */
+	private void poll() {
+		while (running) {
+			try {
+				Channel<?> next = null;
+				long wait;
+				synchronized (lock) {
+					long now = System.nanoTime();
+					for (Channel<?> channel : channels) {
+						if (next == null
+								|| dueTime(channel) - dueTime(next) < 0)
+							next = channel;
+					}
+					wait = dueTime(next) - now;
+					long budgetWait = budgetWait(now);
+					if (wait <= 0 && budgetWait > 0)
+						deferrals++;
+					wait = Math.max(wait, budgetWait);
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.timedWait(lock, wait);
+						continue;
+					}
+					// Start from the fastest rate once motion stops
+					if (next == orientation && isMoving(now))
+						next.interval = next.minInterval;
+				}
+				long cost = next.sample();
+				synchronized (lock) {
+					credit -= cost / 1e6;
+				}
+			} catch (InterruptedException e) {
+				// Stopped
+			}
+		}
+	}
+
+	/**
+	 * @return the System.nanoTime at which the channel should next be
+	 *         sampled. Guarded by lock.
+	 */
+	private long dueTime(Channel<?> channel) {
+		long interval = channel == orientation && isMoving(System.nanoTime())
+				? channel.minInterval : channel.interval;
+		long due = channel.lastSample
+				+ TimeUnit.MILLISECONDS.toNanos(interval);
+		// Only poll a pushed sensor once its pushes have stopped
+		if (channel.pushPeriod > 0) {
+			long pushDue = channel.lastPush + TimeUnit.MILLISECONDS
+					.toNanos(channel.pushPeriod * MISSED_PUSHES);
+			if (pushDue - due > 0)
+				due = pushDue;
+		}
+		return due;
+	}
+
+	/**
+	 * @return true if motion was noted within MOTION_HOLD. Guarded by lock.
+	 */
+	private boolean isMoving(long now) {
+		return now - motionUntil < 0;
+	}
+
+	/**
+	 * Top up the link-time credit for the time since it was last topped up.
+	 *
+	 * @return how long until the credit is no longer negative, in ns.
+	 *         Guarded by lock.
+	 */
+	private long budgetWait(long now) {
+		credit = Math.min(MAX_CREDIT * budget, credit + budget
+				* (now - creditTime) / 1e6);
+		creditTime = now;
+		if (credit >= 0)
+			return 0;
+		return (long) (-credit / budget * 1e6);
+	}
+
+	// ===============================
+	// OVERRIDDEN METHODS
+	// ===============================
+
+	@Override
+	public String toString() {
+		String stats = "";
+		for (Channel<?> channel : channels)
+			stats += channel + "\n";
+		return stats + "Budget Deferrals: " + getDeferrals();
+	}
+
+	// ===============================
+	// CHANNEL
+	// ===============================
+
+	/**
+	 * One sensor's schedule, the cache it is read through and the ring its
+	 * samples go to. Only the poller thread touches the schedule, and only
+	 * the receiving thread the pushed sample.
+	 */
+	private abstract static class Channel<T extends SerialPacket> {
+
+		private final String name;
+		private final SensorCache<T> cache;
+		private final long minInterval; // ms
+		private final long maxInterval; // ms
+		private final double[] thresholds;
+		private final SampleRing ring;
+
+		private final double[] sample;
+		private final double[] last;
+		private boolean hasLast;
+		private volatile long interval; // ms
+		private long lastSample;
+		private volatile long failures;
+
+		// Set under the poller's lock, and lastPush by the receiving thread
+		private volatile long pushPeriod; // ms, 0 if not pushed
+		private volatile long lastPush;
+		private final double[] pushed;
+
+		private Channel(String name, SensorCache<T> cache, long minInterval,
+				long maxInterval, double[] thresholds) {
+			this.name = name;
+			this.cache = cache;
+			this.minInterval = minInterval;
+			this.maxInterval = maxInterval;
+			this.thresholds = thresholds;
+			this.ring = new SampleRing(RING_CAPACITY, thresholds.length);
+			this.sample = new double[thresholds.length];
+			this.last = new double[thresholds.length];
+			this.pushed = new double[thresholds.length];
+			this.interval = minInterval;
+			this.lastSample = System.nanoTime()
+					- TimeUnit.MILLISECONDS.toNanos(maxInterval);
+		}
+
+		/**
+		 * Copy the values of a reading into dst.
+		 */
+		abstract void fields(T reading, double[] dst);
+
+		/**
+		 * Take a sample, from the cache if it has one less than half an
+		 * interval old, and adapt the interval to how much it changed.
+		 *
+		 * @return the time spent reading over the link, in ns
+		 */
+		private long sample() throws InterruptedException {
+			long start = System.nanoTime();
+			lastSample = start;
+			long cost = 0;
+			T reading;
+			long age = cache.getAge();
+			if (age >= 0 && age < interval / 2) {
+				reading = cache.getLatest();
+			} else {
+				try {
+					reading = cache.refresh(Lane.SCHEDULED).get();
+				} catch (ExecutionException e) {
+					failures++;
+					return System.nanoTime() - start;
+				}
+				cost = System.nanoTime() - start;
+			}
+
+			fields(reading, sample);
+			ring.add(System.currentTimeMillis(), sample);
+			boolean changed = !hasLast;
+			for (int i = 0; i < sample.length; i++) {
+				if (Math.abs(sample[i] - last[i]) > thresholds[i])
+					changed = true;
+			}
+			System.arraycopy(sample, 0, last, 0, sample.length);
+			hasLast = true;
+			interval = changed ? Math.max(minInterval, interval / 2) : Math
+					.min(maxInterval, (long) (interval * GROWTH));
+			return cost;
+		}
+
+		/**
+		 * Add a reading that arrived without being asked for, if it is one
+		 * of this sensor's and the sensor is pushed, to the ring. Otherwise
+		 * it is a late duplicate of a read, and not a new sample.
+		 * 
+		 * @return true if the packet was taken as a reading of this sensor
+		 */
+		private boolean received(SerialPacket packet) {
+			if (pushPeriod == 0
+					|| packet.getCommand() != cache.getReadCommand()
+							.getResponse())
+				return false;
+			@SuppressWarnings("unchecked")
+			T reading = (T) packet;
+			fields(reading, pushed);
+			ring.add(System.currentTimeMillis(), pushed);
+			lastPush = System.nanoTime();
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			long period = pushPeriod;
+			return name + (period > 0 ? ": pushed every " + period
+					: ": every " + interval) + " ms, " + ring.getAdded()
+					+ " samples, " + failures + " failures";
+		}
+	}
+
+}
@@ -5,6 +5,13 @@ import java.nio.ByteBuffer;
 public class ByteConverter {
 
 	public static final int LENGTH_DOUBLE = 8;
+	public static final int LENGTH_FIXED = 4;
+
+	// Fixed-point values are stored in millionths
+	public static final double FIXED_SCALE = 1e6;
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8 };
 
 	/**
 	 * Private constructor so the class can't be instantiated.
@@ -87,11 +94,8 @@ public class ByteConverter {
 	 * @return the equivalent byte array of the double as a string
 	 */
 	public static byte[] doubleToStringBytes(double value) {
-		String valueString = String.format("%0" + (LENGTH_DOUBLE - 1) + ".2f",
-				value);
 		byte[] bytes = new byte[LENGTH_DOUBLE];
-		System.arraycopy(valueString.getBytes(), 0, bytes, 0,
-				valueString.length());
+		putStringDouble(ByteBuffer.wrap(bytes), 0, value);
 		return bytes;
 	}
 
@@ -107,7 +111,151 @@ public class ByteConverter {
 	 * @return the corresponding double
 	 */
 	public static double stringBytesToDouble(byte[] bytes, int offset) {
-		return Double.parseDouble(new String(bytes, offset, LENGTH_DOUBLE));
+		return getStringDouble(ByteBuffer.wrap(bytes), offset);
+	}
+
+	/**
+	 * Write a double into a buffer as a string, in the format described in
+	 * doubleToStringBytes, without allocating. The value is rounded to 2
+	 * decimal places and the LENGTH_DOUBLE bytes starting at index are
+	 * written; the buffer's position is not changed.
+	 * 
+	 * @param dst
+	 *            the buffer to write into
+	 * @param index
+	 *            the index of the first byte to write
+	 * @param value
+	 *            the double to write
+	 * @throws IllegalArgumentException
+	 *             if the value has too many digits to fit in LENGTH_DOUBLE
+	 *             bytes
+	 */
+	public static void putStringDouble(ByteBuffer dst, int index,
+			double value) {
+		long scaled = Math.round(Math.abs(value) * 100);
+		boolean negative = value < 0 && scaled != 0;
+
+		// Work out the width: integer digits, point, 2 decimals and sign
+		int digits = 1;
+		for (long i = scaled / 100; i >= 10; i /= 10)
+			digits++;
+		int width = Math.max(LENGTH_DOUBLE - 1, digits + 3
+				+ (negative ? 1 : 0));
+		if (width > LENGTH_DOUBLE)
+			throw new IllegalArgumentException("Too wide to convert: " + value);
+
+		// Fill in the digits from the right
+		int position = index + width - 1;
+		for (int i = 0; i < 2; i++) {
+			dst.put(position--, (byte) ('0' + scaled % 10));
+			scaled /= 10;
+		}
+		dst.put(position--, (byte) '.');
+		do {
+			dst.put(position--, (byte) ('0' + scaled % 10));
+			scaled /= 10;
+		} while (scaled > 0);
+
+		// Zero-pad after the sign, and null-fill any unused bytes
+		int first = negative ? index + 1 : index;
+		while (position >= first)
+			dst.put(position--, (byte) '0');
+		if (negative)
+			dst.put(index, (byte) '-');
+		for (int i = index + width; i < index + LENGTH_DOUBLE; i++)
+			dst.put(i, (byte) 0);
+	}
+
+	/**
+	 * Read a double written as a string from the LENGTH_DOUBLE bytes starting
+	 * at index, without allocating. Leading spaces (as written by the
+	 * Arduino's dtostrf) and trailing nulls are ignored. The buffer's position
+	 * is not changed.
+	 * 
+	 * @param src
+	 *            the buffer to read from
+	 * @param index
+	 *            the index of the first byte of the double
+	 * @return the corresponding double
+	 * @throws NumberFormatException
+	 *             if the bytes are not a decimal number
+	 */
+	public static double getStringDouble(ByteBuffer src, int index) {
+		int end = index + LENGTH_DOUBLE;
+		int i = index;
+
+		// Skip leading padding
+		while (i < end && src.get(i) <= ' ')
+			i++;
+
+		boolean negative = false;
+		if (i < end && (src.get(i) == '-' || src.get(i) == '+')) {
+			negative = src.get(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int fractionDigits = -1;
+		boolean anyDigits = false;
+		for (; i < end; i++) {
+			byte b = src.get(i);
+			if (b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				anyDigits = true;
+				if (fractionDigits >= 0)
+					fractionDigits++;
+			} else if (b == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			} else if (b <= ' ') {
+				break;
+			} else {
+				throw new NumberFormatException("Invalid double character "
+						+ (char) b);
+			}
+		}
+		if (!anyDigits)
+			throw new NumberFormatException("No digits in double");
+
+		// Both operands are exact, so the division is correctly rounded
+		double value = mantissa;
+		if (fractionDigits > 0)
+			value /= POWERS_OF_TEN[fractionDigits];
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Write a double into a buffer as a big-endian int32 fixed-point number of
+	 * millionths (so angles are in micro-degrees). The buffer's position is
+	 * not changed.
+	 * 
+	 * @param dst
+	 *            the buffer to write into
+	 * @param index
+	 *            the index of the first byte to write
+	 * @param value
+	 *            the double to write
+	 * @throws IllegalArgumentException
+	 *             if the value is outside the int32 fixed-point range
+	 */
+	public static void putFixed(ByteBuffer dst, int index, double value) {
+		long fixed = Math.round(value * FIXED_SCALE);
+		if (fixed > Integer.MAX_VALUE || fixed < Integer.MIN_VALUE)
+			throw new IllegalArgumentException("Out of fixed-point range: "
+					+ value);
+		dst.putInt(index, (int) fixed);
+	}
+
+	/**
+	 * Read a double written by putFixed. The buffer's position is not changed.
+	 * 
+	 * @param src
+	 *            the buffer to read from
+	 * @param index
+	 *            the index of the first byte of the value
+	 * @return the corresponding double
+	 */
+	public static double getFixed(ByteBuffer src, int index) {
+		return src.getInt(index) / FIXED_SCALE;
 	}
 
 	/**
@@ -0,0 +1,110 @@
+package com.sattrak.rpi.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table-driven CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF,
+ * no reflection, no final XOR), as used for packet and frame checksums. The
+ * Arduino firmware computes the same CRC with the same table.
+ */
+public class Crc16 {
+
+	public static final int LENGTH = 2; // bytes
+	public static final int INITIAL_VALUE = 0xFFFF;
+
+	private static final int POLYNOMIAL = 0x1021;
+	private static final short[] TABLE = new short[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 8;
+			for (int bit = 0; bit < 8; bit++) {
+				if ((crc & 0x8000) != 0)
+					crc = (crc << 1) ^ POLYNOMIAL;
+				else
+					crc <<= 1;
+			}
+			TABLE[i] = (short) crc;
+		}
+	}
+
+	/**
+	 * Private constructor so the class can't be instantiated.
+	 */
+	private Crc16() {
+
+	}
+
+	/**
+	 * Add one byte to a running CRC.
+	 *
+	 * @param crc
+	 *            the CRC so far, starting from INITIAL_VALUE
+	 * @param b
+	 *            the next byte
+	 * @return the updated CRC
+	 */
+	public static int update(int crc, byte b) {
+		int entry = TABLE[((crc >>> 8) ^ b) & 0xFF] & 0xFFFF;
+		return ((crc << 8) ^ entry) & 0xFFFF;
+	}
+
+	/**
+	 * Compute the CRC of a range of a byte array.
+	 *
+	 * @param bytes
+	 *            the bytes to check
+	 * @param offset
+	 *            the index of the first byte
+	 * @param length
+	 *            the number of bytes
+	 * @return the CRC, from 0 to 0xFFFF
+	 */
+	public static int compute(byte[] bytes, int offset, int length) {
+		int crc = INITIAL_VALUE;
+		for (int i = offset; i < offset + length; i++)
+			crc = update(crc, bytes[i]);
+		return crc;
+	}
+
+	/**
+	 * Compute the CRC of a range of a buffer, using absolute gets so the
+	 * buffer's position is not changed.
+	 *
+	 * @param buffer
+	 *            the bytes to check
+	 * @param index
+	 *            the index of the first byte
+	 * @param length
+	 *            the number of bytes
+	 * @return the CRC, from 0 to 0xFFFF
+	 */
+	public static int compute(ByteBuffer buffer, int index, int length) {
+		int crc = INITIAL_VALUE;
+		for (int i = index; i < index + length; i++)
+			crc = update(crc, buffer.get(i));
+		return crc;
+	}
+
+	/**
+	 * Write a CRC as two big-endian bytes at the given index.
+	 */
+	public static void put(ByteBuffer buffer, int index, int crc) {
+		buffer.putShort(index, (short) crc);
+	}
+
+	/**
+	 * Read a CRC written by put.
+	 */
+	public static int get(ByteBuffer buffer, int index) {
+		return buffer.getShort(index) & 0xFFFF;
+	}
+
+	/**
+	 * Read a CRC written by put from a byte array.
+	 */
+	public static int get(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+	}
+
+}
@@ -0,0 +1,114 @@
+package com.sattrak.rpi.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A shortened Reed-Solomon code over GF(2^8) (field polynomial 0x11D) with two
+ * parity bytes, which corrects any single corrupted byte in a block of up to
+ * 255 bytes and detects most worse damage. The generator polynomial is
+ * (x + 1)(x + 2), so only multiplication by 2 and 3 is needed to encode and
+ * the error position is found by stepping powers of 2; the Arduino firmware
+ * does the same without any tables.
+ */
+public class ReedSolomon {
+
+	public static final int PARITY_LENGTH = 2; // bytes
+	public static final int MAX_BLOCK_LENGTH = 255; // bytes, with parity
+
+	// Results of correct
+	public static final int UNCORRECTABLE = -1;
+	public static final int CLEAN = 0;
+	public static final int CORRECTED = 1;
+
+	private static final int FIELD_POLYNOMIAL = 0x11D;
+
+	/**
+	 * Private constructor so the class can't be instantiated.
+	 */
+	private ReedSolomon() {
+
+	}
+
+	/**
+	 * Compute the parity of a range of a buffer and write it just after the
+	 * range, using absolute gets and puts so the buffer's position is not
+	 * changed.
+	 *
+	 * @param buffer
+	 *            the buffer holding the data
+	 * @param index
+	 *            the index of the first data byte
+	 * @param length
+	 *            the number of data bytes, at most MAX_BLOCK_LENGTH -
+	 *            PARITY_LENGTH
+	 */
+	public static void encode(ByteBuffer buffer, int index, int length) {
+		int high = 0;
+		int low = 0;
+		for (int i = index; i < index + length; i++) {
+			int feedback = (buffer.get(i) & 0xFF) ^ high;
+			high = low ^ times3(feedback);
+			low = times2(feedback);
+		}
+		buffer.put(index + length, (byte) high);
+		buffer.put(index + length + 1, (byte) low);
+	}
+
+	/**
+	 * Compute the parity of a range of a byte array and write it just after
+	 * the range.
+	 *
+	 * @see #encode(ByteBuffer, int, int)
+	 */
+	public static void encode(byte[] bytes, int offset, int length) {
+		encode(ByteBuffer.wrap(bytes), offset, length);
+	}
+
+	/**
+	 * Check a block and repair it in place if a single byte is wrong.
+	 *
+	 * @param bytes
+	 *            the array holding the block
+	 * @param offset
+	 *            the index of the first byte of the block
+	 * @param length
+	 *            the length of the block, including its parity
+	 * @return CLEAN if the block was intact, CORRECTED if one byte was
+	 *         repaired, or UNCORRECTABLE if more than one byte is wrong
+	 */
+	public static int correct(byte[] bytes, int offset, int length) {
+		// Evaluate the block at the generator's roots 1 and 2
+		int syndrome0 = 0;
+		int syndrome1 = 0;
+		for (int i = offset; i < offset + length; i++) {
+			syndrome0 ^= bytes[i] & 0xFF;
+			syndrome1 = times2(syndrome1) ^ (bytes[i] & 0xFF);
+		}
+		if (syndrome0 == 0 && syndrome1 == 0)
+			return CLEAN;
+		if (syndrome0 == 0 || syndrome1 == 0)
+			return UNCORRECTABLE;
+
+		// A single error e at power p gives syndrome0 = e and syndrome1 =
+		// e * 2^p, so step powers of 2 until they match
+		int product = syndrome0;
+		for (int power = 0; power < length; power++) {
+			if (product == syndrome1) {
+				bytes[offset + length - 1 - power] ^= syndrome0;
+				return CORRECTED;
+			}
+			product = times2(product);
+		}
+		return UNCORRECTABLE;
+	}
+
+	private static int times2(int value) {
+		value <<= 1;
+		return (value & 0x100) != 0 ? value ^ FIELD_POLYNOMIAL : value;
+	}
+
+	private static int times3(int value) {
+		return times2(value) ^ value;
+	}
+
+}
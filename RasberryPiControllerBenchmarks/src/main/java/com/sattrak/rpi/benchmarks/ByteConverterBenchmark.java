@@ -0,0 +1,72 @@
+package com.sattrak.rpi.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sattrak.rpi.serial.OrientationSetPacket;
+import com.sattrak.rpi.util.ByteConverter;
+
+/**
+ * Conversion of numeric arguments to and from their wire encodings, and the
+ * hex dump used when printing frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteConverterBenchmark {
+
+	private double value;
+	private byte[] stringBytes;
+	private byte[] frame;
+	private ByteBuffer buffer;
+
+	@Setup
+	public void setUp() {
+		value = 271.4853;
+		stringBytes = ByteConverter.doubleToStringBytes(value);
+		frame = new OrientationSetPacket(value, 38.0127).toBytes();
+		buffer = ByteBuffer.allocate(16);
+	}
+
+	@Benchmark
+	public byte[] doubleToStringBytes() {
+		return ByteConverter.doubleToStringBytes(value);
+	}
+
+	@Benchmark
+	public double stringBytesToDouble() {
+		return ByteConverter.stringBytesToDouble(stringBytes, 0);
+	}
+
+	@Benchmark
+	public double stringDoubleInPlace() {
+		ByteConverter.putStringDouble(buffer, 0, value);
+		return ByteConverter.getStringDouble(buffer, 0);
+	}
+
+	@Benchmark
+	public double fixedInPlace() {
+		ByteConverter.putFixed(buffer, 0, value);
+		return ByteConverter.getFixed(buffer, 0);
+	}
+
+	@Benchmark
+	public String bytesToHex() {
+		return ByteConverter.bytesToHex(frame);
+	}
+
+}
@@ -0,0 +1,159 @@
+package com.sattrak.rpi.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sattrak.rpi.serial.FrameDecoder;
+import com.sattrak.rpi.serial.Framing;
+import com.sattrak.rpi.serial.PacketCodec;
+import com.sattrak.rpi.serial.SerialCommand;
+import com.sattrak.rpi.serial.SerialPacket.InvalidPacketException;
+import com.sattrak.rpi.serial.WireFormat;
+import com.sattrak.rpi.serial.transport.SerialTransport;
+
+/**
+ * Receive path from bytes to packets: a recorded stream of frames is read
+ * through a FrameDecoder, each frame checked (and repaired, with FEC) and
+ * its body decoded into the codec's reusable packets. Scores are frames/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+	private static final int FRAMES = 240;
+
+	// Responses the Pi receives in normal operation, in rotation
+	private static final SerialCommand[] COMMANDS = {
+			SerialCommand.RESPONSE_ORIENTATION, SerialCommand.ACK,
+			SerialCommand.RESPONSE_ENV, SerialCommand.RESPONSE_GPS };
+
+	/**
+	 * Framing options: fixed, variable length, then adding the CRC, sequence
+	 * numbers and FEC in turn.
+	 */
+	@Param({ "0", "1", "3", "7", "15" })
+	public int options;
+
+	private ReplayTransport transport;
+	private FrameDecoder decoder;
+	private PacketCodec codec;
+	private byte[] frame;
+	private ByteBuffer frameBuffer;
+	private Framing framing;
+
+	@Setup
+	public void setUp() {
+		framing = new Framing(options);
+
+		ByteBuffer stream = ByteBuffer.allocate(FRAMES
+				* Framing.MAX_FRAME_LENGTH);
+		for (int i = 0; i < FRAMES; i++) {
+			SerialCommand command = COMMANDS[i % COMMANDS.length];
+			framing.encode(Samples.packet(command), WireFormat.LATEST, stream,
+					i, i);
+		}
+		transport = new ReplayTransport(stream.array(), stream.position());
+
+		decoder = new FrameDecoder();
+		decoder.setFraming(framing);
+		codec = new PacketCodec();
+		codec.setWireFormat(WireFormat.LATEST);
+		frame = new byte[Framing.MAX_FRAME_LENGTH];
+		frameBuffer = ByteBuffer.wrap(frame);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public void decodeStream(Blackhole blackhole) throws IOException,
+			InvalidPacketException {
+		transport.rewind();
+		int decoded = 0;
+		while (decoded < FRAMES) {
+			int frameLength = decoder.nextFrame(frame);
+			if (frameLength > 0) {
+				blackhole.consume(codec.decode(framing, frameBuffer,
+						frameLength));
+				decoded++;
+			} else if (frameLength < 0) {
+				throw new IllegalStateException("Corrupt frame in recording");
+			} else if (decoder.readFrom(transport, 0) <= 0) {
+				throw new IllegalStateException("Recording ended early");
+			}
+		}
+	}
+
+	// ===============================
+	// REPLAY TRANSPORT
+	// ===============================
+
+	/**
+	 * A transport that reads back a recorded stream, as much as is asked for
+	 * in each read.
+	 */
+	private static class ReplayTransport implements SerialTransport {
+
+		private final byte[] recording;
+		private final int length;
+		private int position;
+
+		ReplayTransport(byte[] recording, int length) {
+			this.recording = recording;
+			this.length = length;
+		}
+
+		void rewind() {
+			position = 0;
+		}
+
+		@Override
+		public int read(byte[] dst, int offset, int length, int timeout) {
+			int n = Math.min(length, this.length - position);
+			if (n <= 0)
+				return -1;
+			System.arraycopy(recording, position, dst, offset, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return length - position;
+		}
+
+		@Override
+		public void write(byte[] src, int offset, int length) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void setBaudRate(int baudRate) {
+
+		}
+
+		@Override
+		public void close() {
+
+		}
+
+	}
+
+}
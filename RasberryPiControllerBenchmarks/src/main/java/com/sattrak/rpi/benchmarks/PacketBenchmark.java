@@ -0,0 +1,99 @@
+package com.sattrak.rpi.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sattrak.rpi.serial.Framing;
+import com.sattrak.rpi.serial.PacketCodec;
+import com.sattrak.rpi.serial.SerialCommand;
+import com.sattrak.rpi.serial.SerialPacket;
+import com.sattrak.rpi.serial.SerialPacket.InvalidPacketException;
+import com.sattrak.rpi.serial.WireFormat;
+
+/**
+ * Framing and unframing every packet type as it goes over the wire, in each
+ * wire format, with fixed framing and with every framing option: the
+ * in-place Framing.encode and PacketCodec.decode the link uses, and the
+ * allocating toBytes and checked fromBytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+	@Param({ "ACK", "NACK", "SET_ORIENTATION", "READ_ORIENTATION",
+			"RESPONSE_ORIENTATION", "READ_ENV", "RESPONSE_ENV", "READ_GPS",
+			"RESPONSE_GPS", "ESTABLISH_CONNECTION", "SET_BAUD", "LINK_ACK" })
+	public String command;
+
+	@Param({ "V1_ASCII", "V2_FIXED_POINT" })
+	public String format;
+
+	/**
+	 * Framing options: fixed, or variable length with the CRC, sequence
+	 * numbers and FEC.
+	 */
+	@Param({ "0", "15" })
+	public int options;
+
+	private SerialPacket packet;
+	private SerialPacket decoded;
+	private PacketCodec codec;
+	private Framing framing;
+	private WireFormat wireFormat;
+	private byte[] frame;
+	private ByteBuffer buffer;
+	private int frameLength;
+
+	@Setup
+	public void setUp() {
+		SerialCommand serialCommand = SerialCommand.valueOf(command);
+		packet = Samples.packet(serialCommand);
+		decoded = SerialPacket.create(serialCommand);
+		wireFormat = WireFormat.valueOf(format);
+		framing = new Framing(options);
+		codec = new PacketCodec();
+		codec.setWireFormat(wireFormat);
+		frame = new byte[Framing.MAX_FRAME_LENGTH];
+		buffer = ByteBuffer.wrap(frame);
+		frameLength = framing.encode(packet, wireFormat, buffer);
+	}
+
+	@Benchmark
+	public int encodeFrame() {
+		buffer.clear();
+		return framing.encode(packet, wireFormat, buffer);
+	}
+
+	@Benchmark
+	public SerialPacket decodeFrame() throws InvalidPacketException {
+		return codec.decode(framing, buffer, frameLength);
+	}
+
+	@Benchmark
+	public byte[] toBytes() {
+		return packet.toBytes(framing, wireFormat);
+	}
+
+	@Benchmark
+	public SerialPacket fromBytes() throws InvalidPacketException {
+		decoded.fromBytes(frame, frameLength, framing, wireFormat);
+		return decoded;
+	}
+
+}
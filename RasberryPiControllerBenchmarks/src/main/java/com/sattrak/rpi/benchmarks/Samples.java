@@ -0,0 +1,68 @@
+package com.sattrak.rpi.benchmarks;
+
+import com.sattrak.rpi.serial.AckPacket;
+import com.sattrak.rpi.serial.EnvironmentalReadPacket;
+import com.sattrak.rpi.serial.EnvironmentalResponsePacket;
+import com.sattrak.rpi.serial.EstablishConnectionPacket;
+import com.sattrak.rpi.serial.GpsReadPacket;
+import com.sattrak.rpi.serial.GpsResponsePacket;
+import com.sattrak.rpi.serial.LinkAckPacket;
+import com.sattrak.rpi.serial.NackPacket;
+import com.sattrak.rpi.serial.OrientationReadPacket;
+import com.sattrak.rpi.serial.OrientationResponsePacket;
+import com.sattrak.rpi.serial.OrientationSetPacket;
+import com.sattrak.rpi.serial.SerialCommand;
+import com.sattrak.rpi.serial.SerialPacket;
+import com.sattrak.rpi.serial.SetBaudPacket;
+
+/**
+ * Packets with realistic arguments for each command, shared by the
+ * benchmarks.
+ */
+final class Samples {
+
+	/**
+	 * Private constructor so the class can't be instantiated.
+	 */
+	private Samples() {
+
+	}
+
+	/**
+	 * @param command
+	 *            a command with a packet class
+	 * @return a new packet for the command with typical arguments
+	 */
+	static SerialPacket packet(SerialCommand command) {
+		switch (command) {
+		case ACK:
+			return new AckPacket(SerialCommand.SET_ORIENTATION);
+		case NACK:
+			return new NackPacket(SerialCommand.SET_ORIENTATION,
+					NackPacket.REASON_CHECKSUM);
+		case SET_ORIENTATION:
+			return new OrientationSetPacket(271.4853, 38.0127);
+		case READ_ORIENTATION:
+			return new OrientationReadPacket();
+		case RESPONSE_ORIENTATION:
+			return new OrientationResponsePacket(271.4791, 38.0204);
+		case READ_ENV:
+			return new EnvironmentalReadPacket();
+		case RESPONSE_ENV:
+			return new EnvironmentalResponsePacket(21.7, 43.2);
+		case READ_GPS:
+			return new GpsReadPacket();
+		case RESPONSE_GPS:
+			return new GpsResponsePacket(51.477811, -0.001475);
+		case ESTABLISH_CONNECTION:
+			return new EstablishConnectionPacket();
+		case SET_BAUD:
+			return new SetBaudPacket(115200);
+		case LINK_ACK:
+			return new LinkAckPacket(0x05);
+		default:
+			throw new IllegalArgumentException("No packet for " + command);
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package com.sattrak.rpi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sattrak.rpi.serial.SerialCommand;
+
+/**
+ * Lookup of commands from their byte values, over every value a byte can
+ * take, as the frame decoder does for each candidate header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerialCommandBenchmark {
+
+	private static final int VALUES = 256;
+
+	private byte[] values;
+
+	@Setup
+	public void setUp() {
+		values = new byte[VALUES];
+		for (int i = 0; i < VALUES; i++)
+			values[i] = (byte) i;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void fromValue(Blackhole blackhole) {
+		for (byte value : values)
+			blackhole.consume(SerialCommand.fromValue(value));
+	}
+
+}